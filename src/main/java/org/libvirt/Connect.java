@@ -32,6 +32,7 @@ import com.sun.jna.Memory;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
 
 /**
  * The Connect object represents a connection to a local or remote
@@ -190,6 +191,35 @@ public class Connect {
      */
     protected ConnectionPointer VCP;
 
+    /**
+     * The cached number of host CPUs, -1 if not yet known.
+     */
+    private volatile int hostMaxCpus = -1;
+
+    static final int PEEK_CHUNK_MIN = 64 * 1024;
+    static final int PEEK_CHUNK_MAX = 4 * 1024 * 1024;
+
+    /**
+     * The maximum size of a single block or memory peek request, 0 if
+     * not yet known.
+     */
+    private volatile int peekChunkSize;
+
+    /**
+     * The cached host capabilities, null if not yet fetched.
+     */
+    private volatile HostCapabilities hostCapabilities;
+
+    /**
+     * The domain definition cache, created on first use.
+     */
+    private DomainDefinitionCache domainDefinitionCache;
+
+    /**
+     * The storage volume index, null if not yet created.
+     */
+    private volatile StorageVolIndex storageVolIndex;
+
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */
@@ -378,6 +408,11 @@ public class Connect {
      */
     public int close() throws LibvirtException {
         int success = 0;
+        StorageVolIndex index = storageVolIndex;
+        if (index != null) {
+            storageVolIndex = null;
+            index.close();
+        }
         if (VCP != null) {
             success = libvirt.virConnectClose(VCP);
 
@@ -969,6 +1004,64 @@ public class Connect {
         return processError(returnValue).toString();
     }
 
+    /**
+     * Returns the cache of parsed domain XML descriptions of this
+     * connection.
+     * <p>
+     * The cache is created on first use and registers a lifecycle
+     * listener to keep itself up to date, which requires a running
+     * event loop.
+     *
+     * @return the domain definition cache
+     * @throws LibvirtException if the lifecycle listener cannot be
+     *         registered
+     * @see Library#initEventLoop
+     */
+    public synchronized DomainDefinitionCache getDomainDefinitionCache() throws LibvirtException {
+        if (domainDefinitionCache == null) {
+            DomainDefinitionCache c = new DomainDefinitionCache();
+            c.register(this);
+            domainDefinitionCache = c;
+        }
+        return domainDefinitionCache;
+    }
+
+    /**
+     * Returns the index of the storage volumes of this connection by key
+     * and by path.
+     * <p>
+     * The index is created and built on first use and kept up to date
+     * with pool refreshes and volume creations and deletions made through
+     * this connection.
+     *
+     * @return the storage volume index
+     * @throws LibvirtException if the index cannot be built
+     */
+    public synchronized StorageVolIndex getStorageVolIndex() throws LibvirtException {
+        if (storageVolIndex == null) {
+            StorageVolIndex index = new StorageVolIndex(this);
+            try {
+                index.rebuild();
+            } catch (InterruptedException e) {
+                // stale pools are refreshed on the next lookup
+                Thread.currentThread().interrupt();
+            } catch (LibvirtException e) {
+                index.close();
+                throw e;
+            }
+            storageVolIndex = index;
+        }
+        return storageVolIndex;
+    }
+
+    /**
+     * Returns the storage volume index if it has been created, otherwise
+     * {@code null}.
+     */
+    StorageVolIndex peekStorageVolIndex() {
+        return storageVolIndex;
+    }
+
     /**
      * Provides capabilities of the hypervisor / driver.
      *
@@ -981,6 +1074,38 @@ public class Connect {
         return processError(libvirt.virConnectGetCapabilities(VCP)).toString();
     }
 
+    /**
+     * Provides the parsed capabilities of the hypervisor / driver.
+     * <p>
+     * The capabilities are fetched and parsed on first use and cached
+     * afterwards. Use {@link #refreshHostCapabilities} to discard the
+     * cached value, e.g. after CPUs have been hot-plugged on the host.
+     *
+     * @return the capabilities of the host
+     * @throws LibvirtException
+     */
+    public HostCapabilities getHostCapabilities() throws LibvirtException {
+        HostCapabilities caps = hostCapabilities;
+        if (caps == null) {
+            caps = refreshHostCapabilities();
+        }
+        return caps;
+    }
+
+    /**
+     * Fetches and parses the capabilities of the hypervisor / driver,
+     * replacing the cached value.
+     *
+     * @return the capabilities of the host
+     * @throws LibvirtException
+     * @see #getHostCapabilities
+     */
+    public HostCapabilities refreshHostCapabilities() throws LibvirtException {
+        HostCapabilities caps = HostCapabilities.parse(getCapabilities());
+        hostCapabilities = caps;
+        return caps;
+    }
+
     /**
      * NUMA Support
      */
@@ -1260,6 +1385,29 @@ public class Connect {
         }
     }
 
+    /**
+     * Lists all storage pools, active and inactive, in a single call.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-storage.html#virConnectListAllStoragePools">Libvirt Documentation</a>
+     * @param flags
+     *            bitwise OR'ed values of {@link StoragePool.ListAllFlags}
+     *            to filter the pools, 0 for all pools
+     * @return the pools
+     * @throws LibvirtException
+     */
+    public StoragePool[] listAllStoragePools(int flags) throws LibvirtException {
+        PointerByReference pools = new PointerByReference();
+        int n = processError(libvirt.virConnectListAllStoragePools(VCP, pools, flags));
+        Pointer[] ptrs = Library.toPointerArray(pools.getValue(), n);
+        StoragePool[] result = new StoragePool[n];
+        for (int i = 0; i < n; i++) {
+            StoragePoolPointer ptr = new StoragePoolPointer();
+            ptr.setPointer(ptrs[i]);
+            result[i] = new StoragePool(this, ptr);
+        }
+        return result;
+    }
+
     /**
      * List the names of the devices on this node
      *
@@ -1553,7 +1701,65 @@ public class Connect {
     public NodeInfo nodeInfo() throws LibvirtException {
         virNodeInfo vInfo = new virNodeInfo();
         processError(libvirt.virNodeGetInfo(VCP, vInfo));
-        return new NodeInfo(vInfo);
+        NodeInfo info = new NodeInfo(vInfo);
+        hostMaxCpus = info.maxCpus();
+        return info;
+    }
+
+    /**
+     * Returns the total number of CPUs of the host.
+     * <p>
+     * The value is fetched once and cached afterwards, since the CPU
+     * topology of a host practically never changes. Every call to
+     * {@link #nodeInfo} refreshes the cached value.
+     */
+    int getHostMaxCpus() throws LibvirtException {
+        int n = hostMaxCpus;
+        if (n < 0) {
+            n = nodeInfo().maxCpus();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the maximum amount of data transferred by a single block
+     * or memory peek request.
+     * <p>
+     * Older libvirt limits the payload of these requests in the remote
+     * driver to 64 KiB, newer versions allow 4 MiB. The limit is chosen
+     * by the version of the libvirt daemon and lowered by
+     * {@link #peekChunkSizeFailed} if a larger request is rejected.
+     */
+    int getPeekChunkSize() throws LibvirtException {
+        int n = peekChunkSize;
+        if (n == 0) {
+            n = getLibVersion() >= 1000000 ? PEEK_CHUNK_MAX : PEEK_CHUNK_MIN;
+            peekChunkSize = n;
+        }
+        return n;
+    }
+
+    /**
+     * Falls back to the minimal peek request size after a larger request
+     * has been rejected for its size, either by the RPC layer of the
+     * client or by a daemon with a lower limit. Other errors are left to
+     * the caller.
+     *
+     * @return {@code true} if the request size has been lowered and the
+     *         failed request should be retried
+     */
+    boolean peekChunkSizeFailed(int size, LibvirtException e) {
+        if (size <= PEEK_CHUNK_MIN) return false;
+
+        Error err = e.getError();
+        String msg = err.getMessage();
+        boolean tooLarge = err.getCode() == Error.ErrorNumber.VIR_ERR_RPC
+            || (err.getCode() == Error.ErrorNumber.VIR_ERR_INTERNAL_ERROR
+                && msg != null && msg.contains("maximum buffer size"));
+        if (!tooLarge) return false;
+
+        peekChunkSize = PEEK_CHUNK_MIN;
+        return true;
     }
 
     /**
@@ -0,0 +1,354 @@
+package org.libvirt;
+
+import java.util.Arrays;
+
+/**
+ * A compact set of physical CPUs, e.g. the CPUs a virtual CPU or the
+ * emulator threads of a domain are allowed to run on.
+ * <p>
+ * The set is backed by an array of {@code long} words and can be
+ * converted to and from the byte oriented cpumap format used by
+ * libvirt: CPU0-7 are stored in the first byte, CPU8-15 in the
+ * second byte and so on, with the lowest CPU number in the least
+ * significant bit.
+ * <p>
+ * Instances of this class are not thread-safe.
+ *
+ * @see Domain#pinVcpu(int, CpuMap, int)
+ * @see Domain#pinEmulator
+ */
+public final class CpuMap {
+    private final int size;
+    private final long[] words;
+
+    /**
+     * Creates an empty CPU map which is able to hold the given number of
+     * CPUs.
+     *
+     * @param size the number of CPUs, usually the total number of CPUs
+     *             of the host
+     */
+    public CpuMap(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size must be >= 0");
+
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * Creates a CPU map containing all CPUs in the range
+     * [{@code 0}, {@code size}).
+     */
+    public static CpuMap all(int size) {
+        CpuMap map = new CpuMap(size);
+        map.set(0, size);
+        return map;
+    }
+
+    /**
+     * Parses a CPU list in the syntax used throughout libvirt's XML,
+     * e.g. {@code "0-3,8,^2"}.
+     *
+     * @param  cpuset the CPU list
+     * @param  size   the number of CPUs of the resulting map
+     * @throws IllegalArgumentException if the list cannot be parsed or
+     *         contains CPUs outside of {@code [0, size)}
+     */
+    public static CpuMap parse(String cpuset, int size) {
+        CpuMap map = new CpuMap(size);
+
+        for (String item: cpuset.split(",")) {
+            item = item.trim();
+            if (item.length() == 0) continue;
+
+            boolean negate = item.charAt(0) == '^';
+            if (negate) item = item.substring(1);
+
+            int from, to;
+            try {
+                int dash = item.indexOf('-');
+                if (dash < 0) {
+                    from = to = Integer.parseInt(item);
+                } else {
+                    from = Integer.parseInt(item.substring(0, dash).trim());
+                    to = Integer.parseInt(item.substring(dash + 1).trim());
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid cpuset: " + cpuset, e);
+            }
+            if (from > to)
+                throw new IllegalArgumentException("invalid cpuset range: " + item);
+            if (from < 0 || to >= size)
+                throw new IllegalArgumentException("cpu " + (from < 0 ? from : to)
+                                                   + " out of range [0, " + size + "): " + cpuset);
+
+            if (negate) map.clear(from, to + 1);
+            else map.set(from, to + 1);
+        }
+        return map;
+    }
+
+    /**
+     * Creates a CPU map from a libvirt cpumap.
+     *
+     * @param src    the array containing the packed cpumap
+     * @param offset the offset of the cpumap within {@code src}
+     * @param maplen the length of the cpumap in bytes
+     * @param size   the number of CPUs of the resulting map
+     */
+    public static CpuMap fromBytes(byte[] src, int offset, int maplen, int size) {
+        CpuMap map = new CpuMap(size);
+        int n = Math.min(maplen, (size + 7) >>> 3);
+
+        for (int i = 0; i < n; i++) {
+            map.words[i >>> 3] |= (src[offset + i] & 0xffL) << ((i & 7) << 3);
+        }
+        map.trim();
+        return map;
+    }
+
+    /**
+     * Returns the number of CPUs this map is able to hold.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the length of the libvirt cpumap representation of this
+     * map in bytes.
+     */
+    public int mapLength() {
+        return (size + 7) >>> 3;
+    }
+
+    private void checkIndex(int cpu) {
+        if (cpu < 0 || cpu >= size)
+            throw new IndexOutOfBoundsException("cpu " + cpu + " out of range [0, " + size + ")");
+    }
+
+    /**
+     * Returns {@code true} if the given CPU is a member of this map.
+     */
+    public boolean get(int cpu) {
+        checkIndex(cpu);
+        return (words[cpu >>> 6] & (1L << cpu)) != 0;
+    }
+
+    /**
+     * Adds the given CPU to this map.
+     */
+    public CpuMap set(int cpu) {
+        checkIndex(cpu);
+        words[cpu >>> 6] |= 1L << cpu;
+        return this;
+    }
+
+    /**
+     * Adds all CPUs in the range [{@code from}, {@code to}) to this map.
+     */
+    public CpuMap set(int from, int to) {
+        if (from < to) {
+            checkIndex(from);
+            checkIndex(to - 1);
+            for (int cpu = from; cpu < to; cpu++) {
+                words[cpu >>> 6] |= 1L << cpu;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Removes the given CPU from this map.
+     */
+    public CpuMap clear(int cpu) {
+        checkIndex(cpu);
+        words[cpu >>> 6] &= ~(1L << cpu);
+        return this;
+    }
+
+    /**
+     * Removes all CPUs in the range [{@code from}, {@code to}) from this map.
+     */
+    public CpuMap clear(int from, int to) {
+        if (from < to) {
+            checkIndex(from);
+            checkIndex(to - 1);
+            for (int cpu = from; cpu < to; cpu++) {
+                words[cpu >>> 6] &= ~(1L << cpu);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of CPUs in this map.
+     */
+    public int cardinality() {
+        int n = 0;
+        for (long w: words) n += Long.bitCount(w);
+        return n;
+    }
+
+    /**
+     * Returns {@code true} if this map contains no CPUs.
+     */
+    public boolean isEmpty() {
+        for (long w: words) {
+            if (w != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lowest CPU in this map which is greater than or equal
+     * to {@code from}, or -1 if there is no such CPU.
+     */
+    public int nextSetBit(int from) {
+        if (from < 0)
+            throw new IndexOutOfBoundsException("from < 0");
+        if (from >= size)
+            return -1;
+
+        int i = from >>> 6;
+        long w = words[i] & (-1L << from);
+
+        while (true) {
+            if (w != 0)
+                return (i << 6) + Long.numberOfTrailingZeros(w);
+            if (++i == words.length)
+                return -1;
+            w = words[i];
+        }
+    }
+
+    /**
+     * Returns {@code true} if this map and the other map have at least
+     * one CPU in common.
+     */
+    public boolean intersects(CpuMap other) {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            if ((words[i] & other.words[i]) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds all CPUs of the other map to this map.
+     */
+    public CpuMap or(CpuMap other) {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            words[i] |= other.words[i];
+        }
+        trim();
+        return this;
+    }
+
+    /**
+     * Removes all CPUs from this map which are not contained in the
+     * other map.
+     */
+    public CpuMap and(CpuMap other) {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            words[i] &= other.words[i];
+        }
+        for (int i = n; i < words.length; i++) {
+            words[i] = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Removes all CPUs of the other map from this map.
+     */
+    public CpuMap andNot(CpuMap other) {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            words[i] &= ~other.words[i];
+        }
+        return this;
+    }
+
+    /**
+     * Returns a copy of this map.
+     */
+    public CpuMap copy() {
+        CpuMap map = new CpuMap(size);
+        System.arraycopy(words, 0, map.words, 0, words.length);
+        return map;
+    }
+
+    /**
+     * Writes this map in libvirt's cpumap format into the given array.
+     * <p>
+     * Exactly {@code maplen} bytes are written, CPUs which do not fit
+     * are dropped and missing bytes are zero filled.
+     *
+     * @param dst    the destination array
+     * @param offset the offset within {@code dst}
+     * @param maplen the length of the cpumap in bytes
+     */
+    public void toBytes(byte[] dst, int offset, int maplen) {
+        for (int i = 0; i < maplen; i++) {
+            int w = i >>> 3;
+            dst[offset + i] = w < words.length ? (byte) (words[w] >>> ((i & 7) << 3)) : 0;
+        }
+    }
+
+    /**
+     * Returns this map in libvirt's cpumap format.
+     */
+    public byte[] toBytes() {
+        byte[] map = new byte[mapLength()];
+        toBytes(map, 0, map.length);
+        return map;
+    }
+
+    // clear any bits beyond size
+    private void trim() {
+        if ((size & 63) != 0 && words.length > 0) {
+            words[words.length - 1] &= (1L << size) - 1;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * size + Arrays.hashCode(words);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof CpuMap))
+            return false;
+        CpuMap other = (CpuMap) obj;
+        return size == other.size && Arrays.equals(words, other.words);
+    }
+
+    /**
+     * Returns this map as a CPU list in libvirt syntax, e.g.
+     * {@code "0-3,8"}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int cpu = nextSetBit(0);
+
+        while (cpu >= 0) {
+            int end = cpu;
+            while (end + 1 < size && get(end + 1)) end++;
+
+            if (sb.length() > 0) sb.append(',');
+            sb.append(cpu);
+            if (end > cpu) sb.append('-').append(end);
+
+            cpu = end + 1 < size ? nextSetBit(end + 1) : -1;
+        }
+        return sb.toString();
+    }
+}
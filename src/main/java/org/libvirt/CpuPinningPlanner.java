@@ -0,0 +1,285 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes CPU pinning for a set of domains running on the same host
+ * and applies it in bulk.
+ * <p>
+ * Domains are either added as <em>dedicated</em> or as <em>shared</em>:
+ * <ul>
+ * <li>every virtual CPU of a dedicated domain gets a host CPU of its own
+ *     which is not used by any other domain,</li>
+ * <li>the virtual CPUs of shared domains as well as the emulator threads
+ *     of all domains run on the pool of host CPUs left over after the
+ *     dedicated CPUs have been handed out.</li>
+ * </ul>
+ * Host CPUs which have been {@link #reserve reserved} are never used
+ * for virtual CPUs. They are only used for emulator threads in case no
+ * shared CPUs are left.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * CpuPinningPlanner planner = new CpuPinningPlanner(conn);
+ * planner.reserve(CpuMap.parse("0-1", planner.getHostCpus()));
+ * planner.addDedicated(latencySensitiveDomain);
+ * planner.addShared(otherDomain);
+ * planner.plan().apply(Domain.ModificationImpact.LIVE);
+ * }</pre>
+ */
+public final class CpuPinningPlanner {
+
+    /**
+     * The pinning computed for a single domain.
+     */
+    public static final class Assignment {
+        private final Domain domain;
+        private final CpuMap[] vcpus;
+        private final CpuMap emulator;
+        private final boolean dedicated;
+
+        Assignment(Domain domain, CpuMap[] vcpus, CpuMap emulator, boolean dedicated) {
+            this.domain = domain;
+            this.vcpus = vcpus;
+            this.emulator = emulator;
+            this.dedicated = dedicated;
+        }
+
+        public Domain getDomain() {
+            return domain;
+        }
+
+        /**
+         * Returns the host CPUs assigned to the given virtual CPU.
+         */
+        public CpuMap getVcpu(int vcpu) {
+            return vcpus[vcpu].copy();
+        }
+
+        /**
+         * Returns the number of virtual CPUs of this assignment.
+         */
+        public int getVcpuCount() {
+            return vcpus.length;
+        }
+
+        /**
+         * Returns the host CPUs assigned to the emulator threads.
+         */
+        public CpuMap getEmulator() {
+            return emulator.copy();
+        }
+
+        public boolean isDedicated() {
+            return dedicated;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(dedicated ? "dedicated" : "shared").append(" vcpus:");
+            for (int i = 0; i < vcpus.length; i++) {
+                sb.append(i == 0 ? "" : " ").append(i).append('=').append(vcpus[i]);
+            }
+            sb.append(" emulator=").append(emulator);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The result of {@link CpuPinningPlanner#plan}.
+     */
+    public static final class Plan {
+        private final int hostCpus;
+        private final List<Assignment> assignments;
+
+        Plan(int hostCpus, List<Assignment> assignments) {
+            this.hostCpus = hostCpus;
+            this.assignments = Collections.unmodifiableList(assignments);
+        }
+
+        public List<Assignment> getAssignments() {
+            return assignments;
+        }
+
+        /**
+         * Pins the virtual CPUs and emulator threads of all domains of this
+         * plan.
+         * <p>
+         * The domains are processed in the order they were added to the
+         * planner. Processing stops at the first failure, leaving the
+         * remaining domains untouched.
+         *
+         * @param flags
+         *            bitwise OR'ed values of {@link Domain.ModificationImpact}
+         * @throws LibvirtException
+         */
+        public void apply(int flags) throws LibvirtException {
+            // all maps have the same length, so a single buffer is sufficient
+            byte[] packedMap = new byte[(hostCpus + 7) >>> 3];
+
+            for (Assignment a: assignments) {
+                for (int vcpu = 0; vcpu < a.vcpus.length; vcpu++) {
+                    a.vcpus[vcpu].toBytes(packedMap, 0, packedMap.length);
+                    a.domain.pinVcpu(vcpu, packedMap, flags);
+                }
+                a.emulator.toBytes(packedMap, 0, packedMap.length);
+                a.domain.pinEmulator(packedMap, flags);
+            }
+        }
+    }
+
+    private static final class Request {
+        final Domain domain;
+        final int vcpus;
+        final boolean dedicated;
+
+        Request(Domain domain, int vcpus, boolean dedicated) {
+            this.domain = domain;
+            this.vcpus = vcpus;
+            this.dedicated = dedicated;
+        }
+    }
+
+    private final int hostCpus;
+    private final CpuMap reserved;
+    private final List<Request> requests = new ArrayList<Request>();
+
+    /**
+     * Creates a planner for the host of the given connection.
+     *
+     * @throws LibvirtException
+     */
+    public CpuPinningPlanner(Connect conn) throws LibvirtException {
+        this(conn.getHostMaxCpus());
+    }
+
+    /**
+     * Creates a planner for a host having the given number of CPUs.
+     */
+    public CpuPinningPlanner(int hostCpus) {
+        if (hostCpus <= 0)
+            throw new IllegalArgumentException("hostCpus must be > 0");
+
+        this.hostCpus = hostCpus;
+        this.reserved = new CpuMap(hostCpus);
+    }
+
+    /**
+     * Returns the number of host CPUs this planner distributes.
+     */
+    public int getHostCpus() {
+        return hostCpus;
+    }
+
+    /**
+     * Reserves the given host CPUs for the host itself.
+     */
+    public CpuPinningPlanner reserve(CpuMap cpus) {
+        reserved.or(cpus);
+        return this;
+    }
+
+    /**
+     * Adds a domain for which every virtual CPU gets a dedicated host CPU.
+     * <p>
+     * The number of virtual CPUs is the maximum number of the domain, see
+     * {@link Domain#getVcpusFlags}.
+     *
+     * @throws LibvirtException
+     */
+    public CpuPinningPlanner addDedicated(Domain domain) throws LibvirtException {
+        return addDedicated(domain, domain.getVcpusFlags(Domain.VcpuFlags.MAXIMUM));
+    }
+
+    /**
+     * Adds a domain for which every virtual CPU gets a dedicated host CPU.
+     */
+    public CpuPinningPlanner addDedicated(Domain domain, int vcpus) {
+        return add(new Request(domain, vcpus, true));
+    }
+
+    /**
+     * Adds a domain whose virtual CPUs share the non-dedicated host CPUs.
+     *
+     * @throws LibvirtException
+     */
+    public CpuPinningPlanner addShared(Domain domain) throws LibvirtException {
+        return addShared(domain, domain.getVcpusFlags(Domain.VcpuFlags.MAXIMUM));
+    }
+
+    /**
+     * Adds a domain whose virtual CPUs share the non-dedicated host CPUs.
+     */
+    public CpuPinningPlanner addShared(Domain domain, int vcpus) {
+        return add(new Request(domain, vcpus, false));
+    }
+
+    private CpuPinningPlanner add(Request r) {
+        if (r.domain == null)
+            throw new IllegalArgumentException("domain must not be null");
+        if (r.vcpus < 0)
+            throw new IllegalArgumentException("vcpus must be >= 0");
+
+        requests.add(r);
+        return this;
+    }
+
+    /**
+     * Computes the pinning for all domains added so far.
+     *
+     * @return the computed plan
+     * @throws IllegalStateException if there are not enough host CPUs
+     */
+    public Plan plan() {
+        CpuMap free = CpuMap.all(hostCpus).andNot(reserved);
+
+        int needed = 0;
+        for (Request r: requests) {
+            if (r.dedicated) needed += r.vcpus;
+        }
+        if (needed > free.cardinality())
+            throw new IllegalStateException("dedicated vCPUs require " + needed + " host CPUs, but only "
+                                            + free.cardinality() + " are available");
+
+        // hand out dedicated CPUs in ascending order
+        CpuMap[][] dedicated = new CpuMap[requests.size()][];
+        int next = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            Request r = requests.get(i);
+            if (!r.dedicated) continue;
+
+            dedicated[i] = new CpuMap[r.vcpus];
+            for (int vcpu = 0; vcpu < r.vcpus; vcpu++) {
+                next = free.nextSetBit(next);
+                dedicated[i][vcpu] = new CpuMap(hostCpus).set(next);
+                free.clear(next);
+            }
+        }
+
+        CpuMap housekeeping = free.isEmpty() ? reserved : free;
+
+        List<Assignment> result = new ArrayList<Assignment>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            Request r = requests.get(i);
+            if (housekeeping.isEmpty())
+                throw new IllegalStateException("no host CPUs left for emulator threads");
+
+            CpuMap[] vcpus = dedicated[i];
+            if (vcpus == null) {
+                if (r.vcpus > 0 && free.isEmpty())
+                    throw new IllegalStateException("no host CPUs left for shared vCPUs");
+
+                vcpus = new CpuMap[r.vcpus];
+                for (int vcpu = 0; vcpu < r.vcpus; vcpu++) {
+                    vcpus[vcpu] = free;
+                }
+            }
+            result.add(new Assignment(r.domain, vcpus, housekeeping.copy(), r.dedicated));
+        }
+        return new Plan(hostCpus, result);
+    }
+}
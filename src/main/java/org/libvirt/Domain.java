@@ -12,6 +12,7 @@ import org.libvirt.jna.SizeT;
 import org.libvirt.jna.virDomainBlockInfo;
 import org.libvirt.jna.virDomainBlockStats;
 import org.libvirt.jna.virDomainInfo;
+import org.libvirt.jna.virDomainInterface;
 import org.libvirt.jna.virDomainInterfaceStats;
 import org.libvirt.jna.virDomainJobInfo;
 import org.libvirt.jna.virDomainMemoryStats;
@@ -29,6 +30,8 @@ import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
 
 import java.util.Arrays;
 
@@ -82,6 +85,10 @@ public class Domain {
                                                                     * whole migration process; this will be used automatically
                                                                     * when supported */
         static final int VIR_MIGRATE_UNSAFE            = (1 << 9); /* force migration even if it is considered unsafe */
+        static final int VIR_MIGRATE_COMPRESSED        = (1 << 11); /* compress migration data */
+        static final int VIR_MIGRATE_AUTO_CONVERGE     = (1 << 13); /* throttle the guest if the migration does not converge */
+        static final int VIR_MIGRATE_POSTCOPY          = (1 << 15); /* allow switching to post-copy migration */
+        static final int VIR_MIGRATE_PARALLEL          = (1 << 17); /* send memory over multiple connections */
     }
 
     static final class XMLFlags {
@@ -96,6 +103,91 @@ public class Domain {
         static final int VIR_DOMAIN_XML_UPDATE_CPU   = (1 << 2); /* update guest CPU requirements according to host CPU */
     }
 
+    public static final class DeviceModifyFlags {
+        /**
+         * Modify device allocation based on current domain state
+         */
+        public static final int CURRENT = 0;
+        /**
+         * Modify live device allocation
+         */
+        public static final int LIVE = (1 << 0);
+        /**
+         * Modify persisted device allocation
+         */
+        public static final int CONFIG = (1 << 1);
+        /**
+         * Forcibly modify device (ex. force eject a cdrom)
+         */
+        public static final int FORCE = (1 << 2);
+    }
+
+    public static final class ConsoleFlags {
+        /**
+         * Abort a connection to the console held by another client
+         */
+        public static final int FORCE = (1 << 0);
+        /**
+         * Only open the console if the driver can detect concurrent access
+         */
+        public static final int SAFE = (1 << 1);
+    }
+
+    public static final class InterfaceAddressesSource {
+        /**
+         * Parse the DHCP lease file of the network the interface is
+         * connected to
+         */
+        public static final int LEASE = 0;
+        /**
+         * Query the guest agent
+         */
+        public static final int AGENT = 1;
+        /**
+         * Use the host's ARP table
+         */
+        public static final int ARP = 2;
+    }
+
+    public static final class ModificationImpact {
+        /**
+         * Affect the current domain state
+         */
+        public static final int CURRENT = 0;
+        /**
+         * Affect the running domain instance
+         */
+        public static final int LIVE = (1 << 0);
+        /**
+         * Affect the persistent domain configuration
+         */
+        public static final int CONFIG = (1 << 1);
+    }
+
+    public static final class VcpuFlags {
+        /**
+         * Affect the current domain state
+         */
+        public static final int CURRENT = 0;
+        /**
+         * Affect the running domain instance
+         */
+        public static final int LIVE = (1 << 0);
+        /**
+         * Affect the persistent domain configuration
+         */
+        public static final int CONFIG = (1 << 1);
+        /**
+         * Use the maximum number of virtual CPUs instead of the current
+         * number
+         */
+        public static final int MAXIMUM = (1 << 2);
+        /**
+         * Query the guest agent about the virtual CPUs used by the guest
+         */
+        public static final int GUEST = (1 << 3);
+    }
+
     public static final class UndefineFlags {
         /**
          * Also remove any managed save
@@ -313,6 +405,9 @@ public class Domain {
      * buffer, that is, {@code buffer.remaining()} at the moment this
      * method is invoked. Upon return the buffer's position will be
      * equal to the limit, the limit itself will not have changed.
+     * <p>
+     * Direct buffers are passed to libvirt as is, whereas the contents
+     * of heap buffers have to be copied.
      *
      * @param  disk    the path to the block device, or device shorthand
      * @param  offset  the offset within block device
@@ -321,18 +416,26 @@ public class Domain {
     public void blockPeek(String disk, long offset, ByteBuffer buffer) throws LibvirtException {
         SizeT size = new SizeT();
 
-        // older libvirt has a limitation on the size of data
-        // transferred per request in the remote driver. So, split
-        // larger requests into 64K blocks.
+        // libvirt has a limitation on the size of data transferred
+        // per request in the remote driver, which depends on its
+        // version. So, split larger requests into chunks.
+        int chunk = virConnect.getPeekChunkSize();
 
         do {
-            final int req = Math.min(65536, buffer.remaining());
+            final int req = Math.min(chunk, buffer.remaining());
 
             size.setValue(req);
 
-            processError(libvirt.virDomainBlockPeek(this.VDP, disk, offset, size, buffer, 0));
+            try {
+                processError(libvirt.virDomainBlockPeek(this.VDP, disk, offset, size, buffer, 0));
+            } catch (LibvirtException e) {
+                if (!virConnect.peekChunkSizeFailed(req, e)) throw e;
+                chunk = Connect.PEEK_CHUNK_MIN;
+                continue;
+            }
 
             buffer.position(buffer.position() + req);
+            offset += req;
         } while (buffer.hasRemaining());
 
         assert buffer.position() == buffer.limit();
@@ -692,8 +795,7 @@ public class Domain {
         int cpuCount = getMaxVcpus();
 
         if (cpuCount > 0) {
-            NodeInfo nodeInfo = virConnect.nodeInfo();
-            int maplength = cpuMapLength(nodeInfo.maxCpus());
+            int maplength = cpuMapLength(virConnect.getHostMaxCpus());
             virVcpuInfo[] infos = new virVcpuInfo[cpuCount];
             returnValue = new int[cpuCount * maplength];
             byte[] cpumaps = new byte[cpuCount * maplength];
@@ -705,6 +807,72 @@ public class Domain {
         return returnValue;
     }
 
+    /**
+     * Returns the number of virtual CPUs of this domain.
+     * <p>
+     * Unlike {@link #getMaxVcpus} this also works for inactive domains.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainGetVcpusFlags">Libvirt
+     *      Documentation</a>
+     * @param flags
+     *            bitwise OR'ed values of {@link VcpuFlags}
+     * @return the number of virtual CPUs
+     * @throws LibvirtException
+     */
+    public int getVcpusFlags(int flags) throws LibvirtException {
+        return processError(libvirt.virDomainGetVcpusFlags(VDP, flags));
+    }
+
+    /**
+     * Returns the CPU affinity of every virtual CPU of this domain.
+     * <p>
+     * Unlike {@link #getVcpusCpuMaps} this also works for inactive
+     * domains.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainGetVcpuPinInfo">Libvirt
+     *      Documentation</a>
+     * @param flags
+     *            bitwise OR'ed values of {@link ModificationImpact}
+     * @return an array containing one CpuMap per virtual CPU
+     * @throws LibvirtException
+     */
+    public CpuMap[] getVcpuPinInfo(int flags) throws LibvirtException {
+        int cpuCount = getVcpusFlags(flags | VcpuFlags.MAXIMUM);
+        int hostCpus = virConnect.getHostMaxCpus();
+        int maplength = cpuMapLength(hostCpus);
+        byte[] cpumaps = new byte[cpuCount * maplength];
+
+        int got = processError(libvirt.virDomainGetVcpuPinInfo(VDP, cpuCount, cpumaps, maplength, flags));
+
+        CpuMap[] returnValue = new CpuMap[got];
+        for (int x = 0; x < got; x++) {
+            returnValue[x] = CpuMap.fromBytes(cpumaps, x * maplength, maplength, hostCpus);
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns the CPU affinity of the emulator threads of this domain.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainGetEmulatorPinInfo">Libvirt
+     *      Documentation</a>
+     * @param flags
+     *            bitwise OR'ed values of {@link ModificationImpact}
+     * @return the CPUs the emulator threads may run on
+     * @throws LibvirtException
+     */
+    public CpuMap getEmulatorPinInfo(int flags) throws LibvirtException {
+        int hostCpus = virConnect.getHostMaxCpus();
+        int maplength = cpuMapLength(hostCpus);
+        byte[] cpumap = new byte[maplength];
+
+        processError(libvirt.virDomainGetEmulatorPinInfo(VDP, cpumap, maplength, flags));
+        return CpuMap.fromBytes(cpumap, 0, maplength, hostCpus);
+    }
+
     /**
      * Extracts information about virtual CPUs of this domain
      *
@@ -737,6 +905,22 @@ public class Domain {
         return processError(libvirt.virDomainGetXMLDesc(VDP, flags)).toString();
     }
 
+    /**
+     * Provides a typed view of the XML description of this domain.
+     * <p>
+     * The description is fetched on every call, but only parsed as far
+     * as it is accessed. Use {@link Connect#getDomainDefinitionCache} to
+     * avoid fetching it repeatedly.
+     *
+     * @param flags
+     *            the flags passed to {@link #getXMLDesc}
+     * @return the domain definition
+     * @throws LibvirtException
+     */
+    public DomainDefinition getDefinition(int flags) throws LibvirtException {
+        return new DomainDefinition(getXMLDesc(flags));
+    }
+
     /**
      * Determine if the domain has a snapshot
      *
@@ -781,6 +965,34 @@ public class Domain {
         return new DomainInterfaceStats(stats);
     }
 
+    /**
+     * Returns the network interfaces of a running domain and their IP
+     * addresses.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-domain.html#virDomainInterfaceAddresses">Libvirt Documentation</a>
+     * @param source
+     *            where to get the addresses from, see
+     *            {@link InterfaceAddressesSource}
+     * @return the interfaces
+     * @throws LibvirtException
+     */
+    public DomainInterface[] interfaceAddresses(int source) throws LibvirtException {
+        PointerByReference ifaces = new PointerByReference();
+        int n = processError(libvirt.virDomainInterfaceAddresses(VDP, ifaces, source, 0));
+        Pointer[] ptrs = Library.toPointerArray(ifaces.getValue(), n);
+        DomainInterface[] result = new DomainInterface[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                result[i] = new DomainInterface(new virDomainInterface(ptrs[i]));
+            }
+        } finally {
+            for (Pointer p: ptrs) {
+                libvirt.virDomainInterfaceFree(p);
+            }
+        }
+        return result;
+    }
+
     /**
      * Determine if the domain is currently running
      *
@@ -865,18 +1077,26 @@ public class Domain {
     {
         SizeT size = new SizeT();
 
-        // older libvirt has a limitation on the size of data
-        // transferred per request in the remote driver. So, split
-        // larger requests into 64K blocks.
+        // libvirt has a limitation on the size of data transferred
+        // per request in the remote driver, which depends on its
+        // version. So, split larger requests into chunks.
+        int chunk = virConnect.getPeekChunkSize();
 
         do {
-            final int req = Math.min(65536, buffer.remaining());
+            final int req = Math.min(chunk, buffer.remaining());
 
             size.setValue(req);
 
-            processError(libvirt.virDomainMemoryPeek(this.VDP, start, size, buffer, mode.getValue()));
+            try {
+                processError(libvirt.virDomainMemoryPeek(this.VDP, start, size, buffer, mode.getValue()));
+            } catch (LibvirtException e) {
+                if (!virConnect.peekChunkSizeFailed(req, e)) throw e;
+                chunk = Connect.PEEK_CHUNK_MIN;
+                continue;
+            }
 
             buffer.position(buffer.position() + req);
+            start += req;
         } while (buffer.hasRemaining());
 
         assert buffer.position() == buffer.limit();
@@ -975,6 +1195,42 @@ public class Domain {
         return new Domain(dconn, newPtr);
     }
 
+    /**
+     * Migrate this domain object from its current host to the destination
+     * host given by dconn (a connection to the destination host), using
+     * typed parameters.
+     * <p>
+     * Unlike the other variants this supports all migration parameters
+     * of libvirt, e.g. parallel connections, compression and selecting
+     * the disks to copy. Flags implied by the parameters are added to the
+     * given flags.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt-domain.html#virDomainMigrate3">Libvirt
+     *      Documentation</a>
+     * @param dconn
+     *            destination host (a Connect object)
+     * @param params
+     *            the migration parameters
+     * @param flags
+     *            bitwise OR'ed values of {@link MigrateFlags}
+     * @return the new domain object if the migration was
+     *         successful. Note that the new domain object exists in
+     *         the scope of the destination connection (dconn).
+     * @throws LibvirtException if the migration fails
+     */
+    public Domain migrate(Connect dconn, MigrateParameters params, long flags) throws LibvirtException {
+        TypedParams tp = params.toTypedParams();
+        try {
+            DomainPointer newPtr =
+                processError(libvirt.virDomainMigrate3(VDP, dconn.VCP, tp.getPointer(), tp.size(),
+                                                       (int) (flags | params.getImpliedFlags())));
+            return new Domain(dconn, newPtr);
+        } finally {
+            tp.free();
+        }
+    }
+
     /**
      * Migrate this domain object from its current host to the destination host
      * given by dconn (a connection to the destination host). Flags may be one
@@ -1040,6 +1296,55 @@ public class Domain {
         return processError(libvirt.virDomainMigrateSetMaxDowntime(VDP, downtime, 0));
     }
 
+    /**
+     * Switches a running migration, which was started with the
+     * {@link MigrateFlags#VIR_MIGRATE_POSTCOPY POSTCOPY} flag, to
+     * post-copy mode. The domain is resumed on the destination host and
+     * the remaining memory is transferred on demand.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainMigrateStartPostCopy">Libvirt
+     *      Documentation</a>
+     * @param flags
+     *            extra flags, not used yet, so callers should always pass 0
+     * @return always 0
+     * @throws LibvirtException
+     */
+    public int migrateStartPostCopy(int flags) throws LibvirtException {
+        return processError(libvirt.virDomainMigrateStartPostCopy(VDP, flags));
+    }
+
+    /**
+     * Gets the current maximum bandwidth used by live migration.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainMigrateGetMaxSpeed">Libvirt
+     *      Documentation</a>
+     * @return the bandwidth in MiB/s
+     * @throws LibvirtException
+     */
+    public long migrateGetMaxSpeed() throws LibvirtException {
+        NativeLongByReference bandwidth = new NativeLongByReference();
+        processError(libvirt.virDomainMigrateGetMaxSpeed(VDP, bandwidth, 0));
+        return bandwidth.getValue().longValue();
+    }
+
+    /**
+     * Sets the maximum bandwidth used by live migration. This can be
+     * called while a migration is in progress.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainMigrateSetMaxSpeed">Libvirt
+     *      Documentation</a>
+     * @param bandwidth
+     *            the bandwidth in MiB/s
+     * @return always 0
+     * @throws LibvirtException
+     */
+    public int migrateSetMaxSpeed(long bandwidth) throws LibvirtException {
+        return processError(libvirt.virDomainMigrateSetMaxSpeed(VDP, new NativeLong(bandwidth), 0));
+    }
+
     /**
      * Migrate the domain object from its current host to the destination
      * denoted by a given URI.
@@ -1099,6 +1404,58 @@ public class Domain {
         return processError(libvirt.virDomainMigrateToURI(VDP, uri, new NativeLong(flags), dname, new NativeLong(bandwidth)));
     }
 
+    /**
+     * Migrate the domain object from its current host to the destination
+     * denoted by a given URI, using typed parameters.
+     * <p>
+     * The destination is given either in dconnuri (if the
+     * {@link MigrateFlags#VIR_MIGRATE_PEER2PEER PEER2PEER} flag is set),
+     * or in the URI parameter of params. Flags implied by the parameters
+     * are added to the given flags.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt-domain.html#virDomainMigrateToURI3">Libvirt
+     *      Documentation</a>
+     * @param dconnuri
+     *            (optional) URI for target libvirtd if flags includes VIR_MIGRATE_PEER2PEER
+     * @param params
+     *            the migration parameters
+     * @param flags
+     *            bitwise OR'ed values of {@link MigrateFlags}
+     * @return 0 if successful
+     * @throws LibvirtException
+     */
+    public int migrateToURI(String dconnuri, MigrateParameters params, long flags) throws LibvirtException {
+        TypedParams tp = params.toTypedParams();
+        try {
+            return processError(libvirt.virDomainMigrateToURI3(VDP, dconnuri, tp.getPointer(), tp.size(),
+                                                               (int) (flags | params.getImpliedFlags())));
+        } finally {
+            tp.free();
+        }
+    }
+
+    /**
+     * Opens a console of the domain, i.e. a serial, parallel or paravirtual
+     * character device, and connects it to the given stream, which becomes
+     * readable.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-domain.html#virDomainOpenConsole">Libvirt Documentation</a>
+     * @param devName
+     *            the alias of the device, or {@code null} for the first
+     *            console
+     * @param stream
+     *            the stream to connect
+     * @param flags
+     *            bitwise OR'ed values of {@link ConsoleFlags}
+     * @throws LibvirtException
+     * @see DomainConsoleCapture
+     */
+    public void openConsole(String devName, Stream stream, int flags) throws LibvirtException {
+        processError(libvirt.virDomainOpenConsole(VDP, devName, stream.getVSP(), flags));
+        stream.markReadable();
+    }
+
     /**
      * Enter the given power management suspension target level.
      */
@@ -1147,6 +1504,51 @@ public class Domain {
         processError(libvirt.virDomainPinVcpu(VDP, vcpu, packedMap, cpumap.length));
     }
 
+    /**
+     * Dynamically changes the real CPUs which can be allocated to a virtual
+     * CPU. This function requires priviledged access to the hypervisor.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainPinVcpuFlags">Libvirt
+     *      Documentation</a>
+     * @param vcpu
+     *            virtual cpu number
+     * @param cpumap
+     *            the real CPUs the virtual CPU may run on
+     * @param flags
+     *            bitwise OR'ed values of {@link ModificationImpact}
+     * @throws LibvirtException
+     */
+    public void pinVcpu(int vcpu, CpuMap cpumap, int flags) throws LibvirtException {
+        byte[] packedMap = cpumap.toBytes();
+        pinVcpu(vcpu, packedMap, flags);
+    }
+
+    void pinVcpu(int vcpu, byte[] packedMap, int flags) throws LibvirtException {
+        processError(libvirt.virDomainPinVcpuFlags(VDP, vcpu, packedMap, packedMap.length, flags));
+    }
+
+    /**
+     * Dynamically changes the real CPUs which can be allocated to the
+     * emulator threads of this domain.
+     *
+     * @see <a
+     *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virDomainPinEmulator">Libvirt
+     *      Documentation</a>
+     * @param cpumap
+     *            the real CPUs the emulator threads may run on
+     * @param flags
+     *            bitwise OR'ed values of {@link ModificationImpact}
+     * @throws LibvirtException
+     */
+    public void pinEmulator(CpuMap cpumap, int flags) throws LibvirtException {
+        pinEmulator(cpumap.toBytes(), flags);
+    }
+
+    void pinEmulator(byte[] packedMap, int flags) throws LibvirtException {
+        processError(libvirt.virDomainPinEmulator(VDP, packedMap, packedMap.length, flags));
+    }
+
     /**
      * Reboot this domain, the domain object is still usable there after but the
      * domain OS is being stopped for a restart. Note that the guest OS may
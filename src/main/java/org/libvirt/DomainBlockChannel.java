@@ -0,0 +1,355 @@
+package org.libvirt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read-only, seekable channel over a disk of a domain, backed by
+ * {@link Domain#blockPeek}.
+ * <p>
+ * The disk is read in blocks of 64 KiB by default. Blocks are kept in an
+ * LRU cache of direct buffers, so repeated reads of the same region,
+ * e.g. of a partition table, are served locally. Reads spanning several
+ * blocks fetch all missing blocks in parallel, and sequential reads
+ * trigger asynchronous readahead of the following blocks.
+ * <p>
+ * By default blocks are fetched by 4 threads shared by all channels, and
+ * a channel caches at most 1 MiB, so channels can be opened over the
+ * disks of many domains at once. For scanning large regions, larger
+ * blocks up to the maximum request size of the daemon, 4 MiB since
+ * libvirt 1.0, save round trips.
+ * <p>
+ * Like {@link java.nio.channels.FileChannel} the channel has a current
+ * position which is advanced by {@link #read(ByteBuffer)}, and supports
+ * absolute reads by {@link #read(ByteBuffer, long)}. Instances are
+ * thread-safe.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * DomainBlockChannel ch = new DomainBlockChannel(domain, "vda");
+ * try {
+ *     ByteBuffer mbr = ByteBuffer.allocate(512);
+ *     ch.read(mbr, 0);
+ * } finally {
+ *     ch.close();
+ * }
+ * }</pre>
+ */
+public final class DomainBlockChannel implements ReadableByteChannel {
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-blockpeek-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    // fetches the blocks of all channels not given an executor
+    private static final ExecutorService sharedExecutor = Executors.newFixedThreadPool(4, threadFactory);
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final Domain domain;
+    private final String disk;
+    private final long size;
+    private final int blockSize;
+    private final int cacheBlocks;
+    private final int readahead;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private final LinkedHashMap<Long, ByteBuffer> cache;
+    private final Map<Long, Future<ByteBuffer>> pending = new HashMap<Long, Future<ByteBuffer>>();
+    private long position;
+    private long lastBlock = -2;
+    private boolean closed;
+
+    /**
+     * Opens a channel over the given disk using blocks of 64 KiB, a cache
+     * of 16 blocks, readahead of 4 blocks and the shared threads.
+     *
+     * @param domain the domain
+     * @param disk   the path of the disk or its target device name
+     * @throws LibvirtException if the size of the disk cannot be
+     *         determined
+     */
+    public DomainBlockChannel(Domain domain, String disk) throws LibvirtException {
+        this(domain, disk, DEFAULT_BLOCK_SIZE, 16, 4, null);
+    }
+
+    /**
+     * Opens a channel over the given disk.
+     *
+     * @param domain      the domain
+     * @param disk        the path of the disk or its target device name
+     * @param blockSize   the size of the blocks read and cached
+     * @param cacheBlocks the number of blocks to cache
+     * @param readahead   the number of blocks read ahead on sequential
+     *                    access, 0 to disable readahead
+     * @param executor    the executor fetching blocks, {@code null} to
+     *                    use 4 threads shared by all channels
+     * @throws LibvirtException if the size of the disk cannot be
+     *         determined
+     */
+    public DomainBlockChannel(Domain domain, String disk, int blockSize, int cacheBlocks, int readahead,
+                              ExecutorService executor) throws LibvirtException {
+        if (blockSize < 1) throw new IllegalArgumentException("block size must be positive");
+        if (cacheBlocks < 1) throw new IllegalArgumentException("cache must hold at least one block");
+        if (readahead < 0 || readahead >= cacheBlocks)
+            throw new IllegalArgumentException("readahead must be less than the cache size");
+
+        this.domain = domain;
+        this.disk = disk;
+        this.size = domain.blockInfo(disk).getCapacity();
+        this.blockSize = blockSize;
+        this.cacheBlocks = cacheBlocks;
+        this.readahead = readahead;
+        this.executor = executor != null ? executor : sharedExecutor;
+        this.cache = new LinkedHashMap<Long, ByteBuffer>(cacheBlocks * 2, 0.75f, true);
+    }
+
+    /**
+     * Returns the size of the disk in bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    public synchronized long position() {
+        return position;
+    }
+
+    /**
+     * Sets the position of the channel. Positions beyond the size of the
+     * disk are allowed, reads then signal end-of-stream.
+     */
+    public synchronized DomainBlockChannel position(long newPosition) {
+        if (newPosition < 0) throw new IllegalArgumentException("negative position");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Reads bytes at the current position and advances it by the number
+     * of bytes read.
+     *
+     * @return the number of bytes read, or -1 at the end of the disk
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        long pos;
+        synchronized (this) {
+            pos = position;
+        }
+        int n = read(dst, pos);
+        if (n > 0) {
+            synchronized (this) {
+                position = pos + n;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Reads bytes at the given position. The position of the channel is
+     * not changed.
+     *
+     * @return the number of bytes read, or -1 if the position is at or
+     *         beyond the end of the disk
+     */
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        if (pos < 0) throw new IllegalArgumentException("negative position");
+        if (pos >= size) return -1;
+
+        int len = (int) Math.min(dst.remaining(), size - pos);
+        if (len == 0) return 0;
+
+        long first = pos / blockSize;
+        long last = (pos + len - 1) / blockSize;
+
+        // request all blocks up front, so they are fetched in parallel
+        List<Future<ByteBuffer>> blocks = request(first, last);
+
+        int done = 0;
+        for (long b = first; b <= last; b++) {
+            ByteBuffer block = await(blocks.get((int) (b - first)));
+            int off = (int) (pos + done - b * blockSize);
+            int n = Math.min(len - done, block.limit() - off);
+
+            ByteBuffer src = block.duplicate();
+            src.position(off).limit(off + n);
+            dst.put(src);
+            done += n;
+        }
+        return done;
+    }
+
+    private synchronized List<Future<ByteBuffer>> request(long first, long last) throws IOException {
+        if (closed) throw new ClosedChannelException();
+
+        List<Future<ByteBuffer>> result = new ArrayList<Future<ByteBuffer>>((int) (last - first + 1));
+        for (long b = first; b <= last; b++) {
+            result.add(fetch(b));
+        }
+
+        // sequential access, fetch the next blocks in the background
+        if (readahead > 0 && (first == lastBlock || first == lastBlock + 1)) {
+            long end = Math.min(last + readahead, (size - 1) / blockSize);
+            for (long b = last + 1; b <= end; b++) {
+                fetch(b);
+            }
+        }
+        lastBlock = last;
+        return result;
+    }
+
+    /**
+     * Returns the given block from the cache or starts fetching it.
+     */
+    private Future<ByteBuffer> fetch(final long block) {
+        ByteBuffer cached = cache.get(block);
+        if (cached != null) return new Done(cached);
+
+        Future<ByteBuffer> f = pending.get(block);
+        if (f != null) return f;
+
+        FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() throws LibvirtException {
+                    long start = block * blockSize;
+                    // direct buffers are handed to libvirt without copying
+                    ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(blockSize, size - start));
+                    try {
+                        domain.blockPeek(disk, start, buf);
+                    } catch (LibvirtException e) {
+                        completed(block, null);
+                        throw e;
+                    }
+                    buf.flip();
+                    completed(block, buf);
+                    return buf;
+                }
+            });
+        // registered before it runs, as the executor may run it right away
+        pending.put(block, task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            pending.remove(block);
+            task.cancel(false);
+        }
+        return task;
+    }
+
+    private synchronized void completed(long block, ByteBuffer data) {
+        pending.remove(block);
+        if (data == null || closed) return;
+
+        cache.put(block, data);
+        if (cache.size() > cacheBlocks) {
+            // evict the least recently used block
+            Iterator<ByteBuffer> it = cache.values().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static ByteBuffer await(Future<ByteBuffer> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (CancellationException e) {
+            throw new AsynchronousCloseException();
+        } catch (ExecutionException e) {
+            throw new IOException("block peek failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Drops all cached blocks, e.g. after the guest has written to the
+     * disk.
+     */
+    public synchronized void invalidate() {
+        cache.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (Future<ByteBuffer> f: pending.values()) {
+            f.cancel(false);
+        }
+        pending.clear();
+        cache.clear();
+    }
+
+    /**
+     * A future of a cached block.
+     */
+    private static final class Done implements Future<ByteBuffer> {
+        private final ByteBuffer value;
+
+        Done(ByteBuffer value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer get() {
+            return value;
+        }
+
+        @Override
+        public ByteBuffer get(long timeout, TimeUnit unit) {
+            return value;
+        }
+    }
+}
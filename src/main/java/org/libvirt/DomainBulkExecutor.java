@@ -0,0 +1,529 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a lifecycle operation on many domains in parallel.
+ * <p>
+ * Domains are grouped by their connection, i.e. by host, and the number
+ * of operations running concurrently on a single host is limited. Hosts
+ * are processed independently, so a slow host does not hold up the
+ * others.
+ * <p>
+ * Each operation can be given a timeout. libvirt calls cannot be
+ * cancelled, so an operation exceeding its timeout is reported as timed
+ * out but keeps occupying its slot of the host until the call returns.
+ * Operations queued behind such calls might never start, thus the bulk
+ * operation as a whole ends once all operations could have timed out
+ * one after the other, and operations not finished by then are reported
+ * as timed out.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * DomainBulkExecutor executor = new DomainBulkExecutor()
+ *     .setHostConcurrency(16)
+ *     .setTimeout(5, TimeUnit.MINUTES);
+ * DomainBulkExecutor.Report report =
+ *     executor.execute(DomainBulkExecutor.Operation.MANAGED_SAVE, domains);
+ * for (DomainBulkExecutor.Result r: report.getFailed()) {
+ *     System.err.println(r);
+ * }
+ * }</pre>
+ */
+public final class DomainBulkExecutor {
+
+    /**
+     * An action performed on a single domain.
+     */
+    public static interface Action {
+        void run(Domain domain) throws LibvirtException;
+    }
+
+    /**
+     * The lifecycle operations supported out of the box.
+     */
+    public static enum Operation implements Action {
+        /** @see Domain#create() */
+        CREATE {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.create();
+            }
+        },
+        /** @see Domain#shutdown() */
+        SHUTDOWN {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.shutdown();
+            }
+        },
+        /** @see Domain#destroy() */
+        DESTROY {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.destroy();
+            }
+        },
+        /** @see Domain#suspend() */
+        SUSPEND {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.suspend();
+            }
+        },
+        /** @see Domain#resume() */
+        RESUME {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.resume();
+            }
+        },
+        /** @see Domain#reboot(int) */
+        REBOOT {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.reboot(0);
+            }
+        },
+        /** @see Domain#managedSave() */
+        MANAGED_SAVE {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.managedSave();
+            }
+        },
+        /** @see Domain#undefine() */
+        UNDEFINE {
+            @Override
+            public void run(Domain domain) throws LibvirtException {
+                domain.undefine();
+            }
+        }
+    }
+
+    /**
+     * Receives a notification each time an operation on a domain has
+     * finished.
+     * <p>
+     * Listeners are invoked from worker threads and must be thread-safe.
+     */
+    public static interface ProgressListener {
+        /**
+         * @param result    the result of the finished operation
+         * @param completed the number of operations finished so far
+         * @param total     the total number of operations
+         */
+        void onProgress(Result result, int completed, int total);
+    }
+
+    /**
+     * The outcome of the operation on a single domain.
+     */
+    public static final class Result {
+        private final Domain domain;
+        private final String name;
+        private final Throwable error;
+        private final boolean timedOut;
+        private final long duration;
+
+        Result(Domain domain, String name, Throwable error, boolean timedOut, long duration) {
+            this.domain = domain;
+            this.name = name;
+            this.error = error;
+            this.timedOut = timedOut;
+            this.duration = duration;
+        }
+
+        public Domain getDomain() {
+            return domain;
+        }
+
+        /**
+         * Returns the name of the domain, or {@code null} if it could not
+         * be determined.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccess() {
+            return error == null && !timedOut;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Returns the exception thrown by the operation, usually a
+         * {@link LibvirtException}, or {@code null} if it succeeded or
+         * timed out.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Returns the time spent on the operation in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            String status = timedOut ? "timed out" : error == null ? "ok" : "failed: " + error.getMessage();
+            return String.format("%s: %s (%d ms)", name, status, duration);
+        }
+    }
+
+    /**
+     * The aggregated outcome of a bulk operation.
+     */
+    public static final class Report {
+        private final List<Result> results;
+
+        Report(List<Result> results) {
+            this.results = Collections.unmodifiableList(results);
+        }
+
+        /**
+         * Returns the results in the order of the domains passed in.
+         */
+        public List<Result> getResults() {
+            return results;
+        }
+
+        public List<Result> getSucceeded() {
+            List<Result> l = new ArrayList<Result>();
+            for (Result r: results) {
+                if (r.isSuccess()) l.add(r);
+            }
+            return l;
+        }
+
+        /**
+         * Returns the results of all operations which failed or timed out.
+         */
+        public List<Result> getFailed() {
+            List<Result> l = new ArrayList<Result>();
+            for (Result r: results) {
+                if (!r.isSuccess()) l.add(r);
+            }
+            return l;
+        }
+
+        public List<Result> getTimedOut() {
+            List<Result> l = new ArrayList<Result>();
+            for (Result r: results) {
+                if (r.isTimedOut()) l.add(r);
+            }
+            return l;
+        }
+
+        /**
+         * Returns {@code true} if the operation succeeded on all domains.
+         */
+        public boolean isSuccess() {
+            for (Result r: results) {
+                if (!r.isSuccess()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            int failed = 0;
+            int timedOut = 0;
+            for (Result r: results) {
+                if (r.isTimedOut()) timedOut++;
+                else if (!r.isSuccess()) failed++;
+            }
+            sb.append(String.format("%d domains, %d succeeded, %d failed, %d timed out",
+                                    results.size(), results.size() - failed - timedOut,
+                                    failed, timedOut));
+            for (Result r: results) {
+                if (!r.isSuccess()) sb.append(String.format("%n  ")).append(r);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The state of a single operation.
+     */
+    private static final class Task {
+        final int index;
+        final Domain domain;
+        final AtomicBoolean done = new AtomicBoolean();
+        volatile String name;
+        volatile long start;
+        volatile boolean started;
+        volatile ScheduledFuture<?> timer;
+
+        Task(int index, Domain domain) {
+            this.index = index;
+            this.domain = domain;
+        }
+    }
+
+    /**
+     * The state of one invocation of {@link #execute}.
+     */
+    private final class Run {
+        final Action action;
+        final Task[] tasks;
+        final Result[] results;
+        final CountDownLatch latch;
+        final AtomicInteger completed = new AtomicInteger();
+        final ScheduledExecutorService watchdog;
+        final long timeout;
+
+        Run(Action action, int total, ScheduledExecutorService watchdog, long timeout) {
+            this.action = action;
+            this.tasks = new Task[total];
+            this.results = new Result[total];
+            this.latch = new CountDownLatch(total);
+            this.watchdog = watchdog;
+            this.timeout = timeout;
+        }
+
+        void complete(Task t, Throwable error, boolean timedOut) {
+            if (!t.done.compareAndSet(false, true)) return;
+
+            ScheduledFuture<?> timer = t.timer;
+            if (timer != null) timer.cancel(false);
+            long duration = t.started ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t.start) : 0;
+            Result r = new Result(t.domain, t.name, error, timedOut, duration);
+            results[t.index] = r;
+            int n = completed.incrementAndGet();
+            ProgressListener l = listener;
+            if (l != null) {
+                try {
+                    l.onProgress(r, n, results.length);
+                } catch (RuntimeException e) {
+                    // a broken listener must not stall the bulk operation
+                }
+            }
+            latch.countDown();
+        }
+
+        void run(final Task t) {
+            t.start = System.nanoTime();
+            t.started = true;
+            if (watchdog != null) {
+                t.timer = watchdog.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            complete(t, null, true);
+                        }
+                    }, timeout, TimeUnit.NANOSECONDS);
+            }
+            try {
+                try {
+                    t.name = t.domain.getName();
+                } catch (LibvirtException e) {
+                    // report the result without a name
+                }
+                action.run(t.domain);
+                complete(t, null, false);
+            } catch (Throwable e) {
+                complete(t, e, false);
+            }
+        }
+
+        /**
+         * Reports all operations not finished yet as timed out, and
+         * removes those not started yet from the queues. Returns once
+         * the results of all operations are set.
+         */
+        void expire(Collection<Queue<Task>> queues) throws InterruptedException {
+            for (Queue<Task> q: queues) {
+                q.clear();
+            }
+            for (Task t: tasks) {
+                complete(t, null, true);
+            }
+            // a worker or the watchdog which won the race for a task may
+            // not have set its result yet; it counts down once it has
+            latch.await();
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-bulk-" + count.incrementAndGet());
+                // a hanging libvirt call must not keep the JVM alive
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    private int hostConcurrency = 4;
+    private final Map<Connect, Integer> concurrencyOverrides = new IdentityHashMap<Connect, Integer>();
+    private long timeoutNanos;
+    private volatile ProgressListener listener;
+    private ExecutorService executor;
+
+    /**
+     * Creates an executor running up to 4 operations per host and
+     * without timeout.
+     */
+    public DomainBulkExecutor() {}
+
+    /**
+     * Sets the maximum number of operations running concurrently on a
+     * single host.
+     */
+    public synchronized DomainBulkExecutor setHostConcurrency(int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        hostConcurrency = n;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of operations running concurrently on the
+     * host of the given connection, overriding the default.
+     */
+    public synchronized DomainBulkExecutor setHostConcurrency(Connect conn, int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        concurrencyOverrides.put(conn, n);
+        return this;
+    }
+
+    /**
+     * Sets the timeout of each single operation, 0 meaning no timeout.
+     */
+    public synchronized DomainBulkExecutor setTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+        timeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    public DomainBulkExecutor setProgressListener(ProgressListener l) {
+        listener = l;
+        return this;
+    }
+
+    /**
+     * Sets the executor used to run the operations. By default a new
+     * thread pool is created for each bulk operation.
+     * <p>
+     * The executor must provide at least as many threads as the sum of
+     * the concurrency limits of the hosts involved, otherwise hosts are
+     * processed with less concurrency.
+     */
+    public synchronized DomainBulkExecutor setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Runs the given action on all domains and waits until all of them
+     * have finished or timed out.
+     *
+     * @param action  the action, usually one of {@link Operation}
+     * @param domains the domains, which may belong to different
+     *                connections
+     * @return the report containing one result per domain
+     * @throws InterruptedException if interrupted while waiting; the
+     *         operations already started keep running
+     */
+    public Report execute(Action action, Collection<Domain> domains) throws InterruptedException {
+        final long timeout;
+        final Map<Connect, Queue<Task>> hosts = new IdentityHashMap<Connect, Queue<Task>>();
+        final Map<Connect, Integer> limits = new IdentityHashMap<Connect, Integer>();
+        final List<Task> tasks = new ArrayList<Task>(domains.size());
+        ExecutorService exec;
+        int threads = 0;
+
+        synchronized (this) {
+            timeout = timeoutNanos;
+            int i = 0;
+            for (Domain d: domains) {
+                Connect c = d.getConnect();
+                Queue<Task> q = hosts.get(c);
+                if (q == null) {
+                    q = new ConcurrentLinkedQueue<Task>();
+                    hosts.put(c, q);
+                    Integer limit = concurrencyOverrides.get(c);
+                    limits.put(c, limit != null ? limit : hostConcurrency);
+                }
+                Task t = new Task(i++, d);
+                q.add(t);
+                tasks.add(t);
+            }
+            for (Map.Entry<Connect, Queue<Task>> e: hosts.entrySet()) {
+                threads += Math.min(limits.get(e.getKey()), e.getValue().size());
+            }
+            exec = executor;
+        }
+
+        if (domains.isEmpty()) return new Report(new ArrayList<Result>());
+
+        boolean ownExecutor = exec == null;
+        if (ownExecutor) exec = Executors.newFixedThreadPool(threads, threadFactory);
+        ScheduledExecutorService watchdog = timeout > 0
+            ? Executors.newSingleThreadScheduledExecutor(threadFactory) : null;
+
+        final Run run = new Run(action, domains.size(), watchdog, timeout);
+        tasks.toArray(run.tasks);
+        try {
+            // the number of operations run one after the other by the
+            // workers of the busiest host
+            long rounds = 0;
+            for (Map.Entry<Connect, Queue<Task>> e: hosts.entrySet()) {
+                final Queue<Task> queue = e.getValue();
+                int workers = Math.min(limits.get(e.getKey()), queue.size());
+                rounds = Math.max(rounds, (queue.size() + workers - 1) / workers);
+
+                // every worker drains the queue of its host, which bounds
+                // the concurrency per host without blocking threads
+                for (int w = 0; w < workers; w++) {
+                    exec.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Task t;
+                                while ((t = queue.poll()) != null) {
+                                    run.run(t);
+                                }
+                            }
+                        });
+                }
+            }
+            if (timeout == 0) {
+                run.latch.await();
+            } else if (!run.latch.await(rounds * timeout, TimeUnit.NANOSECONDS)) {
+                run.expire(hosts.values());
+            }
+        } finally {
+            if (ownExecutor) exec.shutdown();
+            if (watchdog != null) watchdog.shutdownNow();
+        }
+
+        List<Result> results = new ArrayList<Result>(run.results.length);
+        Collections.addAll(results, run.results);
+        return new Report(results);
+    }
+}
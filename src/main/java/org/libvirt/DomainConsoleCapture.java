@@ -0,0 +1,452 @@
+package org.libvirt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures the console output of many domains, e.g. to keep their boot
+ * logs.
+ * <p>
+ * Consoles are opened with non-blocking streams which are read by the
+ * libvirt event loop, see {@link Stream#readAsync}, so a single thread
+ * running {@link Library#runEventLoop} serves all consoles. The event
+ * loop must be initialized by {@link Library#initEventLoop} before any
+ * connection is opened.
+ * <p>
+ * The latest output of each console is kept in a bounded ring buffer.
+ * Optionally all output is also appended to a file per domain in a log
+ * directory, which is rotated when it exceeds a maximum size. Files are
+ * written by a separate thread, so slow disks do not hold up the event
+ * loop.
+ * <p>
+ * When a domain stops, its console stream is freed, but its log is kept
+ * so the output remains available, until the domain is detached or
+ * attached again, or the log is dropped by {@link #removeEnded}.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * DomainConsoleCapture capture = new DomainConsoleCapture(64 * 1024)
+ *     .setLogDirectory(new File("/var/log/consoles"), 10 * 1024 * 1024, 5);
+ * for (int id: conn.listDomains()) {
+ *     capture.attach(conn.domainLookupByID(id), null);
+ * }
+ * ...
+ * byte[] bootLog = capture.getLog(domain).getContents();
+ * }</pre>
+ */
+public final class DomainConsoleCapture {
+
+    /**
+     * The captured output of a single console.
+     */
+    public final class Log {
+        private final String name;
+        private final Stream stream;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+
+        // ring buffer, guarded by this
+        private final byte[] ring;
+        private int head;
+        private long total;
+        private volatile boolean attached = true;
+        private volatile Throwable error;
+        // whether the stream has been freed, guarded by this
+        private boolean released;
+
+        // log file, only accessed by the writer thread
+        private FileOutputStream file;
+        private long fileSize;
+
+        Log(String name, Stream stream) {
+            this.name = name;
+            this.stream = stream;
+            this.ring = new byte[bufferSize];
+        }
+
+        /**
+         * Returns the name of the domain.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns whether the console is still being captured. Capturing
+         * ends when the domain stops, on errors and on {@link #detach}.
+         */
+        public boolean isAttached() {
+            return attached;
+        }
+
+        /**
+         * Returns the error which ended capturing, if any.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Returns the number of bytes captured so far.
+         */
+        public synchronized long getTotalBytes() {
+            return total;
+        }
+
+        /**
+         * Returns the latest output, at most as many bytes as fit into the
+         * ring buffer.
+         */
+        public synchronized byte[] getContents() {
+            int n = (int) Math.min(total, ring.length);
+            byte[] result = new byte[n];
+            int start = (head - n + ring.length) % ring.length;
+            int first = Math.min(n, ring.length - start);
+            System.arraycopy(ring, start, result, 0, first);
+            System.arraycopy(ring, 0, result, first, n - first);
+            return result;
+        }
+
+        synchronized void append(ByteBuffer data) {
+            int n = data.remaining();
+            total += n;
+            if (n > ring.length) {
+                // only the tail fits
+                data.position(data.position() + n - ring.length);
+                n = ring.length;
+            }
+            int first = Math.min(n, ring.length - head);
+            data.get(ring, head, first);
+            data.get(ring, 0, n - first);
+            head = (head + n) % ring.length;
+        }
+
+        private void read() {
+            readBuffer.clear();
+            stream.readAsync(readBuffer, new Stream.CompletionHandler<Integer>() {
+                    @Override
+                    public void completed(Integer n) {
+                        if (n == -1) {
+                            ended(null);
+                            return;
+                        }
+                        readBuffer.flip();
+                        if (logDirectory != null) {
+                            byte[] copy = new byte[readBuffer.remaining()];
+                            readBuffer.duplicate().get(copy);
+                            writeFile(Log.this, copy);
+                        }
+                        append(readBuffer);
+                        read();
+                    }
+
+                    @Override
+                    public void failed(Throwable exc) {
+                        ended(attached ? exc : null);
+                    }
+                });
+        }
+
+        /**
+         * Returns {@code true} on the first call only, so the stream is
+         * freed once.
+         */
+        synchronized boolean release() {
+            if (released) return false;
+            released = true;
+            return true;
+        }
+
+        private void ended(Throwable exc) {
+            error = exc;
+            attached = false;
+            if (logDirectory != null) writeFile(this, null);
+            if (!release()) return;
+            // called by the event loop, which must not free the stream
+            releaser.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            stream.free();
+                        } catch (LibvirtException e) {
+                            if (error == null) error = e;
+                        }
+                    }
+                });
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-console-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    // frees the streams of ended consoles
+    private static final ExecutorService releaser = Executors.newSingleThreadExecutor(threadFactory);
+
+    private final int bufferSize;
+    private final ConcurrentHashMap<String, Log> logs = new ConcurrentHashMap<String, Log>();
+    private volatile File logDirectory;
+    private volatile long maxFileSize;
+    private volatile int maxFiles;
+    private ExecutorService writer;
+    private volatile boolean closed;
+
+    // logs having an open file, and whether all files have been closed
+    // by close(); only accessed by the writer thread
+    private final Set<Log> openFiles = new HashSet<Log>();
+    private boolean filesClosed;
+
+    /**
+     * Creates a console capture.
+     *
+     * @param bufferSize the size of the ring buffer of each console
+     */
+    public DomainConsoleCapture(int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException("buffer size must be positive");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Appends all output to files named after the domains in the given
+     * directory. Must be called before attaching consoles.
+     *
+     * @param dir         the directory
+     * @param maxFileSize the size at which a file is rotated, 0 to never
+     *                    rotate
+     * @param maxFiles    the number of rotated files kept, named
+     *                    {@code <domain>.log.1} (the newest) to
+     *                    {@code <domain>.log.<maxFiles>}
+     */
+    public synchronized DomainConsoleCapture setLogDirectory(File dir, long maxFileSize, int maxFiles) {
+        if (maxFiles < 0) throw new IllegalArgumentException("negative number of files");
+        if (closed) throw new IllegalStateException("console capture has been closed");
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.logDirectory = dir;
+        if (writer == null) writer = Executors.newSingleThreadExecutor(threadFactory);
+        return this;
+    }
+
+    /**
+     * Opens a console of the domain and starts capturing its output,
+     * replacing an earlier capture of the same domain.
+     *
+     * @param domain  the domain
+     * @param devName the alias of the console device, {@code null} for
+     *                the first console
+     * @return the log of the console
+     * @throws LibvirtException if the console cannot be opened
+     * @throws IllegalStateException if the capture has been closed
+     */
+    public Log attach(Domain domain, String devName) throws LibvirtException {
+        if (closed) throw new IllegalStateException("console capture has been closed");
+
+        Stream stream = domain.getConnect().streamNew(Stream.VIR_STREAM_NONBLOCK);
+        String uuid;
+        String name;
+        try {
+            domain.openConsole(devName, stream, Domain.ConsoleFlags.SAFE);
+            uuid = domain.getUUIDString();
+            name = domain.getName();
+        } catch (LibvirtException e) {
+            stream.free();
+            throw e;
+        } catch (RuntimeException e) {
+            stream.free();
+            throw e;
+        }
+        return attach(uuid, name, stream);
+    }
+
+    /**
+     * Starts capturing the output of an opened console stream.
+     */
+    Log attach(String uuid, String name, Stream stream) throws LibvirtException {
+        Log log = new Log(name, stream);
+        synchronized (this) {
+            if (closed) {
+                stream.free();
+                throw new IllegalStateException("console capture has been closed");
+            }
+            Log old = logs.put(uuid, log);
+            if (old != null) close(old);
+        }
+        log.read();
+        return log;
+    }
+
+    /**
+     * Stops capturing the console of the given domain. Its log is
+     * discarded.
+     *
+     * @return {@code true} if the console was captured
+     * @throws LibvirtException if the UUID of the domain cannot be read
+     */
+    public boolean detach(Domain domain) throws LibvirtException {
+        Log log = logs.remove(domain.getUUIDString());
+        if (log == null) return false;
+        close(log);
+        return true;
+    }
+
+    /**
+     * Returns the log of the given domain, or {@code null} if its console
+     * is not captured.
+     *
+     * @throws LibvirtException if the UUID of the domain cannot be read
+     */
+    public Log getLog(Domain domain) throws LibvirtException {
+        return logs.get(domain.getUUIDString());
+    }
+
+    public Collection<Log> getLogs() {
+        return new ArrayList<Log>(logs.values());
+    }
+
+    /**
+     * Removes the logs of the consoles which are no longer captured, e.g.
+     * because their domains have stopped.
+     *
+     * @return the removed logs
+     */
+    public Collection<Log> removeEnded() {
+        Collection<Log> removed = new ArrayList<Log>();
+        for (Iterator<Log> it = logs.values().iterator(); it.hasNext();) {
+            Log log = it.next();
+            if (log.isAttached()) continue;
+            it.remove();
+            removed.add(log);
+        }
+        return removed;
+    }
+
+    /**
+     * Stops capturing all consoles and closes all files, waiting for
+     * pending writes. Consoles cannot be attached afterwards.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (Log log: getLogs()) {
+            close(log);
+        }
+        logs.clear();
+        if (writer != null) {
+            // runs after all pending writes; later ones are dropped
+            writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Log log: openFiles) {
+                            closeFile(log);
+                        }
+                        openFiles.clear();
+                        filesClosed = true;
+                    }
+                });
+            writer.shutdown();
+            try {
+                writer.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void close(Log log) {
+        log.attached = false;
+        if (!log.release()) return;
+        try {
+            // fails the pending read, which closes the file
+            log.stream.free();
+        } catch (LibvirtException e) {
+            log.error = e;
+        }
+    }
+
+    /**
+     * Appends data to the file of a log, or closes the file if data is
+     * {@code null}. Does nothing once the capture has been closed.
+     */
+    private void writeFile(final Log log, final byte[] data) {
+        if (closed) return;
+        try {
+            writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (filesClosed) return;
+                        try {
+                            if (data == null) {
+                                closeFile(log);
+                                openFiles.remove(log);
+                                return;
+                            }
+                            if (log.file == null || (maxFileSize > 0 && log.fileSize + data.length > maxFileSize)) {
+                                rotate(log);
+                                openFiles.add(log);
+                            }
+                            log.file.write(data);
+                            log.fileSize += data.length;
+                        } catch (IOException e) {
+                            // keep capturing into the ring buffer
+                            log.error = e;
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            // closed concurrently, the files are closed by the writer
+        }
+    }
+
+    private static void closeFile(Log log) {
+        if (log.file == null) return;
+        try {
+            log.file.close();
+        } catch (IOException e) {
+            log.error = e;
+        }
+        log.file = null;
+    }
+
+    private void rotate(Log log) throws IOException {
+        File current = new File(logDirectory, log.name + ".log");
+        if (log.file != null) {
+            log.file.close();
+            log.file = null;
+
+            new File(logDirectory, log.name + ".log." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                new File(logDirectory, log.name + ".log." + i).renameTo(
+                    new File(logDirectory, log.name + ".log." + (i + 1)));
+            }
+            if (maxFiles > 0) {
+                current.renameTo(new File(logDirectory, log.name + ".log.1"));
+            } else {
+                current.delete();
+            }
+        }
+        boolean append = log.fileSize == 0 && current.exists();
+        log.file = new FileOutputStream(current, append);
+        log.fileSize = append ? current.length() : 0;
+    }
+}
@@ -0,0 +1,479 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static org.libvirt.XMLHelper.attr;
+import static org.libvirt.XMLHelper.intAttr;
+import static org.libvirt.XMLHelper.nextChild;
+import static org.libvirt.XMLHelper.skip;
+import static org.libvirt.XMLHelper.text;
+
+/**
+ * A typed view of the XML description of a domain.
+ * <p>
+ * The XML is parsed lazily when one of the accessors is called for the
+ * first time. The general settings are parsed on their own, so callers
+ * only interested in them do not pay for the devices; the first access
+ * to a device parses the devices and all other sections not parsed yet
+ * in a single pass.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @see Domain#getDefinition
+ * @see DomainDefinitionCache
+ * @see <a href="http://libvirt.org/formatdomain.html">Domain XML format</a>
+ */
+public final class DomainDefinition {
+
+    /**
+     * A disk device of a domain.
+     */
+    public static final class Disk {
+        private String type;
+        private String device;
+        private String driverName;
+        private String driverType;
+        private String source;
+        private String sourcePool;
+        private String targetDev;
+        private String targetBus;
+        private String serial;
+        private boolean readOnly;
+        private boolean shareable;
+
+        /**
+         * Returns the type of the disk source, e.g. {@code "file"} or
+         * {@code "block"}.
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Returns how the disk is exposed to the guest, e.g.
+         * {@code "disk"} or {@code "cdrom"}.
+         */
+        public String getDevice() {
+            return device;
+        }
+
+        public String getDriverName() {
+            return driverName;
+        }
+
+        /**
+         * Returns the image format, e.g. {@code "qcow2"}.
+         */
+        public String getDriverType() {
+            return driverType;
+        }
+
+        /**
+         * Returns the source of the disk, which is the file, device,
+         * directory, volume or network name depending on the type, or
+         * {@code null} for empty removable media.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Returns the storage pool of a volume backed disk, otherwise
+         * {@code null}.
+         */
+        public String getSourcePool() {
+            return sourcePool;
+        }
+
+        /**
+         * Returns the target device name, e.g. {@code "vda"}.
+         */
+        public String getTargetDev() {
+            return targetDev;
+        }
+
+        public String getTargetBus() {
+            return targetBus;
+        }
+
+        public String getSerial() {
+            return serial;
+        }
+
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        public boolean isShareable() {
+            return shareable;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("disk:%s%ndevice:%s%ntype:%s%nsource:%s%n", targetDev, device, type, source);
+        }
+    }
+
+    /**
+     * A network interface of a domain.
+     */
+    public static final class Interface {
+        private String type;
+        private String mac;
+        private String source;
+        private String model;
+        private String targetDev;
+        private String alias;
+
+        /**
+         * Returns the type of the interface, e.g. {@code "network"} or
+         * {@code "bridge"}.
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getMac() {
+            return mac;
+        }
+
+        /**
+         * Returns the network, bridge or device the interface is
+         * connected to, depending on the type.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        /**
+         * Returns the host side device name, e.g. {@code "vnet0"}, which
+         * is usually only available for running domains.
+         */
+        public String getTargetDev() {
+            return targetDev;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("interface:%s%ntype:%s%nsource:%s%n", mac, type, source);
+        }
+    }
+
+    private static final int GENERAL = 1;
+    private static final int DEVICES = 2;
+
+    private final String xml;
+    private int parsed;
+
+    // GENERAL
+    private String type;
+    private String name;
+    private String uuid;
+    private long memory;
+    private long currentMemory;
+    private int vcpus;
+    private int currentVcpus;
+    private String cpuset;
+    private String osType;
+    private String arch;
+    private String machine;
+
+    // DEVICES
+    private List<Disk> disks;
+    private List<Interface> interfaces;
+
+    /**
+     * Creates a definition from the given domain XML.
+     * <p>
+     * The XML is not parsed until it is accessed, thus a malformed
+     * document is reported by the accessors throwing an
+     * {@code IllegalArgumentException}.
+     */
+    public DomainDefinition(String xml) {
+        if (xml == null)
+            throw new IllegalArgumentException("xml must not be null");
+
+        this.xml = xml;
+    }
+
+    /**
+     * Returns the XML this definition was created from.
+     */
+    public String getXML() {
+        return xml;
+    }
+
+    private synchronized void ensureParsed(int section) {
+        if ((parsed & section) != 0) return;
+
+        // the devices make up most of the document, so reading them also
+        // parses every other section not parsed yet, in the same pass
+        int sections = section;
+        if ((section & DEVICES) != 0) sections = ~parsed & (GENERAL | DEVICES);
+
+        XMLStreamReader r = null;
+        try {
+            r = XMLHelper.createReader(xml);
+            parse(r, sections);
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("invalid domain XML", e);
+        } finally {
+            if (r != null) XMLHelper.close(r);
+        }
+        parsed |= sections;
+    }
+
+    private void parse(XMLStreamReader r, int sections) throws XMLStreamException {
+        boolean general = (sections & GENERAL) != 0;
+        if (general) type = attr(r, "type");
+        if ((sections & DEVICES) != 0) {
+            disks = new ArrayList<Disk>();
+            interfaces = new ArrayList<Interface>();
+        }
+        while (nextChild(r)) {
+            String n = r.getLocalName();
+            if (n.equals("devices") && (sections & DEVICES) != 0) {
+                parseDevices(r);
+            } else if (general && n.equals("name")) {
+                name = text(r);
+            } else if (general && n.equals("uuid")) {
+                uuid = text(r);
+            } else if (general && n.equals("memory")) {
+                String unit = attr(r, "unit");
+                memory = XMLHelper.toKiB(XMLHelper.longValue(text(r), 0), unit);
+            } else if (general && n.equals("currentMemory")) {
+                String unit = attr(r, "unit");
+                currentMemory = XMLHelper.toKiB(XMLHelper.longValue(text(r), 0), unit);
+            } else if (general && n.equals("vcpu")) {
+                cpuset = attr(r, "cpuset");
+                currentVcpus = intAttr(r, "current", 0);
+                vcpus = (int) XMLHelper.longValue(text(r), 0);
+            } else if (general && n.equals("os")) {
+                while (nextChild(r)) {
+                    if (r.getLocalName().equals("type")) {
+                        arch = attr(r, "arch");
+                        machine = attr(r, "machine");
+                        osType = text(r);
+                    } else {
+                        skip(r);
+                    }
+                }
+            } else {
+                skip(r);
+            }
+        }
+        if (general) {
+            if (currentMemory == 0) currentMemory = memory;
+            if (currentVcpus == 0) currentVcpus = vcpus;
+        }
+    }
+
+    private void parseDevices(XMLStreamReader r) throws XMLStreamException {
+        while (nextChild(r)) {
+            String n = r.getLocalName();
+            if (n.equals("disk")) {
+                disks.add(parseDisk(r));
+            } else if (n.equals("interface")) {
+                interfaces.add(parseInterface(r));
+            } else {
+                skip(r);
+            }
+        }
+    }
+
+    private static Disk parseDisk(XMLStreamReader r) throws XMLStreamException {
+        Disk d = new Disk();
+        d.type = attr(r, "type");
+        d.device = attr(r, "device");
+        if (d.device == null) d.device = "disk";
+
+        while (nextChild(r)) {
+            String n = r.getLocalName();
+            if (n.equals("driver")) {
+                d.driverName = attr(r, "name");
+                d.driverType = attr(r, "type");
+                skip(r);
+            } else if (n.equals("source")) {
+                String s = attr(r, "file");
+                if (s == null) s = attr(r, "dev");
+                if (s == null) s = attr(r, "dir");
+                if (s == null) s = attr(r, "volume");
+                if (s == null) s = attr(r, "name");
+                d.source = s;
+                d.sourcePool = attr(r, "pool");
+                skip(r);
+            } else if (n.equals("target")) {
+                d.targetDev = attr(r, "dev");
+                d.targetBus = attr(r, "bus");
+                skip(r);
+            } else if (n.equals("serial")) {
+                d.serial = text(r);
+            } else if (n.equals("readonly")) {
+                d.readOnly = true;
+                skip(r);
+            } else if (n.equals("shareable")) {
+                d.shareable = true;
+                skip(r);
+            } else {
+                skip(r);
+            }
+        }
+        return d;
+    }
+
+    private static Interface parseInterface(XMLStreamReader r) throws XMLStreamException {
+        Interface i = new Interface();
+        i.type = attr(r, "type");
+
+        while (nextChild(r)) {
+            String n = r.getLocalName();
+            if (n.equals("mac")) {
+                i.mac = attr(r, "address");
+            } else if (n.equals("source")) {
+                String s = attr(r, "network");
+                if (s == null) s = attr(r, "bridge");
+                if (s == null) s = attr(r, "dev");
+                i.source = s;
+            } else if (n.equals("model")) {
+                i.model = attr(r, "type");
+            } else if (n.equals("target")) {
+                i.targetDev = attr(r, "dev");
+            } else if (n.equals("alias")) {
+                i.alias = attr(r, "name");
+            }
+            skip(r);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the hypervisor type, e.g. {@code "kvm"}.
+     */
+    public String getType() {
+        ensureParsed(GENERAL);
+        return type;
+    }
+
+    public String getName() {
+        ensureParsed(GENERAL);
+        return name;
+    }
+
+    public String getUUID() {
+        ensureParsed(GENERAL);
+        return uuid;
+    }
+
+    /**
+     * Returns the maximum memory of the domain in kilobytes.
+     */
+    public long getMemory() {
+        ensureParsed(GENERAL);
+        return memory;
+    }
+
+    /**
+     * Returns the current memory of the domain in kilobytes.
+     */
+    public long getCurrentMemory() {
+        ensureParsed(GENERAL);
+        return currentMemory;
+    }
+
+    /**
+     * Returns the maximum number of virtual CPUs.
+     */
+    public int getVcpus() {
+        ensureParsed(GENERAL);
+        return vcpus;
+    }
+
+    /**
+     * Returns the number of virtual CPUs enabled at boot.
+     */
+    public int getCurrentVcpus() {
+        ensureParsed(GENERAL);
+        return currentVcpus;
+    }
+
+    /**
+     * Returns the default CPU set of the virtual CPUs in libvirt syntax,
+     * or {@code null} if not restricted.
+     *
+     * @see CpuMap#parse
+     */
+    public String getCpuset() {
+        ensureParsed(GENERAL);
+        return cpuset;
+    }
+
+    /**
+     * Returns the OS type, e.g. {@code "hvm"}.
+     */
+    public String getOSType() {
+        ensureParsed(GENERAL);
+        return osType;
+    }
+
+    public String getArch() {
+        ensureParsed(GENERAL);
+        return arch;
+    }
+
+    public String getMachine() {
+        ensureParsed(GENERAL);
+        return machine;
+    }
+
+    public List<Disk> getDisks() {
+        ensureParsed(DEVICES);
+        return Collections.unmodifiableList(disks);
+    }
+
+    /**
+     * Looks up a disk by its target device name.
+     *
+     * @return the disk, or {@code null} if there is no such disk
+     */
+    public Disk getDisk(String targetDev) {
+        for (Disk d: getDisks()) {
+            if (targetDev.equals(d.targetDev)) return d;
+        }
+        return null;
+    }
+
+    public List<Interface> getInterfaces() {
+        ensureParsed(DEVICES);
+        return Collections.unmodifiableList(interfaces);
+    }
+
+    /**
+     * Looks up an interface by its MAC address.
+     *
+     * @return the interface, or {@code null} if there is no such interface
+     */
+    public Interface getInterface(String mac) {
+        for (Interface i: getInterfaces()) {
+            if (mac.equalsIgnoreCase(i.mac)) return i;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return xml;
+    }
+}
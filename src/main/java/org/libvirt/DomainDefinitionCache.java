@@ -0,0 +1,130 @@
+package org.libvirt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.LifecycleListener;
+
+/**
+ * Caches the {@link DomainDefinition}s of the domains of a connection.
+ * <p>
+ * Definitions are cached per domain UUID and XML flags. The cache
+ * listens for lifecycle events of the connection and drops the cached
+ * definitions of a domain when it gets defined, undefined, started or
+ * stopped (the live XML of a domain changes when it is started or
+ * stopped). Changes made behind the back of libvirt's event mechanism,
+ * e.g. hot-plugging devices, require an explicit call to
+ * {@link #invalidate}.
+ * <p>
+ * <strong>Note:</strong> Invalidation requires a running event loop,
+ * see {@link Library#initEventLoop}.
+ *
+ * @see Connect#getDomainDefinitionCache
+ */
+public final class DomainDefinitionCache {
+    private final ConcurrentMap<String, DomainDefinition> cache =
+        new ConcurrentHashMap<String, DomainDefinition>();
+
+    // incremented on every invalidation, used to detect races between
+    // fetching a definition and invalidating it
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LifecycleListener listener = new LifecycleListener() {
+            @Override
+            public int onLifecycleChange(Domain domain, DomainEvent event) {
+                switch (event.getType()) {
+                case DEFINED:
+                case UNDEFINED:
+                case STARTED:
+                case STOPPED:
+                    try {
+                        invalidate(domain.getUUIDString());
+                    } catch (LibvirtException e) {
+                        // the domain cannot be identified, so drop everything
+                        clear();
+                    }
+                    break;
+                default:
+                    break;
+                }
+                return 0;
+            }
+        };
+
+    DomainDefinitionCache() {}
+
+    /**
+     * Registers this cache for lifecycle events of the given connection.
+     */
+    void register(Connect conn) throws LibvirtException {
+        conn.addLifecycleListener(listener);
+    }
+
+    private static String key(String uuid, int flags) {
+        return uuid + '/' + flags;
+    }
+
+    /**
+     * Returns the definition of the given domain, fetching its XML
+     * description if it is not cached.
+     *
+     * @param domain the domain
+     * @param flags  the flags passed to {@link Domain#getXMLDesc}
+     * @return the definition
+     * @throws LibvirtException
+     */
+    public DomainDefinition get(Domain domain, int flags) throws LibvirtException {
+        String key = key(domain.getUUIDString(), flags);
+        DomainDefinition def = cache.get(key);
+
+        if (def == null) {
+            long gen = generation.get();
+            def = new DomainDefinition(domain.getXMLDesc(flags));
+            DomainDefinition prev = cache.putIfAbsent(key, def);
+            if (prev != null) {
+                def = prev;
+            } else if (gen != generation.get()) {
+                // invalidated while fetching, the XML may be stale
+                cache.remove(key, def);
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Drops all cached definitions of the domain having the given UUID.
+     */
+    public void invalidate(String uuid) {
+        generation.incrementAndGet();
+        String prefix = uuid + '/';
+        for (String key: cache.keySet()) {
+            if (key.startsWith(prefix)) cache.remove(key);
+        }
+    }
+
+    /**
+     * Drops all cached definitions of the given domain.
+     *
+     * @throws LibvirtException
+     */
+    public void invalidate(Domain domain) throws LibvirtException {
+        invalidate(domain.getUUIDString());
+    }
+
+    /**
+     * Drops all cached definitions.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of cached definitions.
+     */
+    public int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,540 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Computes the device changes between two XML descriptions of the same
+ * domain and applies them as device attach, detach and update
+ * operations, avoiding a full redefinition of the domain.
+ * <p>
+ * Devices are matched by identity: disks by target device name,
+ * interfaces by MAC address, controllers by type and index, host
+ * devices by source and all other devices by position among the devices
+ * of the same kind, or by alias if all of them have one in both
+ * descriptions, e.g. user defined {@code ua-} aliases. Matched
+ * devices are compared structurally, ignoring the order of child
+ * elements and attributes as well as runtime information which only
+ * appears in the live XML, like aliases, addresses, disk source indexes,
+ * the bridge and port of network interfaces, automatically allocated
+ * graphics ports and pty paths. A changed device is updated in place if
+ * libvirt supports updating it (removable media, interfaces and
+ * graphics), otherwise it is detached and attached again.
+ * <p>
+ * Changes outside of the {@code <devices>} element and changes of devices
+ * which cannot be hot-plugged, e.g. the emulator, video and input
+ * devices or the memory balloon, cannot be applied this way and are
+ * reported by {@link #requiresRedefine}.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * DomainDeviceDiff diff = DomainDeviceDiff.compute(domain.getXMLDesc(0), newXML);
+ * if (!diff.requiresRedefine()) {
+ *     diff.apply(domain, Domain.DeviceModifyFlags.LIVE | Domain.DeviceModifyFlags.CONFIG);
+ * }
+ * }</pre>
+ */
+public final class DomainDeviceDiff {
+
+    public static enum Action {
+        /** the device has been removed */
+        DETACH,
+        /** the device has been changed and can be updated in place */
+        UPDATE,
+        /** the device has been added */
+        ATTACH
+    }
+
+    /**
+     * A single device operation.
+     */
+    public static final class Change {
+        private final Action action;
+        private final String kind;
+        private final String key;
+        private final String xml;
+
+        Change(Action action, String kind, String key, String xml) {
+            this.action = action;
+            this.kind = kind;
+            this.key = key;
+            this.xml = xml;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * Returns the element name of the device, e.g. {@code "disk"}.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * Returns the key used to identify the device, e.g.
+         * {@code "disk:vda"}.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the device XML passed to libvirt.
+         */
+        public String getXML() {
+            return xml;
+        }
+
+        void apply(Domain domain, int flags) throws LibvirtException {
+            switch (action) {
+            case DETACH:
+                domain.detachDeviceFlags(xml, flags);
+                break;
+            case UPDATE:
+                domain.updateDeviceFlags(xml, flags);
+                break;
+            case ATTACH:
+                domain.attachDeviceFlags(xml, flags);
+                break;
+            default:
+                throw new AssertionError(action);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return action + " " + key;
+        }
+    }
+
+    /**
+     * A minimal element tree of a device.
+     */
+    private static final class Node {
+        final String name;
+        final Map<String, String> attrs = new LinkedHashMap<String, String>();
+        final List<Node> children = new ArrayList<Node>();
+        String text = "";
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        Node child(String n) {
+            for (Node c: children) {
+                if (c.name.equals(n)) return c;
+            }
+            return null;
+        }
+
+        String childAttr(String n, String attr) {
+            Node c = child(n);
+            return c == null ? null : c.attrs.get(attr);
+        }
+
+        Node copy() {
+            Node n = new Node(name);
+            n.attrs.putAll(attrs);
+            for (Node c: children) {
+                n.children.add(c.copy());
+            }
+            n.text = text;
+            return n;
+        }
+
+        void write(StringBuilder sb) {
+            sb.append('<').append(name);
+            for (Map.Entry<String, String> a: attrs.entrySet()) {
+                sb.append(' ').append(a.getKey()).append("='")
+                  .append(XMLHelper.escape(a.getValue())).append('\'');
+            }
+            if (children.isEmpty() && text.length() == 0) {
+                sb.append("/>");
+                return;
+            }
+            sb.append('>').append(XMLHelper.escape(text));
+            for (Node c: children) {
+                c.write(sb);
+            }
+            sb.append("</").append(name).append('>');
+        }
+
+        String toXML() {
+            StringBuilder sb = new StringBuilder(256);
+            write(sb);
+            return sb.toString();
+        }
+
+        /**
+         * Returns a canonical representation which is independent of
+         * attribute and child order and excludes runtime information.
+         */
+        String canonical(Set<String> ignored) {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append('<').append(name);
+            for (Map.Entry<String, String> a: new TreeMap<String, String>(attrs).entrySet()) {
+                sb.append(' ').append(a.getKey()).append("='").append(a.getValue()).append('\'');
+            }
+            sb.append('>').append(text);
+
+            List<String> cs = new ArrayList<String>(children.size());
+            for (Node c: children) {
+                if (!ignored.contains(c.name)) cs.add(c.canonical(ignored));
+            }
+            Collections.sort(cs);
+            for (String c: cs) {
+                sb.append(c);
+            }
+            return sb.append("</>").toString();
+        }
+    }
+
+    private static final class Device {
+        final String key;
+        final Node node;
+        final String canonical;
+
+        Device(String key, Node node) {
+            this.key = key;
+            this.node = node;
+            this.canonical = withoutLiveState(node).canonical(ignoredChildren(node.name));
+        }
+    }
+
+    // runtime information added by libvirt which must not count as change
+    private static final Set<String> IGNORED = names("alias", "address");
+    private static final Set<String> IGNORED_INTERFACE = names("alias", "address", "target");
+    private static final Set<String> IGNORED_DISK = names("alias", "address", "backingStore");
+
+    // top level elements which are generated at runtime
+    private static final Set<String> IGNORED_TOPLEVEL = names("devices", "seclabel", "resource");
+
+    // devices which cannot be attached or detached at runtime
+    private static final Set<String> NOT_HOTPLUGGABLE = names("emulator", "memballoon", "video", "input",
+                                                              "sound", "panic", "iommu", "nvram", "tpm");
+
+    // character devices whose source is allocated at runtime
+    private static final Set<String> CHARDEVS = names("serial", "console", "parallel", "channel");
+
+    private static Set<String> names(String... n) {
+        Set<String> s = new HashSet<String>();
+        Collections.addAll(s, n);
+        return Collections.unmodifiableSet(s);
+    }
+
+    /**
+     * Returns a copy of a device without the state libvirt adds to the
+     * live XML.
+     */
+    private static Node withoutLiveState(Node device) {
+        Node n = device.copy();
+        String kind = n.name;
+        Node source = n.child("source");
+        if (kind.equals("disk")) {
+            if (source != null) source.attrs.remove("index");
+        } else if (kind.equals("interface")) {
+            if (source != null) {
+                source.attrs.remove("portid");
+                // the bridge of the network, unless it is a bridge interface
+                if ("network".equals(n.attrs.get("type"))) source.attrs.remove("bridge");
+            }
+        } else if (kind.equals("graphics")) {
+            if ("yes".equals(n.attrs.get("autoport"))) {
+                n.attrs.remove("port");
+                n.attrs.remove("tlsPort");
+            }
+            // the listen attribute is repeated as child element
+            if (n.attrs.containsKey("listen")) removeChildren(n, "listen");
+        } else if (CHARDEVS.contains(kind) && "pty".equals(n.attrs.get("type"))) {
+            n.attrs.remove("tty");
+            removeChildren(n, "source");
+        }
+        return n;
+    }
+
+    private static void removeChildren(Node n, String name) {
+        for (Iterator<Node> it = n.children.iterator(); it.hasNext();) {
+            if (it.next().name.equals(name)) it.remove();
+        }
+    }
+
+    private static Set<String> ignoredChildren(String kind) {
+        if (kind.equals("interface")) return IGNORED_INTERFACE;
+        if (kind.equals("disk")) return IGNORED_DISK;
+        return IGNORED;
+    }
+
+    private final List<Change> changes;
+    private final boolean requiresRedefine;
+
+    private DomainDeviceDiff(List<Change> changes, boolean requiresRedefine) {
+        this.changes = Collections.unmodifiableList(changes);
+        this.requiresRedefine = requiresRedefine;
+    }
+
+    /**
+     * Computes the device changes necessary to turn the old definition
+     * into the new definition.
+     *
+     * @param oldXML the current XML description of the domain
+     * @param newXML the desired XML description of the domain
+     * @return the difference
+     * @throws IllegalArgumentException if one of the XML documents is
+     *         malformed
+     */
+    public static DomainDeviceDiff compute(String oldXML, String newXML) {
+        List<Node> oldTop = new ArrayList<Node>();
+        List<Node> newTop = new ArrayList<Node>();
+        List<Node> oldNodes = parse(oldXML, oldTop);
+        List<Node> newNodes = parse(newXML, newTop);
+
+        // live XML has aliases, user supplied XML usually has none, so
+        // aliases only identify devices if both sides have them
+        Set<String> noAlias = new HashSet<String>();
+        collectUnaliased(oldNodes, noAlias);
+        collectUnaliased(newNodes, noAlias);
+        Map<String, Device> oldDevices = devices(oldNodes, noAlias);
+        Map<String, Device> newDevices = devices(newNodes, noAlias);
+
+        List<Change> detach = new ArrayList<Change>();
+        List<Change> update = new ArrayList<Change>();
+        List<Change> attach = new ArrayList<Change>();
+        boolean redefine = !canonicalTop(oldTop).equals(canonicalTop(newTop));
+
+        for (Device o: oldDevices.values()) {
+            Device n = newDevices.get(o.key);
+            if (n != null && o.canonical.equals(n.canonical)) continue;
+            if (NOT_HOTPLUGGABLE.contains(o.node.name)) {
+                redefine = true;
+            } else if (n == null) {
+                detach.add(new Change(Action.DETACH, o.node.name, o.key, o.node.toXML()));
+            } else {
+                if (isUpdatable(o.node, n.node)) {
+                    update.add(new Change(Action.UPDATE, n.node.name, n.key, n.node.toXML()));
+                } else {
+                    detach.add(new Change(Action.DETACH, o.node.name, o.key, o.node.toXML()));
+                    attach.add(new Change(Action.ATTACH, n.node.name, n.key, n.node.toXML()));
+                }
+            }
+        }
+        for (Device n: newDevices.values()) {
+            if (oldDevices.containsKey(n.key)) continue;
+            if (NOT_HOTPLUGGABLE.contains(n.node.name)) {
+                redefine = true;
+            } else {
+                attach.add(new Change(Action.ATTACH, n.node.name, n.key, n.node.toXML()));
+            }
+        }
+
+        // detach first, so replaced devices do not collide with the new ones
+        List<Change> all = new ArrayList<Change>(detach.size() + update.size() + attach.size());
+        all.addAll(detach);
+        all.addAll(update);
+        all.addAll(attach);
+
+        return new DomainDeviceDiff(all, redefine);
+    }
+
+    /**
+     * Computes the device changes necessary to turn the old definition
+     * into the new definition.
+     *
+     * @see #compute(String, String)
+     */
+    public static DomainDeviceDiff compute(DomainDefinition oldDef, DomainDefinition newDef) {
+        return compute(oldDef.getXML(), newDef.getXML());
+    }
+
+    private static boolean isUpdatable(Node o, Node n) {
+        String kind = n.name;
+        if (kind.equals("disk")) {
+            // only removable media can be changed in place
+            String device = n.attrs.get("device");
+            return ("cdrom".equals(device) || "floppy".equals(device))
+                && device.equals(o.attrs.get("device"));
+        }
+        if (kind.equals("interface")) {
+            return eq(o.attrs.get("type"), n.attrs.get("type"))
+                && eq(o.childAttr("model", "type"), n.childAttr("model", "type"));
+        }
+        return kind.equals("graphics");
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String canonicalTop(List<Node> top) {
+        List<String> cs = new ArrayList<String>(top.size());
+        for (Node c: top) {
+            cs.add(c.canonical(IGNORED));
+        }
+        Collections.sort(cs);
+        return cs.toString();
+    }
+
+    private static List<Node> parse(String xml, List<Node> top) {
+        List<Node> devices = new ArrayList<Node>();
+        XMLStreamReader r = null;
+        try {
+            r = XMLHelper.createReader(xml);
+            while (XMLHelper.nextChild(r)) {
+                if (!r.getLocalName().equals("devices")) {
+                    Node n = readNode(r);
+                    if (!IGNORED_TOPLEVEL.contains(n.name)) top.add(n);
+                    continue;
+                }
+                while (XMLHelper.nextChild(r)) {
+                    devices.add(readNode(r));
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("invalid domain XML", e);
+        } finally {
+            if (r != null) XMLHelper.close(r);
+        }
+        return devices;
+    }
+
+    private static void collectUnaliased(List<Node> nodes, Set<String> kinds) {
+        for (Node n: nodes) {
+            if (n.childAttr("alias", "name") == null) kinds.add(n.name);
+        }
+    }
+
+    private static Map<String, Device> devices(List<Node> nodes, Set<String> noAlias) {
+        Map<String, Device> devices = new LinkedHashMap<String, Device>();
+        Map<String, Integer> ordinals = new HashMap<String, Integer>();
+        for (Node n: nodes) {
+            String key = key(n, ordinals, noAlias);
+            devices.put(key, new Device(key, n));
+        }
+        return devices;
+    }
+
+    private static Node readNode(XMLStreamReader r) throws XMLStreamException {
+        Node n = new Node(r.getLocalName());
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            n.attrs.put(r.getAttributeLocalName(i), r.getAttributeValue(i));
+        }
+
+        StringBuilder text = null;
+        while (true) {
+            int ev = r.next();
+            if (ev == XMLStreamConstants.START_ELEMENT) {
+                n.children.add(readNode(r));
+            } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (ev == XMLStreamConstants.CHARACTERS || ev == XMLStreamConstants.CDATA) {
+                if (text == null) text = new StringBuilder();
+                text.append(r.getText());
+            }
+        }
+        if (text != null) n.text = text.toString().trim();
+        return n;
+    }
+
+    private static String key(Node n, Map<String, Integer> ordinals, Set<String> noAlias) {
+        String kind = n.name;
+
+        if (kind.equals("disk")) {
+            String dev = n.childAttr("target", "dev");
+            if (dev != null) return "disk:" + dev;
+        } else if (kind.equals("interface")) {
+            String mac = n.childAttr("mac", "address");
+            if (mac != null) return "interface:" + mac.toLowerCase();
+        } else if (kind.equals("controller")) {
+            return "controller:" + n.attrs.get("type") + ":" + n.attrs.get("index");
+        } else if (kind.equals("hostdev")) {
+            Node source = n.child("source");
+            if (source != null) return "hostdev:" + hostdevSource(source);
+        } else if (!noAlias.contains(kind)) {
+            return kind + ":" + n.childAttr("alias", "name");
+        }
+
+        // fall back to the position among devices of the same kind
+        Integer ord = ordinals.get(kind);
+        int i = ord == null ? 0 : ord.intValue();
+        ordinals.put(kind, i + 1);
+        return kind + "#" + i;
+    }
+
+    /**
+     * Returns the identity of a host device source: the vendor and product
+     * of a USB device if given, as libvirt adds the bus address at
+     * runtime, otherwise the complete source including its address, e.g.
+     * the PCI address.
+     */
+    private static String hostdevSource(Node source) {
+        Node vendor = source.child("vendor");
+        Node product = source.child("product");
+        if (vendor != null && product != null) {
+            return "usb:" + vendor.attrs.get("id") + ":" + product.attrs.get("id");
+        }
+        return source.canonical(Collections.<String>emptySet());
+    }
+
+    /**
+     * Returns the device operations in the order they are applied:
+     * detaches first, then updates and attaches last.
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Returns {@code true} if there are no device changes.
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Returns {@code true} if the definitions differ outside of the
+     * {@code <devices>} element or in devices which cannot be hot-plugged,
+     * which cannot be applied by device operations.
+     */
+    public boolean requiresRedefine() {
+        return requiresRedefine;
+    }
+
+    /**
+     * Applies all device changes to the given domain.
+     * <p>
+     * Processing stops at the first failure, the exception is rethrown
+     * and changes already applied are not rolled back.
+     *
+     * @param domain the domain to modify
+     * @param flags  bitwise OR'ed values of {@link Domain.DeviceModifyFlags},
+     *               e.g. {@code LIVE | CONFIG} for a running persistent
+     *               domain
+     * @return the number of changes applied
+     * @throws LibvirtException
+     */
+    public int apply(Domain domain, int flags) throws LibvirtException {
+        for (Change c: changes) {
+            c.apply(domain, flags);
+        }
+        return changes.size();
+    }
+
+    @Override
+    public String toString() {
+        return changes.toString() + (requiresRedefine ? " (requires redefine)" : "");
+    }
+}
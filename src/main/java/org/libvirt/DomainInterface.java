@@ -0,0 +1,87 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.libvirt.jna.virDomainIPAddress;
+import org.libvirt.jna.virDomainInterface;
+
+/**
+ * A network interface of a running domain and its IP addresses.
+ *
+ * @see Domain#interfaceAddresses
+ */
+public final class DomainInterface {
+
+    /**
+     * An IP address of an interface.
+     */
+    public static final class IPAddress {
+        private final NetworkDHCPLease.IPAddrType type;
+        private final String addr;
+        private final int prefix;
+
+        IPAddress(virDomainIPAddress a) {
+            type = a.type == 1 ? NetworkDHCPLease.IPAddrType.IPV6 : NetworkDHCPLease.IPAddrType.IPV4;
+            addr = a.addr;
+            prefix = a.prefix;
+        }
+
+        public NetworkDHCPLease.IPAddrType getType() {
+            return type;
+        }
+
+        public String getAddr() {
+            return addr;
+        }
+
+        public int getPrefix() {
+            return prefix;
+        }
+
+        @Override
+        public String toString() {
+            return addr + "/" + prefix;
+        }
+    }
+
+    private final String name;
+    private final String hwaddr;
+    private final List<IPAddress> addrs;
+
+    DomainInterface(virDomainInterface i) {
+        name = i.name;
+        hwaddr = i.hwaddr;
+        virDomainIPAddress[] a = i.getAddresses();
+        List<IPAddress> l = new ArrayList<IPAddress>(a.length);
+        for (virDomainIPAddress x: a) {
+            l.add(new IPAddress(x));
+        }
+        addrs = Collections.unmodifiableList(l);
+    }
+
+    /**
+     * Returns the name of the interface, as seen by the host or, with
+     * {@link Domain.InterfaceAddressesSource#AGENT}, by the guest.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the MAC address, or {@code null} if unknown.
+     */
+    public String getHwaddr() {
+        return hwaddr;
+    }
+
+    public List<IPAddress> getAddrs() {
+        return addrs;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + hwaddr + " " + addrs;
+    }
+}
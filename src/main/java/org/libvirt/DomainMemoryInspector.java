@@ -0,0 +1,280 @@
+package org.libvirt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads and searches the memory of a running domain, backed by
+ * {@link Domain#memoryPeek} in {@link MemoryAddressMode#PHYSICAL}
+ * mode.
+ * <p>
+ * Physical memory is fetched in lines of several pages which are kept in
+ * an LRU cache, so page tables and data structures visited repeatedly
+ * are fetched only once. Guest memory keeps changing while the domain
+ * runs; call {@link #invalidate} to drop stale data, or suspend the
+ * domain to get a consistent view.
+ * <p>
+ * Virtual addresses are translated by walking the x86-64 four-level page
+ * tables of the guest, given the physical address of the top level table
+ * (the value of the CR3 register of a guest process or of the kernel).
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class DomainMemoryInspector {
+    /** the size of a guest page */
+    public static final int PAGE_SIZE = 4096;
+
+    private static final long PRESENT = 1L;
+    private static final long PAGE_SIZE_BIT = 1L << 7;
+    private static final long ADDRESS_MASK = 0x000ffffffffff000L;
+
+    private final Domain domain;
+    private final int lineSize;
+    private final int cacheLines;
+
+    // guarded by this
+    private final LinkedHashMap<Long, ByteBuffer> cache;
+
+    /**
+     * Creates an inspector caching 1024 lines of 16 pages each (64 MiB).
+     */
+    public DomainMemoryInspector(Domain domain) {
+        this(domain, 16, 1024);
+    }
+
+    /**
+     * Creates an inspector.
+     *
+     * @param domain       the domain
+     * @param linePages    the number of pages fetched at once
+     * @param cacheLines   the number of lines to cache
+     */
+    public DomainMemoryInspector(Domain domain, int linePages, int cacheLines) {
+        if (linePages < 1 || cacheLines < 1)
+            throw new IllegalArgumentException("line and cache size must be positive");
+
+        this.domain = domain;
+        this.lineSize = linePages * PAGE_SIZE;
+        this.cacheLines = cacheLines;
+        this.cache = new LinkedHashMap<Long, ByteBuffer>(cacheLines * 2, 0.75f, true);
+    }
+
+    private ByteBuffer line(long index) throws LibvirtException {
+        synchronized (this) {
+            ByteBuffer b = cache.get(index);
+            if (b != null) return b;
+        }
+
+        // fetch outside the lock; racing fetches of the same line are harmless
+        ByteBuffer b = ByteBuffer.allocateDirect(lineSize).order(ByteOrder.LITTLE_ENDIAN);
+        domain.memoryPeek(index * lineSize, b, MemoryAddressMode.PHYSICAL);
+        b.flip();
+
+        synchronized (this) {
+            cache.put(index, b);
+            if (cache.size() > cacheLines) {
+                Iterator<ByteBuffer> it = cache.values().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Reads physical memory into the given buffer, filling its remaining
+     * space.
+     *
+     * @param addr the guest physical address
+     * @param dst  the buffer
+     * @throws LibvirtException
+     */
+    public void readPhysical(long addr, ByteBuffer dst) throws LibvirtException {
+        while (dst.hasRemaining()) {
+            ByteBuffer src = line(addr / lineSize).duplicate();
+            int off = (int) (addr % lineSize);
+            int n = Math.min(dst.remaining(), lineSize - off);
+            src.position(off).limit(off + n);
+            dst.put(src);
+            addr += n;
+        }
+    }
+
+    /**
+     * Reads a little-endian 64 bit value from physical memory.
+     */
+    public long readPhysicalLong(long addr) throws LibvirtException {
+        int off = (int) (addr % lineSize);
+        if (off + 8 <= lineSize) {
+            return line(addr / lineSize).getLong(off);
+        }
+        ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        readPhysical(addr, b);
+        return b.getLong(0);
+    }
+
+    /**
+     * Translates a virtual address to a physical address by walking the
+     * guest's x86-64 page tables. 2 MiB and 1 GiB pages are supported,
+     * five-level paging is not.
+     *
+     * @param cr3   the physical address of the top level page table
+     *              (PML4); the low 12 bits are ignored
+     * @param vaddr the virtual address
+     * @return the physical address, or -1 if the address is not mapped
+     * @throws LibvirtException
+     */
+    public long translate(long cr3, long vaddr) throws LibvirtException {
+        long table = cr3 & ADDRESS_MASK;
+
+        // PML4, PDPT, PD and PT are indexed by 9 bits each, starting at bit 39
+        for (int level = 3; level >= 0; level--) {
+            int shift = 12 + 9 * level;
+            long index = (vaddr >>> shift) & 0x1ff;
+            long entry = readPhysicalLong(table + index * 8);
+            if ((entry & PRESENT) == 0) return -1;
+
+            // large pages are mapped at the PDPT (1 GiB) and PD (2 MiB) level
+            if ((level == 2 || level == 1) && (entry & PAGE_SIZE_BIT) != 0) {
+                long mask = (1L << shift) - 1;
+                return (entry & ADDRESS_MASK & ~mask) | (vaddr & mask);
+            }
+            table = entry & ADDRESS_MASK;
+        }
+        return table | (vaddr & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * Reads virtual memory into the given buffer, filling its remaining
+     * space.
+     *
+     * @param cr3   the physical address of the top level page table
+     * @param vaddr the virtual address
+     * @param dst   the buffer
+     * @throws LibvirtException
+     * @throws IllegalArgumentException if a page of the range is not
+     *         mapped
+     */
+    public void readVirtual(long cr3, long vaddr, ByteBuffer dst) throws LibvirtException {
+        while (dst.hasRemaining()) {
+            long phys = translate(cr3, vaddr);
+            if (phys < 0)
+                throw new IllegalArgumentException(String.format("address 0x%x is not mapped", vaddr));
+
+            int n = (int) Math.min(dst.remaining(), PAGE_SIZE - (vaddr & (PAGE_SIZE - 1)));
+            ByteBuffer part = dst.duplicate();
+            part.limit(part.position() + n);
+            readPhysical(phys, part);
+            dst.position(dst.position() + n);
+            vaddr += n;
+        }
+    }
+
+    /**
+     * Searches a range of physical memory for a byte pattern.
+     * <p>
+     * The range is split into chunks which are searched in parallel by
+     * the given executor. Scanned memory bypasses the cache, so a scan
+     * does not evict cached page tables.
+     *
+     * @param start    the physical start address
+     * @param end      the physical end address (exclusive)
+     * @param pattern  the pattern to search for
+     * @param executor the executor running the search
+     * @return the sorted physical addresses of all matches
+     * @throws LibvirtException if reading memory fails
+     * @throws InterruptedException if interrupted while waiting for the
+     *         search to finish
+     */
+    public List<Long> scan(long start, long end, byte[] pattern, ExecutorService executor)
+        throws LibvirtException, InterruptedException {
+        if (pattern.length == 0 || pattern.length > lineSize)
+            throw new IllegalArgumentException("pattern length must be between 1 and " + lineSize);
+
+        final int[] shift = horspoolTable(pattern);
+        final byte[] pat = pattern.clone();
+        // chunks overlap by the pattern length, so matches crossing chunk
+        // boundaries are found
+        final int chunk = Math.max(lineSize, 1024 * 1024);
+
+        List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+        for (long s = start; s < end; s += chunk) {
+            final long from = s;
+            final long to = Math.min(end, s + chunk + pat.length - 1);
+            futures.add(executor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws LibvirtException {
+                        ByteBuffer b = ByteBuffer.allocateDirect((int) (to - from));
+                        domain.memoryPeek(from, b, MemoryAddressMode.PHYSICAL);
+                        return search(b, from, pat, shift);
+                    }
+                }));
+        }
+
+        List<Long> result = new ArrayList<Long>();
+        try {
+            for (Future<List<Long>> f: futures) {
+                result.addAll(f.get());
+            }
+        } catch (ExecutionException e) {
+            for (Future<List<Long>> f: futures) {
+                f.cancel(true);
+            }
+            if (e.getCause() instanceof LibvirtException) throw (LibvirtException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<List<Long>> f: futures) {
+                f.cancel(true);
+            }
+            throw e;
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    static int[] horspoolTable(byte[] pattern) {
+        int[] shift = new int[256];
+        for (int i = 0; i < 256; i++) {
+            shift[i] = pattern.length;
+        }
+        for (int i = 0; i < pattern.length - 1; i++) {
+            shift[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+        return shift;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search of the whole buffer.
+     */
+    static List<Long> search(ByteBuffer b, long base, byte[] pattern, int[] shift) {
+        List<Long> hits = new ArrayList<Long>();
+        int m = pattern.length;
+        int limit = b.limit() - m;
+        int i = 0;
+        while (i <= limit) {
+            int j = m - 1;
+            while (j >= 0 && b.get(i + j) == pattern[j]) {
+                j--;
+            }
+            if (j < 0) hits.add(base + i);
+            i += shift[b.get(i + m - 1) & 0xff];
+        }
+        return hits;
+    }
+
+    /**
+     * Drops all cached memory.
+     */
+    public synchronized void invalidate() {
+        cache.clear();
+    }
+}
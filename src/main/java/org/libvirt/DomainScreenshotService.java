@@ -0,0 +1,454 @@
+package org.libvirt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodically captures screenshots of many domains, e.g. to show
+ * thumbnails of their consoles.
+ * <p>
+ * Screenshots in PPM format, as produced by QEMU, are decoded directly
+ * from the stream into reusable {@code int[]} frames, optionally keeping
+ * only every n-th pixel in each direction to produce a thumbnail. Each
+ * frame is divided into tiles whose hashes are compared with those of
+ * the previous frame, so the listener is only called when the screen has
+ * changed and can redraw the changed tiles only.
+ * <p>
+ * Captures run on a fixed number of threads, which bounds the load put
+ * on the hosts however many domains are scheduled. Captures of the same
+ * domain never overlap.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * DomainScreenshotService service = new DomainScreenshotService(8)
+ *     .setSubsample(4)
+ *     .setListener(listener);
+ * for (Domain d: domains) {
+ *     service.schedule(d, 5, TimeUnit.SECONDS);
+ * }
+ * }</pre>
+ */
+public final class DomainScreenshotService {
+
+    /**
+     * Receives the frames captured by the service.
+     */
+    public static interface FrameListener {
+        /**
+         * Called when the screen of a domain has changed. The frame is
+         * reused by the service and only valid until the listener is
+         * called again for the same domain.
+         */
+        void onFrame(Domain domain, Frame frame);
+
+        /**
+         * Called when capturing a screenshot fails. The domain stays
+         * scheduled.
+         */
+        void onError(Domain domain, Throwable error);
+    }
+
+    /**
+     * A decoded screenshot.
+     */
+    public static final class Frame {
+        private final int width;
+        private final int height;
+        private final int tileSize;
+        private final int tilesX;
+        private final int tilesY;
+        private final int[] pixels;
+        private final long[] tileHashes;
+        private final BitSet changed;
+
+        Frame(int width, int height, int tileSize) {
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.tilesX = (width + tileSize - 1) / tileSize;
+            this.tilesY = (height + tileSize - 1) / tileSize;
+            this.pixels = new int[width * height];
+            this.tileHashes = new long[tilesX * tilesY];
+            this.changed = new BitSet(tilesX * tilesY);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns the pixels row by row, each as {@code 0xRRGGBB}.
+         */
+        public int[] getPixels() {
+            return pixels;
+        }
+
+        public int getTileSize() {
+            return tileSize;
+        }
+
+        public int getTilesX() {
+            return tilesX;
+        }
+
+        public int getTilesY() {
+            return tilesY;
+        }
+
+        /**
+         * Returns the tiles which differ from the previous frame, indexed
+         * by {@code tileY * getTilesX() + tileX}. All tiles are set for
+         * the first frame of a domain.
+         */
+        public BitSet getChangedTiles() {
+            return changed;
+        }
+
+        boolean sameGeometry(int w, int h, int t) {
+            return width == w && height == h && tileSize == t;
+        }
+
+        void hashTiles() {
+            for (int ty = 0; ty < tilesY; ty++) {
+                int y1 = Math.min(height, (ty + 1) * tileSize);
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int x0 = tx * tileSize;
+                    int x1 = Math.min(width, x0 + tileSize);
+                    long h = 1125899906842597L;
+                    for (int y = ty * tileSize; y < y1; y++) {
+                        for (int i = y * width + x0, end = y * width + x1; i < end; i++) {
+                            h = 31 * h + pixels[i];
+                        }
+                    }
+                    tileHashes[ty * tilesX + tx] = h;
+                }
+            }
+        }
+
+        /**
+         * Marks the tiles which differ from the given frame.
+         *
+         * @return the number of changed tiles
+         */
+        int diff(Frame previous) {
+            changed.clear();
+            if (previous == null || !previous.sameGeometry(width, height, tileSize)) {
+                changed.set(0, tileHashes.length);
+                return tileHashes.length;
+            }
+            int n = 0;
+            for (int i = 0; i < tileHashes.length; i++) {
+                if (tileHashes[i] != previous.tileHashes[i]) {
+                    changed.set(i);
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+
+    private static final String PPM_MIME_TYPE = "image/x-portable-pixmap";
+
+    /**
+     * The largest number of pixels of a decoded frame, enough for an 8K
+     * display.
+     */
+    static final int MAX_PIXELS = 1 << 25;
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-screenshot-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    // each capture thread reads the streams through its own buffer
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(64 * 1024);
+            }
+        };
+
+    /**
+     * The frames of a scheduled domain. The frame last passed to the
+     * listener is kept for comparison, the other one is decoded into.
+     */
+    private final class Capture implements Runnable {
+        final Domain domain;
+        Frame current;
+        Frame spare;
+        ScheduledFuture<?> future;
+
+        Capture(Domain domain) {
+            this.domain = domain;
+        }
+
+        @Override
+        public void run() {
+            FrameListener l = listener;
+            try {
+                Frame f = capture(domain, spare);
+                if (f.diff(current) == 0) {
+                    spare = f;
+                    return;
+                }
+                spare = current;
+                current = f;
+                if (l != null) l.onFrame(domain, f);
+            } catch (Throwable e) {
+                if (l != null) l.onError(domain, e);
+            }
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, Capture> captures = new ConcurrentHashMap<String, Capture>();
+    private volatile FrameListener listener;
+    private volatile int subsample = 1;
+    private volatile int tileSize = 16;
+    private volatile int screen;
+
+    /**
+     * Creates a service.
+     *
+     * @param concurrency the maximum number of screenshots captured at
+     *                    the same time
+     */
+    public DomainScreenshotService(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be positive");
+        executor = new ScheduledThreadPoolExecutor(concurrency, threadFactory);
+    }
+
+    public DomainScreenshotService setListener(FrameListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Keeps only every n-th pixel in each direction. Default is 1, i.e.
+     * full size.
+     */
+    public DomainScreenshotService setSubsample(int n) {
+        if (n < 1) throw new IllegalArgumentException("subsample must be positive");
+        this.subsample = n;
+        return this;
+    }
+
+    /**
+     * Sets the width and height of the tiles compared between frames, in
+     * pixels of the (subsampled) frame. Default is 16.
+     */
+    public DomainScreenshotService setTileSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("tile size must be positive");
+        this.tileSize = size;
+        return this;
+    }
+
+    /**
+     * Sets the screen captured of domains with multiple heads. Default is
+     * 0.
+     */
+    public DomainScreenshotService setScreen(int screen) {
+        this.screen = screen;
+        return this;
+    }
+
+    /**
+     * Starts capturing the given domain periodically, replacing an earlier
+     * schedule of the same domain. The first capture happens immediately.
+     *
+     * @throws LibvirtException if the UUID of the domain cannot be read
+     */
+    public void schedule(Domain domain, long period, TimeUnit unit) throws LibvirtException {
+        Capture c = new Capture(domain);
+        // hold the lock, so a concurrent cancel sees the future
+        synchronized (c) {
+            Capture old = captures.put(domain.getUUIDString(), c);
+            if (old != null) {
+                synchronized (old) {
+                    old.future.cancel(false);
+                }
+            }
+            c.future = executor.scheduleWithFixedDelay(c, 0, period, unit);
+        }
+    }
+
+    /**
+     * Stops capturing the given domain.
+     *
+     * @return {@code true} if the domain was scheduled
+     * @throws LibvirtException if the UUID of the domain cannot be read
+     */
+    public boolean cancel(Domain domain) throws LibvirtException {
+        Capture c = captures.remove(domain.getUUIDString());
+        if (c == null) return false;
+        synchronized (c) {
+            c.future.cancel(false);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of scheduled domains.
+     */
+    public int size() {
+        return captures.size();
+    }
+
+    /**
+     * Stops all captures. Captures in progress are completed.
+     */
+    public void shutdown() {
+        captures.clear();
+        // periodic tasks are cancelled on shutdown
+        executor.shutdown();
+    }
+
+    /**
+     * Captures a single screenshot of the given domain, using the
+     * settings of this service.
+     *
+     * @return a new frame, with all tiles marked changed
+     * @throws LibvirtException if taking the screenshot fails
+     * @throws IOException if the screenshot cannot be read or is not in
+     *         PPM format
+     */
+    public Frame capture(Domain domain) throws LibvirtException, IOException {
+        Frame f = capture(domain, null);
+        f.diff(null);
+        return f;
+    }
+
+    private Frame capture(Domain domain, Frame reuse) throws LibvirtException, IOException {
+        Stream stream = domain.getConnect().streamNew(0);
+        try {
+            String mimeType = domain.screenshot(stream, screen);
+            if (!PPM_MIME_TYPE.equals(mimeType))
+                throw new IOException("unsupported screenshot format " + mimeType);
+
+            ByteBuffer buf = buffers.get();
+            buf.clear().flip();
+            return decode(stream, buf, reuse, subsample, tileSize);
+        } finally {
+            stream.free();
+        }
+    }
+
+    /**
+     * Reads the next byte, refilling the buffer as needed.
+     */
+    private static int next(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (!buf.hasRemaining()) {
+            buf.clear();
+            int n = in.read(buf);
+            buf.flip();
+            if (n == -1) throw new EOFException("truncated PPM image");
+        }
+        return buf.get() & 0xff;
+    }
+
+    /**
+     * Reads an unsigned decimal number of the PPM header, skipping
+     * whitespace and comments before it and consuming one byte after it.
+     */
+    private static int number(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        int c = next(in, buf);
+        while (true) {
+            if (c == '#') {
+                while (c != '\n' && c != '\r') c = next(in, buf);
+            } else if (!Character.isWhitespace(c)) {
+                break;
+            }
+            c = next(in, buf);
+        }
+        if (c < '0' || c > '9') throw new IOException("malformed PPM header");
+
+        long v = 0;
+        do {
+            v = v * 10 + c - '0';
+            if (v > Integer.MAX_VALUE) throw new IOException("malformed PPM header");
+            c = next(in, buf);
+        } while (c >= '0' && c <= '9');
+        return (int) v;
+    }
+
+    /**
+     * Decodes a binary PPM (P6) image.
+     *
+     * @param in        the channel to read the image from
+     * @param buf       the buffer used for reading, whose remaining bytes
+     *                  are consumed first
+     * @param reuse     a frame to decode into if its geometry matches, or
+     *                  {@code null}
+     * @param subsample keep every n-th pixel in each direction
+     * @param tileSize  the size of the tiles to hash
+     * @return the frame with its tile hashes computed
+     */
+    static Frame decode(ReadableByteChannel in, ByteBuffer buf, Frame reuse, int subsample, int tileSize)
+        throws IOException {
+        if (next(in, buf) != 'P' || next(in, buf) != '6') throw new IOException("not a binary PPM image");
+        int width = number(in, buf);
+        int height = number(in, buf);
+        int maxval = number(in, buf);
+        if (width == 0 || height == 0 || maxval == 0 || maxval > 65535)
+            throw new IOException("malformed PPM header");
+        // two bytes per sample above 255, most significant first
+        int bytes = maxval > 255 ? 2 : 1;
+
+        // computed in long, the header may claim any size
+        long w = (width + (long) subsample - 1) / subsample;
+        long h = (height + (long) subsample - 1) / subsample;
+        if (w * h > MAX_PIXELS) throw new IOException("image too large: " + width + "x" + height);
+        Frame f = reuse != null && reuse.sameGeometry((int) w, (int) h, tileSize)
+            ? reuse : new Frame((int) w, (int) h, tileSize);
+        int[] pixels = f.pixels;
+
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            boolean keepRow = y % subsample == 0;
+            for (int x = 0; x < width; x++) {
+                int r;
+                int g;
+                int b;
+                if (bytes == 1) {
+                    r = next(in, buf);
+                    g = next(in, buf);
+                    b = next(in, buf);
+                } else {
+                    r = next(in, buf) << 8 | next(in, buf);
+                    g = next(in, buf) << 8 | next(in, buf);
+                    b = next(in, buf) << 8 | next(in, buf);
+                }
+                if (keepRow && x % subsample == 0) {
+                    if (maxval != 255) {
+                        r = r * 255 / maxval;
+                        g = g * 255 / maxval;
+                        b = b * 255 / maxval;
+                    }
+                    pixels[i++] = r << 16 | g << 8 | b;
+                }
+            }
+        }
+        f.hashTiles();
+        return f;
+    }
+}
@@ -0,0 +1,493 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static org.libvirt.XMLHelper.attr;
+import static org.libvirt.XMLHelper.intAttr;
+import static org.libvirt.XMLHelper.nextChild;
+import static org.libvirt.XMLHelper.skip;
+import static org.libvirt.XMLHelper.text;
+
+/**
+ * A typed view of the capabilities XML of a host.
+ * <p>
+ * Instances are immutable. They are usually obtained from
+ * {@link Connect#getHostCapabilities}, which caches the parsed
+ * capabilities per connection.
+ *
+ * @see <a href="http://libvirt.org/formatcaps.html">Capabilities XML format</a>
+ */
+public final class HostCapabilities {
+
+    /**
+     * The CPU of the host.
+     */
+    public static final class HostCpu {
+        private String arch;
+        private String model;
+        private String vendor;
+        private int sockets;
+        private int cores;
+        private int threads;
+        private final List<String> features = new ArrayList<String>();
+
+        public String getArch() {
+            return arch;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getVendor() {
+            return vendor;
+        }
+
+        public int getSockets() {
+            return sockets;
+        }
+
+        public int getCores() {
+            return cores;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * Returns the names of the CPU features, e.g. {@code "vmx"}.
+         */
+        public List<String> getFeatures() {
+            return Collections.unmodifiableList(features);
+        }
+    }
+
+    /**
+     * A single CPU within a NUMA cell.
+     */
+    public static final class Cpu {
+        private int id;
+        private int socketId = -1;
+        private int coreId = -1;
+        private String siblingsList;
+        private CpuMap siblings;
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns the socket this CPU belongs to, or -1 if unknown.
+         */
+        public int getSocketId() {
+            return socketId;
+        }
+
+        /**
+         * Returns the core this CPU belongs to, or -1 if unknown.
+         */
+        public int getCoreId() {
+            return coreId;
+        }
+
+        /**
+         * Returns the hyperthread siblings of this CPU, including itself.
+         */
+        public CpuMap getSiblings() {
+            return siblings.copy();
+        }
+    }
+
+    /**
+     * A NUMA cell of the host.
+     */
+    public static final class Cell {
+        private int id;
+        private long memory;
+        private final List<Cpu> cpus = new ArrayList<Cpu>();
+        private CpuMap cpuMap;
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns the memory of this cell in kilobytes, or 0 if unknown.
+         */
+        public long getMemory() {
+            return memory;
+        }
+
+        public List<Cpu> getCpus() {
+            return Collections.unmodifiableList(cpus);
+        }
+
+        /**
+         * Returns the CPUs of this cell as a CpuMap.
+         */
+        public CpuMap getCpuMap() {
+            return cpuMap.copy();
+        }
+    }
+
+    /**
+     * A machine type supported for a guest architecture.
+     */
+    public static final class Machine {
+        private String name;
+        private String canonical;
+        private int maxCpus;
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the canonical machine type if this machine type is an
+         * alias, otherwise {@code null}.
+         */
+        public String getCanonical() {
+            return canonical;
+        }
+
+        /**
+         * Returns the maximum number of CPUs, or 0 if unknown.
+         */
+        public int getMaxCpus() {
+            return maxCpus;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A guest architecture supported by the hypervisor.
+     */
+    public static final class Guest {
+        private String osType;
+        private String arch;
+        private int wordSize;
+        private String emulator;
+        private final List<Machine> machines = new ArrayList<Machine>();
+        private final List<String> domainTypes = new ArrayList<String>();
+        private final List<String> features = new ArrayList<String>();
+
+        /**
+         * Returns the OS type, e.g. {@code "hvm"}.
+         */
+        public String getOSType() {
+            return osType;
+        }
+
+        public String getArch() {
+            return arch;
+        }
+
+        public int getWordSize() {
+            return wordSize;
+        }
+
+        public String getEmulator() {
+            return emulator;
+        }
+
+        public List<Machine> getMachines() {
+            return Collections.unmodifiableList(machines);
+        }
+
+        /**
+         * Returns the domain types, e.g. {@code "kvm"} or {@code "qemu"}.
+         */
+        public List<String> getDomainTypes() {
+            return Collections.unmodifiableList(domainTypes);
+        }
+
+        public List<String> getFeatures() {
+            return Collections.unmodifiableList(features);
+        }
+    }
+
+    private String uuid;
+    private final HostCpu cpu = new HostCpu();
+    private boolean liveMigration;
+    private final List<String> migrationTransports = new ArrayList<String>();
+    private final List<Cell> cells = new ArrayList<Cell>();
+    private final List<Guest> guests = new ArrayList<Guest>();
+    private int cpuCount;
+    // the highest CPU ID of the topology, including the siblings lists
+    private int maxCpuId = -1;
+
+    private HostCapabilities() {}
+
+    /**
+     * Parses a capabilities XML document.
+     *
+     * @param xml the XML as returned by {@link Connect#getCapabilities}
+     * @return the parsed capabilities
+     * @throws IllegalArgumentException if the XML is malformed
+     */
+    public static HostCapabilities parse(String xml) {
+        HostCapabilities caps = new HostCapabilities();
+        XMLStreamReader r = null;
+        try {
+            r = XMLHelper.createReader(xml);
+            while (nextChild(r)) {
+                String name = r.getLocalName();
+                if (name.equals("host")) caps.parseHost(r);
+                else if (name.equals("guest")) caps.parseGuest(r);
+                else skip(r);
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("invalid capabilities XML", e);
+        } finally {
+            if (r != null) XMLHelper.close(r);
+        }
+
+        // now that the number of CPUs is known, convert the CPU lists
+        int size = Math.max(caps.maxCpuId + 1, 1);
+        for (Cell cell: caps.cells) {
+            cell.cpuMap = new CpuMap(size);
+            for (Cpu c: cell.cpus) {
+                cell.cpuMap.set(c.id);
+                c.siblings = c.siblingsList != null
+                    ? CpuMap.parse(c.siblingsList, size)
+                    : new CpuMap(size).set(c.id);
+            }
+        }
+        return caps;
+    }
+
+    private void parseHost(XMLStreamReader r) throws XMLStreamException {
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("uuid")) {
+                uuid = text(r);
+            } else if (name.equals("cpu")) {
+                parseHostCpu(r);
+            } else if (name.equals("migration_features")) {
+                parseMigrationFeatures(r);
+            } else if (name.equals("topology")) {
+                while (nextChild(r)) {
+                    if (r.getLocalName().equals("cells")) parseCells(r);
+                    else skip(r);
+                }
+            } else {
+                skip(r);
+            }
+        }
+    }
+
+    private void parseHostCpu(XMLStreamReader r) throws XMLStreamException {
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("arch")) {
+                cpu.arch = text(r);
+            } else if (name.equals("model")) {
+                cpu.model = text(r);
+            } else if (name.equals("vendor")) {
+                cpu.vendor = text(r);
+            } else if (name.equals("topology")) {
+                cpu.sockets = intAttr(r, "sockets", 0);
+                cpu.cores = intAttr(r, "cores", 0);
+                cpu.threads = intAttr(r, "threads", 0);
+                skip(r);
+            } else if (name.equals("feature")) {
+                String f = attr(r, "name");
+                if (f != null) cpu.features.add(f);
+                skip(r);
+            } else {
+                skip(r);
+            }
+        }
+    }
+
+    private void parseMigrationFeatures(XMLStreamReader r) throws XMLStreamException {
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("live")) {
+                liveMigration = true;
+                skip(r);
+            } else if (name.equals("uri_transports")) {
+                while (nextChild(r)) {
+                    if (r.getLocalName().equals("uri_transport")) migrationTransports.add(text(r));
+                    else skip(r);
+                }
+            } else {
+                skip(r);
+            }
+        }
+    }
+
+    private void parseCells(XMLStreamReader r) throws XMLStreamException {
+        while (nextChild(r)) {
+            if (!r.getLocalName().equals("cell")) {
+                skip(r);
+                continue;
+            }
+
+            Cell cell = new Cell();
+            cell.id = intAttr(r, "id", cells.size());
+            while (nextChild(r)) {
+                String name = r.getLocalName();
+                if (name.equals("memory")) {
+                    String unit = attr(r, "unit");
+                    cell.memory = XMLHelper.toKiB(XMLHelper.longValue(text(r), 0), unit);
+                } else if (name.equals("cpus")) {
+                    while (nextChild(r)) {
+                        if (r.getLocalName().equals("cpu")) {
+                            Cpu c = new Cpu();
+                            c.id = intAttr(r, "id", 0);
+                            c.socketId = intAttr(r, "socket_id", -1);
+                            c.coreId = intAttr(r, "core_id", -1);
+                            c.siblingsList = attr(r, "siblings");
+                            maxCpuId = Math.max(maxCpuId, c.id);
+                            if (c.siblingsList != null)
+                                maxCpuId = Math.max(maxCpuId, maxId(c.siblingsList));
+                            cpuCount++;
+                            cell.cpus.add(c);
+                        }
+                        skip(r);
+                    }
+                } else {
+                    skip(r);
+                }
+            }
+            cells.add(cell);
+        }
+    }
+
+    private void parseGuest(XMLStreamReader r) throws XMLStreamException {
+        Guest guest = new Guest();
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            if (name.equals("os_type")) {
+                guest.osType = text(r);
+            } else if (name.equals("arch")) {
+                guest.arch = attr(r, "name");
+                while (nextChild(r)) {
+                    String n = r.getLocalName();
+                    if (n.equals("wordsize")) {
+                        guest.wordSize = (int) XMLHelper.longValue(text(r), 0);
+                    } else if (n.equals("emulator")) {
+                        guest.emulator = text(r);
+                    } else if (n.equals("machine")) {
+                        guest.machines.add(parseMachine(r));
+                    } else if (n.equals("domain")) {
+                        String type = attr(r, "type");
+                        if (type != null) guest.domainTypes.add(type);
+                        skip(r);
+                    } else {
+                        skip(r);
+                    }
+                }
+            } else if (name.equals("features")) {
+                while (nextChild(r)) {
+                    guest.features.add(r.getLocalName());
+                    skip(r);
+                }
+            } else {
+                skip(r);
+            }
+        }
+        guests.add(guest);
+    }
+
+    private static Machine parseMachine(XMLStreamReader r) throws XMLStreamException {
+        Machine m = new Machine();
+        m.canonical = attr(r, "canonical");
+        m.maxCpus = intAttr(r, "maxCpus", 0);
+        m.name = text(r);
+        return m;
+    }
+
+    /**
+     * Returns the highest number of a CPU list such as {@code "0-3,8"},
+     * leaving its validation to {@link CpuMap#parse}.
+     */
+    private static int maxId(String cpuset) {
+        int max = -1;
+        int n = -1;
+        for (int i = 0; i <= cpuset.length(); i++) {
+            char ch = i < cpuset.length() ? cpuset.charAt(i) : ',';
+            if (ch >= '0' && ch <= '9') {
+                n = Math.max(n, 0);
+                if (n > (Integer.MAX_VALUE - 9) / 10)
+                    throw new IllegalArgumentException("invalid cpuset: " + cpuset);
+                n = n * 10 + (ch - '0');
+            } else {
+                max = Math.max(max, n);
+                n = -1;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the UUID of the host, or {@code null} if unknown.
+     */
+    public String getUUID() {
+        return uuid;
+    }
+
+    public HostCpu getHostCpu() {
+        return cpu;
+    }
+
+    /**
+     * Returns {@code true} if the hypervisor supports live migration.
+     */
+    public boolean isLiveMigrationSupported() {
+        return liveMigration;
+    }
+
+    /**
+     * Returns the URI transports supported for migration, e.g.
+     * {@code "tcp"}.
+     */
+    public List<String> getMigrationTransports() {
+        return Collections.unmodifiableList(migrationTransports);
+    }
+
+    /**
+     * Returns the NUMA cells of the host, which is an empty list if the
+     * hypervisor does not report the topology.
+     */
+    public List<Cell> getCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
+    /**
+     * Returns the number of CPUs found in the NUMA topology. CPU IDs may
+     * be sparse, e.g. with CPUs taken offline, so this may be less than
+     * the highest ID plus one.
+     */
+    public int getCpuCount() {
+        return cpuCount;
+    }
+
+    public List<Guest> getGuests() {
+        return Collections.unmodifiableList(guests);
+    }
+
+    /**
+     * Looks up a guest by OS type and architecture.
+     *
+     * @return the guest, or {@code null} if not supported
+     */
+    public Guest getGuest(String osType, String arch) {
+        for (Guest g: guests) {
+            if (osType.equals(g.osType) && arch.equals(g.arch))
+                return g;
+        }
+        return null;
+    }
+}
@@ -94,6 +94,19 @@ public final class Library {
         }
     }
 
+    /**
+     * Returns the elements of a NULL terminated array of pointers
+     * allocated by libvirt, and frees the array itself.
+     */
+    static Pointer[] toPointerArray(Pointer array, final int size) {
+        if (array == null) return new Pointer[0];
+        try {
+            return array.getPointerArray(0, size);
+        } finally {
+            free(array);
+        }
+    }
+
     /**
      * Initialize the event loop.
      *
@@ -0,0 +1,325 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed parameters for {@link Domain#migrate(Connect, MigrateParameters, long)}
+ * and {@link Domain#migrateToURI(String, MigrateParameters, long)}.
+ * <p>
+ * Only the parameters which have been set are passed to libvirt, all
+ * others take their default values. Setting parallel connections or a
+ * compression method implies the corresponding migration flag
+ * ({@code VIR_MIGRATE_PARALLEL} resp. {@code VIR_MIGRATE_COMPRESSED}),
+ * which is added to the flags automatically.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * MigrateParameters params = new MigrateParameters()
+ *     .setParallelConnections(4)
+ *     .addCompression(MigrateParameters.COMPRESSION_ZSTD)
+ *     .setZstdLevel(3)
+ *     .setBandwidth(2048);
+ * domain.migrate(dconn, params, flags);
+ * }</pre>
+ *
+ * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-domain.html#VIR_MIGRATE_PARAM_URI">Migration parameters</a>
+ */
+public final class MigrateParameters {
+    /** multi-threaded compression of memory pages */
+    public static final String COMPRESSION_MT = "mt";
+    /** compression of pages updated since the last iteration */
+    public static final String COMPRESSION_XBZRLE = "xbzrle";
+    /** zlib compression of parallel migration streams */
+    public static final String COMPRESSION_ZLIB = "zlib";
+    /** zstd compression of parallel migration streams */
+    public static final String COMPRESSION_ZSTD = "zstd";
+
+    private static final String PARAM_URI = "migrate_uri";
+    private static final String PARAM_DEST_NAME = "destination_name";
+    private static final String PARAM_DEST_XML = "destination_xml";
+    private static final String PARAM_PERSIST_XML = "persistent_xml";
+    private static final String PARAM_BANDWIDTH = "bandwidth";
+    private static final String PARAM_BANDWIDTH_POSTCOPY = "bandwidth.postcopy";
+    private static final String PARAM_GRAPHICS_URI = "graphics_uri";
+    private static final String PARAM_LISTEN_ADDRESS = "listen_address";
+    private static final String PARAM_MIGRATE_DISKS = "migrate_disks";
+    private static final String PARAM_DISKS_PORT = "disks_port";
+    private static final String PARAM_DISKS_URI = "disks_uri";
+    private static final String PARAM_COMPRESSION = "compression";
+    private static final String PARAM_COMPRESSION_MT_LEVEL = "compression.mt.level";
+    private static final String PARAM_COMPRESSION_MT_THREADS = "compression.mt.threads";
+    private static final String PARAM_COMPRESSION_MT_DTHREADS = "compression.mt.dthreads";
+    private static final String PARAM_COMPRESSION_XBZRLE_CACHE = "compression.xbzrle.cache";
+    private static final String PARAM_COMPRESSION_ZLIB_LEVEL = "compression.zlib.level";
+    private static final String PARAM_COMPRESSION_ZSTD_LEVEL = "compression.zstd.level";
+    private static final String PARAM_PARALLEL_CONNECTIONS = "parallel.connections";
+    private static final String PARAM_AUTO_CONVERGE_INITIAL = "auto_converge.initial";
+    private static final String PARAM_AUTO_CONVERGE_INCREMENT = "auto_converge.increment";
+    private static final String PARAM_TLS_DESTINATION = "tls.destination";
+
+    // typed values by parameter name, in the order they were set
+    private final Map<String, String> strings = new LinkedHashMap<String, String>();
+    private final Map<String, Integer> ints = new LinkedHashMap<String, Integer>();
+    private final Map<String, Long> ulongs = new LinkedHashMap<String, Long>();
+    private final List<String> disks = new ArrayList<String>();
+    private final List<String> compression = new ArrayList<String>();
+
+    private static int checkInt(String what, int v, int min, int max) {
+        if (v < min || v > max)
+            throw new IllegalArgumentException(what + " must be between " + min + " and " + max);
+        return v;
+    }
+
+    /**
+     * Sets the URI used for the migration data stream, e.g.
+     * {@code "tcp://dst.example.com"}.
+     */
+    public MigrateParameters setURI(String uri) {
+        strings.put(PARAM_URI, uri);
+        return this;
+    }
+
+    /**
+     * Sets the name of the domain on the destination.
+     */
+    public MigrateParameters setDestinationName(String name) {
+        strings.put(PARAM_DEST_NAME, name);
+        return this;
+    }
+
+    /**
+     * Sets the XML used to start the domain on the destination, which may
+     * only alter host specific parts of the domain definition.
+     */
+    public MigrateParameters setDestinationXML(String xml) {
+        strings.put(PARAM_DEST_XML, xml);
+        return this;
+    }
+
+    /**
+     * Sets the XML stored as the persistent definition of the domain on
+     * the destination.
+     */
+    public MigrateParameters setPersistentXML(String xml) {
+        strings.put(PARAM_PERSIST_XML, xml);
+        return this;
+    }
+
+    /**
+     * Sets the maximum bandwidth in MiB/s.
+     */
+    public MigrateParameters setBandwidth(long mibps) {
+        ulongs.put(PARAM_BANDWIDTH, mibps);
+        return this;
+    }
+
+    /**
+     * Sets the maximum bandwidth in MiB/s used in post-copy mode.
+     */
+    public MigrateParameters setPostCopyBandwidth(long mibps) {
+        ulongs.put(PARAM_BANDWIDTH_POSTCOPY, mibps);
+        return this;
+    }
+
+    /**
+     * Sets the URI the clients of the graphical console are redirected
+     * to.
+     */
+    public MigrateParameters setGraphicsURI(String uri) {
+        strings.put(PARAM_GRAPHICS_URI, uri);
+        return this;
+    }
+
+    /**
+     * Sets the address the destination listens on for incoming
+     * migration data.
+     */
+    public MigrateParameters setListenAddress(String address) {
+        strings.put(PARAM_LISTEN_ADDRESS, address);
+        return this;
+    }
+
+    /**
+     * Adds a disk, given by its target device name, to be copied to the
+     * destination. If no disk is given, all non-shared disks are copied
+     * when storage migration is requested by the flags.
+     */
+    public MigrateParameters addDisk(String targetDev) {
+        disks.add(targetDev);
+        return this;
+    }
+
+    /**
+     * Sets the port used for copying disks on the destination.
+     */
+    public MigrateParameters setDisksPort(int port) {
+        ints.put(PARAM_DISKS_PORT, checkInt("port", port, 0, 65535));
+        return this;
+    }
+
+    /**
+     * Sets the URI used for copying disks, overriding the disks port.
+     */
+    public MigrateParameters setDisksURI(String uri) {
+        strings.put(PARAM_DISKS_URI, uri);
+        return this;
+    }
+
+    /**
+     * Adds a compression method, one of the {@code COMPRESSION_*}
+     * constants. Methods can be combined, e.g. {@code XBZRLE} with
+     * {@code MT}.
+     */
+    public MigrateParameters addCompression(String method) {
+        if (!compression.contains(method)) compression.add(method);
+        return this;
+    }
+
+    /**
+     * Sets the level of multi-threaded compression, 0 (none) to 9 (best).
+     */
+    public MigrateParameters setCompressionLevel(int level) {
+        ints.put(PARAM_COMPRESSION_MT_LEVEL, checkInt("level", level, 0, 9));
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used for multi-threaded compression.
+     */
+    public MigrateParameters setCompressionThreads(int threads) {
+        ints.put(PARAM_COMPRESSION_MT_THREADS, checkInt("threads", threads, 1, 255));
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used for decompression on the
+     * destination.
+     */
+    public MigrateParameters setDecompressionThreads(int threads) {
+        ints.put(PARAM_COMPRESSION_MT_DTHREADS, checkInt("threads", threads, 1, 255));
+        return this;
+    }
+
+    /**
+     * Sets the size of the page cache used for XBZRLE compression in
+     * bytes.
+     */
+    public MigrateParameters setXbzrleCacheSize(long bytes) {
+        ulongs.put(PARAM_COMPRESSION_XBZRLE_CACHE, bytes);
+        return this;
+    }
+
+    /**
+     * Sets the zlib compression level, 0 (none) to 9 (best).
+     */
+    public MigrateParameters setZlibLevel(int level) {
+        ints.put(PARAM_COMPRESSION_ZLIB_LEVEL, checkInt("level", level, 0, 9));
+        return this;
+    }
+
+    /**
+     * Sets the zstd compression level, 0 (none) to 20 (best).
+     */
+    public MigrateParameters setZstdLevel(int level) {
+        ints.put(PARAM_COMPRESSION_ZSTD_LEVEL, checkInt("level", level, 0, 20));
+        return this;
+    }
+
+    /**
+     * Sets the number of connections used to transfer memory in
+     * parallel (multifd).
+     */
+    public MigrateParameters setParallelConnections(int n) {
+        ints.put(PARAM_PARALLEL_CONNECTIONS, checkInt("connections", n, 1, 255));
+        return this;
+    }
+
+    /**
+     * Sets the initial percentage of CPU throttling when auto-converge
+     * kicks in.
+     */
+    public MigrateParameters setAutoConvergeInitial(int percent) {
+        ints.put(PARAM_AUTO_CONVERGE_INITIAL, checkInt("percent", percent, 0, 100));
+        return this;
+    }
+
+    /**
+     * Sets the percentage by which CPU throttling is increased each time
+     * auto-converge detects the migration is not converging.
+     */
+    public MigrateParameters setAutoConvergeIncrement(int percent) {
+        ints.put(PARAM_AUTO_CONVERGE_INCREMENT, checkInt("percent", percent, 0, 100));
+        return this;
+    }
+
+    /**
+     * Overrides the host name used to verify the TLS certificate of the
+     * destination.
+     */
+    public MigrateParameters setTLSDestination(String hostname) {
+        strings.put(PARAM_TLS_DESTINATION, hostname);
+        return this;
+    }
+
+    public List<String> getDisks() {
+        return Collections.unmodifiableList(disks);
+    }
+
+    public List<String> getCompression() {
+        return Collections.unmodifiableList(compression);
+    }
+
+    /**
+     * Returns the migration flags implied by the parameters.
+     */
+    long getImpliedFlags() {
+        long flags = 0;
+        if (ints.containsKey(PARAM_PARALLEL_CONNECTIONS)) flags |= Domain.MigrateFlags.VIR_MIGRATE_PARALLEL;
+        if (!compression.isEmpty()) flags |= Domain.MigrateFlags.VIR_MIGRATE_COMPRESSED;
+        return flags;
+    }
+
+    /**
+     * Converts the parameters to their native representation. The caller
+     * must free the result.
+     */
+    TypedParams toTypedParams() throws LibvirtException {
+        TypedParams p = new TypedParams();
+        try {
+            for (Map.Entry<String, String> e: strings.entrySet()) {
+                p.addString(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, Integer> e: ints.entrySet()) {
+                p.addInt(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, Long> e: ulongs.entrySet()) {
+                p.addULLong(e.getKey(), e.getValue());
+            }
+            if (!disks.isEmpty()) {
+                p.addStringList(PARAM_MIGRATE_DISKS, disks.toArray(new String[disks.size()]));
+            }
+            if (!compression.isEmpty()) {
+                p.addStringList(PARAM_COMPRESSION, compression.toArray(new String[compression.size()]));
+            }
+        } catch (LibvirtException e) {
+            p.free();
+            throw e;
+        }
+        return p;
+    }
+
+    @Override
+    public String toString() {
+        Map<String, Object> all = new LinkedHashMap<String, Object>(strings);
+        all.putAll(ints);
+        all.putAll(ulongs);
+        if (!disks.isEmpty()) all.put(PARAM_MIGRATE_DISKS, disks);
+        if (!compression.isEmpty()) all.put(PARAM_COMPRESSION, compression);
+        return all.toString();
+    }
+}
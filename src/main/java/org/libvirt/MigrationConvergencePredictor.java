@@ -0,0 +1,215 @@
+package org.libvirt;
+
+/**
+ * Predicts whether a pre-copy live migration converges.
+ * <p>
+ * The predictor is fed with samples of the memory statistics of a
+ * running migration job. Over a sliding window of samples it fits the
+ * amount of processed memory and the amount of remaining memory against
+ * time using least squares. The slope of the former is the transfer
+ * rate; the remaining memory shrinks by the transfer rate and grows by
+ * the rate at which the guest dirties pages, so the dirty rate is the
+ * transfer rate plus the slope of the latter.
+ * <p>
+ * A migration converges once the remaining memory can be sent within the
+ * maximum downtime. If the guest dirties memory at least as fast as it
+ * is transferred, it never does and should be switched to post-copy or
+ * throttled.
+ * <p>
+ * Samples taken during the first pass over guest memory are ignored, as
+ * the dirty rate cannot be estimated before all memory has been sent
+ * once.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @see MigrationOrchestrator
+ */
+public final class MigrationConvergencePredictor {
+
+    public static enum Verdict {
+        /** not enough samples to make a prediction */
+        UNKNOWN,
+        /** the migration converges within the expected time */
+        CONVERGING,
+        /** the migration converges, but takes longer than expected */
+        SLOW,
+        /** the guest dirties memory at least as fast as it is transferred */
+        DIVERGING
+    }
+
+    /**
+     * The default maximum downtime of QEMU in milliseconds, assumed if
+     * none is given.
+     */
+    public static final long DEFAULT_DOWNTIME = 300;
+
+    private final long[] time;
+    private final long[] processed;
+    private final long[] remaining;
+    private final int minSamples;
+    private int count;
+    private int next;
+
+    // results of the last fit
+    private boolean fitted;
+    private double transferRate;
+    private double dirtyRate;
+
+    /**
+     * Creates a predictor using a window of 16 samples.
+     */
+    public MigrationConvergencePredictor() {
+        this(16);
+    }
+
+    /**
+     * Creates a predictor using a window of the given number of
+     * samples. Predictions are made once a quarter of the window, but at
+     * least 3 samples, are available.
+     */
+    public MigrationConvergencePredictor(int window) {
+        if (window < 3) throw new IllegalArgumentException("window must hold at least 3 samples");
+        time = new long[window];
+        processed = new long[window];
+        remaining = new long[window];
+        minSamples = Math.max(3, window / 4);
+    }
+
+    /**
+     * Adds a sample of the memory statistics taken now.
+     */
+    public void addSample(DomainJobInfo info) {
+        addSample(System.nanoTime(), info.getMemProcessed(), info.getMemRemaining(), info.getMemTotal());
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param nanos         the time of the sample as returned by
+     *                      {@link System#nanoTime}
+     * @param memProcessed  the amount of memory processed so far
+     * @param memRemaining  the amount of memory remaining
+     * @param memTotal      the total amount of memory
+     */
+    public synchronized void addSample(long nanos, long memProcessed, long memRemaining, long memTotal) {
+        if (memProcessed < memTotal) return;
+        if (count > 0 && nanos <= time[(next + time.length - 1) % time.length]) return;
+
+        time[next] = nanos;
+        processed[next] = memProcessed;
+        remaining[next] = memRemaining;
+        next = (next + 1) % time.length;
+        if (count < time.length) count++;
+        fitted = false;
+    }
+
+    /**
+     * Drops all samples, e.g. after the bandwidth has been changed.
+     */
+    public synchronized void reset() {
+        count = 0;
+        next = 0;
+        fitted = false;
+    }
+
+    public synchronized boolean isReady() {
+        return count >= minSamples;
+    }
+
+    private void fit() {
+        if (fitted) return;
+
+        int first = (next + time.length - count) % time.length;
+        long t0 = time[first];
+        double st = 0, sp = 0, sr = 0;
+        for (int i = 0; i < count; i++) {
+            int k = (first + i) % time.length;
+            st += (time[k] - t0) / 1e9;
+            sp += processed[k];
+            sr += remaining[k];
+        }
+        double mt = st / count, mp = sp / count, mr = sr / count;
+
+        double stt = 0, stp = 0, str = 0;
+        for (int i = 0; i < count; i++) {
+            int k = (first + i) % time.length;
+            double dt = (time[k] - t0) / 1e9 - mt;
+            stt += dt * dt;
+            stp += dt * (processed[k] - mp);
+            str += dt * (remaining[k] - mr);
+        }
+        if (stt > 0) {
+            transferRate = Math.max(0, stp / stt);
+            dirtyRate = Math.max(0, transferRate + str / stt);
+        } else {
+            transferRate = 0;
+            dirtyRate = 0;
+        }
+        fitted = true;
+    }
+
+    /**
+     * Returns the estimated transfer rate in bytes per second, or 0 if
+     * not ready.
+     */
+    public synchronized double getTransferRate() {
+        if (!isReady()) return 0;
+        fit();
+        return transferRate;
+    }
+
+    /**
+     * Returns the estimated rate at which the guest dirties memory in
+     * bytes per second, or 0 if not ready.
+     */
+    public synchronized double getDirtyRate() {
+        if (!isReady()) return 0;
+        fit();
+        return dirtyRate;
+    }
+
+    /**
+     * Returns the remaining memory of the latest sample.
+     */
+    public synchronized long getRemaining() {
+        return count == 0 ? 0 : remaining[(next + time.length - 1) % time.length];
+    }
+
+    /**
+     * Predicts the time until the migration converges.
+     *
+     * @param downtime the maximum downtime in milliseconds, 0 for the
+     *                 default
+     * @return the time in milliseconds, 0 if the migration is about to
+     *         complete, -1 if it does not converge or the predictor is
+     *         not ready
+     */
+    public synchronized long predictTimeToConverge(long downtime) {
+        if (!isReady()) return -1;
+        fit();
+        if (transferRate <= 0) return -1;
+
+        double d = (downtime > 0 ? downtime : DEFAULT_DOWNTIME) / 1000.0;
+        // the amount of memory which can be sent while the guest is paused
+        double switchover = transferRate * d;
+        double rem = getRemaining();
+        if (rem <= switchover) return 0;
+        if (dirtyRate >= transferRate) return -1;
+        return (long) ((rem - switchover) * 1000 / (transferRate - dirtyRate));
+    }
+
+    /**
+     * Predicts whether the migration converges.
+     *
+     * @param downtime the maximum downtime in milliseconds, 0 for the
+     *                 default
+     * @param target   the time within which the migration is expected
+     *                 to converge in milliseconds
+     */
+    public synchronized Verdict predict(long downtime, long target) {
+        if (!isReady()) return Verdict.UNKNOWN;
+        long ttc = predictTimeToConverge(downtime);
+        if (ttc < 0) return Verdict.DIVERGING;
+        return ttc <= target ? Verdict.CONVERGING : Verdict.SLOW;
+    }
+}
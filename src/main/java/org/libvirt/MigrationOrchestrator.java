@@ -0,0 +1,763 @@
+package org.libvirt;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs live migrations and steers them while they are in progress.
+ * <p>
+ * While a migration runs, its job information is polled periodically.
+ * From consecutive samples the transfer rate and the rate at which the
+ * guest dirties its memory are estimated, giving an estimate of the time
+ * until the migration converges (see {@link MigrationConvergencePredictor}).
+ * If the migration does not converge, the bandwidth and then the maximum
+ * downtime are raised step by step within the limits of the
+ * {@link Policy}. If post-copy is enabled, a migration which cannot
+ * converge is switched to post-copy. A migration exceeding its time or
+ * data budget is aborted.
+ * <p>
+ * Migrations are queued and started such that no more than a given
+ * number of migrations leave a single source host or arrive at a single
+ * destination host at the same time.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * MigrationOrchestrator orchestrator = new MigrationOrchestrator(
+ *     new MigrationOrchestrator.Policy()
+ *         .setMaxDowntime(2000)
+ *         .setMaxBandwidth(1024)
+ *         .setTimeBudget(30, TimeUnit.MINUTES));
+ * List<MigrationOrchestrator.Migration> migrations = ...;
+ * for (int id: conn.listDomains()) {
+ *     migrations.add(orchestrator.migrate(conn.domainLookupByID(id), dconn, flags, null));
+ * }
+ * for (MigrationOrchestrator.Migration m: migrations) {
+ *     m.await();
+ * }
+ * orchestrator.shutdown();
+ * }</pre>
+ */
+public final class MigrationOrchestrator {
+
+    /**
+     * Limits and tuning steps of the orchestrator.
+     * <p>
+     * Downtimes are in milliseconds and bandwidths in MiB/s.
+     */
+    public static final class Policy {
+        long pollInterval = 500;
+        long initialDowntime = 0;
+        long maxDowntime = 0;
+        long downtimeStep = 100;
+        long initialBandwidth = 0;
+        long maxBandwidth = 0;
+        long bandwidthStep = 64;
+        long convergenceTarget = 60000;
+        int stallSamples = 4;
+        long timeBudget = 0;
+        double dataBudget = 0;
+        boolean abortOnStall = false;
+        boolean postCopy = false;
+        boolean autoConverge = false;
+        int window = 16;
+
+        /**
+         * Sets the interval at which the job information is polled,
+         * 500ms by default.
+         */
+        public Policy setPollInterval(long interval, TimeUnit unit) {
+            pollInterval = Math.max(1, unit.toMillis(interval));
+            return this;
+        }
+
+        /**
+         * Sets the maximum downtime set when the migration starts, 0
+         * (the default) keeps the hypervisor's default.
+         */
+        public Policy setInitialDowntime(long ms) {
+            initialDowntime = ms;
+            return this;
+        }
+
+        /**
+         * Sets the limit up to which the maximum downtime is raised, 0
+         * (the default) disables raising the downtime.
+         */
+        public Policy setMaxDowntime(long ms) {
+            maxDowntime = ms;
+            return this;
+        }
+
+        /**
+         * Sets the step by which the maximum downtime is raised.
+         */
+        public Policy setDowntimeStep(long ms) {
+            downtimeStep = ms;
+            return this;
+        }
+
+        /**
+         * Sets the bandwidth the migration is started with, 0 (the
+         * default) leaves the choice to libvirt.
+         */
+        public Policy setInitialBandwidth(long mibps) {
+            initialBandwidth = mibps;
+            return this;
+        }
+
+        /**
+         * Sets the limit up to which the bandwidth is raised, 0 (the
+         * default) disables raising the bandwidth.
+         */
+        public Policy setMaxBandwidth(long mibps) {
+            maxBandwidth = mibps;
+            return this;
+        }
+
+        /**
+         * Sets the step by which the bandwidth is raised.
+         */
+        public Policy setBandwidthStep(long mibps) {
+            bandwidthStep = mibps;
+            return this;
+        }
+
+        /**
+         * Sets the time within which a migration is expected to
+         * converge. A migration whose estimated time to converge exceeds
+         * it for a number of consecutive samples is considered stalled
+         * and gets tuned. One minute by default.
+         */
+        public Policy setConvergenceTarget(long time, TimeUnit unit) {
+            convergenceTarget = unit.toMillis(time);
+            return this;
+        }
+
+        /**
+         * Sets the number of consecutive samples a migration must be
+         * stalled before the next tuning step is taken, 4 by default.
+         */
+        public Policy setStallSamples(int n) {
+            stallSamples = Math.max(1, n);
+            return this;
+        }
+
+        /**
+         * Sets the time after which a migration is aborted, 0 (the
+         * default) means unlimited.
+         */
+        public Policy setTimeBudget(long time, TimeUnit unit) {
+            timeBudget = unit.toMillis(time);
+            return this;
+        }
+
+        /**
+         * Sets the amount of data which may be transferred, as a
+         * multiple of the total amount, before the migration is aborted.
+         * 0 (the default) means unlimited.
+         */
+        public Policy setDataBudget(double factor) {
+            dataBudget = factor;
+            return this;
+        }
+
+        /**
+         * Sets whether a migration which is still stalled when the
+         * downtime and bandwidth limits have been reached is aborted.
+         * By default it keeps running until it exceeds its budget.
+         */
+        public Policy setAbortOnStall(boolean abort) {
+            abortOnStall = abort;
+            return this;
+        }
+
+        /**
+         * Sets whether migrations are started with post-copy enabled and
+         * switched to post-copy once they are predicted not to converge.
+         * <p>
+         * In post-copy mode the guest runs on the destination while its
+         * remaining memory is fetched on demand, so the migration always
+         * completes. However, if the connection fails, the guest is lost.
+         */
+        public Policy setPostCopy(boolean enable) {
+            postCopy = enable;
+            return this;
+        }
+
+        /**
+         * Sets whether migrations are started with auto-converge, which
+         * makes the hypervisor throttle the guest's CPUs while the
+         * migration does not converge.
+         */
+        public Policy setAutoConverge(boolean enable) {
+            autoConverge = enable;
+            return this;
+        }
+
+        /**
+         * Sets the number of samples the convergence prediction is
+         * based on, 16 by default. Combined with a short poll interval
+         * this gives quick and stable predictions.
+         */
+        public Policy setPredictionWindow(int samples) {
+            if (samples < 3) throw new IllegalArgumentException("window must hold at least 3 samples");
+            window = samples;
+            return this;
+        }
+    }
+
+    /**
+     * A sample of the progress of a migration.
+     * <p>
+     * Rates are in bytes per second and estimated by a
+     * {@link MigrationConvergencePredictor} over the recent samples.
+     */
+    public static final class Progress {
+        private final long elapsed;
+        private final long dataTotal;
+        private final long dataProcessed;
+        private final long dataRemaining;
+        private final long memRemaining;
+        private final double transferRate;
+        private final double dirtyRate;
+        private final long timeToConverge;
+        private final long downtime;
+        private final long bandwidth;
+
+        Progress(long elapsed, DomainJobInfo info, MigrationConvergencePredictor predictor,
+                 long downtime, long bandwidth) {
+            this.elapsed = elapsed;
+            this.dataTotal = info.getDataTotal();
+            this.dataProcessed = info.getDataProcessed();
+            this.dataRemaining = info.getDataRemaining();
+            this.memRemaining = info.getMemRemaining();
+            this.transferRate = predictor.getTransferRate();
+            this.dirtyRate = predictor.getDirtyRate();
+            this.timeToConverge = predictor.predictTimeToConverge(downtime);
+            this.downtime = downtime;
+            this.bandwidth = bandwidth;
+        }
+
+        /**
+         * Returns the time since the migration was started in
+         * milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public long getDataTotal() {
+            return dataTotal;
+        }
+
+        public long getDataProcessed() {
+            return dataProcessed;
+        }
+
+        public long getDataRemaining() {
+            return dataRemaining;
+        }
+
+        public long getMemRemaining() {
+            return memRemaining;
+        }
+
+        /**
+         * Returns the estimated memory transfer rate, or 0 during the
+         * first pass over guest memory.
+         */
+        public double getTransferRate() {
+            return transferRate;
+        }
+
+        /**
+         * Returns the estimated rate at which the guest dirties memory.
+         */
+        public double getDirtyRate() {
+            return dirtyRate;
+        }
+
+        /**
+         * Returns the maximum downtime in milliseconds as set by the
+         * orchestrator, or 0 if it has not been changed.
+         */
+        public long getDowntime() {
+            return downtime;
+        }
+
+        /**
+         * Returns the bandwidth in MiB/s as set by the orchestrator, or 0
+         * if it has not been changed.
+         */
+        public long getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * Returns {@code true} if the remaining data can be transferred
+         * within the maximum downtime, i.e. the migration is about to
+         * complete.
+         */
+        public boolean isConverged() {
+            return timeToConverge == 0;
+        }
+
+        /**
+         * Returns the estimated time until the migration converges in
+         * milliseconds, or -1 if it does not converge or no estimate is
+         * available yet.
+         *
+         * @see MigrationConvergencePredictor#predictTimeToConverge
+         */
+        public long getTimeToConverge() {
+            return timeToConverge;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("elapsed:%d%nprocessed:%d%nremaining:%d%ntransferRate:%.0f%ndirtyRate:%.0f%ntimeToConverge:%d%n",
+                                 elapsed, dataProcessed, dataRemaining, transferRate, dirtyRate, timeToConverge);
+        }
+    }
+
+    /**
+     * Receives notifications about migrations.
+     * <p>
+     * Listeners are invoked from the orchestrator's threads and must
+     * return quickly.
+     */
+    public static interface Listener {
+        void onProgress(Migration migration, Progress progress);
+
+        void onFinished(Migration migration);
+    }
+
+    public static enum State {
+        /** waiting for a free slot on the source or destination host */
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        /** aborted by the orchestrator or by calling {@link Migration#abort} */
+        ABORTED
+    }
+
+    /**
+     * A migration scheduled by the orchestrator.
+     */
+    public final class Migration {
+        private final Domain domain;
+        private final Connect dconn;
+        private final String dconnuri;
+        private final long flags;
+        private final String uri;
+        private final Object dest;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile State state = State.QUEUED;
+        private boolean started;
+        private volatile Domain result;
+        private volatile Throwable error;
+        private volatile String abortReason;
+        private volatile Progress progress;
+        private volatile boolean postCopy;
+
+        // sampling state, only accessed by the poller
+        private ScheduledFuture<?> poller;
+        private long start;
+        private MigrationConvergencePredictor predictor;
+        private long downtime;
+        private long bandwidth;
+        private int stalled;
+
+        Migration(Domain domain, Connect dconn, String dconnuri, long flags, String uri) {
+            this.domain = domain;
+            this.dconn = dconn;
+            this.dconnuri = dconnuri;
+            this.flags = flags;
+            this.uri = uri;
+            this.dest = dconn != null ? dconn : dconnuri;
+        }
+
+        public Domain getDomain() {
+            return domain;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Returns the domain on the destination host once the migration
+         * has completed, or {@code null} for migrations started by URI.
+         */
+        public Domain getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the exception which failed or aborted the migration.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Returns why the migration was aborted, or {@code null}.
+         */
+        public String getAbortReason() {
+            return abortReason;
+        }
+
+        /**
+         * Returns the latest progress sample, or {@code null} if there
+         * is none yet.
+         */
+        public Progress getProgress() {
+            return progress;
+        }
+
+        /**
+         * Returns {@code true} if the migration has been switched to
+         * post-copy.
+         */
+        public boolean isPostCopy() {
+            return postCopy;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits until the migration has finished.
+         *
+         * @return the final state
+         */
+        public State await() throws InterruptedException {
+            done.await();
+            return state;
+        }
+
+        /**
+         * Waits until the migration has finished or the timeout expires.
+         *
+         * @return {@code true} if the migration has finished
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        /**
+         * Aborts the migration. A queued migration is never started.
+         *
+         * @throws LibvirtException if aborting the running job fails
+         */
+        public void abort() throws LibvirtException {
+            abort("aborted by caller");
+        }
+
+        void abort(String reason) throws LibvirtException {
+            synchronized (MigrationOrchestrator.this) {
+                if (isDone() || abortReason != null) return;
+                abortReason = reason;
+                if (state == State.QUEUED) {
+                    queue.remove(this);
+                    finish(State.ABORTED);
+                    return;
+                }
+            }
+            try {
+                domain.abortJob();
+            } catch (LibvirtException e) {
+                // no job to abort (yet), allow retrying
+                abortReason = null;
+                throw e;
+            }
+        }
+
+        void run() {
+            try {
+                Policy p = policy;
+                if (p.initialDowntime > 0) {
+                    domain.migrateSetMaxDowntime(p.initialDowntime);
+                    downtime = p.initialDowntime;
+                }
+                bandwidth = p.initialBandwidth;
+                predictor = new MigrationConvergencePredictor(p.window);
+                long f = flags;
+                if (p.postCopy) f |= Domain.MigrateFlags.VIR_MIGRATE_POSTCOPY;
+                if (p.autoConverge) f |= Domain.MigrateFlags.VIR_MIGRATE_AUTO_CONVERGE;
+                start = System.nanoTime();
+                poller = monitor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            sample();
+                        }
+                    }, p.pollInterval, p.pollInterval, TimeUnit.MILLISECONDS);
+
+                if (dconn != null) {
+                    result = domain.migrate(dconn, f, null, null, uri, bandwidth);
+                } else {
+                    domain.migrateToURI(dconnuri, uri, null, f, null, bandwidth);
+                }
+                finish(State.COMPLETED);
+            } catch (Throwable e) {
+                error = e;
+                finish(abortReason != null ? State.ABORTED : State.FAILED);
+            }
+        }
+
+        private void finish(State s) {
+            if (poller != null) poller.cancel(false);
+            state = s;
+            done.countDown();
+            Listener l = listener;
+            if (l != null) l.onFinished(this);
+            finished(this);
+        }
+
+        private void sample() {
+            DomainJobInfo info;
+            try {
+                info = domain.getJobInfo();
+            } catch (LibvirtException e) {
+                // the job has probably just finished
+                return;
+            }
+            if (info.getType() == 0 || isDone()) return;
+
+            long now = System.nanoTime();
+            predictor.addSample(now, info.getMemProcessed(), info.getMemRemaining(), info.getMemTotal());
+
+            Progress pr = new Progress(TimeUnit.NANOSECONDS.toMillis(now - start), info,
+                                       predictor, downtime, bandwidth);
+            progress = pr;
+            Listener l = listener;
+            if (l != null) l.onProgress(this, pr);
+
+            try {
+                steer(pr, info);
+            } catch (LibvirtException e) {
+                // tuning is best effort, the job may have finished meanwhile
+            }
+        }
+
+        private void steer(Progress pr, DomainJobInfo info) throws LibvirtException {
+            Policy p = policy;
+            if (p.timeBudget > 0 && pr.getElapsed() > p.timeBudget) {
+                abort("time budget exceeded");
+                return;
+            }
+            if (p.dataBudget > 0 && info.getDataTotal() > 0
+                && pr.getDataProcessed() > p.dataBudget * info.getDataTotal()) {
+                abort("data budget exceeded");
+                return;
+            }
+
+            // once in post-copy there is nothing left to tune
+            if (postCopy) return;
+
+            MigrationConvergencePredictor.Verdict v = predictor.predict(downtime, p.convergenceTarget);
+            if (v == MigrationConvergencePredictor.Verdict.UNKNOWN
+                || v == MigrationConvergencePredictor.Verdict.CONVERGING) {
+                stalled = 0;
+                return;
+            }
+            if (++stalled < p.stallSamples) return;
+            stalled = 0;
+
+            if (v == MigrationConvergencePredictor.Verdict.DIVERGING && p.postCopy) {
+                // more bandwidth or downtime does not help a guest
+                // dirtying memory faster than it can be sent
+                startPostCopy();
+            } else if (p.maxBandwidth > 0 && bandwidth < p.maxBandwidth) {
+                if (bandwidth == 0) bandwidth = domain.migrateGetMaxSpeed();
+                bandwidth = Math.min(p.maxBandwidth, bandwidth + p.bandwidthStep);
+                domain.migrateSetMaxSpeed(bandwidth);
+                // the samples taken at the old bandwidth are misleading
+                predictor.reset();
+            } else if (p.maxDowntime > 0 && downtime < p.maxDowntime) {
+                // jump right to the downtime needed to finish now if allowed
+                long needed = pr.getTransferRate() > 0
+                    ? (long) (pr.getMemRemaining() * 1000.0 / pr.getTransferRate()) : Long.MAX_VALUE;
+                downtime = Math.min(p.maxDowntime, Math.max(downtime + p.downtimeStep, needed));
+                domain.migrateSetMaxDowntime(downtime);
+            } else if (p.postCopy) {
+                startPostCopy();
+            } else if (p.abortOnStall) {
+                abort("migration does not converge");
+            }
+        }
+
+        private void startPostCopy() throws LibvirtException {
+            domain.migrateStartPostCopy(0);
+            postCopy = true;
+        }
+
+        @Override
+        public String toString() {
+            return domain + " -> " + dest + ": " + state;
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-migration-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    private final Policy policy;
+    private final ExecutorService workers = Executors.newCachedThreadPool(threadFactory);
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+    private final LinkedList<Migration> queue = new LinkedList<Migration>();
+    private final Map<Connect, Integer> outgoing = new IdentityHashMap<Connect, Integer>();
+    private final Map<Object, Integer> incoming = new HashMap<Object, Integer>();
+    private int sourceConcurrency = 2;
+    private int destinationConcurrency = 2;
+    private volatile Listener listener;
+    private boolean shutdown;
+
+    public MigrationOrchestrator(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Sets the maximum number of migrations leaving a single host at a
+     * time, 2 by default.
+     */
+    public synchronized MigrationOrchestrator setSourceConcurrency(int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        sourceConcurrency = n;
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of migrations arriving at a single host at
+     * a time, 2 by default.
+     */
+    public synchronized MigrationOrchestrator setDestinationConcurrency(int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        destinationConcurrency = n;
+        dispatch();
+        return this;
+    }
+
+    public MigrationOrchestrator setListener(Listener l) {
+        listener = l;
+        return this;
+    }
+
+    /**
+     * Schedules the migration of a domain to the host of the given
+     * connection.
+     *
+     * @see Domain#migrate(Connect, long, String, String, String, long)
+     */
+    public Migration migrate(Domain domain, Connect dconn, long flags, String uri) {
+        return submit(new Migration(domain, dconn, null, flags, uri));
+    }
+
+    /**
+     * Schedules the migration of a domain to the given URI.
+     *
+     * @see Domain#migrateToURI(String, String, String, long, String, long)
+     */
+    public Migration migrateToURI(Domain domain, String dconnuri, String miguri, long flags) {
+        return submit(new Migration(domain, null, dconnuri, flags, miguri));
+    }
+
+    private synchronized Migration submit(Migration m) {
+        if (shutdown) throw new IllegalStateException("orchestrator has been shut down");
+        queue.add(m);
+        dispatch();
+        return m;
+    }
+
+    private static int count(Map<?, Integer> m, Object key) {
+        Integer n = m.get(key);
+        return n == null ? 0 : n.intValue();
+    }
+
+    private static <K> void add(Map<K, Integer> m, K key, int delta) {
+        int n = count(m, key) + delta;
+        if (n == 0) m.remove(key);
+        else m.put(key, n);
+    }
+
+    /**
+     * Starts all queued migrations whose hosts have free slots.
+     */
+    private void dispatch() {
+        for (Iterator<Migration> it = queue.iterator(); it.hasNext();) {
+            final Migration m = it.next();
+            Connect src = m.domain.getConnect();
+            if (count(outgoing, src) >= sourceConcurrency
+                || count(incoming, m.dest) >= destinationConcurrency) {
+                continue;
+            }
+            it.remove();
+            add(outgoing, src, 1);
+            add(incoming, m.dest, 1);
+            m.state = State.RUNNING;
+            m.started = true;
+            workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        m.run();
+                    }
+                });
+        }
+    }
+
+    private synchronized void finished(Migration m) {
+        if (m.started) {
+            add(outgoing, m.domain.getConnect(), -1);
+            add(incoming, m.dest, -1);
+        }
+        dispatch();
+        if (shutdown) terminateIfIdle();
+    }
+
+    private void terminateIfIdle() {
+        if (queue.isEmpty() && outgoing.isEmpty()) {
+            workers.shutdown();
+            monitor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of migrations waiting for a free slot.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting new migrations. Queued and running migrations are
+     * completed.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        terminateIfIdle();
+    }
+}
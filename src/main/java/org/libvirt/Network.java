@@ -2,18 +2,76 @@ package org.libvirt;
 
 import org.libvirt.jna.Libvirt;
 import org.libvirt.jna.NetworkPointer;
+import org.libvirt.jna.virNetworkDHCPLease;
 import static org.libvirt.Library.libvirt;
 import static org.libvirt.ErrorHandler.processError;
 
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
 
 /**
  * A network object defined by libvirt.
  */
 public class Network {
 
+    /**
+     * Commands for {@link Network#update}.
+     */
+    public static final class UpdateCommand {
+        /** no change */
+        public static final int NOOP = 0;
+        /** modify an existing element */
+        public static final int MODIFY = 1;
+        /** delete an existing element */
+        public static final int DELETE = 2;
+        /** add an element at the end of the list */
+        public static final int ADD_LAST = 3;
+        /** add an element at the beginning of the list */
+        public static final int ADD_FIRST = 4;
+    }
+
+    /**
+     * Sections of the network definition changed by {@link Network#update}.
+     */
+    public static final class UpdateSection {
+        public static final int NONE = 0;
+        /** {@code <bridge>} */
+        public static final int BRIDGE = 1;
+        /** {@code <domain>} */
+        public static final int DOMAIN = 2;
+        /** {@code <ip>} */
+        public static final int IP = 3;
+        /** {@code <ip>/<dhcp>/<host>} */
+        public static final int IP_DHCP_HOST = 4;
+        /** {@code <ip>/<dhcp>/<range>} */
+        public static final int IP_DHCP_RANGE = 5;
+        /** {@code <forward>} */
+        public static final int FORWARD = 6;
+        /** {@code <forward>/<interface>} */
+        public static final int FORWARD_INTERFACE = 7;
+        /** {@code <forward>/<pf>} */
+        public static final int FORWARD_PF = 8;
+        /** {@code <portgroup>} */
+        public static final int PORTGROUP = 9;
+        /** {@code <dns>/<host>} */
+        public static final int DNS_HOST = 10;
+        /** {@code <dns>/<txt>} */
+        public static final int DNS_TXT = 11;
+        /** {@code <dns>/<srv>} */
+        public static final int DNS_SRV = 12;
+    }
+
+    public static final class UpdateFlags {
+        /** affect the live state if the network is active, otherwise the persistent configuration */
+        public static final int AFFECT_CURRENT = 0;
+        /** affect the running network */
+        public static final int AFFECT_LIVE = (1 << 0);
+        /** affect the persistent configuration */
+        public static final int AFFECT_CONFIG = (1 << 1);
+    }
+
     /**
      * The native virNetworkPtr
      */
@@ -151,6 +209,33 @@ public class Network {
         return Native.toString(bytes);
     }
 
+    /**
+     * Returns the DHCP leases handed out by this network.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-network.html#virNetworkGetDHCPLeases">Libvirt Documentation</a>
+     * @param mac
+     *            only return the leases of this MAC address, or
+     *            {@code null} for all leases
+     * @return the leases
+     * @throws LibvirtException
+     */
+    public NetworkDHCPLease[] getDHCPLeases(String mac) throws LibvirtException {
+        PointerByReference leases = new PointerByReference();
+        int n = processError(libvirt.virNetworkGetDHCPLeases(VNP, mac, leases, 0));
+        Pointer[] ptrs = Library.toPointerArray(leases.getValue(), n);
+        NetworkDHCPLease[] result = new NetworkDHCPLease[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                result[i] = new NetworkDHCPLease(new virNetworkDHCPLease(ptrs[i]));
+            }
+        } finally {
+            for (Pointer p: ptrs) {
+                libvirt.virNetworkDHCPLeaseFree(p);
+            }
+        }
+        return result;
+    }
+
     /**
      * Provides an XML description of this network. The description may be
      * reused later to relaunch the network with
@@ -205,6 +290,29 @@ public class Network {
         processError(libvirt.virNetworkSetAutostart(VNP, autoValue));
     }
 
+    /**
+     * Changes a single element of the definition of this network, without
+     * restarting it.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-network.html#virNetworkUpdate">Libvirt Documentation</a>
+     * @see NetworkUpdateBatch
+     * @param command
+     *            the change, see {@link UpdateCommand}
+     * @param section
+     *            the section of the definition, see {@link UpdateSection}
+     * @param parentIndex
+     *            the index of the parent element, e.g. of the {@code <ip>}
+     *            element of a DHCP host, -1 for the first matching one
+     * @param xml
+     *            the XML of the element
+     * @param flags
+     *            see {@link UpdateFlags}
+     * @throws LibvirtException
+     */
+    public void update(int command, int section, int parentIndex, String xml, int flags) throws LibvirtException {
+        processError(libvirt.virNetworkUpdate(VNP, command, section, parentIndex, xml, flags));
+    }
+
     /**
      * Undefines this network but does not stop it if it is running
      *
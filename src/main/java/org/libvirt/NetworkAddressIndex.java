@@ -0,0 +1,406 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes the IP addresses of the domains of a connection by IP and by
+ * MAC address.
+ * <p>
+ * The index is built from the DHCP leases of the active virtual networks,
+ * see {@link Network#getDHCPLeases}, fetched with a single call per
+ * network, and from the interfaces of the running domains, which map the
+ * MAC address of a lease to a domain. Interfaces are only read for
+ * domains not seen before; after attaching or detaching an interface,
+ * call {@link #refreshInterfaces} for the domain. Addresses not handed
+ * out by libvirt, e.g. static ones, can be added per domain with
+ * {@link #refresh(Domain, int)}.
+ * <p>
+ * Lookups are answered from memory and do not block refreshes.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * NetworkAddressIndex index = new NetworkAddressIndex(conn);
+ * index.refresh();
+ * NetworkAddressIndex.Binding b = index.getByIP("192.168.122.17");
+ * if (b != null) {
+ *     System.out.println(b.getDomainName());
+ * }
+ * }</pre>
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class NetworkAddressIndex {
+
+    /**
+     * An IP address of a domain interface.
+     */
+    public static final class Binding {
+        private final String ipAddr;
+        private final int prefix;
+        private final String mac;
+        private final String network;
+        private final String hostname;
+        private final long expiryTime;
+        private final Nic nic;
+
+        Binding(String ipAddr, int prefix, String mac, String network, String hostname, long expiryTime, Nic nic) {
+            this.ipAddr = ipAddr;
+            this.prefix = prefix;
+            this.mac = mac;
+            this.network = network;
+            this.hostname = hostname;
+            this.expiryTime = expiryTime;
+            this.nic = nic;
+        }
+
+        public String getIPAddr() {
+            return ipAddr;
+        }
+
+        public int getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * Returns the MAC address in lower case, or {@code null} if
+         * unknown.
+         */
+        public String getMac() {
+            return mac;
+        }
+
+        /**
+         * Returns the name of the network which leased the address, or
+         * {@code null} if the address was reported by the domain.
+         */
+        public String getNetwork() {
+            return network;
+        }
+
+        /**
+         * Returns the host name reported by the DHCP client, or
+         * {@code null}.
+         */
+        public String getHostname() {
+            return hostname;
+        }
+
+        /**
+         * Returns the time the lease expires in seconds since the epoch,
+         * or 0 if the address was reported by the domain.
+         */
+        public long getExpiryTime() {
+            return expiryTime;
+        }
+
+        /**
+         * Returns the name of the domain, or {@code null} if no running
+         * domain has an interface with the MAC address.
+         */
+        public String getDomainName() {
+            return nic == null ? null : nic.domainName;
+        }
+
+        public String getDomainUUID() {
+            return nic == null ? null : nic.domainUUID;
+        }
+
+        /**
+         * Returns the host side device name of the interface, e.g.
+         * {@code "vnet0"}, or {@code null}.
+         */
+        public String getInterface() {
+            return nic == null ? null : nic.targetDev;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s/%d %s %s %s", ipAddr, prefix, mac, getDomainName(), getInterface());
+        }
+    }
+
+    /**
+     * An interface of a running domain.
+     */
+    private static final class Nic {
+        final String domainName;
+        final String domainUUID;
+        final String targetDev;
+
+        Nic(String domainName, String domainUUID, String targetDev) {
+            this.domainName = domainName;
+            this.domainUUID = domainUUID;
+            this.targetDev = targetDev;
+        }
+    }
+
+    private final Connect conn;
+
+    private final ConcurrentHashMap<String, Binding> byIP = new ConcurrentHashMap<String, Binding>();
+    private final ConcurrentHashMap<String, Binding> byMac = new ConcurrentHashMap<String, Binding>();
+
+    // interfaces of the running domains by MAC, and the MACs and UUIDs
+    // by domain ID; guarded by this
+    private final Map<String, Nic> nics = new HashMap<String, Nic>();
+    private final Map<Integer, List<String>> domainMacs = new HashMap<Integer, List<String>>();
+    private final Map<Integer, String> domainUUIDs = new HashMap<Integer, String>();
+
+    // the bindings by source, i.e. network name or domain UUID; guarded
+    // by this
+    private final Map<String, List<Binding>> sources = new HashMap<String, List<Binding>>();
+
+    public NetworkAddressIndex(Connect conn) {
+        this.conn = conn;
+    }
+
+    private static String normalize(String mac) {
+        return mac == null ? null : mac.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Refreshes the interfaces of the running domains and the leases of
+     * all active networks. Networks which are no longer active are
+     * dropped.
+     *
+     * @throws LibvirtException
+     */
+    public synchronized void refresh() throws LibvirtException {
+        refreshDomains();
+
+        Set<String> active = new HashSet<String>();
+        for (String name: conn.listNetworks()) {
+            Network net;
+            try {
+                net = conn.networkLookupByName(name);
+            } catch (LibvirtException e) {
+                // stopped after it was listed
+                if (e.getError().getCode() == Error.ErrorNumber.VIR_ERR_NO_NETWORK) continue;
+                throw e;
+            }
+            try {
+                refresh(net);
+                active.add(name);
+            } finally {
+                net.free();
+            }
+        }
+        for (String source: new ArrayList<String>(sources.keySet())) {
+            if (source.startsWith("network:") && !active.contains(source.substring(8))) {
+                replace(source, Collections.<Binding>emptyList());
+            }
+        }
+    }
+
+    /**
+     * Reads the interfaces of running domains not seen before, and drops
+     * those of domains no longer running along with the addresses they
+     * reported. Interfaces attached to known domains are only read by
+     * {@link #refreshInterfaces}.
+     *
+     * @throws LibvirtException
+     */
+    public synchronized void refreshDomains() throws LibvirtException {
+        Set<Integer> running = new HashSet<Integer>();
+        for (int id: conn.listDomains()) {
+            running.add(id);
+            if (domainMacs.containsKey(id)) continue;
+
+            Domain dom;
+            try {
+                dom = conn.domainLookupByID(id);
+            } catch (LibvirtException e) {
+                // stopped after it was listed
+                if (e.getError().getCode() == Error.ErrorNumber.VIR_ERR_NO_DOMAIN) continue;
+                throw e;
+            }
+            try {
+                readInterfaces(id, dom);
+            } finally {
+                dom.free();
+            }
+        }
+        for (Iterator<Map.Entry<Integer, List<String>>> it = domainMacs.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, List<String>> e = it.next();
+            if (running.contains(e.getKey())) continue;
+            it.remove();
+            domainUUIDs.remove(e.getKey());
+            for (String mac: e.getValue()) {
+                nics.remove(mac);
+            }
+        }
+        Set<String> uuids = new HashSet<String>(domainUUIDs.values());
+        for (String source: new ArrayList<String>(sources.keySet())) {
+            if (source.startsWith("domain:") && !uuids.contains(source.substring(7))) {
+                replace(source, Collections.<Binding>emptyList());
+            }
+        }
+    }
+
+    /**
+     * Reads the interfaces of the given domain again, e.g. after an
+     * interface has been attached to or detached from it. Bindings of the
+     * affected MAC addresses are linked to the new interfaces right away.
+     * If the domain is no longer running, the addresses it reported are
+     * dropped.
+     *
+     * @throws LibvirtException
+     */
+    public synchronized void refreshInterfaces(Domain domain) throws LibvirtException {
+        int id = domain.getID();
+        Set<String> affected = new HashSet<String>();
+        List<String> old = domainMacs.remove(id);
+        domainUUIDs.remove(id);
+        if (old != null) {
+            for (String mac: old) {
+                nics.remove(mac);
+                affected.add(mac);
+            }
+        }
+        // inactive domains have no ID and no interfaces
+        if (id != -1) {
+            affected.addAll(readInterfaces(id, domain));
+        } else {
+            replace("domain:" + domain.getUUIDString(), Collections.<Binding>emptyList());
+        }
+        relink(affected);
+    }
+
+    /**
+     * Maps the MAC addresses of the interfaces of a running domain to the
+     * domain.
+     *
+     * @return the MAC addresses
+     */
+    private List<String> readInterfaces(int id, Domain dom) throws LibvirtException {
+        DomainDefinition def = dom.getDefinition(0);
+        List<String> macs = new ArrayList<String>();
+        for (DomainDefinition.Interface i: def.getInterfaces()) {
+            String mac = normalize(i.getMac());
+            if (mac == null) continue;
+            macs.add(mac);
+            nics.put(mac, new Nic(def.getName(), def.getUUID(), i.getTargetDev()));
+        }
+        domainMacs.put(id, macs);
+        domainUUIDs.put(id, def.getUUID());
+        return macs;
+    }
+
+    /**
+     * Links the bindings of the given MAC addresses to their current
+     * interfaces.
+     */
+    private void relink(Set<String> macs) {
+        if (macs.isEmpty()) return;
+        for (Map.Entry<String, List<Binding>> e: new ArrayList<Map.Entry<String, List<Binding>>>(sources.entrySet())) {
+            List<Binding> bindings = new ArrayList<Binding>(e.getValue());
+            boolean changed = false;
+            for (int i = 0; i < bindings.size(); i++) {
+                Binding b = bindings.get(i);
+                if (b.mac == null || !macs.contains(b.mac)) continue;
+                Nic nic = nics.get(b.mac);
+                // addresses reported by a domain stay with the domain
+                if (nic == null && b.network == null) nic = new Nic(b.nic.domainName, b.nic.domainUUID, null);
+                bindings.set(i, new Binding(b.ipAddr, b.prefix, b.mac, b.network, b.hostname, b.expiryTime, nic));
+                changed = true;
+            }
+            if (changed) replace(e.getKey(), bindings);
+        }
+    }
+
+    /**
+     * Replaces the bindings of the given network by its current leases.
+     *
+     * @return the number of leases
+     * @throws LibvirtException
+     */
+    public synchronized int refresh(Network network) throws LibvirtException {
+        String name = network.getName();
+        NetworkDHCPLease[] leases = network.getDHCPLeases(null);
+        List<Binding> bindings = new ArrayList<Binding>(leases.length);
+        for (NetworkDHCPLease l: leases) {
+            String mac = normalize(l.getMac());
+            bindings.add(new Binding(l.getIPAddr(), l.getPrefix(), mac, name, l.getHostname(),
+                                     l.getExpiryTime(), mac == null ? null : nics.get(mac)));
+        }
+        replace("network:" + name, bindings);
+        return leases.length;
+    }
+
+    /**
+     * Replaces the bindings reported by the given running domain, e.g. by
+     * its guest agent, see {@link Domain#interfaceAddresses}. Use this for
+     * domains whose addresses are not leased by a virtual network.
+     *
+     * @param source see {@link Domain.InterfaceAddressesSource}
+     * @return the number of addresses
+     * @throws LibvirtException
+     */
+    public synchronized int refresh(Domain domain, int source) throws LibvirtException {
+        String name = domain.getName();
+        String uuid = domain.getUUIDString();
+        List<Binding> bindings = new ArrayList<Binding>();
+        for (DomainInterface i: domain.interfaceAddresses(source)) {
+            String mac = normalize(i.getHwaddr());
+            Nic nic = mac == null ? null : nics.get(mac);
+            if (nic == null) nic = new Nic(name, uuid, null);
+            for (DomainInterface.IPAddress a: i.getAddrs()) {
+                bindings.add(new Binding(a.getAddr(), a.getPrefix(), mac, null, null, 0, nic));
+            }
+        }
+        replace("domain:" + uuid, bindings);
+        return bindings.size();
+    }
+
+    /**
+     * Replaces the bindings of a source.
+     */
+    private void replace(String source, List<Binding> bindings) {
+        List<Binding> old = sources.remove(source);
+        if (old != null) {
+            for (Binding b: old) {
+                byIP.remove(b.ipAddr, b);
+                if (b.mac != null) byMac.remove(b.mac, b);
+            }
+        }
+        if (bindings.isEmpty()) return;
+        sources.put(source, bindings);
+        for (Binding b: bindings) {
+            byIP.put(b.ipAddr, b);
+            if (b.mac != null) byMac.put(b.mac, b);
+        }
+    }
+
+    /**
+     * Returns the binding of the given IP address as of the last refresh,
+     * or {@code null}.
+     */
+    public Binding getByIP(String ipAddr) {
+        return byIP.get(ipAddr);
+    }
+
+    /**
+     * Returns a binding of the given MAC address as of the last refresh,
+     * or {@code null}. If an interface has several addresses, one of them
+     * is returned.
+     */
+    public Binding getByMac(String mac) {
+        return byMac.get(normalize(mac));
+    }
+
+    /**
+     * Returns the number of indexed IP addresses.
+     */
+    public int size() {
+        return byIP.size();
+    }
+}
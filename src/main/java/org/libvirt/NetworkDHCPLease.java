@@ -0,0 +1,94 @@
+package org.libvirt;
+
+import org.libvirt.jna.virNetworkDHCPLease;
+
+/**
+ * A DHCP lease handed out by a virtual network.
+ *
+ * @see Network#getDHCPLeases
+ */
+public final class NetworkDHCPLease {
+
+    public static enum IPAddrType {
+        IPV4,
+        IPV6
+    }
+
+    private final String iface;
+    private final long expiryTime;
+    private final IPAddrType type;
+    private final String mac;
+    private final String iaid;
+    private final String ipAddr;
+    private final int prefix;
+    private final String hostname;
+    private final String clientId;
+
+    NetworkDHCPLease(virNetworkDHCPLease l) {
+        iface = l.iface;
+        expiryTime = l.expirytime;
+        type = l.type == 1 ? IPAddrType.IPV6 : IPAddrType.IPV4;
+        mac = l.mac;
+        iaid = l.iaid;
+        ipAddr = l.ipaddr;
+        prefix = l.prefix;
+        hostname = l.hostname;
+        clientId = l.clientid;
+    }
+
+    /**
+     * Returns the name of the network interface, i.e. the bridge.
+     */
+    public String getInterface() {
+        return iface;
+    }
+
+    /**
+     * Returns the time the lease expires in seconds since the epoch.
+     */
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+
+    public IPAddrType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the MAC address, or {@code null} for some IPv6 leases.
+     */
+    public String getMac() {
+        return mac;
+    }
+
+    /**
+     * Returns the IAID of an IPv6 lease, otherwise {@code null}.
+     */
+    public String getIaid() {
+        return iaid;
+    }
+
+    public String getIPAddr() {
+        return ipAddr;
+    }
+
+    public int getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the host name reported by the client, or {@code null}.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s/%d %s expires:%d", mac, ipAddr, prefix, hostname, expiryTime);
+    }
+}
@@ -0,0 +1,279 @@
+package org.libvirt;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static org.libvirt.XMLHelper.attr;
+import static org.libvirt.XMLHelper.escape;
+
+/**
+ * Collects changes of DHCP host reservations, DNS hosts and port groups of
+ * a network and applies them with {@link Network#update}, which changes
+ * the running network without restarting it.
+ * <p>
+ * Changes of the same entry are coalesced: e.g. adding and then deleting
+ * a reservation cancels out, and modifying an entry twice only applies
+ * the last modification. DHCP hosts are identified by their MAC address,
+ * or by their IP address if they have none, DNS hosts by their IP
+ * address and port groups by their name. Deletions are applied first,
+ * then modifications, then additions, so an address can be moved from
+ * one entry to another within a batch.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * NetworkUpdateBatch batch = new NetworkUpdateBatch();
+ * for (Host h: hosts) {
+ *     batch.addDHCPHost(h.mac, h.name, h.ip);
+ *     batch.addDNSHost(h.ip, h.name);
+ * }
+ * batch.apply(network, Network.UpdateFlags.AFFECT_LIVE | Network.UpdateFlags.AFFECT_CONFIG);
+ * }</pre>
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class NetworkUpdateBatch {
+
+    /**
+     * The pending changes of a single entry.
+     */
+    private static final class Entry {
+        final int section;
+        final int parentIndex;
+        // the XML of the entry to delete, or null
+        String delete;
+        // ADD_LAST or MODIFY, and the XML of the new entry, or null
+        int command;
+        String put;
+
+        Entry(int section, int parentIndex) {
+            this.section = section;
+            this.parentIndex = parentIndex;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private int ipIndex = -1;
+
+    /**
+     * Sets the index of the {@code <ip>} element whose DHCP hosts are
+     * changed by subsequent calls, -1 (the default) for the first one
+     * with DHCP enabled.
+     */
+    public NetworkUpdateBatch setIPIndex(int index) {
+        this.ipIndex = index;
+        return this;
+    }
+
+    private Entry entry(int section, int parentIndex, String key) {
+        String k = section + "/" + parentIndex + "/" + key;
+        Entry e = entries.get(k);
+        if (e == null) {
+            e = new Entry(section, parentIndex);
+            entries.put(k, e);
+        }
+        return e;
+    }
+
+    private void add(int section, int parentIndex, String key, String xml) {
+        Entry e = entry(section, parentIndex, key);
+        // replacing a pending addition or modification keeps its command
+        if (e.put == null) e.command = Network.UpdateCommand.ADD_LAST;
+        e.put = xml;
+    }
+
+    private void modify(int section, int parentIndex, String key, String xml) {
+        Entry e = entry(section, parentIndex, key);
+        if (e.delete != null) {
+            // the entry is deleted first, so it has to be added again
+            e.command = Network.UpdateCommand.ADD_LAST;
+        } else if (e.put == null) {
+            e.command = Network.UpdateCommand.MODIFY;
+        }
+        e.put = xml;
+    }
+
+    private void delete(int section, int parentIndex, String key, String xml) {
+        Entry e = entry(section, parentIndex, key);
+        if (e.put != null && e.command == Network.UpdateCommand.ADD_LAST) {
+            // the entry has not existed before the batch
+            e.put = null;
+            if (e.delete == null) entries.remove(section + "/" + parentIndex + "/" + key);
+            return;
+        }
+        e.put = null;
+        if (e.delete == null) e.delete = xml;
+    }
+
+    private static String hostXML(String mac, String name, String ip) {
+        StringBuilder sb = new StringBuilder("<host");
+        if (mac != null) sb.append(" mac='").append(escape(mac)).append('\'');
+        if (name != null) sb.append(" name='").append(escape(name)).append('\'');
+        if (ip != null) sb.append(" ip='").append(escape(ip)).append('\'');
+        return sb.append("/>").toString();
+    }
+
+    private static String hostKey(String mac, String ip) {
+        if (mac != null) return mac.toLowerCase(Locale.ROOT);
+        if (ip != null) return ip;
+        throw new IllegalArgumentException("DHCP host needs a MAC or IP address");
+    }
+
+    /**
+     * Adds a DHCP host reservation.
+     *
+     * @param mac  the MAC address, or {@code null} to match clients by
+     *             name
+     * @param name the host name, or {@code null}
+     * @param ip   the reserved IP address
+     */
+    public NetworkUpdateBatch addDHCPHost(String mac, String name, String ip) {
+        add(Network.UpdateSection.IP_DHCP_HOST, ipIndex, hostKey(mac, ip), hostXML(mac, name, ip));
+        return this;
+    }
+
+    /**
+     * Changes the name or IP address of the DHCP host reservation having
+     * the given MAC address.
+     */
+    public NetworkUpdateBatch modifyDHCPHost(String mac, String name, String ip) {
+        modify(Network.UpdateSection.IP_DHCP_HOST, ipIndex, hostKey(mac, ip), hostXML(mac, name, ip));
+        return this;
+    }
+
+    /**
+     * Deletes a DHCP host reservation. The attributes must match the
+     * existing reservation.
+     */
+    public NetworkUpdateBatch deleteDHCPHost(String mac, String name, String ip) {
+        delete(Network.UpdateSection.IP_DHCP_HOST, ipIndex, hostKey(mac, ip), hostXML(mac, name, ip));
+        return this;
+    }
+
+    private static String dnsHostXML(String ip, String... hostnames) {
+        StringBuilder sb = new StringBuilder("<host ip='").append(escape(ip)).append("'>");
+        for (String h: hostnames) {
+            sb.append("<hostname>").append(escape(h)).append("</hostname>");
+        }
+        return sb.append("</host>").toString();
+    }
+
+    /**
+     * Adds a DNS host entry.
+     *
+     * @param ip        the IP address
+     * @param hostnames the names resolving to the address
+     */
+    public NetworkUpdateBatch addDNSHost(String ip, String... hostnames) {
+        add(Network.UpdateSection.DNS_HOST, -1, ip, dnsHostXML(ip, hostnames));
+        return this;
+    }
+
+    /**
+     * Deletes a DNS host entry. The names must match the existing entry.
+     */
+    public NetworkUpdateBatch deleteDNSHost(String ip, String... hostnames) {
+        delete(Network.UpdateSection.DNS_HOST, -1, ip, dnsHostXML(ip, hostnames));
+        return this;
+    }
+
+    static String portgroupName(String xml) {
+        XMLStreamReader r = null;
+        try {
+            r = XMLHelper.createReader(xml);
+            String name = attr(r, "name");
+            if (name == null) throw new IllegalArgumentException("port group lacks a name");
+            return name;
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("invalid port group description", e);
+        } finally {
+            if (r != null) XMLHelper.close(r);
+        }
+    }
+
+    /**
+     * Adds a port group.
+     *
+     * @param xml the {@code <portgroup>} element
+     */
+    public NetworkUpdateBatch addPortgroup(String xml) {
+        add(Network.UpdateSection.PORTGROUP, -1, portgroupName(xml), xml);
+        return this;
+    }
+
+    /**
+     * Replaces the port group having the same name.
+     *
+     * @param xml the {@code <portgroup>} element
+     */
+    public NetworkUpdateBatch modifyPortgroup(String xml) {
+        modify(Network.UpdateSection.PORTGROUP, -1, portgroupName(xml), xml);
+        return this;
+    }
+
+    /**
+     * Deletes the port group having the given name.
+     */
+    public NetworkUpdateBatch deletePortgroup(String name) {
+        delete(Network.UpdateSection.PORTGROUP, -1, name, "<portgroup name='" + escape(name) + "'/>");
+        return this;
+    }
+
+    /**
+     * Returns the number of {@link Network#update} calls needed to apply
+     * the pending changes.
+     */
+    public int size() {
+        int n = 0;
+        for (Entry e: entries.values()) {
+            if (e.delete != null) n++;
+            if (e.put != null) n++;
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Discards all pending changes.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Applies the pending changes to the given network. Applied changes
+     * are removed from the batch, so if a change fails, the remaining
+     * ones can be applied again after fixing the cause.
+     *
+     * @param network the network
+     * @param flags   see {@link Network.UpdateFlags}
+     * @return the number of {@link Network#update} calls made
+     * @throws LibvirtException if a change fails
+     */
+    public int apply(Network network, int flags) throws LibvirtException {
+        int n = 0;
+        for (Entry e: entries.values()) {
+            if (e.delete == null) continue;
+            network.update(Network.UpdateCommand.DELETE, e.section, e.parentIndex, e.delete, flags);
+            e.delete = null;
+            n++;
+        }
+        for (int command: new int[] { Network.UpdateCommand.MODIFY, Network.UpdateCommand.ADD_LAST }) {
+            for (Entry e: entries.values()) {
+                if (e.put == null || e.command != command) continue;
+                network.update(command, e.section, e.parentIndex, e.put, flags);
+                e.put = null;
+                n++;
+            }
+        }
+        entries.clear();
+        return n;
+    }
+}
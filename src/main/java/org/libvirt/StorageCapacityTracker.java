@@ -0,0 +1,368 @@
+package org.libvirt;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accounts for the capacity and allocation of the storage pools of a
+ * connection, e.g. for placement decisions.
+ * <p>
+ * For each active pool, the tracker keeps the pool's capacity, allocation
+ * and available space as reported by {@link StoragePool#getInfo}, and the
+ * sums of the capacities and allocations of its volumes. The sum of the
+ * volume capacities is the space promised to the volumes; its ratio to
+ * the pool capacity is the overcommit ratio of thin provisioning.
+ * <p>
+ * The volume sums are maintained incrementally from the
+ * {@link StorageVolInventory.Delta} of each pool, and reading the numbers
+ * costs nothing. A {@link #refresh} lists the volumes of each pool, but
+ * only fetches the information of pools, of new volumes and of volumes
+ * passed to {@link #invalidate}. The capacity of a volume only changes
+ * when it is resized, but the allocation of thin volumes grows as they
+ * are written; pool allocations are always current, while volume
+ * allocations are only kept current by
+ * {@link #setRefetchVolumes refetching} all volumes on each refresh.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * StorageCapacityTracker tracker = new StorageCapacityTracker(conn);
+ * tracker.refresh();
+ * for (StorageCapacityTracker.Usage u: tracker.getPoolUsages().values()) {
+ *     if (u.getAvailable() > size && u.getOvercommitRatio() < 1.5) {
+ *         ...
+ *     }
+ * }
+ * }</pre>
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class StorageCapacityTracker {
+
+    /**
+     * The capacity and allocation of a pool, or the totals of all pools.
+     * All sizes are in bytes.
+     */
+    public static final class Usage {
+        private final String name;
+        private final long capacity;
+        private final long allocation;
+        private final long available;
+        private final long provisioned;
+        private final long volumeAllocation;
+        private final int volumes;
+
+        Usage(String name, long capacity, long allocation, long available,
+              long provisioned, long volumeAllocation, int volumes) {
+            this.name = name;
+            this.capacity = capacity;
+            this.allocation = allocation;
+            this.available = available;
+            this.provisioned = provisioned;
+            this.volumeAllocation = volumeAllocation;
+            this.volumes = volumes;
+        }
+
+        /**
+         * Returns the name of the pool, or {@code null} for the totals.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public long getAllocation() {
+            return allocation;
+        }
+
+        public long getAvailable() {
+            return available;
+        }
+
+        /**
+         * Returns the sum of the capacities of all volumes.
+         */
+        public long getProvisioned() {
+            return provisioned;
+        }
+
+        /**
+         * Returns the sum of the allocations of all volumes.
+         */
+        public long getVolumeAllocation() {
+            return volumeAllocation;
+        }
+
+        public int getVolumeCount() {
+            return volumes;
+        }
+
+        /**
+         * Returns the ratio of the provisioned space to the capacity,
+         * above 1 if the volumes could outgrow the pool. Returns 0 for an
+         * empty pool.
+         */
+        public double getOvercommitRatio() {
+            return capacity == 0 ? 0 : (double) provisioned / capacity;
+        }
+
+        /**
+         * Returns the space not yet promised to any volume, negative if
+         * the pool is overcommitted.
+         */
+        public long getUnprovisioned() {
+            return capacity - provisioned;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s capacity:%d allocation:%d available:%d provisioned:%d overcommit:%.2f",
+                                 name == null ? "total" : name, capacity, allocation, available,
+                                 provisioned, getOvercommitRatio());
+        }
+    }
+
+    /**
+     * The accounting state of a single pool, guarded by the tracker.
+     */
+    private static final class PoolAccount {
+        final StoragePool pool;
+        final String name;
+        final StorageVolInventory inventory;
+        final Map<String, StorageVolInventory.Entry> volumes = new HashMap<String, StorageVolInventory.Entry>();
+        long provisioned;
+        long volumeAllocation;
+
+        PoolAccount(StoragePool pool, String name, StorageVolInventory inventory) {
+            this.pool = pool;
+            this.name = name;
+            this.inventory = inventory;
+        }
+
+        void add(StorageVolInventory.Entry e, int sign) {
+            provisioned += sign * e.getCapacity();
+            volumeAllocation += sign * e.getAllocation();
+        }
+
+        void apply(StorageVolInventory.Delta delta) {
+            for (StorageVolInventory.Entry e: delta.getRemoved()) {
+                StorageVolInventory.Entry old = volumes.remove(e.getKey());
+                if (old != null) add(old, -1);
+            }
+            for (StorageVolInventory.Entry e: delta.getAdded()) {
+                volumes.put(e.getKey(), e);
+                add(e, 1);
+            }
+            for (StorageVolInventory.Entry e: delta.getChanged()) {
+                StorageVolInventory.Entry old = volumes.put(e.getKey(), e);
+                if (old != null) add(old, -1);
+                add(e, 1);
+            }
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-capacity-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    private final Connect conn;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+
+    // accounts by pool UUID, guarded by this
+    private final Map<String, PoolAccount> accounts = new LinkedHashMap<String, PoolAccount>();
+    private boolean refetchVolumes;
+
+    // the latest numbers, replaced as a whole on refresh
+    private volatile Map<String, Usage> usages = Collections.emptyMap();
+    private volatile Usage total = new Usage(null, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * Creates a tracker using 8 threads owned by the tracker.
+     */
+    public StorageCapacityTracker(Connect conn) {
+        this(conn, null);
+    }
+
+    /**
+     * Creates a tracker.
+     *
+     * @param conn     the connection
+     * @param executor the executor fetching volume information, {@code null}
+     *                 to use 8 threads owned by the tracker
+     */
+    public StorageCapacityTracker(Connect conn, ExecutorService executor) {
+        this.conn = conn;
+        this.ownExecutor = executor == null;
+        this.executor = executor != null ? executor : Executors.newFixedThreadPool(8, threadFactory);
+    }
+
+    /**
+     * Sets whether the information of all volumes is fetched on each
+     * refresh, which keeps the allocation sums of thin volumes current at
+     * the cost of a call per volume. Default is {@code false}.
+     */
+    public synchronized StorageCapacityTracker setRefetchVolumes(boolean refetchVolumes) {
+        this.refetchVolumes = refetchVolumes;
+        for (PoolAccount a: accounts.values()) {
+            a.inventory.setRefetchInfo(refetchVolumes);
+        }
+        return this;
+    }
+
+    /**
+     * Fetches the information of the given volume again on the next
+     * refresh, e.g. after resizing it.
+     *
+     * @throws LibvirtException if the key of the volume cannot be read
+     */
+    public synchronized void invalidate(StorageVol vol) throws LibvirtException {
+        String key = vol.getKey();
+        for (PoolAccount a: accounts.values()) {
+            a.inventory.invalidate(key);
+        }
+    }
+
+    /**
+     * Updates the numbers of all active pools. Pools which have been
+     * stopped or deleted since the previous refresh are dropped.
+     *
+     * @return the totals of all pools
+     * @throws LibvirtException if listing the pools or fetching their
+     *         information fails
+     * @throws InterruptedException if interrupted while fetching volume
+     *         information
+     */
+    public synchronized Usage refresh() throws LibvirtException, InterruptedException {
+        Set<String> active = new HashSet<String>();
+        for (StoragePool pool: conn.listAllStoragePools(StoragePool.ListAllFlags.ACTIVE)) {
+            String uuid = pool.getUUIDString();
+            active.add(uuid);
+            if (accounts.containsKey(uuid)) {
+                pool.free();
+            } else {
+                accounts.put(uuid, account(pool));
+            }
+        }
+        for (Iterator<Map.Entry<String, PoolAccount>> it = accounts.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, PoolAccount> e = it.next();
+            if (!active.contains(e.getKey())) {
+                it.remove();
+                e.getValue().pool.free();
+            }
+        }
+
+        Map<String, Usage> result = new LinkedHashMap<String, Usage>();
+        for (Map.Entry<String, PoolAccount> e: accounts.entrySet()) {
+            result.put(e.getKey(), update(e.getValue()));
+        }
+        return publish(result);
+    }
+
+    /**
+     * Updates the numbers of a single pool, e.g. after creating a volume
+     * in it.
+     *
+     * @return the numbers of the pool
+     * @throws LibvirtException if fetching the information fails
+     * @throws InterruptedException if interrupted while fetching volume
+     *         information
+     */
+    public synchronized Usage refresh(StoragePool pool) throws LibvirtException, InterruptedException {
+        String uuid = pool.getUUIDString();
+        PoolAccount account = accounts.get(uuid);
+        if (account == null) {
+            account = account(conn.storagePoolLookupByUUIDString(uuid));
+            accounts.put(uuid, account);
+        }
+        Usage u = update(account);
+        Map<String, Usage> result = new LinkedHashMap<String, Usage>(usages);
+        result.put(uuid, u);
+        publish(result);
+        return u;
+    }
+
+    private PoolAccount account(StoragePool pool) throws LibvirtException {
+        StorageVolInventory inventory = new StorageVolInventory(pool, executor).setRefetchInfo(refetchVolumes);
+        return new PoolAccount(pool, pool.getName(), inventory);
+    }
+
+    private static Usage update(PoolAccount account) throws LibvirtException, InterruptedException {
+        StoragePoolInfo info = account.pool.getInfo();
+        account.apply(account.inventory.refresh());
+        return new Usage(account.name, info.capacity, info.allocation, info.available,
+                         account.provisioned, account.volumeAllocation, account.volumes.size());
+    }
+
+    private Usage publish(Map<String, Usage> result) {
+        long capacity = 0, allocation = 0, available = 0, provisioned = 0, volumeAllocation = 0;
+        int volumes = 0;
+        for (Usage u: result.values()) {
+            capacity += u.capacity;
+            allocation += u.allocation;
+            available += u.available;
+            provisioned += u.provisioned;
+            volumeAllocation += u.volumeAllocation;
+            volumes += u.volumes;
+        }
+        usages = Collections.unmodifiableMap(result);
+        total = new Usage(null, capacity, allocation, available, provisioned, volumeAllocation, volumes);
+        return total;
+    }
+
+    /**
+     * Returns the numbers of all pools by UUID as of the last refresh.
+     */
+    public Map<String, Usage> getPoolUsages() {
+        return usages;
+    }
+
+    /**
+     * Returns the numbers of the pool having the given UUID as of the last
+     * refresh, or {@code null} if it is not tracked.
+     */
+    public Usage getPoolUsage(String uuid) {
+        return usages.get(uuid);
+    }
+
+    /**
+     * Returns the totals of all pools as of the last refresh.
+     */
+    public Usage getHostUsage() {
+        return total;
+    }
+
+    /**
+     * Releases the pools and the threads owned by the tracker.
+     */
+    public synchronized void close() {
+        for (PoolAccount a: accounts.values()) {
+            try {
+                a.pool.free();
+            } catch (LibvirtException e) {
+                // ignore
+            }
+        }
+        accounts.clear();
+        if (ownExecutor) executor.shutdown();
+    }
+}
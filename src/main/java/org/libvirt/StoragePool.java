@@ -11,6 +11,7 @@ import static org.libvirt.ErrorHandler.processError;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
 
 /**
  * A collection of storage
@@ -43,6 +44,15 @@ public class StoragePool {
         static final int VIR_STORAGE_POOL_DELETE_ZEROED = 1;
     }
 
+    public static final class ListAllFlags {
+        public static final int INACTIVE     = (1 << 0);
+        public static final int ACTIVE       = (1 << 1);
+        public static final int PERSISTENT   = (1 << 2);
+        public static final int TRANSIENT    = (1 << 3);
+        public static final int AUTOSTART    = (1 << 4);
+        public static final int NO_AUTOSTART = (1 << 5);
+    }
+
     /**
      * the native virStoragePoolPtr.
      */
@@ -238,6 +248,29 @@ public class StoragePool {
         return processError(libvirt.virStoragePoolIsPersistent(VSPP));
     }
 
+    /**
+     * Lists all storage volumes of the pool in a single call, which is
+     * much faster than looking up each name returned by
+     * {@link #listVolumes}.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-storage.html#virStoragePoolListAllVolumes">Libvirt Documentation</a>
+     * @return the volumes
+     * @throws LibvirtException
+     * @see StorageVolInventory
+     */
+    public StorageVol[] listAllVolumes() throws LibvirtException {
+        PointerByReference vols = new PointerByReference();
+        int n = processError(libvirt.virStoragePoolListAllVolumes(VSPP, vols, 0));
+        Pointer[] ptrs = Library.toPointerArray(vols.getValue(), n);
+        StorageVol[] result = new StorageVol[n];
+        for (int i = 0; i < n; i++) {
+            StorageVolPointer ptr = new StorageVolPointer();
+            ptr.setPointer(ptrs[i]);
+            result[i] = new StorageVol(virConnect, ptr);
+        }
+        return result;
+    }
+
     /**
      * Fetch list of storage volume names
      *
@@ -279,6 +312,25 @@ public class StoragePool {
      */
     public void refresh(int flags) throws LibvirtException {
         processError(libvirt.virStoragePoolRefresh(VSPP, flags));
+        volumesChanged();
+    }
+
+    /**
+     * Marks this pool as stale in the storage volume index of the
+     * connection, if any.
+     */
+    void volumesChanged() {
+        StorageVolIndex index = virConnect.peekStorageVolIndex();
+        if (index != null) index.invalidate(this);
+    }
+
+    /**
+     * Adds a volume created in this pool to the storage volume index of
+     * the connection, if any.
+     */
+    void volumeCreated(StorageVol vol) {
+        StorageVolIndex index = virConnect.peekStorageVolIndex();
+        if (index != null) index.created(this, vol);
     }
 
     /**
@@ -305,7 +357,9 @@ public class StoragePool {
      */
     public StorageVol storageVolCreateXML(String xmlDesc, int flags) throws LibvirtException {
         StorageVolPointer sPtr = processError(libvirt.virStorageVolCreateXML(VSPP, xmlDesc, flags));
-        return new StorageVol(virConnect, sPtr);
+        StorageVol vol = new StorageVol(virConnect, sPtr);
+        volumeCreated(vol);
+        return vol;
     }
 
     /**
@@ -319,7 +373,9 @@ public class StoragePool {
     public StorageVol storageVolCreateXMLFrom(String xmlDesc, StorageVol cloneVolume, int flags)
             throws LibvirtException {
         StorageVolPointer sPtr = processError(libvirt.virStorageVolCreateXMLFrom(VSPP, xmlDesc, cloneVolume.VSVP, flags));
-        return new StorageVol(virConnect, sPtr);
+        StorageVol vol = new StorageVol(virConnect, sPtr);
+        volumeCreated(vol);
+        return vol;
     }
 
     /**
@@ -41,6 +41,48 @@ public class StorageVol {
         public static final int SHRINK = 4;
     }
 
+    public static final class DownloadFlags {
+        /**
+         * use a sparse stream, so holes are transferred as such
+         */
+        public static final int SPARSE_STREAM = 1;
+    }
+
+    public static final class UploadFlags {
+        /**
+         * use a sparse stream, so holes are transferred as such
+         */
+        public static final int SPARSE_STREAM = 1;
+    }
+
+    /**
+     * Algorithms for overwriting the data of a volume.
+     *
+     * @see StorageVol#wipe(WipeAlgorithm)
+     */
+    public static enum WipeAlgorithm {
+        /** 1-pass, all zeroes */
+        ZERO,
+        /** 4-pass NNSA Policy Letter NAP-14.1-C (XVI-8) */
+        NNSA,
+        /** 4-pass DoD 5220.22-M section 8-306 procedure */
+        DOD,
+        /** 9-pass method recommended by the German Center of Security in Information Technologies */
+        BSI,
+        /** The canonical 35-pass sequence */
+        GUTMANN,
+        /** 7-pass method described by Bruce Schneier */
+        SCHNEIER,
+        /** 7-pass method by Roy Pfitzner */
+        PFITZNER7,
+        /** 33-pass method by Roy Pfitzner */
+        PFITZNER33,
+        /** 1-pass, random data */
+        RANDOM,
+        /** 1-pass, trim or discard the data, falling back to zeroes */
+        TRIM
+    }
+
     public static enum Type {
         /**
          * Regular file based volumes
@@ -85,7 +127,32 @@ public class StorageVol {
      * @throws LibvirtException
      */
     public void delete(int flags) throws LibvirtException {
+        StorageVolIndex index = virConnect.peekStorageVolIndex();
+        String key = index != null ? getKey() : null;
         processError(libvirt.virStorageVolDelete(VSVP, flags));
+        if (index != null) index.deleted(key);
+    }
+
+    /**
+     * Fetches data from the volume into the given stream, which becomes
+     * readable.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-storage.html#virStorageVolDownload">Libvirt Documentation</a>
+     * @param stream
+     *            the stream receiving the data
+     * @param offset
+     *            the position in the volume to start reading from
+     * @param length
+     *            the number of bytes to read, 0 to read up to the end of
+     *            the volume
+     * @param flags
+     *            see {@link DownloadFlags}
+     * @throws LibvirtException
+     * @see StorageVolTransfer
+     */
+    public void download(Stream stream, long offset, long length, int flags) throws LibvirtException {
+        processError(libvirt.virStorageVolDownload(VSVP, stream.getVSP(), offset, length, flags));
+        stream.markReadable();
     }
 
     @Override
@@ -200,6 +267,43 @@ public class StorageVol {
         return processError(libvirt.virStorageVolWipe(VSVP, 0));
     }
 
+    /**
+     * Ensure data previously on a volume is not accessible to future reads,
+     * using the given algorithm. This call blocks until the volume has been
+     * overwritten, see {@link StorageVolWiper} for wiping volumes in the
+     * background.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-storage.html#virStorageVolWipePattern">Libvirt Documentation</a>
+     * @param algorithm
+     *            the algorithm
+     * @throws LibvirtException
+     */
+    public void wipe(WipeAlgorithm algorithm) throws LibvirtException {
+        processError(libvirt.virStorageVolWipePattern(VSVP, algorithm.ordinal(), 0));
+    }
+
+    /**
+     * Uploads data from the given stream to the volume, the stream becomes
+     * writable. The upload is complete once the stream has been finished.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-storage.html#virStorageVolUpload">Libvirt Documentation</a>
+     * @param stream
+     *            the stream sending the data
+     * @param offset
+     *            the position in the volume to start writing at
+     * @param length
+     *            the number of bytes to write, 0 to allow writing up to the
+     *            end of the volume
+     * @param flags
+     *            see {@link UploadFlags}
+     * @throws LibvirtException
+     * @see StorageVolTransfer
+     */
+    public void upload(Stream stream, long offset, long length, int flags) throws LibvirtException {
+        processError(libvirt.virStorageVolUpload(VSVP, stream.getVSP(), offset, length, flags));
+        stream.markWritable();
+    }
+
     /**
      * Resize a volume
      *
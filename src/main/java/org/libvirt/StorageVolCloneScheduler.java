@@ -0,0 +1,580 @@
+package org.libvirt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static org.libvirt.XMLHelper.attr;
+import static org.libvirt.XMLHelper.nextChild;
+import static org.libvirt.XMLHelper.skip;
+import static org.libvirt.XMLHelper.text;
+
+/**
+ * Runs full clones of storage volumes, see
+ * {@link StoragePool#storageVolCreateXMLFrom}, in parallel.
+ * <p>
+ * Clones are queued and started such that no more than a given number of
+ * clones run in a single pool, and no more than a given number run on a
+ * single storage backend, identified by the pool type and the first
+ * source host of the pool, e.g. {@code netfs:nas1}. This keeps the
+ * storage busy without overloading it.
+ * <p>
+ * While a clone runs, the allocation of the new volume is polled to
+ * report its progress. A failed clone is deleted and queued again after
+ * a delay which doubles with each attempt, up to a number of retries.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * StorageVolCloneScheduler scheduler = new StorageVolCloneScheduler()
+ *     .setPoolConcurrency(4)
+ *     .setBackendConcurrency(8);
+ * List<StorageVolCloneScheduler.Clone> clones = ...;
+ * for (int i = 0; i < 200; i++) {
+ *     clones.add(scheduler.submit(pool, "<volume><name>vm" + i + ".img</name></volume>", golden, 0));
+ * }
+ * for (StorageVolCloneScheduler.Clone c: clones) {
+ *     c.await();
+ * }
+ * scheduler.shutdown();
+ * }</pre>
+ */
+public final class StorageVolCloneScheduler {
+
+    /**
+     * Receives notifications about clones.
+     * <p>
+     * Listeners are invoked from the scheduler's threads and must return
+     * quickly.
+     */
+    public static interface Listener {
+        /**
+         * Called periodically while a clone runs.
+         *
+         * @param allocation the number of bytes allocated by the new volume
+         * @param capacity   the capacity of the new volume
+         */
+        void onProgress(Clone clone, long allocation, long capacity);
+
+        void onFinished(Clone clone);
+    }
+
+    public static enum State {
+        /** waiting for a free slot in the pool or on the backend */
+        QUEUED,
+        RUNNING,
+        /** failed, waiting to be retried */
+        RETRYING,
+        COMPLETED,
+        FAILED,
+        /** cancelled by calling {@link Clone#cancel} */
+        CANCELLED
+    }
+
+    /**
+     * A clone scheduled by the scheduler.
+     */
+    public final class Clone {
+        private final StoragePool pool;
+        private final String poolKey;
+        private final String backend;
+        private final String xmlDesc;
+        private final String name;
+        private final StorageVol source;
+        private final int flags;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile State state = State.QUEUED;
+        private volatile int attempts;
+        private boolean checked;
+        private volatile StorageVol result;
+        private volatile Throwable error;
+        private volatile long allocation;
+        private volatile long capacity;
+
+        // polling state, only accessed by the monitor
+        private ScheduledFuture<?> poller;
+        private StorageVol target;
+
+        Clone(StoragePool pool, String poolKey, String backend, String xmlDesc, String name,
+              StorageVol source, int flags) {
+            this.pool = pool;
+            this.poolKey = poolKey;
+            this.backend = backend;
+            this.xmlDesc = xmlDesc;
+            this.name = name;
+            this.source = source;
+            this.flags = flags;
+        }
+
+        /**
+         * Returns the name of the new volume.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public StoragePool getPool() {
+            return pool;
+        }
+
+        /**
+         * Returns the storage backend the clone is accounted to.
+         */
+        public String getBackend() {
+            return backend;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Returns the number of times the clone has been started.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns the new volume once the clone has completed.
+         */
+        public StorageVol getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the exception which failed the last attempt.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Returns the allocation of the new volume as of the latest poll.
+         */
+        public long getAllocation() {
+            return allocation;
+        }
+
+        /**
+         * Returns the capacity of the new volume, or 0 if it is not known
+         * yet.
+         */
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits until the clone has finished.
+         *
+         * @return the final state
+         */
+        public State await() throws InterruptedException {
+            done.await();
+            return state;
+        }
+
+        /**
+         * Waits until the clone has finished or the timeout expires.
+         *
+         * @return {@code true} if the clone has finished
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        /**
+         * Cancels the clone if it has not been started yet or is waiting
+         * for a retry. A running clone cannot be cancelled.
+         *
+         * @return {@code true} if the clone has been cancelled
+         */
+        public boolean cancel() {
+            synchronized (StorageVolCloneScheduler.this) {
+                if (state != State.QUEUED && state != State.RETRYING) return false;
+                queue.remove(this);
+                state = State.CANCELLED;
+            }
+            finish();
+            return true;
+        }
+
+        void run() {
+            attempts++;
+            StorageVol vol;
+            try {
+                if (!checked) {
+                    if (exists()) {
+                        // never retry, the cleanup would delete a foreign volume
+                        error = new IllegalStateException("storage volume " + name + " already exists");
+                        finished(this, State.FAILED);
+                        return;
+                    }
+                    checked = true;
+                }
+                poller = monitor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            sample();
+                        }
+                    }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+                try {
+                    vol = pool.storageVolCreateXMLFrom(xmlDesc, source, flags);
+                } finally {
+                    stopPolling();
+                }
+            } catch (Throwable e) {
+                error = e;
+                if (checked) cleanup();
+                finished(this, attempts <= retries ? State.RETRYING : State.FAILED);
+                return;
+            }
+            try {
+                StorageVolInfo info = vol.getInfo();
+                allocation = info.allocation;
+                capacity = info.capacity;
+            } catch (LibvirtException e) {
+                // the clone succeeded anyway
+            }
+            result = vol;
+            error = null;
+            finished(this, State.COMPLETED);
+        }
+
+        private boolean exists() throws LibvirtException {
+            try {
+                pool.storageVolLookupByName(name).free();
+                return true;
+            } catch (LibvirtException e) {
+                if (e.getError().getCode() == Error.ErrorNumber.VIR_ERR_NO_STORAGE_VOL) return false;
+                throw e;
+            }
+        }
+
+        /**
+         * Deletes what a failed attempt left behind.
+         */
+        private void cleanup() {
+            try {
+                StorageVol vol = pool.storageVolLookupByName(name);
+                try {
+                    vol.delete(0);
+                } finally {
+                    vol.free();
+                }
+            } catch (LibvirtException e) {
+                // nothing was created, or the next attempt fails as well
+            }
+        }
+
+        private void stopPolling() {
+            final ScheduledFuture<?> p = poller;
+            if (p == null) return;
+            poller = null;
+            p.cancel(false);
+            // release the polled volume on the monitor thread, which owns it
+            monitor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (target != null) {
+                            try {
+                                target.free();
+                            } catch (LibvirtException e) {
+                                // ignore
+                            }
+                            target = null;
+                        }
+                    }
+                });
+        }
+
+        private void sample() {
+            try {
+                // the volume is visible in the pool while it is being built
+                if (target == null) target = pool.storageVolLookupByName(name);
+                StorageVolInfo info = target.getInfo();
+                allocation = info.allocation;
+                capacity = info.capacity;
+            } catch (LibvirtException e) {
+                // not created yet, or just finished
+                return;
+            }
+            Listener l = listener;
+            if (l != null) l.onProgress(this, allocation, capacity);
+        }
+
+        private void finish() {
+            done.countDown();
+            Listener l = listener;
+            if (l != null) l.onFinished(this);
+            completed();
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + backend + "): " + state;
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-clone-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(threadFactory);
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+    // backends of the pools by UUID
+    private final ConcurrentHashMap<String, String> backends = new ConcurrentHashMap<String, String>();
+
+    private final LinkedList<Clone> queue = new LinkedList<Clone>();
+    private final Map<String, Integer> perPool = new HashMap<String, Integer>();
+    private final Map<String, Integer> perBackend = new HashMap<String, Integer>();
+    private int poolConcurrency = 2;
+    private int backendConcurrency = 4;
+    private int pending;
+    private volatile int retries = 2;
+    private volatile long retryDelay = 10000;
+    private volatile long pollInterval = 1000;
+    private volatile Listener listener;
+    private boolean shutdown;
+
+    /**
+     * Sets the maximum number of clones running in a single pool at a
+     * time, 2 by default.
+     */
+    public synchronized StorageVolCloneScheduler setPoolConcurrency(int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        poolConcurrency = n;
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of clones running on a single storage
+     * backend at a time, 4 by default.
+     */
+    public synchronized StorageVolCloneScheduler setBackendConcurrency(int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        backendConcurrency = n;
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Sets the number of times a failed clone is retried, 2 by default.
+     */
+    public StorageVolCloneScheduler setRetries(int n) {
+        if (n < 0) throw new IllegalArgumentException("negative number of retries");
+        retries = n;
+        return this;
+    }
+
+    /**
+     * Sets the delay before the first retry of a failed clone, 10s by
+     * default. The delay doubles with each further retry.
+     */
+    public StorageVolCloneScheduler setRetryDelay(long delay, TimeUnit unit) {
+        retryDelay = unit.toMillis(delay);
+        return this;
+    }
+
+    /**
+     * Sets the interval at which the allocation of running clones is
+     * polled, 1s by default.
+     */
+    public StorageVolCloneScheduler setPollInterval(long interval, TimeUnit unit) {
+        pollInterval = Math.max(1, unit.toMillis(interval));
+        return this;
+    }
+
+    public StorageVolCloneScheduler setListener(Listener l) {
+        listener = l;
+        return this;
+    }
+
+    /**
+     * Schedules a clone of the given volume.
+     *
+     * @param pool    the pool to create the new volume in
+     * @param xmlDesc the XML description of the new volume
+     * @param source  the volume to clone
+     * @param flags   the flags passed to
+     *                {@link StoragePool#storageVolCreateXMLFrom}
+     * @return the clone
+     * @throws LibvirtException if the backend of the pool cannot be
+     *         determined
+     * @throws IllegalArgumentException if the description does not name
+     *         the new volume
+     */
+    public Clone submit(StoragePool pool, String xmlDesc, StorageVol source, int flags)
+        throws LibvirtException {
+        String uuid = pool.getUUIDString();
+        String backend = backends.get(uuid);
+        if (backend == null) {
+            backend = parseBackend(pool.getXMLDesc(0));
+            backends.put(uuid, backend);
+        }
+        Clone c = new Clone(pool, uuid, backend, xmlDesc, parseName(xmlDesc), source, flags);
+        synchronized (this) {
+            if (shutdown) throw new IllegalStateException("scheduler has been shut down");
+            pending++;
+            queue.add(c);
+            dispatch();
+        }
+        return c;
+    }
+
+    /**
+     * Returns the pool type and the first source host, if any, of the
+     * given pool description.
+     */
+    static String parseBackend(String xml) {
+        XMLStreamReader r = null;
+        try {
+            r = XMLHelper.createReader(xml);
+            String type = attr(r, "type");
+            String backend = type != null ? type : "";
+            while (nextChild(r)) {
+                if (!r.getLocalName().equals("source")) {
+                    skip(r);
+                    continue;
+                }
+                while (nextChild(r)) {
+                    String host = r.getLocalName().equals("host") ? attr(r, "name") : null;
+                    skip(r);
+                    if (host != null) return backend + ":" + host;
+                }
+            }
+            return backend;
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("invalid pool description", e);
+        } finally {
+            if (r != null) XMLHelper.close(r);
+        }
+    }
+
+    static String parseName(String xml) {
+        XMLStreamReader r = null;
+        try {
+            r = XMLHelper.createReader(xml);
+            while (nextChild(r)) {
+                if (r.getLocalName().equals("name")) return text(r);
+                skip(r);
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("invalid volume description", e);
+        } finally {
+            if (r != null) XMLHelper.close(r);
+        }
+        throw new IllegalArgumentException("volume description lacks a name");
+    }
+
+    private static int count(Map<String, Integer> m, String key) {
+        Integer n = m.get(key);
+        return n == null ? 0 : n.intValue();
+    }
+
+    private static void add(Map<String, Integer> m, String key, int delta) {
+        int n = count(m, key) + delta;
+        if (n == 0) m.remove(key);
+        else m.put(key, n);
+    }
+
+    /**
+     * Starts all queued clones whose pool and backend have free slots.
+     */
+    private void dispatch() {
+        for (Iterator<Clone> it = queue.iterator(); it.hasNext();) {
+            final Clone c = it.next();
+            if (count(perPool, c.poolKey) >= poolConcurrency
+                || count(perBackend, c.backend) >= backendConcurrency) {
+                continue;
+            }
+            it.remove();
+            add(perPool, c.poolKey, 1);
+            add(perBackend, c.backend, 1);
+            c.state = State.RUNNING;
+            workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        c.run();
+                    }
+                });
+        }
+    }
+
+    private void finished(final Clone c, State s) {
+        synchronized (this) {
+            add(perPool, c.poolKey, -1);
+            add(perBackend, c.backend, -1);
+            c.state = s;
+            if (s == State.RETRYING) {
+                long delay = retryDelay << Math.min(c.attempts - 1, 16);
+                monitor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (StorageVolCloneScheduler.this) {
+                                if (c.state != State.RETRYING) return;
+                                c.state = State.QUEUED;
+                                queue.add(c);
+                                dispatch();
+                            }
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+            }
+            dispatch();
+        }
+        if (s != State.RETRYING) c.finish();
+    }
+
+    private synchronized void completed() {
+        if (--pending == 0 && shutdown) {
+            workers.shutdown();
+            monitor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of clones waiting for a free slot.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting new clones. Queued and running clones, including
+     * their retries, are completed.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (pending == 0) {
+            workers.shutdown();
+            monitor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Indexes the volumes of all active storage pools of a connection by key
+ * and by path.
+ * <p>
+ * {@link Connect#storageVolLookupByKey} and
+ * {@link Connect#storageVolLookupByPath} make libvirt search every pool of
+ * the connection, which becomes expensive with many pools or volumes. The
+ * index is built from a {@link StorageVolInventory} per pool, so it takes
+ * a bulk listing per pool, and answers lookups locally.
+ * <p>
+ * Volumes created or deleted through this library are added to or
+ * removed from the index directly, which takes two calls per created
+ * volume. Refreshing a pool through this library marks it as stale;
+ * stale pools are refreshed on the next lookup, which lists their volumes
+ * but only fetches the new ones, so the size and allocation of a volume
+ * are those seen when it was indexed. Lookups made while a refresh is
+ * running do not wait for it but use the index as before. Changes made
+ * by other clients are seen after such a refresh or a {@link #rebuild}.
+ * Lookups which miss the index fall back to the native lookup.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @see Connect#getStorageVolIndex
+ */
+public final class StorageVolIndex {
+
+    private static final class Location {
+        final String pool;
+        final StorageVolInventory.Entry entry;
+
+        Location(String pool, StorageVolInventory.Entry entry) {
+            this.pool = pool;
+            this.entry = entry;
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-index-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    private final Connect conn;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8, threadFactory);
+
+    private final ConcurrentHashMap<String, Location> byKey = new ConcurrentHashMap<String, Location>();
+    private final ConcurrentHashMap<String, Location> byPath = new ConcurrentHashMap<String, Location>();
+
+    // pools and their inventories by UUID, guarded by this; held only
+    // briefly, so lookups do not wait for native calls
+    private final Map<String, StoragePool> pools = new HashMap<String, StoragePool>();
+    private final Map<String, StorageVolInventory> inventories = new HashMap<String, StorageVolInventory>();
+
+    // held while refreshing inventories
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    // UUIDs of pools to refresh before the next lookup
+    private final Set<String> stale = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    StorageVolIndex(Connect conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * Discards the index and builds it from the currently active pools.
+     *
+     * @throws LibvirtException if listing the pools or volumes fails
+     * @throws InterruptedException if interrupted while listing volumes
+     */
+    public void rebuild() throws LibvirtException, InterruptedException {
+        refreshLock.lockInterruptibly();
+        try {
+            synchronized (this) {
+                clear();
+            }
+            for (StoragePool pool: conn.listAllStoragePools(StoragePool.ListAllFlags.ACTIVE)) {
+                String uuid = pool.getUUIDString();
+                synchronized (this) {
+                    pools.put(uuid, pool);
+                    inventories.put(uuid, newInventory(pool));
+                }
+                stale.add(uuid);
+            }
+            refreshStale();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private StorageVolInventory newInventory(StoragePool pool) {
+        // the index does not keep up with resized volumes anyway
+        return new StorageVolInventory(pool, executor).setRefetchInfo(false);
+    }
+
+    private void clear() throws LibvirtException {
+        stale.clear();
+        byKey.clear();
+        byPath.clear();
+        inventories.clear();
+        for (StoragePool pool: pools.values()) {
+            pool.free();
+        }
+        pools.clear();
+    }
+
+    /**
+     * Refreshes the inventories of all stale pools. Pools which cannot be
+     * refreshed, e.g. because they were stopped, are dropped from the
+     * index. Called with refreshLock held; the index lock is only taken
+     * to apply the changes.
+     */
+    private void refreshStale() throws InterruptedException {
+        for (String uuid: new ArrayList<String>(stale)) {
+            stale.remove(uuid);
+            try {
+                StorageVolInventory inventory;
+                synchronized (this) {
+                    inventory = inventories.get(uuid);
+                }
+                if (inventory == null) {
+                    StoragePool pool = conn.storagePoolLookupByUUIDString(uuid);
+                    inventory = newInventory(pool);
+                    synchronized (this) {
+                        pools.put(uuid, pool);
+                        inventories.put(uuid, inventory);
+                    }
+                }
+                StorageVolInventory.Delta delta = inventory.refresh();
+                synchronized (this) {
+                    apply(uuid, delta);
+                }
+            } catch (LibvirtException e) {
+                synchronized (this) {
+                    drop(uuid);
+                }
+            } catch (InterruptedException e) {
+                stale.add(uuid);
+                throw e;
+            }
+        }
+    }
+
+    private void apply(String uuid, StorageVolInventory.Delta delta) {
+        for (StorageVolInventory.Entry e: delta.getRemoved()) {
+            remove(e.getKey());
+        }
+        for (StorageVolInventory.Entry e: delta.getAdded()) {
+            put(new Location(uuid, e));
+        }
+        for (StorageVolInventory.Entry e: delta.getChanged()) {
+            put(new Location(uuid, e));
+        }
+    }
+
+    private void put(Location loc) {
+        byKey.put(loc.entry.getKey(), loc);
+        if (loc.entry.getPath() != null) byPath.put(loc.entry.getPath(), loc);
+    }
+
+    private void remove(String key) {
+        Location loc = byKey.remove(key);
+        if (loc != null && loc.entry.getPath() != null) byPath.remove(loc.entry.getPath(), loc);
+    }
+
+    private void drop(String uuid) {
+        inventories.remove(uuid);
+        StoragePool pool = pools.remove(uuid);
+        if (pool != null) {
+            try {
+                pool.free();
+            } catch (LibvirtException e) {
+                // the pool is gone anyway
+            }
+        }
+        for (Location loc: byKey.values()) {
+            if (loc.pool.equals(uuid)) remove(loc.entry.getKey());
+        }
+    }
+
+    /**
+     * Refreshes stale pools, unless another thread is refreshing them
+     * already; an interrupt is deferred to the caller.
+     */
+    private void update() {
+        if (stale.isEmpty() || !refreshLock.tryLock()) return;
+        try {
+            refreshStale();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Marks the pool having the given UUID as stale, also if it is not yet
+     * indexed.
+     */
+    void invalidate(String poolUUID) {
+        stale.add(poolUUID);
+    }
+
+    /**
+     * Marks the given pool as stale.
+     */
+    void invalidate(StoragePool pool) {
+        try {
+            invalidate(pool.getUUIDString());
+        } catch (LibvirtException e) {
+            // cannot tell which pool changed
+            invalidateAll();
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        stale.addAll(inventories.keySet());
+    }
+
+    /**
+     * Adds a volume created in the given pool to the index. A pool not
+     * indexed yet is marked as stale instead, so it gets indexed.
+     */
+    void created(StoragePool pool, StorageVol vol) {
+        try {
+            String uuid = pool.getUUIDString();
+            synchronized (this) {
+                if (!inventories.containsKey(uuid)) {
+                    stale.add(uuid);
+                    return;
+                }
+            }
+            // the inventory of the pool adds it on its next refresh
+            StorageVolInventory.Entry e =
+                new StorageVolInventory.Entry(vol.getName(), vol.getKey(), vol.getPath(), vol.getInfo());
+            synchronized (this) {
+                if (inventories.containsKey(uuid)) put(new Location(uuid, e));
+            }
+        } catch (LibvirtException e) {
+            // index it on the next lookup instead
+            invalidate(pool);
+        }
+    }
+
+    /**
+     * Removes a deleted volume from the index. The inventory of its pool
+     * drops it on its next refresh.
+     */
+    void deleted(String key) {
+        remove(key);
+    }
+
+    /**
+     * Returns the indexed state of the volume having the given key, or
+     * {@code null} if it is unknown.
+     */
+    public StorageVolInventory.Entry getByKey(String key) {
+        update();
+        Location loc = byKey.get(key);
+        return loc == null ? null : loc.entry;
+    }
+
+    /**
+     * Returns the indexed state of the volume having the given path, or
+     * {@code null} if it is unknown.
+     */
+    public StorageVolInventory.Entry getByPath(String path) {
+        update();
+        Location loc = byPath.get(path);
+        return loc == null ? null : loc.entry;
+    }
+
+    /**
+     * Fetches a volume by its key, like
+     * {@link Connect#storageVolLookupByKey}, but looking it up by name in
+     * the indexed pool.
+     *
+     * @return the volume
+     * @throws LibvirtException if the volume does not exist
+     */
+    public StorageVol lookupByKey(String key) throws LibvirtException {
+        update();
+        StorageVol vol = lookup(byKey.get(key));
+        if (vol != null) return vol;
+        vol = conn.storageVolLookupByKey(key);
+        missed(vol);
+        return vol;
+    }
+
+    /**
+     * Fetches a volume by its path, like
+     * {@link Connect#storageVolLookupByPath}, but looking it up by name in
+     * the indexed pool.
+     *
+     * @return the volume
+     * @throws LibvirtException if the volume does not exist
+     */
+    public StorageVol lookupByPath(String path) throws LibvirtException {
+        update();
+        StorageVol vol = lookup(byPath.get(path));
+        if (vol != null) return vol;
+        vol = conn.storageVolLookupByPath(path);
+        missed(vol);
+        return vol;
+    }
+
+    private StorageVol lookup(Location loc) throws LibvirtException {
+        if (loc == null) return null;
+        StoragePool pool;
+        synchronized (this) {
+            pool = pools.get(loc.pool);
+        }
+        if (pool == null) return null;
+        try {
+            return pool.storageVolLookupByName(loc.entry.getName());
+        } catch (LibvirtException e) {
+            Error.ErrorNumber code = e.getError().getCode();
+            if (code != Error.ErrorNumber.VIR_ERR_NO_STORAGE_VOL
+                && code != Error.ErrorNumber.VIR_ERR_NO_STORAGE_POOL) {
+                throw e;
+            }
+            // deleted or renamed behind our back
+            remove(loc.entry.getKey());
+            invalidate(loc.pool);
+            return null;
+        }
+    }
+
+    /**
+     * Marks the pool of a volume found by the native lookup as stale, so
+     * it gets indexed.
+     */
+    private void missed(StorageVol vol) {
+        if (vol == null) return;
+        try {
+            StoragePool pool = vol.storagePoolLookupByVolume();
+            try {
+                invalidate(pool.getUUIDString());
+            } finally {
+                pool.free();
+            }
+        } catch (LibvirtException e) {
+            // the volume is returned anyway
+        }
+    }
+
+    /**
+     * Returns the number of indexed volumes.
+     */
+    public int size() {
+        update();
+        return byKey.size();
+    }
+
+    /**
+     * Discards the index and releases its threads.
+     */
+    void close() {
+        refreshLock.lock();
+        try {
+            synchronized (this) {
+                clear();
+            }
+        } catch (LibvirtException e) {
+            // ignore, the connection is going away
+        } finally {
+            refreshLock.unlock();
+        }
+        executor.shutdown();
+    }
+}
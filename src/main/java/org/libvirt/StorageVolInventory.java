@@ -0,0 +1,394 @@
+package org.libvirt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cached inventory of the volumes of a storage pool.
+ * <p>
+ * Each {@link #refresh} lists all volumes with a single call of
+ * {@link StoragePool#listAllVolumes} and fetches their information in
+ * parallel batches. Paths are only fetched for volumes not seen before,
+ * as they do not change. The result is compared with the previous
+ * inventory and returned as a {@link Delta}.
+ * <p>
+ * By default the information of every volume is fetched on each refresh.
+ * If only new volumes are of interest, {@link #setRefetchInfo} limits
+ * fetching to volumes not seen before and volumes passed to
+ * {@link #invalidate}, so a refresh of an unchanged pool costs a single
+ * listing.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * StorageVolInventory inventory = new StorageVolInventory(pool);
+ * try {
+ *     while (...) {
+ *         StorageVolInventory.Delta delta = inventory.refresh();
+ *         for (StorageVolInventory.Entry e: delta.getAdded()) {
+ *             ...
+ *         }
+ *     }
+ * } finally {
+ *     inventory.close();
+ * }
+ * }</pre>
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class StorageVolInventory {
+
+    /**
+     * The state of a single volume.
+     */
+    public static final class Entry {
+        private final String name;
+        private final String key;
+        private final String path;
+        private final StorageVolInfo.VirStorageVolType type;
+        private final long capacity;
+        private final long allocation;
+
+        Entry(String name, String key, String path, StorageVolInfo info) {
+            this.name = name;
+            this.key = key;
+            this.path = path;
+            this.type = info.type;
+            this.capacity = info.capacity;
+            this.allocation = info.allocation;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public StorageVolInfo.VirStorageVolType getType() {
+            return type;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public long getAllocation() {
+            return allocation;
+        }
+
+        boolean sameState(Entry o) {
+            return name.equals(o.name) && type == o.type && capacity == o.capacity && allocation == o.allocation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s) capacity:%d allocation:%d", name, path, capacity, allocation);
+        }
+    }
+
+    /**
+     * The changes between two inventories.
+     */
+    public static final class Delta {
+        private final List<Entry> added = new ArrayList<Entry>();
+        private final List<Entry> removed = new ArrayList<Entry>();
+        private final List<Entry> changed = new ArrayList<Entry>();
+
+        public List<Entry> getAdded() {
+            return Collections.unmodifiableList(added);
+        }
+
+        /**
+         * Returns the previous state of the removed volumes.
+         */
+        public List<Entry> getRemoved() {
+            return Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * Returns the new state of volumes whose name, size or allocation
+         * changed.
+         */
+        public List<Entry> getChanged() {
+            return Collections.unmodifiableList(changed);
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("added:%d removed:%d changed:%d", added.size(), removed.size(), changed.size());
+        }
+    }
+
+    /**
+     * The volumes handled by a single task. They are freed by the task, or
+     * by {@link #refresh} if the task never runs.
+     */
+    private static final class Batch {
+        final StorageVol[] vols;
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        Batch(StorageVol[] vols) {
+            this.vols = vols;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void free(int from) {
+            for (int i = from; i < vols.length; i++) {
+                try {
+                    vols[i].free();
+                } catch (LibvirtException e) {
+                    // nothing left to do about it
+                }
+            }
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-inventory-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    private final StoragePool pool;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private volatile int batchSize = 256;
+    private volatile boolean refreshPool;
+    private volatile boolean refetchInfo = true;
+
+    // keys of volumes whose information is fetched on the next refresh
+    private final Set<String> invalid = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // the current inventory by key, replaced as a whole on refresh
+    private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+    /**
+     * Creates an inventory using 8 threads owned by the inventory.
+     */
+    public StorageVolInventory(StoragePool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * Creates an inventory.
+     *
+     * @param pool     the pool
+     * @param executor the executor fetching volume information, {@code null}
+     *                 to use 8 threads owned by the inventory
+     */
+    public StorageVolInventory(StoragePool pool, ExecutorService executor) {
+        this.pool = pool;
+        this.ownExecutor = executor == null;
+        this.executor = executor != null ? executor : Executors.newFixedThreadPool(8, threadFactory);
+    }
+
+    /**
+     * Sets the number of volumes handled by a single task. Default is 256.
+     */
+    public StorageVolInventory setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batch size must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets whether the pool is asked to rescan its volumes, see
+     * {@link StoragePool#refresh}, before listing them. Default is
+     * {@code false}.
+     */
+    public StorageVolInventory setRefreshPool(boolean refreshPool) {
+        this.refreshPool = refreshPool;
+        return this;
+    }
+
+    /**
+     * Sets whether the information of volumes seen before is fetched again
+     * on each refresh. Default is {@code true}.
+     * <p>
+     * If {@code false}, known volumes keep their entries until they are
+     * removed or passed to {@link #invalidate}, so changes of their size
+     * or allocation are not reported otherwise.
+     */
+    public StorageVolInventory setRefetchInfo(boolean refetchInfo) {
+        this.refetchInfo = refetchInfo;
+        return this;
+    }
+
+    /**
+     * Fetches the information of the volume with the given key again on
+     * the next refresh, e.g. after resizing it. Only needed if
+     * {@link #setRefetchInfo refetching} is disabled.
+     */
+    public void invalidate(String key) {
+        invalid.add(key);
+    }
+
+    /**
+     * Updates the inventory.
+     *
+     * @return the changes since the previous refresh; all volumes are
+     *         added on the first refresh
+     * @throws LibvirtException if listing the volumes or fetching their
+     *         information fails
+     * @throws InterruptedException if interrupted while waiting for the
+     *         information
+     */
+    public synchronized Delta refresh() throws LibvirtException, InterruptedException {
+        if (refreshPool) pool.refresh(0);
+
+        final Map<String, Entry> old = entries;
+        // taken before listing, so that later invalidations are kept
+        final Set<String> refetch = refetchInfo ? null : new HashSet<String>(invalid);
+        StorageVol[] vols = pool.listAllVolumes();
+
+        List<Batch> batches = new ArrayList<Batch>();
+        for (int i = 0; i < vols.length; i += batchSize) {
+            StorageVol[] b = new StorageVol[Math.min(batchSize, vols.length - i)];
+            System.arraycopy(vols, i, b, 0, b.length);
+            batches.add(new Batch(b));
+        }
+
+        List<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>();
+        try {
+            for (final Batch batch: batches) {
+                futures.add(executor.submit(new Callable<List<Entry>>() {
+                        @Override
+                        public List<Entry> call() throws LibvirtException {
+                            return fetch(batch, old, refetch);
+                        }
+                    }));
+            }
+
+            Map<String, Entry> current = new LinkedHashMap<String, Entry>(vols.length * 2);
+            for (Future<List<Entry>> f: futures) {
+                for (Entry e: f.get()) {
+                    current.put(e.key, e);
+                }
+            }
+
+            Delta delta = new Delta();
+            for (Entry e: current.values()) {
+                Entry o = old.get(e.key);
+                if (o == null) {
+                    delta.added.add(e);
+                } else if (!e.sameState(o)) {
+                    delta.changed.add(e);
+                }
+            }
+            for (Entry o: old.values()) {
+                if (!current.containsKey(o.key)) delta.removed.add(o);
+            }
+
+            entries = Collections.unmodifiableMap(current);
+            if (refetch != null) invalid.removeAll(refetch);
+            return delta;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LibvirtException) throw (LibvirtException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<List<Entry>> f: futures) {
+                f.cancel(false);
+            }
+            // batches cancelled or not submitted after a failure
+            for (Batch b: batches) {
+                if (b.claim()) b.free(0);
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of a batch of volumes.
+     *
+     * @param refetch the keys of known volumes to fetch again, or
+     *                {@code null} to fetch all
+     */
+    private static List<Entry> fetch(Batch batch, Map<String, Entry> old, Set<String> refetch) throws LibvirtException {
+        if (!batch.claim()) return Collections.emptyList();
+
+        List<Entry> result = new ArrayList<Entry>(batch.vols.length);
+        int i = 0;
+        try {
+            for (; i < batch.vols.length; i++) {
+                StorageVol vol = batch.vols[i];
+                try {
+                    String key = vol.getKey();
+                    Entry prev = old.get(key);
+                    if (prev != null && refetch != null && !refetch.contains(key)) {
+                        result.add(prev);
+                        continue;
+                    }
+                    String path = prev != null ? prev.path : vol.getPath();
+                    result.add(new Entry(vol.getName(), key, path, vol.getInfo()));
+                } catch (LibvirtException e) {
+                    // the volume was deleted after it was listed
+                    if (e.getError().getCode() != Error.ErrorNumber.VIR_ERR_NO_STORAGE_VOL) throw e;
+                } finally {
+                    vol.free();
+                }
+            }
+        } finally {
+            // the volumes not reached after a failure
+            batch.free(i + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the volumes as of the last refresh.
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns the volume with the given key as of the last refresh, or
+     * {@code null}.
+     */
+    public Entry getEntry(String key) {
+        return entries.get(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Releases the threads owned by the inventory.
+     */
+    public void close() {
+        if (ownExecutor) executor.shutdown();
+    }
+}
@@ -0,0 +1,311 @@
+package org.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the contents of storage volumes to and from files, using
+ * {@link StorageVol#download} and {@link StorageVol#upload}.
+ * <p>
+ * A transfer may be restricted to a range of the volume given by an
+ * offset and a length, so interrupted transfers can be resumed, may be
+ * limited to a maximum bandwidth and reports its progress to a listener.
+ * An interrupted transfer aborts the stream and throws
+ * {@link InterruptedIOException}.
+ * <p>
+ * Sparse transfers only move allocated data: holes of the volume are
+ * skipped in the downloaded file, and blocks of zeros of an uploaded file
+ * are sent as holes. The bandwidth limit applies to data only.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * new StorageVolTransfer()
+ *     .setBandwidth(100 * 1024 * 1024)
+ *     .setProgressListener(listener)
+ *     .download(vol, new File("disk.img"), true);
+ * }</pre>
+ * <p>
+ * Instances may be reused, but not for concurrent transfers.
+ */
+public final class StorageVolTransfer {
+
+    /**
+     * Receives progress reports of a transfer.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each chunk of data has been transferred.
+         *
+         * @param transferred the number of bytes transferred so far
+         * @param total       the total number of bytes to transfer, or -1
+         *                    if unknown
+         */
+        void onProgress(long transferred, long total);
+    }
+
+    private long offset;
+    private long length;
+    private long bandwidth;
+    private ProgressListener listener;
+    private boolean sparse;
+    private ByteBuffer buffer;
+
+    /**
+     * Sets the position in the volume the transfer starts at. Default is
+     * 0.
+     */
+    public StorageVolTransfer setOffset(long offset) {
+        if (offset < 0) throw new IllegalArgumentException("negative offset");
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Sets the number of bytes to transfer, 0 to transfer up to the end of
+     * the volume resp. the file. Default is 0.
+     */
+    public StorageVolTransfer setLength(long length) {
+        if (length < 0) throw new IllegalArgumentException("negative length");
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * Limits the bandwidth of the transfer.
+     *
+     * @param bytesPerSecond the maximum bandwidth, 0 for unlimited
+     */
+    public StorageVolTransfer setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("negative bandwidth");
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Enables sparse transfers, see {@link StorageVol.DownloadFlags#SPARSE_STREAM}.
+     * Default is {@code false}.
+     */
+    public StorageVolTransfer setSparse(boolean sparse) {
+        this.sparse = sparse;
+        return this;
+    }
+
+    public StorageVolTransfer setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    private ByteBuffer buffer() {
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(Stream.TRANSFER_BUFFER_SIZE);
+        buffer.clear();
+        // keep chunks small enough for the bandwidth limit to be smooth
+        if (bandwidth > 0 && bandwidth < buffer.capacity()) {
+            buffer.limit((int) Math.max(bandwidth / 4, 4096));
+        }
+        return buffer;
+    }
+
+    /**
+     * Sleeps as long as needed to keep the given amount of data within
+     * the bandwidth limit.
+     */
+    private void throttle(long start, long transferred) throws InterruptedIOException {
+        if (bandwidth == 0) return;
+
+        long due = start + TimeUnit.SECONDS.toNanos(1) * transferred / bandwidth;
+        long wait = due - System.nanoTime();
+        try {
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void progress(long transferred, long total) {
+        if (listener != null) listener.onProgress(transferred, total);
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Downloads the volume to a file.
+     *
+     * @param vol    the volume
+     * @param file   the file to write to
+     * @param resume if {@code true}, append to the file and continue the
+     *               download at the offset given by its size plus the
+     *               configured offset; otherwise the file is truncated
+     * @return the number of bytes transferred
+     * @throws LibvirtException if the download cannot be started
+     * @throws IOException if the transfer fails
+     */
+    public long download(StorageVol vol, File file, boolean resume) throws LibvirtException, IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel out = raf.getChannel();
+            long start = offset;
+            long len = length;
+            if (resume) {
+                long done = out.size();
+                if (len > 0 && done >= len) return 0;
+                offset += done;
+                if (len > 0) length -= done;
+                out.position(done);
+            } else {
+                out.truncate(0);
+            }
+            try {
+                return download(vol, out);
+            } finally {
+                offset = start;
+                length = len;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Downloads the volume to the given channel, starting at its current
+     * position.
+     *
+     * @return the number of bytes transferred
+     * @throws LibvirtException if the download cannot be started
+     * @throws IOException if the transfer fails
+     */
+    public long download(StorageVol vol, FileChannel out) throws LibvirtException, IOException {
+        long total = length;
+        if (total == 0) total = Math.max(vol.getInfo().capacity - offset, 0);
+
+        Stream stream = vol.getConnect().streamNew(0);
+        try {
+            vol.download(stream, offset, length, sparse ? StorageVol.DownloadFlags.SPARSE_STREAM : 0);
+
+            ByteBuffer buf = buffer();
+            int limit = buf.limit();
+            long start = System.nanoTime();
+            long pos = out.position();
+            long data = 0;
+            try {
+                while (true) {
+                    if (sparse) {
+                        long n = stream.receiveSparse(buf, out);
+                        if (n == -1) break;
+                        data += n;
+                    } else {
+                        if (stream.read(buf) == -1) break;
+                        buf.flip();
+                        data += buf.remaining();
+                        while (buf.hasRemaining()) {
+                            out.write(buf);
+                        }
+                    }
+                    buf.clear().limit(limit);
+
+                    progress(out.position() - pos, total);
+                    throttle(start, data);
+                    checkInterrupted();
+                }
+            } catch (IOException e) {
+                stream.abort();
+                throw e;
+            } catch (LibvirtException e) {
+                stream.abort();
+                throw e;
+            }
+            return out.position() - pos;
+        } finally {
+            stream.free();
+        }
+    }
+
+    /**
+     * Uploads a file to the volume.
+     *
+     * @param vol  the volume
+     * @param file the file to read from, starting at the configured
+     *             offset, so a resumed upload continues where both the
+     *             file and the volume left off
+     * @return the number of bytes transferred
+     * @throws LibvirtException if the upload cannot be started or
+     *         finished
+     * @throws IOException if the transfer fails
+     */
+    public long upload(StorageVol vol, File file) throws LibvirtException, IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel in = raf.getChannel();
+            in.position(offset);
+            return upload(vol, in);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Uploads data read from the given channel, starting at its current
+     * position, to the volume.
+     *
+     * @return the number of bytes transferred
+     * @throws LibvirtException if the upload cannot be started or
+     *         finished
+     * @throws IOException if the transfer fails
+     */
+    public long upload(StorageVol vol, FileChannel in) throws LibvirtException, IOException {
+        long total = Math.max(in.size() - in.position(), 0);
+        if (length > 0) total = Math.min(total, length);
+
+        Stream stream = vol.getConnect().streamNew(0);
+        try {
+            vol.upload(stream, offset, total, sparse ? StorageVol.UploadFlags.SPARSE_STREAM : 0);
+
+            ByteBuffer buf = buffer();
+            int limit = buf.limit();
+            long start = System.nanoTime();
+            long transferred = 0;
+            long data = 0;
+            try {
+                while (transferred < total) {
+                    if (total - transferred < limit) buf.limit((int) (total - transferred));
+                    if (in.read(buf) == -1) break;
+                    buf.flip();
+                    transferred += buf.remaining();
+                    if (sparse) {
+                        data += stream.sendSparse(buf);
+                    } else {
+                        data += buf.remaining();
+                        stream.write(buf);
+                    }
+                    buf.clear().limit(limit);
+
+                    progress(transferred, total);
+                    throttle(start, data);
+                    checkInterrupted();
+                }
+                if (sparse) stream.flushHole();
+            } catch (IOException e) {
+                stream.abort();
+                throw e;
+            } catch (LibvirtException e) {
+                stream.abort();
+                throw e;
+            }
+            stream.finish();
+            return transferred;
+        } finally {
+            stream.free();
+        }
+    }
+}
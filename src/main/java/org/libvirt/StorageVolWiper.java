@@ -0,0 +1,491 @@
+package org.libvirt;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wipes storage volumes in the background.
+ * <p>
+ * Zeroing wipes of raw volumes are done by uploading zeros to the
+ * volume, see {@link StorageVol#upload}, one chunk at a time. Chunks of
+ * all running wipes are written by a small number of threads and share
+ * an I/O budget, so many volumes can be wiped in parallel without
+ * holding a thread per volume and without saturating the storage. Their
+ * progress is reported after each chunk. Note that every byte is sent
+ * over the connection, and that sparse files end up fully allocated.
+ * <p>
+ * Volumes in other formats, e.g. qcow2, are never uploaded to, as that
+ * would overwrite their metadata and allocate them fully. They are
+ * wiped inside libvirt like all other algorithms, see
+ * {@link StorageVol#wipe(StorageVol.WipeAlgorithm)}, which blocks a
+ * thread per wipe, reports no progress and is not subject to the I/O
+ * budget. Such wipes only count towards the number of concurrent wipes.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * StorageVolWiper wiper = new StorageVolWiper()
+ *     .setConcurrency(16)
+ *     .setBandwidth(200 * 1024 * 1024);
+ * for (StorageVol vol: pool.listAllVolumes()) {
+ *     wiper.submit(vol, StorageVol.WipeAlgorithm.ZERO);
+ * }
+ * wiper.shutdown();
+ * wiper.awaitTermination(1, TimeUnit.DAYS);
+ * }</pre>
+ */
+public final class StorageVolWiper {
+
+    /**
+     * Receives notifications about wipes.
+     * <p>
+     * Listeners are invoked from the wiper's threads and must return
+     * quickly.
+     */
+    public static interface Listener {
+        /**
+         * Called after each chunk of an uploading wipe has been written.
+         */
+        void onProgress(Wipe wipe, long written, long total);
+
+        void onFinished(Wipe wipe);
+    }
+
+    public static enum State {
+        /** waiting for a free slot */
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        /** cancelled by calling {@link Wipe#cancel} */
+        CANCELLED
+    }
+
+    /**
+     * A wipe scheduled by the wiper.
+     */
+    public final class Wipe {
+        private final StorageVol vol;
+        private final StorageVol.WipeAlgorithm algorithm;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile State state = State.QUEUED;
+        private volatile boolean cancelled;
+        // whether the wipe runs inside libvirt, guarded by the wiper
+        private volatile boolean inLibvirt;
+        private boolean started;
+        private volatile long written;
+        private volatile long total = -1;
+        private volatile Throwable error;
+
+        // only accessed by the thread writing the next chunk
+        private Stream stream;
+
+        Wipe(StorageVol vol, StorageVol.WipeAlgorithm algorithm) {
+            this.vol = vol;
+            this.algorithm = algorithm;
+            this.inLibvirt = algorithm != StorageVol.WipeAlgorithm.ZERO;
+        }
+
+        public StorageVol getVolume() {
+            return vol;
+        }
+
+        public StorageVol.WipeAlgorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Returns the number of bytes overwritten so far, or -1 if the
+         * wipe runs inside libvirt and has not completed yet.
+         */
+        public long getWritten() {
+            return !inLibvirt || state == State.COMPLETED ? written : -1;
+        }
+
+        /**
+         * Returns the capacity of the volume, or -1 if the wipe has not
+         * started yet.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the exception which failed the wipe.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits until the wipe has finished.
+         *
+         * @return the final state
+         */
+        public State await() throws InterruptedException {
+            done.await();
+            return state;
+        }
+
+        /**
+         * Waits until the wipe has finished or the timeout expires.
+         *
+         * @return {@code true} if the wipe has finished
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        /**
+         * Cancels the wipe. An uploading wipe stops after the current
+         * chunk, leaving the volume partially overwritten; a wipe running
+         * inside libvirt cannot be cancelled.
+         *
+         * @return {@code false} if the wipe cannot be cancelled or has
+         *         already finished
+         */
+        public boolean cancel() {
+            synchronized (StorageVolWiper.this) {
+                if (isDone()) return false;
+                if (state == State.QUEUED) {
+                    queue.remove(this);
+                    finish(State.CANCELLED);
+                    return true;
+                }
+                if (inLibvirt) return false;
+                cancelled = true;
+                return true;
+            }
+        }
+
+        /**
+         * Starts the wipe on one of the wiper's threads.
+         */
+        void start() {
+            if (!inLibvirt) {
+                workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            open();
+                        }
+                    });
+            } else {
+                startNative();
+            }
+        }
+
+        private void startNative() {
+            natives.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        wipeNative();
+                    }
+                });
+        }
+
+        private void wipeNative() {
+            try {
+                if (total < 0) total = vol.getInfo().capacity;
+                vol.wipe(algorithm);
+                written = total;
+                finish(State.COMPLETED);
+            } catch (Throwable e) {
+                error = e;
+                finish(State.FAILED);
+            }
+        }
+
+        /**
+         * Starts uploading zeros, or hands a volume which must not be
+         * uploaded to over to libvirt.
+         */
+        private void open() {
+            try {
+                StorageVolInfo info = vol.getInfo();
+                total = info.capacity;
+                String format = LinkedCloneProvisioner.parseVolume(vol.getXMLDesc(0)).format;
+                if (!uploadsZeros(info.type, format)) {
+                    boolean cancel;
+                    synchronized (StorageVolWiper.this) {
+                        cancel = cancelled;
+                        if (!cancel) inLibvirt = true;
+                    }
+                    if (cancel) {
+                        finish(State.CANCELLED);
+                    } else {
+                        startNative();
+                    }
+                    return;
+                }
+                stream = vol.getConnect().streamNew(0);
+                vol.upload(stream, 0, total, 0);
+                step();
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Writes the next chunk, or finishes the upload, and schedules
+         * the next step within the I/O budget.
+         */
+        private void step() {
+            try {
+                if (cancelled) {
+                    stream.abort();
+                    close();
+                    finish(State.CANCELLED);
+                    return;
+                }
+                long n = Math.min(chunkSize, total - written);
+                if (n == 0) {
+                    stream.finish();
+                    close();
+                    finish(State.COMPLETED);
+                    return;
+                }
+                ByteBuffer buf = zeros.duplicate();
+                buf.limit((int) n);
+                stream.write(buf);
+                written += n;
+                Listener l = listener;
+                if (l != null) l.onProgress(this, written, total);
+
+                long delay = reserve(Math.min(chunkSize, total - written));
+                workers.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            step();
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable e) {
+            error = e;
+            if (stream != null) {
+                try {
+                    stream.abort();
+                } catch (LibvirtException e2) {
+                    // report the original error
+                }
+                close();
+            }
+            finish(State.FAILED);
+        }
+
+        private void close() {
+            try {
+                stream.free();
+            } catch (LibvirtException e) {
+                // ignore
+            }
+            stream = null;
+        }
+
+        private void finish(State s) {
+            state = s;
+            done.countDown();
+            Listener l = listener;
+            if (l != null) l.onFinished(this);
+            finished(this);
+        }
+
+        @Override
+        public String toString() {
+            return vol + " (" + algorithm + "): " + state;
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "libvirt-wipe-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final ByteBuffer zeros = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+    private final ScheduledExecutorService workers;
+    private final ExecutorService natives = Executors.newCachedThreadPool(threadFactory);
+
+    private final LinkedList<Wipe> queue = new LinkedList<Wipe>();
+    private int running;
+    private int concurrency = 4;
+    private boolean shutdown;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    // the I/O budget in bytes per second, and when it allows the next
+    // chunk to be written; guarded by budgetLock
+    private final Object budgetLock = new Object();
+    private long bandwidth;
+    private long nextSlot;
+
+    private volatile int chunkSize = CHUNK_SIZE;
+    private volatile Listener listener;
+
+    /**
+     * Creates a wiper writing zeros with 2 threads.
+     */
+    public StorageVolWiper() {
+        this(2);
+    }
+
+    /**
+     * Creates a wiper.
+     *
+     * @param threads the number of threads writing the chunks of all
+     *                uploading wipes
+     */
+    public StorageVolWiper(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("number of threads must be positive");
+        workers = Executors.newScheduledThreadPool(threads, threadFactory);
+    }
+
+    /**
+     * Sets the maximum number of wipes running at a time, 4 by default.
+     */
+    public synchronized StorageVolWiper setConcurrency(int n) {
+        if (n < 1) throw new IllegalArgumentException("concurrency must be positive");
+        concurrency = n;
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Sets the I/O budget shared by all uploading wipes.
+     *
+     * @param bytesPerSecond the maximum total write rate, 0 (the default)
+     *                       for unlimited
+     */
+    public StorageVolWiper setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("negative bandwidth");
+        synchronized (budgetLock) {
+            bandwidth = bytesPerSecond;
+            nextSlot = System.nanoTime();
+        }
+        // keep chunks small enough for the budget to be smooth
+        chunkSize = bytesPerSecond == 0 ? CHUNK_SIZE
+            : (int) Math.max(64 * 1024, Math.min(CHUNK_SIZE, bytesPerSecond / 10));
+        return this;
+    }
+
+    public StorageVolWiper setListener(Listener l) {
+        listener = l;
+        return this;
+    }
+
+    /**
+     * Returns whether a volume of the given type and format is zeroed by
+     * uploading zeros: raw volumes, and block devices without format.
+     */
+    static boolean uploadsZeros(StorageVolInfo.VirStorageVolType type, String format) {
+        if (format == null) return type == StorageVolInfo.VirStorageVolType.VIR_STORAGE_VOL_BLOCK;
+        return format.equals("raw");
+    }
+
+    /**
+     * Reserves the budget for writing the given number of bytes.
+     *
+     * @return the time in nanoseconds until the bytes may be written
+     */
+    long reserve(long bytes) {
+        synchronized (budgetLock) {
+            if (bandwidth == 0) return 0;
+            long now = System.nanoTime();
+            long start = nextSlot - now > 0 ? nextSlot : now;
+            nextSlot = start + TimeUnit.SECONDS.toNanos(1) * bytes / bandwidth;
+            return start - now;
+        }
+    }
+
+    /**
+     * Schedules a wipe of the given volume.
+     *
+     * @return the wipe
+     */
+    public synchronized Wipe submit(StorageVol vol, StorageVol.WipeAlgorithm algorithm) {
+        if (shutdown) throw new IllegalStateException("wiper has been shut down");
+        Wipe w = new Wipe(vol, algorithm);
+        queue.add(w);
+        dispatch();
+        return w;
+    }
+
+    /**
+     * Starts queued wipes while there are free slots.
+     */
+    private void dispatch() {
+        for (Iterator<Wipe> it = queue.iterator(); it.hasNext() && running < concurrency;) {
+            Wipe w = it.next();
+            it.remove();
+            running++;
+            w.started = true;
+            w.state = State.RUNNING;
+            w.start();
+        }
+    }
+
+    private synchronized void finished(Wipe w) {
+        if (w.started) running--;
+        dispatch();
+        if (shutdown) terminateIfIdle();
+    }
+
+    private void terminateIfIdle() {
+        if (queue.isEmpty() && running == 0) {
+            workers.shutdown();
+            natives.shutdown();
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Returns the number of wipes waiting for a free slot.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting new wipes. Queued and running wipes are completed.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        terminateIfIdle();
+    }
+
+    /**
+     * Waits until all wipes have finished after {@link #shutdown}.
+     *
+     * @return {@code true} if all wipes have finished
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+}
@@ -3,14 +3,29 @@ package org.libvirt;
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.libvirt.jna.Libvirt;
 import org.libvirt.jna.SizeT;
 import org.libvirt.jna.StreamPointer;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.LongByReference;
 import static org.libvirt.Library.libvirt;
 import static org.libvirt.ErrorHandler.processError;
 
@@ -39,11 +54,123 @@ import static org.libvirt.ErrorHandler.processError;
  * convert it using the {@link java.nio.channels.Channels#newInputStream
  *  Channels.newInputStream} and {@link java.nio.channels.Channels#newOutputStream
  *  Channels.newOutputStream} respectively.
+ * <p>
+ * Streams created with {@link #VIR_STREAM_NONBLOCK} never block. Like
+ * a non-blocking {@link java.nio.channels.SocketChannel}, {@link #read}
+ * then returns 0 and {@link #write} returns early when no data can be
+ * transferred. Alternatively {@link #readAsync readAsync} and
+ * {@link #writeAsync writeAsync} queue transfers which are carried out by
+ * the libvirt event loop as soon as the stream is ready, so a single
+ * thread running {@link Library#runEventLoop} serves any number of
+ * streams:
+ *
+ * <pre>
+ * {@code
+ * Stream str = conn.streamNew(Stream.VIR_STREAM_NONBLOCK);
+ * domain.screenshot(str, 0);
+ *
+ * str.readAsync(buf, new Stream.CompletionHandler<Integer>() {
+ *     public void completed(Integer n) {
+ *         ... // consume the data, call readAsync again until n is -1
+ *     }
+ *     public void failed(Throwable e) { ... }
+ * });}</pre>
  */
 public class Stream implements ByteChannel {
 
     public static int VIR_STREAM_NONBLOCK = (1 << 0);
 
+    /**
+     * Flags for receiving data.
+     */
+    public static final class RecvFlags {
+        /**
+         * Stop at a hole of a sparse stream instead of returning it as
+         * zeros; {@code receive} then returns -3 and the size of the hole
+         * can be fetched by {@link #receiveHole}.
+         */
+        public static final int STOP_AT_HOLE = (1 << 0);
+    }
+
+    /**
+     * The granularity at which zero data is sent as a hole by
+     * {@link #sparseTransferFrom}.
+     */
+    static final int HOLE_BLOCK_SIZE = 4096;
+
+    /**
+     * The size of the buffers used by {@link #transferTo} and
+     * {@link #transferFrom}, matching the maximum payload of a libvirt
+     * stream message.
+     */
+    static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+
+    private static final SizeT TRANSFER_BUFFER_SIZE_T = new SizeT(TRANSFER_BUFFER_SIZE);
+
+    // direct buffers shared by all streams, so transfers allocate no memory
+    private static final LinkedBlockingQueue<ByteBuffer> transferBuffers = new LinkedBlockingQueue<ByteBuffer>(16);
+
+    /**
+     * Events reported by the callback registered with
+     * {@link #addCallback}.
+     */
+    public static final class EventType {
+        public static final int READABLE = (1 << 0);
+        public static final int WRITABLE = (1 << 1);
+        public static final int ERROR    = (1 << 2);
+        public static final int HANGUP   = (1 << 3);
+    }
+
+    /**
+     * Consumes the data received by {@link Stream#receiveAll(Sink)}.
+     */
+    public interface Sink {
+        /**
+         * Consumes a chunk of data. A sink consuming only part of the
+         * chunk is called again with the remainder.
+         *
+         * @param data a direct view of the native chunk, which is only
+         *             valid during the call and must not be kept
+         * @throws IOException to abort the transfer
+         */
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Provides the data sent by {@link Stream#sendAll(Source)}.
+     */
+    public interface Source {
+        /**
+         * Fills the given buffer with the next chunk of data, blocking
+         * until at least one byte is available. Non-blocking sources
+         * which have no data yet are not supported, returning 0 aborts
+         * the transfer.
+         *
+         * @param data a direct view of the native buffer, which is only
+         *             valid during the call and must not be kept
+         * @return the number of bytes put into the buffer, or -1 if there
+         *         is no more data
+         * @throws IOException to abort the transfer
+         */
+        int read(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * A handler for the result of an asynchronous operation.
+     * <p>
+     * Handlers are called by the thread completing the operation, usually
+     * the thread running the libvirt event loop, and must not block. No
+     * lock of the stream is held while they run, so they may start
+     * further operations.
+     *
+     * @param <V> the result type
+     */
+    public interface CompletionHandler<V> {
+        void completed(V result);
+
+        void failed(Throwable exc);
+    }
+
     /**
      * the native virStreamPtr.
      */
@@ -104,6 +231,16 @@ public class Stream implements ByteChannel {
         state |= EOF;
     }
 
+    // zero data read by sendSparse but not yet sent as a hole
+    private long pendingHole;
+
+    // pending asynchronous operations, guarded by asyncLock
+    private final Object asyncLock = new Object();
+    private final ArrayDeque<AsyncOp> asyncOps = new ArrayDeque<AsyncOp>();
+    // keeps the native callback reachable while it is registered
+    private Libvirt.VirStreamEventCallback asyncCallback;
+    private int asyncEvents;
+
     Stream(Connect virConnect, StreamPointer VSP) {
         this.virConnect = virConnect;
         this.VSP = VSP;
@@ -116,6 +253,7 @@ public class Stream implements ByteChannel {
      * @return <em>ignore</em> (always 0)
      */
     public int abort() throws LibvirtException {
+        cancelAsync();
         int returnValue = processError(libvirt.virStreamAbort(VSP));
         this.state = CLOSED;
         return returnValue;
@@ -184,7 +322,8 @@ public class Stream implements ByteChannel {
      *
      * @param data
      *            buffer to put the data into
-     * @return the number of bytes read, -1 on error, -2 if the buffer is empty
+     * @return the number of bytes read, 0 at the end of the stream, -2 if
+     *         the stream is non-blocking and no data is available
      * @throws LibvirtException
      */
     public int receive(byte[] data) throws LibvirtException {
@@ -192,11 +331,66 @@ public class Stream implements ByteChannel {
     }
 
     protected int receive(ByteBuffer buffer) throws LibvirtException {
-        int returnValue = processError(libvirt.virStreamRecv(VSP, buffer, new SizeT(buffer.remaining())));
-        buffer.position(buffer.position() + returnValue);
+        int returnValue = processError(libvirt.virStreamRecv(VSP, buffer, size(buffer)));
+        if (returnValue > 0) buffer.position(buffer.position() + returnValue);
+        return returnValue;
+    }
+
+    /**
+     * Receives data from the stream into the buffer provided.
+     *
+     * @param flags
+     *            see {@link RecvFlags}
+     * @return the number of bytes read, 0 at the end of the stream, -2 if
+     *         the stream is non-blocking and no data is available, -3 if
+     *         {@link RecvFlags#STOP_AT_HOLE} was given and the stream is
+     *         at a hole
+     * @throws LibvirtException
+     */
+    protected int receive(ByteBuffer buffer, int flags) throws LibvirtException {
+        int returnValue = processError(libvirt.virStreamRecvFlags(VSP, buffer, size(buffer), flags));
+        if (returnValue > 0) buffer.position(buffer.position() + returnValue);
         return returnValue;
     }
 
+    /**
+     * Skips the hole at the current position of a sparse stream.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-stream.html#virStreamRecvHole">virStreamRecvHole</a>
+     * @param flags
+     *            future flags, use 0 for now
+     * @return the size of the hole in bytes
+     * @throws LibvirtException
+     */
+    public long receiveHole(int flags) throws LibvirtException {
+        LongByReference length = new LongByReference();
+        processError(libvirt.virStreamRecvHole(VSP, length, flags));
+        return length.getValue();
+    }
+
+    /**
+     * Sends a hole to a sparse stream, i.e. the given number of bytes are
+     * skipped on the receiving side.
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-stream.html#virStreamSendHole">virStreamSendHole</a>
+     * @param length
+     *            the size of the hole in bytes
+     * @param flags
+     *            0, or 1 (VIR_STREAM_HOLE_RESIZE) to resize the target
+     *            instead of punching the hole
+     * @return <em>ignore</em> (always 0)
+     * @throws LibvirtException
+     */
+    public int sendHole(long length, int flags) throws LibvirtException {
+        return processError(libvirt.virStreamSendHole(VSP, length, flags));
+    }
+
+    /**
+     * Reads data from the stream.
+     *
+     * @return the number of bytes read, -1 at the end of the stream, or 0
+     *         if the stream is non-blocking and no data is available
+     */
     @Override
     public int read(ByteBuffer buffer) throws IOException {
         if (!isOpen()) throw new ClosedChannelException();
@@ -212,7 +406,7 @@ public class Stream implements ByteChannel {
                 return -1;
 
             case -2:
-                throw new UnsupportedOperationException("non-blocking I/O stream not yet supported");
+                return 0;
 
             default:
                 return ret;
@@ -222,6 +416,13 @@ public class Stream implements ByteChannel {
         }
     }
 
+    /**
+     * Writes data to the stream. Blocking streams write the whole buffer,
+     * non-blocking streams write as much as the stream accepts without
+     * blocking, possibly nothing.
+     *
+     * @return the number of bytes written
+     */
     @Override
     public int write(ByteBuffer buffer) throws IOException {
         if (!isOpen()) throw new ClosedChannelException();
@@ -231,10 +432,7 @@ public class Stream implements ByteChannel {
 
         try {
             while (buffer.hasRemaining()) {
-                int ret = send(buffer);
-
-                if (ret == -2)
-                    throw new UnsupportedOperationException("non-blocking I/O stream not yet supported");
+                if (send(buffer) == -2) break;
             }
             return buffer.position() - pos;
         } catch (LibvirtException e) {
@@ -243,6 +441,7 @@ public class Stream implements ByteChannel {
     }
 
     protected void closeStream() throws LibvirtException {
+        cancelAsync();
         if (isOpen() && !isEOF()) {
             if (isWritable()) finish();
             else if (isReadable()) abort();
@@ -265,7 +464,271 @@ public class Stream implements ByteChannel {
     }
 
     /**
-     * Batch receive method
+     * Returns the number of remaining bytes of the buffer, without
+     * allocating for full transfer buffers.
+     */
+    private static SizeT size(ByteBuffer buffer) {
+        int n = buffer.remaining();
+        return n == TRANSFER_BUFFER_SIZE ? TRANSFER_BUFFER_SIZE_T : new SizeT(n);
+    }
+
+    private static ByteBuffer takeTransferBuffer() {
+        ByteBuffer b = transferBuffers.poll();
+        if (b == null) return ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+        b.clear();
+        return b;
+    }
+
+    private static void returnTransferBuffer(ByteBuffer b) {
+        transferBuffers.offer(b);
+    }
+
+    /**
+     * Receives all remaining data of the stream and writes it to the given
+     * file, starting at the current position of the channel.
+     * <p>
+     * Data is received into pooled direct buffers, which libvirt fills
+     * without an intermediate copy. The stream must be blocking.
+     *
+     * @param out the channel to write to
+     * @return the number of bytes transferred
+     * @throws IOException if receiving or writing fails
+     */
+    public long transferTo(FileChannel out) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        if (!isReadable()) throw new NonReadableChannelException();
+        if (isEOF()) return 0;
+
+        ByteBuffer buf = takeTransferBuffer();
+        long total = 0;
+        try {
+            while (true) {
+                int n = receive(buf);
+                if (n == 0) {
+                    finish();
+                    return total;
+                }
+                if (n == -2) throw new IOException("cannot transfer from a non-blocking stream");
+
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+                total += n;
+            }
+        } catch (LibvirtException e) {
+            throw new IOException("could not read from stream", e);
+        } finally {
+            returnTransferBuffer(buf);
+        }
+    }
+
+    /**
+     * Reads the given file from its current position up to its end and
+     * sends the data to the stream.
+     * <p>
+     * The stream is not finished, call {@link #finish} or {@link #close}
+     * once all data has been sent. The stream must be blocking.
+     *
+     * @param in the channel to read from
+     * @return the number of bytes transferred
+     * @throws IOException if reading or sending fails
+     * @see #transferTo
+     */
+    public long transferFrom(FileChannel in) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        if (!isWritable()) throw new NonWritableChannelException();
+
+        ByteBuffer buf = takeTransferBuffer();
+        long total = 0;
+        try {
+            while (in.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    int n = send(buf);
+                    if (n == -2) throw new IOException("cannot transfer to a non-blocking stream");
+                    total += n;
+                }
+                buf.clear();
+            }
+            return total;
+        } catch (LibvirtException e) {
+            throw new IOException("could not write to stream", e);
+        } finally {
+            returnTransferBuffer(buf);
+        }
+    }
+
+    /**
+     * Receives all remaining data of a sparse stream and writes it to the
+     * given file, starting at the current position of the channel.
+     * <p>
+     * Holes are skipped by seeking, so they become holes of the file if
+     * the file system supports them. The region written to must
+     * therefore not contain data, e.g. because the file has been
+     * truncated. The stream must be blocking and sparse, e.g. opened by
+     * {@link StorageVol#download} with
+     * {@link StorageVol.DownloadFlags#SPARSE_STREAM}.
+     *
+     * @param out the channel to write to
+     * @return the number of bytes transferred, including holes
+     * @throws IOException if receiving or writing fails
+     */
+    public long sparseTransferTo(FileChannel out) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        if (!isReadable()) throw new NonReadableChannelException();
+        if (isEOF()) return 0;
+
+        ByteBuffer buf = takeTransferBuffer();
+        long start = out.position();
+        try {
+            while (receiveSparse(buf, out) != -1) {
+                buf.clear();
+            }
+            return out.position() - start;
+        } catch (LibvirtException e) {
+            throw new IOException("could not read from stream", e);
+        } finally {
+            returnTransferBuffer(buf);
+        }
+    }
+
+    /**
+     * Reads the given file from its current position up to its end and
+     * sends it to a sparse stream, e.g. opened by
+     * {@link StorageVol#upload} with
+     * {@link StorageVol.UploadFlags#SPARSE_STREAM}.
+     * <p>
+     * Java cannot query the holes of a file, so all blocks of
+     * {@value #HOLE_BLOCK_SIZE} bytes consisting of zeros are sent as
+     * holes instead. The stream is not finished, call {@link #finish} or
+     * {@link #close} once all data has been sent.
+     *
+     * @param in the channel to read from
+     * @return the number of bytes transferred, including holes
+     * @throws IOException if reading or sending fails
+     */
+    public long sparseTransferFrom(FileChannel in) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        if (!isWritable()) throw new NonWritableChannelException();
+
+        ByteBuffer buf = takeTransferBuffer();
+        long total = 0;
+        try {
+            while (in.read(buf) != -1) {
+                buf.flip();
+                total += buf.remaining();
+                sendSparse(buf);
+                buf.clear();
+            }
+            flushHole();
+            return total;
+        } catch (LibvirtException e) {
+            throw new IOException("could not write to stream", e);
+        } finally {
+            returnTransferBuffer(buf);
+        }
+    }
+
+    /**
+     * Receives the next chunk of data or hole from a sparse stream and
+     * writes resp. skips it in the given file. At the end of the stream
+     * the file is extended to its full size and the stream finished.
+     *
+     * @return the number of bytes of data written, 0 if a hole was
+     *         skipped, -1 at the end of the stream
+     */
+    long receiveSparse(ByteBuffer buf, FileChannel out) throws LibvirtException, IOException {
+        int n = receive(buf, RecvFlags.STOP_AT_HOLE);
+        switch (n) {
+        case 0:
+            // a trailing hole must still count towards the size of the file
+            if (out.position() > out.size()) {
+                out.write(ByteBuffer.allocate(1), out.position() - 1);
+            }
+            finish();
+            return -1;
+
+        case -2:
+            throw new IOException("cannot transfer from a non-blocking stream");
+
+        case -3:
+            out.position(out.position() + receiveHole(0));
+            return 0;
+
+        default:
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Sends the remaining data of the buffer to a sparse stream, turning
+     * blocks of zeros into holes. Holes are sent lazily, so adjacent holes
+     * are merged; call {@link #flushHole} after the last buffer.
+     *
+     * @return the number of bytes of data sent
+     */
+    long sendSparse(ByteBuffer buf) throws LibvirtException, IOException {
+        int p = buf.position();
+        int end = buf.limit();
+        long sent = 0;
+        while (p < end) {
+            int q = Math.min(p + HOLE_BLOCK_SIZE, end);
+            if (isZero(buf, p, q)) {
+                pendingHole += q - p;
+                p = q;
+                continue;
+            }
+
+            // extend the data up to the next block of zeros
+            while (q < end) {
+                int r = Math.min(q + HOLE_BLOCK_SIZE, end);
+                if (isZero(buf, q, r)) break;
+                q = r;
+            }
+            flushHole();
+
+            ByteBuffer data = buf.duplicate();
+            data.limit(q).position(p);
+            while (data.hasRemaining()) {
+                if (send(data) == -2) throw new IOException("cannot transfer to a non-blocking stream");
+            }
+            sent += q - p;
+            p = q;
+        }
+        buf.position(end);
+        return sent;
+    }
+
+    /**
+     * Sends the hole accumulated by {@link #sendSparse}.
+     */
+    void flushHole() throws LibvirtException {
+        if (pendingHole > 0) {
+            sendHole(pendingHole, 0);
+            pendingHole = 0;
+        }
+    }
+
+    private static boolean isZero(ByteBuffer b, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (b.getLong(i) != 0) return false;
+        }
+        for (; i < to; i++) {
+            if (b.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Batch receive method. The stream must be finished afterwards, see
+     * {@link #finish}.
      *
      * @see <a href="http://www.libvirt.org/html/libvirt-libvirt.html#virStreamRecvAll">virStreamRecvAll</a>
      * @param handler
@@ -277,6 +740,88 @@ public class Stream implements ByteChannel {
         return processError(libvirt.virStreamRecvAll(VSP, handler, null));
     }
 
+    /**
+     * Receives all data of the stream, passing each chunk to the given
+     * sink without copying it, and finishes the stream.
+     * <p>
+     * Usage:
+     * <pre>
+     * {@code
+     * final FileChannel out = ...;
+     * stream.receiveAll(new Stream.Sink() {
+     *     public void write(ByteBuffer data) throws IOException {
+     *         while (data.hasRemaining()) out.write(data);
+     *     }
+     * });}</pre>
+     *
+     * @param sink the sink
+     * @throws LibvirtException if receiving fails
+     * @throws IOException if the sink fails; the stream is aborted
+     */
+    public void receiveAll(final Sink sink) throws LibvirtException, IOException {
+        final Throwable[] failure = new Throwable[1];
+        Libvirt.VirStreamSinkFunc handler = new Libvirt.VirStreamSinkFunc() {
+                @Override
+                public int sinkCallback(StreamPointer virStreamPtr, Pointer data, NativeLong nbytes, Pointer opaque) {
+                    try {
+                        ByteBuffer buf = data.getByteBuffer(0, nbytes.longValue());
+                        while (buf.hasRemaining()) {
+                            int pos = buf.position();
+                            sink.write(buf);
+                            if (buf.position() == pos) throw new IOException("sink did not consume any data");
+                        }
+                        // libvirt advances by the number of bytes consumed
+                        return nbytes.intValue();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                        return -1;
+                    }
+                }
+            };
+        try {
+            receiveAll(handler);
+        } catch (LibvirtException e) {
+            if (failure[0] == null) throw e;
+        }
+        completeAll(failure[0]);
+    }
+
+    /**
+     * Finishes the stream after a batch transfer, or aborts it and
+     * rethrows the exception caught in a callback.
+     */
+    private void completeAll(Throwable e) throws LibvirtException, IOException {
+        if (e == null) {
+            finish();
+            return;
+        }
+        try {
+            abort();
+        } catch (LibvirtException e2) {
+            // report the original error
+        }
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof java.lang.Error) throw (java.lang.Error) e;
+        throw new IOException(e);
+    }
+
+    /**
+     * Batch receive method for sparse streams
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-stream.html#virStreamSparseRecvAll">virStreamSparseRecvAll</a>
+     * @param handler
+     *            the callback handler receiving data
+     * @param holeHandler
+     *            the callback handler receiving holes
+     * @return <em>ignore</em> (always 0)
+     * @throws LibvirtException
+     */
+    public int sparseReceiveAll(Libvirt.VirStreamSinkFunc handler,
+                                Libvirt.VirStreamSinkHoleFunc holeHandler) throws LibvirtException {
+        return processError(libvirt.virStreamSparseRecvAll(VSP, handler, holeHandler, null));
+    }
+
     /**
      * Remove an event callback from the stream
      *
@@ -293,8 +838,8 @@ public class Stream implements ByteChannel {
      *
      * @param data
      *            the data to write
-     * @return the number of bytes written, -1 on error, -2 if the buffer is
-     *         full
+     * @return the number of bytes written, -2 if the stream is
+     *         non-blocking and cannot accept data
      * @throws LibvirtException
      */
     public int send(byte[] data) throws LibvirtException {
@@ -302,14 +847,14 @@ public class Stream implements ByteChannel {
     }
 
     protected int send(ByteBuffer buffer) throws LibvirtException {
-        SizeT size = new SizeT(buffer.remaining());
-        int returnValue = processError(libvirt.virStreamSend(VSP, buffer, size));
-        buffer.position(buffer.position() + returnValue);
+        int returnValue = processError(libvirt.virStreamSend(VSP, buffer, size(buffer)));
+        if (returnValue > 0) buffer.position(buffer.position() + returnValue);
         return returnValue;
     }
 
     /**
-     * Batch send method
+     * Batch send method. The stream must be finished afterwards, see
+     * {@link #finish}.
      *
      * @see <a
      *      href="http://www.libvirt.org/html/libvirt-libvirt.html#virStreamSendAll">Libvirt
@@ -323,6 +868,61 @@ public class Stream implements ByteChannel {
         return processError(libvirt.virStreamSendAll(VSP, handler, null));
     }
 
+    /**
+     * Sends all data provided by the given source, which fills the
+     * native buffers directly, and finishes the stream.
+     *
+     * @param source the source
+     * @throws LibvirtException if sending fails
+     * @throws IOException if the source fails; the stream is aborted
+     * @see #receiveAll(Sink)
+     */
+    public void sendAll(final Source source) throws LibvirtException, IOException {
+        final Throwable[] failure = new Throwable[1];
+        Libvirt.VirStreamSourceFunc handler = new Libvirt.VirStreamSourceFunc() {
+                @Override
+                public int sourceCallback(StreamPointer virStreamPtr, Pointer data, NativeLong nbytes, Pointer opaque) {
+                    try {
+                        ByteBuffer buf = data.getByteBuffer(0, nbytes.longValue());
+                        int n = source.read(buf);
+                        // libvirt takes 0 for the end of the data, so a
+                        // source without data yet must not return it
+                        if (n == 0 && buf.position() == 0) throw new IOException("source returned no data");
+                        return buf.position();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                        return -1;
+                    }
+                }
+            };
+        try {
+            sendAll(handler);
+        } catch (LibvirtException e) {
+            if (failure[0] == null) throw e;
+        }
+        completeAll(failure[0]);
+    }
+
+    /**
+     * Batch send method for sparse streams
+     *
+     * @see <a href="http://www.libvirt.org/html/libvirt-libvirt-stream.html#virStreamSparseSendAll">virStreamSparseSendAll</a>
+     * @param handler
+     *            the callback handler providing data
+     * @param holeHandler
+     *            the callback handler telling whether the source is in a
+     *            hole or in data, and for how long
+     * @param skipHandler
+     *            the callback handler skipping a hole in the source
+     * @return <em>ignore</em> (always 0)
+     * @throws LibvirtException
+     */
+    public int sparseSendAll(Libvirt.VirStreamSourceFunc handler,
+                             Libvirt.VirStreamSourceHoleFunc holeHandler,
+                             Libvirt.VirStreamSourceSkipFunc skipHandler) throws LibvirtException {
+        return processError(libvirt.virStreamSparseSendAll(VSP, handler, holeHandler, skipHandler, null));
+    }
+
     /**
      * Changes the set of events to monitor for a stream.
      *
@@ -335,4 +935,216 @@ public class Stream implements ByteChannel {
     public int updateCallback(int events) throws LibvirtException {
         return processError(libvirt.virStreamEventUpdateCallback(VSP, events));
     }
+
+    /**
+     * Reads data asynchronously.
+     * <p>
+     * The read is carried out by the libvirt event loop as soon as data is
+     * available, so the stream should be non-blocking and the event loop
+     * must be running, see {@link Library#initEventLoop}. Operations are
+     * performed in the order they were requested. The callback used is
+     * registered with libvirt on first use, so {@link #addCallback} must
+     * not be used at the same time.
+     *
+     * @param buffer  the buffer to read into, which must not be accessed
+     *                until the operation has completed
+     * @param handler the handler notified on completion, or {@code null}
+     * @return a future for the number of bytes read, -1 at the end of the
+     *         stream
+     */
+    public Future<Integer> readAsync(ByteBuffer buffer, CompletionHandler<Integer> handler) {
+        if (isOpen() && !isReadable()) throw new NonReadableChannelException();
+        return submit(new AsyncOp(buffer, false, handler));
+    }
+
+    /**
+     * Writes data asynchronously. The operation completes once the whole
+     * buffer has been written.
+     *
+     * @param buffer  the data to write, which must not be accessed until
+     *                the operation has completed
+     * @param handler the handler notified on completion, or {@code null}
+     * @return a future for the number of bytes written
+     * @see #readAsync
+     */
+    public Future<Integer> writeAsync(ByteBuffer buffer, CompletionHandler<Integer> handler) {
+        if (isOpen() && !isWritable()) throw new NonWritableChannelException();
+        return submit(new AsyncOp(buffer, true, handler));
+    }
+
+    private Future<Integer> submit(AsyncOp op) {
+        List<AsyncOp> done = new ArrayList<AsyncOp>();
+        synchronized (asyncLock) {
+            if (!isOpen()) {
+                op.fail(new ClosedChannelException());
+                done.add(op);
+            } else {
+                asyncOps.add(op);
+                // try right away, unless earlier operations are waiting
+                if (asyncOps.size() == 1) runAsync(done);
+            }
+        }
+        notifyHandlers(done);
+        return op;
+    }
+
+    /**
+     * Performs pending operations until the stream would block, then
+     * adjusts the events we are waiting for. Called with asyncLock held;
+     * the finished operations are added to done, whose handlers must be
+     * notified after releasing the lock.
+     */
+    private void runAsync(List<AsyncOp> done) {
+        while (!asyncOps.isEmpty()) {
+            AsyncOp op = asyncOps.peek();
+            if (!op.isDone() && !op.step()) break;
+            done.add(asyncOps.poll());
+        }
+
+        int events = 0;
+        if (!asyncOps.isEmpty()) {
+            events = (isWritable() ? EventType.WRITABLE : EventType.READABLE)
+                | EventType.ERROR | EventType.HANGUP;
+        }
+        if (events == asyncEvents) return;
+
+        try {
+            if (asyncCallback == null) {
+                asyncCallback = new Libvirt.VirStreamEventCallback() {
+                        @Override
+                        public void eventCallback(StreamPointer virStreamPointer, int events, Pointer opaque) {
+                            List<AsyncOp> done = new ArrayList<AsyncOp>();
+                            synchronized (asyncLock) {
+                                runAsync(done);
+                            }
+                            notifyHandlers(done);
+                        }
+                    };
+                addCallback(events, asyncCallback);
+            } else {
+                updateCallback(events);
+            }
+            asyncEvents = events;
+        } catch (LibvirtException e) {
+            failAsync(e, done);
+        }
+    }
+
+    private void failAsync(Throwable e, List<AsyncOp> done) {
+        AsyncOp op;
+        while ((op = asyncOps.poll()) != null) {
+            op.fail(e);
+            done.add(op);
+        }
+    }
+
+    private static void notifyHandlers(List<AsyncOp> done) {
+        for (AsyncOp op: done) {
+            op.notifyHandler();
+        }
+    }
+
+    /**
+     * Fails all pending operations and removes the event callback.
+     */
+    private void cancelAsync() throws LibvirtException {
+        List<AsyncOp> done = new ArrayList<AsyncOp>();
+        try {
+            synchronized (asyncLock) {
+                failAsync(new AsynchronousCloseException(), done);
+                if (asyncCallback != null) {
+                    asyncCallback = null;
+                    asyncEvents = 0;
+                    removeCallback();
+                }
+            }
+        } finally {
+            notifyHandlers(done);
+        }
+    }
+
+    private static final Callable<Integer> NOTHING = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return null;
+            }
+        };
+
+    /**
+     * A pending read or write. The result is set by {@link #step} once
+     * the operation is finished.
+     */
+    private final class AsyncOp extends FutureTask<Integer> {
+        private final ByteBuffer buffer;
+        private final boolean write;
+        private final CompletionHandler<Integer> handler;
+        private int transferred;
+
+        AsyncOp(ByteBuffer buffer, boolean write, CompletionHandler<Integer> handler) {
+            super(NOTHING);
+            this.buffer = buffer;
+            this.write = write;
+            this.handler = handler;
+        }
+
+        /**
+         * Transfers as much data as possible.
+         *
+         * @return false if the operation would block
+         */
+        boolean step() {
+            try {
+                if (write) {
+                    while (buffer.hasRemaining()) {
+                        int n = send(buffer);
+                        if (n == -2) return false;
+                        transferred += n;
+                    }
+                    set(transferred);
+                } else if (isEOF()) {
+                    set(-1);
+                } else {
+                    int n = receive(buffer);
+                    if (n == -2) return false;
+                    if (n == 0) {
+                        finish();
+                        n = -1;
+                    }
+                    set(n);
+                }
+            } catch (Throwable e) {
+                setException(e);
+            }
+            return true;
+        }
+
+        void fail(Throwable e) {
+            setException(e);
+        }
+
+        /**
+         * Passes the result to the handler, if any. Called once the
+         * operation has been removed from the queue, without holding
+         * asyncLock.
+         */
+        void notifyHandler() {
+            if (handler == null) return;
+
+            Integer result;
+            try {
+                result = get();
+            } catch (CancellationException e) {
+                handler.failed(e);
+                return;
+            } catch (ExecutionException e) {
+                handler.failed(e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                // cannot happen, the task is done
+                Thread.currentThread().interrupt();
+                return;
+            }
+            handler.completed(result);
+        }
+    }
 }
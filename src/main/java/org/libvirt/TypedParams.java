@@ -0,0 +1,65 @@
+package org.libvirt;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import static org.libvirt.ErrorHandler.processError;
+import static org.libvirt.Library.libvirt;
+
+/**
+ * A native array of virTypedParameter structures, built using libvirt's
+ * virTypedParamsAdd* helpers, so the structure layout need not be known
+ * on the Java side.
+ * <p>
+ * Instances must be {@link #free freed} after use.
+ */
+final class TypedParams {
+    private final PointerByReference params = new PointerByReference();
+    private final IntByReference nparams = new IntByReference();
+    private final IntByReference maxparams = new IntByReference();
+
+    TypedParams addInt(String name, int value) throws LibvirtException {
+        processError(libvirt.virTypedParamsAddInt(params, nparams, maxparams, name, value));
+        return this;
+    }
+
+    TypedParams addULLong(String name, long value) throws LibvirtException {
+        processError(libvirt.virTypedParamsAddULLong(params, nparams, maxparams, name, value));
+        return this;
+    }
+
+    TypedParams addString(String name, String value) throws LibvirtException {
+        processError(libvirt.virTypedParamsAddString(params, nparams, maxparams, name, value));
+        return this;
+    }
+
+    /**
+     * Adds a parameter which may occur multiple times, once per value.
+     */
+    TypedParams addStringList(String name, String[] values) throws LibvirtException {
+        // the native function expects a NULL terminated list
+        String[] list = new String[values.length + 1];
+        System.arraycopy(values, 0, list, 0, values.length);
+        processError(libvirt.virTypedParamsAddStringList(params, nparams, maxparams, name, list));
+        return this;
+    }
+
+    Pointer getPointer() {
+        return params.getValue();
+    }
+
+    int size() {
+        return nparams.getValue();
+    }
+
+    void free() {
+        Pointer p = params.getValue();
+        if (p != null) {
+            libvirt.virTypedParamsFree(p, nparams.getValue());
+            params.setValue(null);
+            nparams.setValue(0);
+            maxparams.setValue(0);
+        }
+    }
+}
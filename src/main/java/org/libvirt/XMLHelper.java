@@ -0,0 +1,170 @@
+package org.libvirt;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Internal helpers for parsing XML documents returned by libvirt using a
+ * streaming (StAX) parser.
+ */
+final class XMLHelper {
+    private static final XMLInputFactory factory = newFactory();
+
+    private XMLHelper() {}
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        // libvirt never produces DTDs or entity references, so refuse them
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return f;
+    }
+
+    /**
+     * Creates a reader positioned on the root element of the given
+     * document.
+     */
+    static XMLStreamReader createReader(String xml) throws XMLStreamException {
+        XMLStreamReader r = factory.createXMLStreamReader(new StringReader(xml));
+        while (r.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            r.next();
+        }
+        return r;
+    }
+
+    static void close(XMLStreamReader r) {
+        try {
+            r.close();
+        } catch (XMLStreamException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Advances to the next child element of the current element.
+     *
+     * @return {@code true} if the reader is positioned on the start of a
+     *         child element, {@code false} if the end of the current
+     *         element has been reached
+     */
+    static boolean nextChild(XMLStreamReader r) throws XMLStreamException {
+        while (r.hasNext()) {
+            switch (r.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                return true;
+            case XMLStreamConstants.END_ELEMENT:
+                return false;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the element the reader is positioned on, including all its
+     * children. Afterwards the reader is positioned on its end element.
+     */
+    static void skip(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (r.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the trimmed text content of a text-only element.
+     */
+    static String text(XMLStreamReader r) throws XMLStreamException {
+        return r.getElementText().trim();
+    }
+
+    static String attr(XMLStreamReader r, String name) {
+        return r.getAttributeValue(null, name);
+    }
+
+    static int intAttr(XMLStreamReader r, String name, int defaultValue) {
+        String v = r.getAttributeValue(null, name);
+        if (v == null) return defaultValue;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static long longValue(String v, long defaultValue) {
+        if (v == null) return defaultValue;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Converts a scaled value as used by libvirt's XML to kibibytes.
+     *
+     * @param value the value
+     * @param unit  the unit, {@code null} means KiB
+     */
+    static long toKiB(long value, String unit) {
+        if (unit == null) return value;
+
+        String u = unit.trim();
+        if (u.equals("b") || u.equals("bytes")) return value / 1024;
+        if (u.equals("KB")) return value * 1000 / 1024;
+        if (u.equals("k") || u.equals("KiB")) return value;
+        if (u.equals("MB")) return value * 1000000 / 1024;
+        if (u.equals("M") || u.equals("MiB")) return value << 10;
+        if (u.equals("GB")) return value * 1000000000L / 1024;
+        if (u.equals("G") || u.equals("GiB")) return value << 20;
+        if (u.equals("TB")) return value * 1000000000000L / 1024;
+        if (u.equals("T") || u.equals("TiB")) return value << 30;
+
+        throw new IllegalArgumentException("unknown unit: " + unit);
+    }
+
+    /**
+     * Escapes the given string for use in XML attribute values or text.
+     */
+    static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String rep;
+            switch (c) {
+            case '<': rep = "&lt;"; break;
+            case '>': rep = "&gt;"; break;
+            case '&': rep = "&amp;"; break;
+            case '\'': rep = "&apos;"; break;
+            case '"': rep = "&quot;"; break;
+            default: rep = null;
+            }
+            if (rep != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(s.length() + 16);
+                    sb.append(s, 0, i);
+                }
+                sb.append(rep);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+}
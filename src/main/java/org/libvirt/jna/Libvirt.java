@@ -11,6 +11,8 @@ import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
 
 import java.util.Arrays;
 import java.util.List;
@@ -119,17 +121,29 @@ public interface Libvirt extends Library {
      * Stream callbacks
      */
     interface VirStreamSinkFunc extends Callback {
-        int sinkCallback(StreamPointer virStreamPtr, String data, NativeLong nbytes, Pointer opaque) ;
+        int sinkCallback(StreamPointer virStreamPtr, Pointer data, NativeLong nbytes, Pointer opaque) ;
     }
 
     interface VirStreamSourceFunc extends Callback {
-        int sourceCallback(StreamPointer virStreamPtr, String data, NativeLong nbytes, Pointer opaque) ;
+        int sourceCallback(StreamPointer virStreamPtr, Pointer data, NativeLong nbytes, Pointer opaque) ;
     }
 
     interface VirStreamEventCallback extends Callback {
         void eventCallback(StreamPointer virStreamPointer, int events, Pointer opaque) ;
     }
 
+    interface VirStreamSinkHoleFunc extends Callback {
+        int sinkHoleCallback(StreamPointer virStreamPtr, long length, Pointer opaque) ;
+    }
+
+    interface VirStreamSourceHoleFunc extends Callback {
+        int sourceHoleCallback(StreamPointer virStreamPtr, IntByReference inData, LongByReference length, Pointer opaque) ;
+    }
+
+    interface VirStreamSourceSkipFunc extends Callback {
+        int sourceSkipCallback(StreamPointer virStreamPtr, long length, Pointer opaque) ;
+    }
+
     /**
      * Generic Callbacks
      */
@@ -220,6 +234,7 @@ public interface Libvirt extends Library {
     int virConnectGetVersion(ConnectionPointer virConnectPtr, LongByReference hvVer);
     int virConnectListDefinedDomains(ConnectionPointer virConnectPtr, CString[] name, int maxnames);
     int virConnectListDefinedNetworks(ConnectionPointer virConnectPtr, CString[] name, int maxnames);
+    int virConnectListAllStoragePools(ConnectionPointer virConnectPtr, PointerByReference pools, int flags);
     int virConnectListDefinedStoragePools(ConnectionPointer virConnectPtr, CString[] names, int maxnames);
     int virConnectListDefinedInterfaces(ConnectionPointer virConnectPtr, CString[] name, int maxNames);
     int virConnectListDomains(ConnectionPointer virConnectPtr, int[] ids, int maxnames);
@@ -302,11 +317,16 @@ public interface Libvirt extends Library {
     int virDomainGetSecurityLabel(DomainPointer virDomainPtr, SecurityLabel seclabel);
     int virDomainGetUUID(DomainPointer virDomainPtr, byte[] uuidString);
     int virDomainGetUUIDString(DomainPointer virDomainPtr, byte[] uuidString);
+    int virDomainGetEmulatorPinInfo(DomainPointer virDomainPtr, byte[] cpumap, int maplen, int flags);
+    int virDomainGetVcpuPinInfo(DomainPointer virDomainPtr, int ncpumaps, byte[] cpumaps, int maplen, int flags);
     int virDomainGetVcpus(DomainPointer virDomainPtr, virVcpuInfo[] info, int maxInfo, byte[] cpumaps, int maplen);
+    int virDomainGetVcpusFlags(DomainPointer virDomainPtr, int flags);
     CString virDomainGetXMLDesc(DomainPointer virDomainPtr, int flags);
     int virDomainHasCurrentSnapshot(DomainPointer virDomainPtr, int flags);
     int virDomainHasManagedSaveImage(DomainPointer virDomainPtr, int flags);
     int virDomainInterfaceStats(DomainPointer virDomainPtr, String path, virDomainInterfaceStats stats, SizeT size);
+    int virDomainInterfaceAddresses(DomainPointer virDomainPtr, PointerByReference ifaces, int source, int flags);
+    void virDomainInterfaceFree(Pointer iface);
     int virDomainIsActive(DomainPointer virDomainPtr);
     int virDomainIsPersistent(DomainPointer virDomainPtr);
     int virDomainIsUpdated(DomainPointer virDomainPtr);
@@ -321,13 +341,22 @@ public interface Libvirt extends Library {
             NativeLong flags, String dname, String uri, NativeLong bandwidth);
     DomainPointer virDomainMigrate2(DomainPointer virDomainPtr, ConnectionPointer virConnectPtr,
             String dxml, NativeLong flags, String dname, String uri, NativeLong bandwidth);
+    int virDomainMigrateGetMaxSpeed(DomainPointer virDomainPtr, NativeLongByReference bandwidth, int flags);
+    DomainPointer virDomainMigrate3(DomainPointer virDomainPtr, ConnectionPointer virConnectPtr,
+            Pointer params, int nparams, int flags);
     int virDomainMigrateSetMaxDowntime(DomainPointer virDomainPtr, long downtime, int flags);
+    int virDomainMigrateSetMaxSpeed(DomainPointer virDomainPtr, NativeLong bandwidth, int flags);
+    int virDomainMigrateStartPostCopy(DomainPointer virDomainPtr, int flags);
     int virDomainMigrateToURI(DomainPointer virDomainPtr, String duri,
             NativeLong flags, String dname, NativeLong bandwidth);
     int virDomainMigrateToURI2(DomainPointer virDomainPtr, String dconnuri, String miguri,
             String dxml, NativeLong flags, String dname, NativeLong bandwidth);
+    int virDomainMigrateToURI3(DomainPointer virDomainPtr, String dconnuri, Pointer params, int nparams, int flags);
     int virDomainMemoryStats(DomainPointer virDomainPtr, virDomainMemoryStats[] stats, int nr_stats, int flags);
+    int virDomainOpenConsole(DomainPointer virDomainPtr, String devName, StreamPointer virStreamPtr, int flags);
+    int virDomainPinEmulator(DomainPointer virDomainPtr, byte[] cpumap, int maplen, int flags);
     int virDomainPinVcpu(DomainPointer virDomainPtr, int vcpu, byte[] cpumap, int maplen);
+    int virDomainPinVcpuFlags(DomainPointer virDomainPtr, int vcpu, byte[] cpumap, int maplen, int flags);
     int virDomainPMSuspendForDuration(DomainPointer virDomainPtr, int target, long duration, int flags);
     int virDomainPMWakeup(DomainPointer virDomainPtr, int flags);
     int virDomainReboot(DomainPointer virDomainPtr, int flags);
@@ -357,6 +386,8 @@ public interface Libvirt extends Library {
     int virNetworkDestroy(NetworkPointer virConnectPtr);
     int virNetworkFree(NetworkPointer virConnectPtr);
     int virNetworkGetAutostart(NetworkPointer virNetworkPtr, IntByReference value);
+    int virNetworkGetDHCPLeases(NetworkPointer virNetworkPtr, String mac, PointerByReference leases, int flags);
+    void virNetworkDHCPLeaseFree(Pointer lease);
     CString virNetworkGetBridgeName(NetworkPointer virNetworkPtr);
     String virNetworkGetName(NetworkPointer virNetworkPtr);
     int virNetworkGetUUID(NetworkPointer virNetworkPtr, byte[] uuidString);
@@ -369,6 +400,7 @@ public interface Libvirt extends Library {
     NetworkPointer virNetworkLookupByUUIDString(ConnectionPointer virConnectPtr, String uuidstr);
     int virNetworkSetAutostart(NetworkPointer virConnectPtr, int autoStart);
     int virNetworkUndefine(NetworkPointer virConnectPtr);
+    int virNetworkUpdate(NetworkPointer virNetworkPtr, int command, int section, int parentIndex, String xml, int flags);
 
     // Node functions
     int virNodeGetInfo(ConnectionPointer virConnectPtr, virNodeInfo virNodeInfo);
@@ -408,6 +440,7 @@ public interface Libvirt extends Library {
     int virStoragePoolGetUUID(StoragePoolPointer storagePoolPtr, byte[] uuidString);
     int virStoragePoolGetUUIDString(StoragePoolPointer storagePoolPtr, byte[] uuidString);
     CString virStoragePoolGetXMLDesc(StoragePoolPointer storagePoolPtr, int flags);
+    int virStoragePoolListAllVolumes(StoragePoolPointer storagePoolPtr, PointerByReference vols, int flags);
     int virStoragePoolListVolumes(StoragePoolPointer storagePoolPtr, CString[] names, int maxnames);
     int virStoragePoolIsActive(StoragePoolPointer storagePoolPtr);
     int virStoragePoolIsPersistent(StoragePoolPointer storagePoolPtr);
@@ -425,6 +458,7 @@ public interface Libvirt extends Library {
     StorageVolPointer virStorageVolCreateXMLFrom(StoragePoolPointer storagePoolPtr, String xml,
             StorageVolPointer cloneVolume, int flags);
     int virStorageVolDelete(StorageVolPointer storageVolPtr, int flags);
+    int virStorageVolDownload(StorageVolPointer storageVolPtr, StreamPointer virStreamPtr, long offset, long length, int flags);
     int virStorageVolFree(StorageVolPointer storageVolPtr);
     int virStorageVolGetInfo(StorageVolPointer storageVolPtr, virStorageVolInfo info);
     String virStorageVolGetKey(StorageVolPointer storageVolPtr);
@@ -435,7 +469,9 @@ public interface Libvirt extends Library {
     StorageVolPointer virStorageVolLookupByName(StoragePoolPointer storagePoolPtr, String name);
     StorageVolPointer virStorageVolLookupByPath(ConnectionPointer virConnectPtr, String path);
     int virStorageVolWipe(StorageVolPointer storageVolPtr, int flags);
+    int virStorageVolWipePattern(StorageVolPointer storageVolPtr, int algorithm, int flags);
     int virStorageVolResize(StorageVolPointer storageVolPtr, long capacity, int flags);
+    int virStorageVolUpload(StorageVolPointer storageVolPtr, StreamPointer virStreamPtr, long offset, long length, int flags);
 
     // Interface Methods
     int virInterfaceCreate(InterfacePointer virDevicePointer, int flags);
@@ -479,6 +515,14 @@ public interface Libvirt extends Library {
     int virStreamSendAll(StreamPointer virStreamPtr, Libvirt.VirStreamSourceFunc handler, Pointer opaque);
     int virStreamRecv(StreamPointer virStreamPtr, ByteBuffer data, SizeT length);
     int virStreamRecvAll(StreamPointer virStreamPtr, Libvirt.VirStreamSinkFunc handler, Pointer opaque);
+    int virStreamRecvFlags(StreamPointer virStreamPtr, ByteBuffer data, SizeT length, int flags);
+    int virStreamRecvHole(StreamPointer virStreamPtr, LongByReference length, int flags);
+    int virStreamSendHole(StreamPointer virStreamPtr, long length, int flags);
+    int virStreamSparseRecvAll(StreamPointer virStreamPtr, Libvirt.VirStreamSinkFunc handler,
+                               Libvirt.VirStreamSinkHoleFunc holeHandler, Pointer opaque);
+    int virStreamSparseSendAll(StreamPointer virStreamPtr, Libvirt.VirStreamSourceFunc handler,
+                               Libvirt.VirStreamSourceHoleFunc holeHandler,
+                               Libvirt.VirStreamSourceSkipFunc skipHandler, Pointer opaque);
 
     //DomainSnapshot Methods
     DomainSnapshotPointer virDomainSnapshotCreateXML(DomainPointer virDomainPtr, String xmlDesc, int flags);
@@ -502,6 +546,17 @@ public interface Libvirt extends Library {
     int virNWFilterGetUUIDString(NetworkFilterPointer virNWFilterPtr, byte[] uuidString);
     int virNWFilterUndefine(NetworkFilterPointer virNWFilterPtr);
 
+    // Typed parameter functions
+    int virTypedParamsAddInt(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+            String name, int value);
+    int virTypedParamsAddULLong(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+            String name, long value);
+    int virTypedParamsAddString(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+            String name, String value);
+    int virTypedParamsAddStringList(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+            String name, String[] values);
+    void virTypedParamsFree(Pointer params, int nparams);
+
     // Event functions
     int virEventAddTimeout(int milliSeconds, VirEventTimeoutCallback cb, Pointer opaque, Pointer ff);
     int virEventRemoveTimeout(int timer);
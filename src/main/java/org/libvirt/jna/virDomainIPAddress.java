@@ -0,0 +1,32 @@
+package org.libvirt.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * JNA mapping for the virDomainIPAddress structure
+ */
+public class virDomainIPAddress extends Structure {
+    public int type;
+    public String addr;
+    public int prefix;
+
+    private static final List<String> fields = Arrays.asList(
+            "type", "addr", "prefix");
+
+    public virDomainIPAddress() {
+    }
+
+    public virDomainIPAddress(Pointer p) {
+        super(p);
+        read();
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return fields;
+    }
+}
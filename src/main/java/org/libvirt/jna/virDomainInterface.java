@@ -0,0 +1,38 @@
+package org.libvirt.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * JNA mapping for the virDomainInterface structure
+ */
+public class virDomainInterface extends Structure {
+    public String name;
+    public String hwaddr;
+    public int naddrs;
+    public Pointer addrs; // array of virDomainIPAddress
+
+    private static final List<String> fields = Arrays.asList(
+            "name", "hwaddr", "naddrs", "addrs");
+
+    public virDomainInterface(Pointer p) {
+        super(p);
+        read();
+    }
+
+    /**
+     * Returns the addresses of the interface.
+     */
+    public virDomainIPAddress[] getAddresses() {
+        if (naddrs == 0 || addrs == null) return new virDomainIPAddress[0];
+        return (virDomainIPAddress[]) new virDomainIPAddress(addrs).toArray(naddrs);
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return fields;
+    }
+}
@@ -0,0 +1,35 @@
+package org.libvirt.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * JNA mapping for the virNetworkDHCPLease structure
+ */
+public class virNetworkDHCPLease extends Structure {
+    public String iface;
+    public long expirytime; // long long
+    public int type;
+    public String mac;
+    public String iaid;
+    public String ipaddr;
+    public int prefix;
+    public String hostname;
+    public String clientid;
+
+    private static final List<String> fields = Arrays.asList(
+            "iface", "expirytime", "type", "mac", "iaid", "ipaddr", "prefix", "hostname", "clientid");
+
+    public virNetworkDHCPLease(Pointer p) {
+        super(p);
+        read();
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return fields;
+    }
+}
@@ -0,0 +1,94 @@
+package org.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Measures the throughput of receiving stream data into a file, comparing
+ * {@link Stream#transferTo} with reading through a heap buffer.
+ * <p>
+ * The data is produced by taking screenshots of the first domain of the
+ * given connection, by default the "test" domain of the test driver.
+ * <p>
+ * Usage: {@code java org.libvirt.StreamBenchmark [uri [iterations]]}
+ */
+public final class StreamBenchmark {
+    private interface Sink {
+        long receive(Stream s, FileChannel out) throws IOException;
+    }
+
+    private static final Sink HEAP = new Sink() {
+            private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+            @Override
+            public long receive(Stream s, FileChannel out) throws IOException {
+                long total = 0;
+                buf.clear();
+                int n;
+                while ((n = s.read(buf)) != -1) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                    total += n;
+                }
+                return total;
+            }
+        };
+
+    private static final Sink TRANSFER = new Sink() {
+            @Override
+            public long receive(Stream s, FileChannel out) throws IOException {
+                return s.transferTo(out);
+            }
+        };
+
+    private static void run(String name, Connect conn, Domain dom, int iterations, Sink sink)
+        throws LibvirtException, IOException {
+        File f = File.createTempFile("libvirt-stream", ".bin");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel out = raf.getChannel();
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Stream s = conn.streamNew(0);
+                try {
+                    dom.screenshot(s, 0);
+                    bytes += sink.receive(s, out);
+                } finally {
+                    s.free();
+                }
+                out.position(0);
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-10s %8d bytes %8.3f s %10.2f MB/s%n",
+                              name, bytes, secs, bytes / secs / 1e6);
+        } finally {
+            raf.close();
+            f.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String uri = args.length > 0 ? args[0] : "test:///default";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        Connect conn = new Connect(uri, false);
+        try {
+            Domain dom = conn.domainLookupByID(conn.listDomains()[0]);
+            // warm up, then measure
+            run("heap", conn, dom, iterations / 10, HEAP);
+            run("transfer", conn, dom, iterations / 10, TRANSFER);
+            run("heap", conn, dom, iterations, HEAP);
+            run("transfer", conn, dom, iterations, TRANSFER);
+        } finally {
+            conn.close();
+        }
+    }
+}
@@ -2,13 +2,19 @@ package org.libvirt;
 
 import org.libvirt.event.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -77,6 +83,30 @@ public final class TestJavaBindings extends TestCase {
         }
     }
 
+    public void testHostCapabilities() throws Exception {
+        HostCapabilities caps = conn.getHostCapabilities();
+        assertSame("cached capabilities", caps, conn.getHostCapabilities());
+        assertEquals("caps.getCells().size()", 2, caps.getCells().size());
+        assertEquals("caps.getCpuCount()", 16, caps.getCpuCount());
+        assertFalse("caps.getGuests().isEmpty()", caps.getGuests().isEmpty());
+        assertNotSame("refreshed capabilities", caps, conn.refreshHostCapabilities());
+    }
+
+    public void testDomainDefinition() throws Exception {
+        Domain dom = conn.domainLookupByName("test");
+        DomainDefinition def = dom.getDefinition(0);
+        assertEquals("def.getName()", "test", def.getName());
+        assertEquals("def.getUUID()", dom.getUUIDString(), def.getUUID());
+        assertEquals("def.getVcpus()", dom.getMaxVcpus(), def.getVcpus());
+        assertTrue("def.getMemory() > 0", def.getMemory() > 0);
+        assertNotNull("def.getDisks()", def.getDisks());
+
+        DomainDefinitionCache cache = conn.getDomainDefinitionCache();
+        assertSame("cached definition", cache.get(dom, 0), cache.get(dom, 0));
+        cache.invalidate(dom);
+        assertEquals("cache.size()", 0, cache.size());
+    }
+
     public void testNodeInfo() throws Exception {
         NodeInfo nodeInfo = conn.nodeInfo();
         assertEquals("nodeInfo.model", "i686", nodeInfo.model);
@@ -125,6 +155,27 @@ public final class TestJavaBindings extends TestCase {
         }
     }
 
+    public void testNetworkUpdateBatch() throws Exception {
+        Network network = conn.networkLookupByName("default");
+        NetworkUpdateBatch batch = new NetworkUpdateBatch()
+            .addDHCPHost("52:54:00:00:00:01", "a", "192.168.122.11")
+            .addDHCPHost("52:54:00:00:00:02", "b", "192.168.122.12")
+            .deleteDHCPHost("52:54:00:00:00:02", "b", "192.168.122.12");
+        assertEquals("batch.size()", 1, batch.size());
+        assertEquals("batch.apply()", 1, batch.apply(network, Network.UpdateFlags.AFFECT_CURRENT));
+        assertTrue("batch.isEmpty()", batch.isEmpty());
+        assertTrue("network.getXMLDesc()", network.getXMLDesc(0).contains("52:54:00:00:00:01"));
+
+        // a modification after deleting the entry adds it again
+        batch.deleteDHCPHost("52:54:00:00:00:01", "a", "192.168.122.11")
+            .modifyDHCPHost("52:54:00:00:00:01", "c", "192.168.122.13");
+        assertEquals("batch.size()", 2, batch.size());
+        assertEquals("batch.apply()", 2, batch.apply(network, Network.UpdateFlags.AFFECT_CURRENT));
+        String xml = network.getXMLDesc(0);
+        assertTrue("network.getXMLDesc()", xml.contains("192.168.122.13"));
+        assertFalse("network.getXMLDesc()", xml.contains("192.168.122.11"));
+    }
+
     public void validateNetworkData(Network network) throws Exception {
         assertEquals("network.getName()", "deftest", network.getName());
         assertEquals("network.getBridgeName()", "deftest", network.getBridgeName());
@@ -168,6 +219,40 @@ public final class TestJavaBindings extends TestCase {
                      conn.domainLookupByUUID(dom2.getUUID()));
     }
 
+    public void testDomainBulkExecutor() throws Exception {
+        List<Domain> domains = new ArrayList<Domain>();
+        for (int i = 0; i < 5; i++) {
+            domains.add(conn.domainLookupByName("test"));
+        }
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        DomainBulkExecutor.Action action = new DomainBulkExecutor.Action() {
+                public void run(Domain domain) throws LibvirtException {
+                    if (calls.incrementAndGet() > 1) return;
+                    // the first call hangs
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        DomainBulkExecutor executor = new DomainBulkExecutor()
+            .setHostConcurrency(1)
+            .setTimeout(100, TimeUnit.MILLISECONDS);
+
+        // the domains queued behind the hanging call never start
+        DomainBulkExecutor.Report report = executor.execute(action, domains.subList(0, 3));
+        assertEquals("report.getTimedOut().size()", 3, report.getTimedOut().size());
+        assertEquals("calls", 1, calls.get());
+        release.countDown();
+
+        report = executor.setHostConcurrency(2).execute(action, domains);
+        assertTrue("report.isSuccess()", report.isSuccess());
+        assertEquals("report.getResults().get(4).getName()", "test", report.getResults().get(4).getName());
+        assertEquals("calls", 6, calls.get());
+    }
+
     private void validateDomainData(Domain dom) throws Exception {
         assertEquals("dom.getName()", "createst", dom.getName());
         assertEquals("dom.getMaxMemory()", 8388608, dom.getMaxMemory());
@@ -254,6 +339,97 @@ public final class TestJavaBindings extends TestCase {
         assertTrue("Domain2 should be active", defaultPool.isActive() == 1);         
     }
 
+    public void testStorageVolInventory() throws Exception {
+        assertEquals("conn.listAllStoragePools(ACTIVE)", 1,
+                     conn.listAllStoragePools(StoragePool.ListAllFlags.ACTIVE).length);
+
+        StoragePool pool = conn.storagePoolLookupByName("default-pool");
+        StorageVolInventory inventory = new StorageVolInventory(pool).setBatchSize(1);
+        try {
+            int n = inventory.refresh().getAdded().size();
+            StorageVol vol = pool.storageVolCreateXML("<volume>"
+                    + "  <name>vol1</name>"
+                    + "  <capacity>1048576</capacity>"
+                    + "</volume>", 0);
+            assertEquals("pool.listAllVolumes()", n + 1, pool.listAllVolumes().length);
+
+            StorageVolInventory.Delta delta = inventory.refresh();
+            assertEquals("delta.getAdded()", 1, delta.getAdded().size());
+            assertEquals("entry.getCapacity()", 1048576, delta.getAdded().get(0).getCapacity());
+            assertTrue("inventory.refresh()", inventory.refresh().isEmpty());
+
+            vol.delete(0);
+            delta = inventory.refresh();
+            assertEquals("delta.getRemoved()", 1, delta.getRemoved().size());
+            assertEquals("inventory.size()", n, inventory.size());
+        } finally {
+            inventory.close();
+        }
+    }
+
+    public void testStorageVolIndex() throws Exception {
+        StoragePool pool = conn.storagePoolLookupByName("default-pool");
+        StorageVolIndex index = conn.getStorageVolIndex();
+        int n = index.size();
+
+        StorageVol vol = pool.storageVolCreateXML("<volume>"
+                + "  <name>vol2</name>"
+                + "  <capacity>1048576</capacity>"
+                + "</volume>", 0);
+        String key = vol.getKey();
+        String path = vol.getPath();
+        assertEquals("index.size()", n + 1, index.size());
+        assertEquals("index.getByPath()", "vol2", index.getByPath(path).getName());
+        assertEquals("index.lookupByKey()", path, index.lookupByKey(key).getPath());
+
+        vol.delete(0);
+        assertNull("index.getByKey()", index.getByKey(key));
+        assertEquals("index.size()", n, index.size());
+    }
+
+    public void testStorageVolCloneScheduler() throws Exception {
+        StoragePool pool = conn.storagePoolLookupByName("default-pool");
+        StorageVol golden = pool.storageVolCreateXML("<volume>"
+                + "  <name>golden.img</name>"
+                + "  <capacity>1048576</capacity>"
+                + "</volume>", 0);
+        StorageVolCloneScheduler scheduler = new StorageVolCloneScheduler().setPoolConcurrency(1);
+        List<StorageVolCloneScheduler.Clone> clones = new ArrayList<StorageVolCloneScheduler.Clone>();
+        for (int i = 0; i < 3; i++) {
+            clones.add(scheduler.submit(pool, "<volume><name>clone" + i + ".img</name>"
+                                        + "<capacity>1048576</capacity></volume>", golden, 0));
+        }
+        assertEquals("clones.get(0).getBackend()", "dir", clones.get(0).getBackend());
+        for (StorageVolCloneScheduler.Clone c: clones) {
+            assertEquals("c.await()", StorageVolCloneScheduler.State.COMPLETED, c.await());
+            assertEquals("c.getResult().getName()", c.getName(), c.getResult().getName());
+        }
+        scheduler.shutdown();
+    }
+
+    public void testStorageCapacityTracker() throws Exception {
+        StorageCapacityTracker tracker = new StorageCapacityTracker(conn);
+        try {
+            StorageCapacityTracker.Usage total = tracker.refresh();
+            assertEquals("tracker.getPoolUsages()", 1, tracker.getPoolUsages().size());
+
+            StoragePool pool = conn.storagePoolLookupByName("default-pool");
+            StorageVol vol = pool.storageVolCreateXML("<volume>"
+                    + "  <name>vol3</name>"
+                    + "  <capacity>1048576</capacity>"
+                    + "</volume>", 0);
+            StorageCapacityTracker.Usage u = tracker.refresh(pool);
+            assertEquals("u.getProvisioned()", total.getProvisioned() + 1048576, u.getProvisioned());
+            assertEquals("u.getVolumeCount()", total.getVolumeCount() + 1, u.getVolumeCount());
+            assertEquals("tracker.getHostUsage()", u.getProvisioned(), tracker.getHostUsage().getProvisioned());
+
+            vol.delete(0);
+            assertEquals("tracker.refresh()", total.getProvisioned(), tracker.refresh().getProvisioned());
+        } finally {
+            tracker.close();
+        }
+    }
+
     public void testDomainEvents() throws Exception {
         final List<DomainEventType> events = new ArrayList<DomainEventType>();
         final Thread t = new Thread() {
@@ -349,4 +525,92 @@ public final class TestJavaBindings extends TestCase {
         } catch (ClosedChannelException expected) {
         }
     }
+
+    public void testStreamReceiveAll() throws Exception {
+        // virDomainScreenshot works since version 1.0.5 on test://
+        // connections
+        if (Library.getVersion() < 1000005) return;
+
+        Stream str = this.conn.streamNew(0);
+        Domain dom = this.conn.domainLookupByName("test");
+        dom.screenshot(str, 0);
+
+        final long[] received = new long[2];
+        str.receiveAll(new Stream.Sink() {
+                public void write(ByteBuffer data) {
+                    received[0]++;
+                    // consume the chunk in two parts
+                    int half = Math.max(1, data.remaining() / 2);
+                    data.position(data.position() + half);
+                    received[1] += half;
+                }
+            });
+        assertTrue("chunks received", received[0] > 0);
+        assertTrue("bytes received", received[1] > 0);
+        str.free();
+    }
+
+    public void testStreamTransferTo() throws Exception {
+        // virDomainScreenshot works since version 1.0.5 on test://
+        // connections
+        if (Library.getVersion() < 1000005) return;
+
+        Domain dom = this.conn.domainLookupByName("test");
+        Stream str = this.conn.streamNew(0);
+        dom.screenshot(str, 0);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteBuffer bb = ByteBuffer.allocate(8192);
+        while (str.read(bb) != -1) {
+            expected.write(bb.array(), 0, bb.position());
+            bb.clear();
+        }
+        str.free();
+
+        File f = File.createTempFile("libvirt-stream", ".bin");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            str = this.conn.streamNew(0);
+            dom.screenshot(str, 0);
+            assertEquals("str.transferTo()", expected.size(), str.transferTo(raf.getChannel()));
+            assertEquals("str.transferTo()", 0, str.transferTo(raf.getChannel()));
+            str.free();
+            byte[] actual = new byte[(int) raf.length()];
+            raf.seek(0);
+            raf.readFully(actual);
+            assertTrue("Arrays.equals()", Arrays.equals(expected.toByteArray(), actual));
+        } finally {
+            raf.close();
+            f.delete();
+        }
+    }
+
+    public void testNetworkAddressIndex() throws Exception {
+        // virDomainInterfaceAddresses works since version 5.6.0 on test://
+        // connections
+        if (Library.getVersion() < 5006000) return;
+
+        Domain dom = this.conn.domainLookupByName("test");
+        DomainDefinition.Interface nic = dom.getDefinition(0).getInterfaces().get(0);
+        NetworkAddressIndex index = new NetworkAddressIndex(this.conn);
+
+        // the interfaces of the domain are not known yet
+        assertTrue("index.refresh(dom)", index.refresh(dom, Domain.InterfaceAddressesSource.LEASE) > 0);
+        NetworkAddressIndex.Binding b = index.getByMac(nic.getMac());
+        assertNotNull("index.getByMac()", b);
+        assertEquals("b.getDomainName()", "test", b.getDomainName());
+        assertNull("b.getInterface()", b.getInterface());
+
+        // as after hot-plugging the interface
+        index.refreshInterfaces(dom);
+        b = index.getByMac(nic.getMac());
+        assertEquals("b.getDomainUUID()", dom.getUUIDString(), b.getDomainUUID());
+        assertEquals("b.getInterface()", nic.getTargetDev(), b.getInterface());
+        assertSame("index.getByIP()", b, index.getByIP(b.getIPAddr()));
+
+        // the addresses reported by a stopped domain are dropped
+        dom.destroy();
+        index.refreshDomains();
+        assertNull("index.getByMac()", index.getByMac(nic.getMac()));
+        assertEquals("index.size()", 0, index.size());
+    }
 }
@@ -1,6 +1,46 @@
 package org.libvirt;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.libvirt.jna.ConnectionPointer;
+import org.libvirt.jna.Libvirt;
+import org.libvirt.jna.virDomainBlockInfo;
+import org.libvirt.jna.virDomainJobInfo;
+import org.libvirt.jna.virError;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
 
 import junit.framework.TestCase;
 
@@ -8,6 +48,673 @@ import junit.framework.TestCase;
  * libvirt tests not requiring an active connection
  */
 public class TestLibvirtGlobals extends TestCase {
+    /**
+     * An executor running tasks in the calling thread.
+     */
+    private static final ExecutorService inline = new AbstractExecutorService() {
+            public void execute(Runnable r) {
+                r.run();
+            }
+
+            public void shutdown() {
+            }
+
+            public List<Runnable> shutdownNow() {
+                return Collections.emptyList();
+            }
+
+            public boolean isShutdown() {
+                return false;
+            }
+
+            public boolean isTerminated() {
+                return false;
+            }
+
+            public boolean awaitTermination(long timeout, TimeUnit unit) {
+                return false;
+            }
+        };
+
+    /**
+     * A domain whose disk "vda" holds the given bytes, recording the
+     * offsets of block peeks.
+     */
+    private static class FakeDiskDomain extends Domain {
+        final byte[] disk;
+        final List<Long> peeks = Collections.synchronizedList(new ArrayList<Long>());
+
+        FakeDiskDomain(byte[] disk) {
+            super(new Connect((ConnectionPointer) null), null);
+            this.disk = disk;
+        }
+
+        @Override
+        public DomainBlockInfo blockInfo(String path) {
+            DomainBlockInfo info = new DomainBlockInfo(new virDomainBlockInfo());
+            info.setCapacity(disk.length);
+            return info;
+        }
+
+        @Override
+        public void blockPeek(String path, long offset, ByteBuffer buffer) {
+            peeks.add(offset);
+            buffer.put(disk, (int) offset, buffer.remaining());
+        }
+    }
+
+    /**
+     * A domain whose physical memory is the given bytes, recording the
+     * addresses of memory peeks.
+     */
+    private static class FakeMemoryDomain extends Domain {
+        final ByteBuffer memory;
+        final List<Long> peeks = Collections.synchronizedList(new ArrayList<Long>());
+
+        FakeMemoryDomain(byte[] memory) {
+            super(new Connect((ConnectionPointer) null), null);
+            this.memory = ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void memoryPeek(long start, ByteBuffer buffer, MemoryAddressMode mode) {
+            assertEquals("mode", MemoryAddressMode.PHYSICAL, mode);
+            peeks.add(start);
+            ByteBuffer src = memory.duplicate();
+            src.position((int) start).limit((int) start + buffer.remaining());
+            buffer.put(src);
+        }
+    }
+
+    /**
+     * A stream running batch transfers in chunks of 16 bytes against
+     * memory instead of libvirt.
+     */
+    private static class FakeStream extends Stream {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        byte[] received = new byte[0];
+        boolean finished;
+        boolean aborted;
+
+        FakeStream() {
+            super(null, null);
+        }
+
+        @Override
+        public int sendAll(Libvirt.VirStreamSourceFunc handler) throws LibvirtException {
+            Memory buf = new Memory(16);
+            int n;
+            while ((n = handler.sourceCallback(null, buf, new NativeLong(16), null)) > 0) {
+                sent.write(buf.getByteArray(0, n), 0, n);
+            }
+            if (n < 0) throw new LibvirtException(new Error(new virError()));
+            return 0;
+        }
+
+        @Override
+        public int receiveAll(Libvirt.VirStreamSinkFunc handler) throws LibvirtException {
+            Memory buf = new Memory(16);
+            for (int i = 0; i < received.length; i += 16) {
+                int n = Math.min(16, received.length - i);
+                buf.write(0, received, i, n);
+                if (handler.sinkCallback(null, buf, new NativeLong(n), null) != n) {
+                    throw new LibvirtException(new Error(new virError()));
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public int finish() {
+            finished = true;
+            return 0;
+        }
+
+        @Override
+        public int abort() {
+            aborted = true;
+            return 0;
+        }
+    }
+
+    /**
+     * A console stream whose reads are completed by the test, recording
+     * the thread freeing it.
+     */
+    private static class FakeConsoleStream extends Stream {
+        ByteBuffer buffer;
+        CompletionHandler<Integer> handler;
+        final CountDownLatch freed = new CountDownLatch(1);
+        volatile int frees;
+        volatile Thread freedBy;
+
+        FakeConsoleStream() {
+            super(null, null);
+        }
+
+        @Override
+        public Future<Integer> readAsync(ByteBuffer buffer, CompletionHandler<Integer> handler) {
+            this.buffer = buffer;
+            this.handler = handler;
+            return null;
+        }
+
+        void feed(String data) throws IOException {
+            byte[] b = data.getBytes("US-ASCII");
+            buffer.put(b);
+            handler.completed(b.length);
+        }
+
+        @Override
+        public int free() {
+            frees++;
+            freedBy = Thread.currentThread();
+            freed.countDown();
+            return 0;
+        }
+    }
+
+    /**
+     * A non-blocking stream following a script: data to receive, the
+     * number of bytes accepted by a send, -2 for would block (also when
+     * the script is empty) or 0 for the end of the stream. The event
+     * loop is driven by {@link #fire}.
+     */
+    private static class ScriptedStream extends Stream {
+        final ArrayDeque<Object> script = new ArrayDeque<Object>();
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Libvirt.VirStreamEventCallback callback;
+        int events;
+        boolean removed;
+        boolean finished;
+
+        ScriptedStream(boolean readable) {
+            super(null, null);
+            if (readable) markReadable();
+            else markWritable();
+        }
+
+        @Override
+        protected synchronized int receive(ByteBuffer buffer) {
+            Object o = script.poll();
+            if (o == null) return -2;
+            if (o instanceof Integer) return (Integer) o;
+            byte[] b = (byte[]) o;
+            buffer.put(b);
+            return b.length;
+        }
+
+        @Override
+        protected synchronized int send(ByteBuffer buffer) {
+            Integer o = (Integer) script.poll();
+            if (o == null || o == -2) return -2;
+            int n = Math.min(o, buffer.remaining());
+            byte[] b = new byte[n];
+            buffer.get(b);
+            sent.write(b, 0, n);
+            return n;
+        }
+
+        @Override
+        public int addCallback(int events, Libvirt.VirStreamEventCallback cb) {
+            this.callback = cb;
+            this.events = events;
+            return 0;
+        }
+
+        @Override
+        public int updateCallback(int events) {
+            this.events = events;
+            return 0;
+        }
+
+        @Override
+        public int removeCallback() {
+            removed = true;
+            return 0;
+        }
+
+        @Override
+        public int finish() {
+            finished = true;
+            return 0;
+        }
+
+        @Override
+        public int abort() {
+            return 0;
+        }
+
+        void fire() {
+            callback.eventCallback(null, events, null);
+        }
+    }
+
+    /**
+     * Records the results passed to a completion handler.
+     */
+    private static class Results implements Stream.CompletionHandler<Integer> {
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+
+        @Override
+        public void completed(Integer n) {
+            results.add(n);
+        }
+
+        @Override
+        public void failed(Throwable exc) {
+            results.add(exc);
+        }
+    }
+
+    /**
+     * A domain whose migration runs until it is released or its job is
+     * aborted, dirtying its memory as fast as it is sent. The calls
+     * steering the migration are recorded.
+     */
+    private static class FakeMigratingDomain extends Domain {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean aborted;
+        volatile long migrateFlags;
+        private long processed = 1000;
+
+        FakeMigratingDomain(Connect conn) {
+            super(conn, null);
+        }
+
+        @Override
+        public int migrateToURI(String dconnuri, String miguri, String dxml, long flags, String dname,
+                                long bandwidth) throws LibvirtException {
+            migrateFlags = flags;
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (aborted) throw new LibvirtException(new Error(new virError()));
+            return 0;
+        }
+
+        @Override
+        public synchronized DomainJobInfo getJobInfo() {
+            virDomainJobInfo info = new virDomainJobInfo();
+            info.type = 2;
+            info.memTotal = 1000;
+            info.memProcessed = processed;
+            info.memRemaining = 1000000;
+            info.dataTotal = 1000;
+            info.dataProcessed = processed;
+            processed += 1000;
+            return new DomainJobInfo(info);
+        }
+
+        @Override
+        public long migrateGetMaxSpeed() {
+            return 32;
+        }
+
+        @Override
+        public int migrateSetMaxSpeed(long bandwidth) {
+            calls.add("bandwidth " + bandwidth);
+            return 0;
+        }
+
+        @Override
+        public int migrateSetMaxDowntime(long downtime) {
+            calls.add("downtime " + downtime);
+            return 0;
+        }
+
+        @Override
+        public int migrateStartPostCopy(int flags) {
+            calls.add("postcopy");
+            return 0;
+        }
+
+        @Override
+        public int abortJob() {
+            aborted = true;
+            release.countDown();
+            return 0;
+        }
+    }
+
+    /**
+     * A blocking stream transferring a range of a volume held in memory.
+     * For sparse receives, runs of zeros of the volume are holes; sent
+     * chunks and holes are recorded.
+     */
+    private static class VolumeStream extends Stream {
+        final byte[] volume;
+        final List<String> ops = new ArrayList<String>();
+        final Map<ByteBuffer, Boolean> buffers = new IdentityHashMap<ByteBuffer, Boolean>();
+        int pos;
+        int end;
+        int maxChunk;
+        boolean finished;
+        boolean aborted;
+
+        VolumeStream(byte[] volume) {
+            super(null, null);
+            this.volume = volume;
+        }
+
+        void open(long offset, long length, boolean readable) {
+            pos = (int) offset;
+            end = length == 0 ? volume.length : (int) (offset + length);
+            if (readable) markReadable();
+            else markWritable();
+        }
+
+        @Override
+        protected int receive(ByteBuffer buffer) {
+            buffers.put(buffer, true);
+            maxChunk = Math.max(maxChunk, buffer.remaining());
+            int n = Math.min(buffer.remaining(), end - pos);
+            buffer.put(volume, pos, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        protected int receive(ByteBuffer buffer, int flags) {
+            if (pos == end) return 0;
+            if (volume[pos] == 0) return -3;
+            int n = 0;
+            while (n < buffer.remaining() && pos + n < end && volume[pos + n] != 0) {
+                n++;
+            }
+            buffer.put(volume, pos, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long receiveHole(int flags) {
+            int n = 0;
+            while (pos + n < end && volume[pos + n] == 0) {
+                n++;
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        protected int send(ByteBuffer buffer) {
+            buffers.put(buffer, true);
+            int n = buffer.remaining();
+            buffer.get(volume, pos, n);
+            pos += n;
+            ops.add("data " + n);
+            return n;
+        }
+
+        @Override
+        public int sendHole(long length, int flags) {
+            pos += length;
+            ops.add("hole " + length);
+            return 0;
+        }
+
+        @Override
+        public int finish() {
+            finished = true;
+            return 0;
+        }
+
+        @Override
+        public int abort() {
+            aborted = true;
+            return 0;
+        }
+    }
+
+    /**
+     * Returns a volume held in memory, transferred by the given stream.
+     */
+    private static StorageVol memoryVolume(final VolumeStream stream) {
+        Connect conn = new Connect((ConnectionPointer) null) {
+                @Override
+                public Stream streamNew(int flags) {
+                    return stream;
+                }
+            };
+        return new StorageVol(conn, null) {
+                @Override
+                public StorageVolInfo getInfo() {
+                    return new StorageVolInfo(0, stream.volume.length, stream.volume.length);
+                }
+
+                @Override
+                public void download(Stream s, long offset, long length, int flags) {
+                    stream.open(offset, length, true);
+                }
+
+                @Override
+                public void upload(Stream s, long offset, long length, int flags) {
+                    stream.open(offset, length, false);
+                }
+            };
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i % 251 + 1);
+        }
+        return b;
+    }
+
+    private static byte[] readBytes(File f) throws IOException {
+        return read(f).getBytes("ISO-8859-1");
+    }
+
+    private static LibvirtException libvirtError(Error.ErrorNumber code) {
+        virError e = new virError();
+        e.code = code.ordinal();
+        return new LibvirtException(new Error(e));
+    }
+
+    /**
+     * A pool whose clones wait for a latch, counting the clones running
+     * in the pool and on its backend. The first clones fail, leaving a
+     * volume behind.
+     */
+    private static class ClonePool extends StoragePool {
+        final String uuid;
+        final String xml;
+        final AtomicInteger backendRunning;
+        final AtomicInteger backendMax;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final AtomicInteger deleted = new AtomicInteger();
+        final Set<String> volumes = Collections.synchronizedSet(new HashSet<String>());
+        final List<Long> attemptTimes = Collections.synchronizedList(new ArrayList<Long>());
+        volatile CountDownLatch release = new CountDownLatch(0);
+        volatile int failures;
+
+        ClonePool(String uuid, String xml, AtomicInteger backendRunning, AtomicInteger backendMax) {
+            super(null, null);
+            this.uuid = uuid;
+            this.xml = xml;
+            this.backendRunning = backendRunning;
+            this.backendMax = backendMax;
+        }
+
+        @Override
+        public String getUUIDString() {
+            return uuid;
+        }
+
+        @Override
+        public String getXMLDesc(int flags) {
+            return xml;
+        }
+
+        private static void raise(AtomicInteger counter, AtomicInteger max) {
+            int n = counter.incrementAndGet();
+            int m;
+            while ((m = max.get()) < n && !max.compareAndSet(m, n)) {
+                // retry
+            }
+        }
+
+        @Override
+        public StorageVol storageVolCreateXMLFrom(String xmlDesc, StorageVol cloneVolume, int flags)
+            throws LibvirtException {
+            attemptTimes.add(System.nanoTime());
+            raise(running, max);
+            raise(backendRunning, backendMax);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                running.decrementAndGet();
+                backendRunning.decrementAndGet();
+            }
+            String name = StorageVolCloneScheduler.parseName(xmlDesc);
+            volumes.add(name);
+            synchronized (this) {
+                if (failures > 0) {
+                    failures--;
+                    throw libvirtError(Error.ErrorNumber.VIR_ERR_INTERNAL_ERROR);
+                }
+            }
+            return volume(name);
+        }
+
+        @Override
+        public StorageVol storageVolLookupByName(String name) throws LibvirtException {
+            if (!volumes.contains(name)) throw libvirtError(Error.ErrorNumber.VIR_ERR_NO_STORAGE_VOL);
+            return volume(name);
+        }
+
+        private StorageVol volume(final String name) {
+            return new StorageVol(null, null) {
+                    @Override
+                    public StorageVolInfo getInfo() {
+                        return new StorageVolInfo(0, 1024, 512);
+                    }
+
+                    @Override
+                    public void delete(int flags) {
+                        volumes.remove(name);
+                        deleted.incrementAndGet();
+                    }
+                };
+        }
+    }
+
+    private static String cloneXML(String name) {
+        return "<volume><name>" + name + "</name></volume>";
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("libvirt-test", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("cannot create " + dir);
+        return dir;
+    }
+
+    private static String read(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                out.write(b, 0, n);
+            }
+            return out.toString("ISO-8859-1");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A pool listing volumes of the given capacities by key, and counting
+     * the information fetched about them.
+     */
+    private static class FakePool extends StoragePool {
+        final Map<String, Long> capacities = new LinkedHashMap<String, Long>();
+        volatile int infoCalls;
+
+        FakePool() {
+            super(null, null);
+        }
+
+        @Override
+        public synchronized StorageVol[] listAllVolumes() {
+            StorageVol[] vols = new StorageVol[capacities.size()];
+            int i = 0;
+            for (final Map.Entry<String, Long> e: capacities.entrySet()) {
+                vols[i++] = new StorageVol(null, null) {
+                        @Override
+                        public String getKey() {
+                            return e.getKey();
+                        }
+
+                        @Override
+                        public String getName() {
+                            return e.getKey();
+                        }
+
+                        @Override
+                        public String getPath() {
+                            return "/pool/" + e.getKey();
+                        }
+
+                        @Override
+                        public StorageVolInfo getInfo() {
+                            synchronized (FakePool.this) {
+                                infoCalls++;
+                            }
+                            return new StorageVolInfo(0, e.getValue(), 0);
+                        }
+                    };
+            }
+            return vols;
+        }
+    }
+
+    /**
+     * A volume which does not need libvirt to be wiped.
+     */
+    private static class FakeVolume extends StorageVol {
+        final String format;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile StorageVol.WipeAlgorithm wiped;
+
+        FakeVolume(String format) {
+            super(null, null);
+            this.format = format;
+        }
+
+        @Override
+        public StorageVolInfo getInfo() {
+            return new StorageVolInfo(0, 1024, 1024);
+        }
+
+        @Override
+        public String getXMLDesc(int flags) {
+            return "<volume><target><format type='" + format + "'/></target></volume>";
+        }
+
+        @Override
+        public void wipe(StorageVol.WipeAlgorithm algorithm) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (format.equals("broken")) throw new IllegalStateException("wipe failed");
+            wiped = algorithm;
+        }
+    }
+
     public void testErrorCallback() throws Exception {
         DummyErrorCallback cb = new DummyErrorCallback();
         Connect.setErrorCallback(cb);
@@ -22,4 +729,1312 @@ public class TestLibvirtGlobals extends TestCase {
     public void testLibrary() throws Exception {
         assertTrue("Library.getVersion() > 6000", Library.getVersion() > 6000);
     }
+
+    public void testCpuMap() throws Exception {
+        CpuMap map = CpuMap.parse("0-3,8,^2,70-71", 72);
+        assertEquals("map.toString()", "0-1,3,8,70-71", map.toString());
+        assertEquals("map.cardinality()", 6, map.cardinality());
+        assertEquals("map.mapLength()", 9, map.mapLength());
+
+        byte[] bytes = map.toBytes();
+        assertEquals("bytes[0]", 0x0b, bytes[0]);
+        assertEquals("bytes[1]", 0x01, bytes[1]);
+        assertEquals("CpuMap.fromBytes", map, CpuMap.fromBytes(bytes, 0, bytes.length, 72));
+        assertEquals("map.nextSetBit(9)", 70, map.nextSetBit(9));
+    }
+
+    public void testCpuMapRange() throws Exception {
+        try {
+            CpuMap.parse("0-8", 8);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            CpuMap.parse("^9", 8);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testHostCapabilitiesSparse() throws Exception {
+        // CPUs 2 and 3 are offline, the sibling of CPU 4 is not listed
+        String xml = "<capabilities><host><topology><cells num='1'>"
+            + "<cell id='0'><cpus num='3'>"
+            + "<cpu id='0' socket_id='0' core_id='0' siblings='0-1'/>"
+            + "<cpu id='1' socket_id='0' core_id='0' siblings='0-1'/>"
+            + "<cpu id='4' socket_id='0' core_id='2' siblings='4,9'/>"
+            + "</cpus></cell></cells></topology></host></capabilities>";
+        HostCapabilities caps = HostCapabilities.parse(xml);
+        assertEquals("caps.getCpuCount()", 3, caps.getCpuCount());
+        HostCapabilities.Cell cell = caps.getCells().get(0);
+        assertEquals("cell.getCpuMap()", "0-1,4", cell.getCpuMap().toString());
+        assertEquals("cell.getCpuMap().size()", 10, cell.getCpuMap().size());
+        assertEquals("getSiblings()", "4,9", cell.getCpus().get(2).getSiblings().toString());
+
+        try {
+            HostCapabilities.parse(xml.replace("4,9", "4,x"));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCpuPinningPlanner() throws Exception {
+        Connect conn = new Connect((ConnectionPointer) null);
+        Domain d1 = new Domain(conn, null);
+        Domain s1 = new Domain(conn, null);
+        Domain d2 = new Domain(conn, null);
+
+        CpuPinningPlanner planner = new CpuPinningPlanner(8).reserve(CpuMap.parse("0-1", 8));
+        planner.addDedicated(d1, 2).addShared(s1, 3).addDedicated(d2, 1);
+        List<CpuPinningPlanner.Assignment> plan = planner.plan().getAssignments();
+        assertEquals("plan.size()", 3, plan.size());
+
+        CpuPinningPlanner.Assignment a = plan.get(0);
+        assertSame("a.getDomain()", d1, a.getDomain());
+        assertTrue("a.isDedicated()", a.isDedicated());
+        assertEquals("a.getVcpu(0)", "2", a.getVcpu(0).toString());
+        assertEquals("a.getVcpu(1)", "3", a.getVcpu(1).toString());
+        assertEquals("a.getEmulator()", "5-7", a.getEmulator().toString());
+
+        a = plan.get(1);
+        assertFalse("a.isDedicated()", a.isDedicated());
+        assertEquals("a.getVcpuCount()", 3, a.getVcpuCount());
+        assertEquals("a.getVcpu(2)", "5-7", a.getVcpu(2).toString());
+        assertEquals("plan.get(2).getVcpu(0)", "4", plan.get(2).getVcpu(0).toString());
+
+        // emulator threads fall back to the reserved CPUs
+        planner = new CpuPinningPlanner(4).reserve(CpuMap.parse("0", 4)).addDedicated(d1, 3);
+        assertEquals("getEmulator()", "0", planner.plan().getAssignments().get(0).getEmulator().toString());
+        planner.addShared(s1, 1);
+        try {
+            planner.plan();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // no CPUs left for shared vCPUs
+        }
+        try {
+            new CpuPinningPlanner(4).reserve(CpuMap.parse("0-1", 4)).addDedicated(d1, 3).plan();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testDomainDeviceDiff() throws Exception {
+        String oldXML = "<domain type='kvm'><name>t</name><devices>"
+            + "<disk type='file' device='disk'><source file='/a.img'/><target dev='vda' bus='virtio'/><alias name='virtio-disk0'/></disk>"
+            + "<disk type='file' device='cdrom'><source file='/x.iso'/><target dev='hdc' bus='ide'/></disk>"
+            + "<interface type='network'><mac address='52:54:00:00:00:01'/><source network='default'/></interface>"
+            + "</devices></domain>";
+        String newXML = "<domain type='kvm' id='3'><name>t</name><devices>"
+            + "<disk device='disk' type='file'><target bus='virtio' dev='vda'/><source file='/a.img'/></disk>"
+            + "<disk type='file' device='cdrom'><source file='/y.iso'/><target dev='hdc' bus='ide'/></disk>"
+            + "<disk type='file' device='disk'><source file='/b.img'/><target dev='vdb' bus='virtio'/></disk>"
+            + "</devices></domain>";
+
+        DomainDeviceDiff diff = DomainDeviceDiff.compute(oldXML, newXML);
+        assertFalse("diff.requiresRedefine()", diff.requiresRedefine());
+        assertEquals("diff.getChanges()", "[DETACH interface:52:54:00:00:00:01, UPDATE disk:hdc, ATTACH disk:vdb]",
+                     diff.getChanges().toString());
+        assertTrue("DomainDeviceDiff.compute()", DomainDeviceDiff.compute(oldXML, oldXML).isEmpty());
+        assertTrue("diff.requiresRedefine()",
+                   DomainDeviceDiff.compute(oldXML, oldXML.replace("<name>t</name>", "<name>u</name>")).requiresRedefine());
+    }
+
+    public void testDomainDeviceDiffKeys() throws Exception {
+        String pci1 = "<hostdev mode='subsystem' type='pci' managed='yes'><source>"
+            + "<address domain='0x0000' bus='0x03' slot='0x00' function='0x0'/></source>%s</hostdev>";
+        String pci2 = "<hostdev mode='subsystem' type='pci' managed='yes'><source>"
+            + "<address domain='0x0000' bus='0x04' slot='0x00' function='0x0'/></source>%s</hostdev>";
+        String live = "<domain type='kvm' id='3'><name>t</name><devices>"
+            + String.format(pci1, "<alias name='hostdev0'/><address type='pci' bus='0x00' slot='0x07'/>")
+            + String.format(pci2, "<alias name='hostdev1'/><address type='pci' bus='0x00' slot='0x08'/>")
+            + "<serial type='pty'><target port='0'/><alias name='serial0'/></serial>"
+            + "<serial type='pty'><target port='1'/><alias name='serial1'/></serial>"
+            + "</devices></domain>";
+        String desired = "<domain type='kvm'><name>t</name><devices>"
+            + String.format(pci1, "")
+            + String.format(pci2, "")
+            + "<serial type='pty'><target port='0'/></serial>"
+            + "<serial type='pty'><target port='1'/></serial>"
+            + "</devices></domain>";
+
+        assertTrue("DomainDeviceDiff.compute()", DomainDeviceDiff.compute(live, desired).isEmpty());
+
+        DomainDeviceDiff diff = DomainDeviceDiff.compute(live, desired.replace("bus='0x04'", "bus='0x05'"));
+        assertEquals("diff.getChanges().size()", 2, diff.getChanges().size());
+        assertEquals("diff.getChanges().get(0).getAction()", DomainDeviceDiff.Action.DETACH,
+                     diff.getChanges().get(0).getAction());
+        assertTrue("diff.getChanges().get(0).getXML()", diff.getChanges().get(0).getXML().contains("bus='0x04'"));
+        assertTrue("diff.getChanges().get(1).getXML()", diff.getChanges().get(1).getXML().contains("bus='0x05'"));
+    }
+
+    public void testDomainDeviceDiffLiveState() throws Exception {
+        String live = "<domain type='kvm' id='3'><name>t</name><devices>"
+            + "<emulator>/usr/bin/qemu-system-x86_64</emulator>"
+            + "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/>"
+            + "<source file='/a.qcow2' index='2'/><backingStore type='file' index='3'><format type='raw'/>"
+            + "<source file='/base.img'/><backingStore/></backingStore>"
+            + "<target dev='vda' bus='virtio'/><alias name='virtio-disk0'/></disk>"
+            + "<interface type='network'><mac address='52:54:00:00:00:01'/>"
+            + "<source network='default' portid='6d3b4e4a-2f0e-4c6b-9a3e-6c3f1b0e8a11' bridge='virbr0'/>"
+            + "<target dev='vnet0'/><model type='virtio'/><alias name='net0'/></interface>"
+            + "<interface type='bridge'><mac address='52:54:00:00:00:02'/><source bridge='br0'/>"
+            + "<target dev='vnet1'/><alias name='net1'/></interface>"
+            + "<console type='pty' tty='/dev/pts/3'><source path='/dev/pts/3'/><target type='serial' port='0'/>"
+            + "<alias name='serial0'/></console>"
+            + "<graphics type='vnc' port='5900' autoport='yes' listen='127.0.0.1'>"
+            + "<listen type='address' address='127.0.0.1'/></graphics>"
+            + "<video><model type='virtio' heads='1' primary='yes'/><alias name='video0'/></video>"
+            + "</devices></domain>";
+        String desired = "<domain type='kvm'><name>t</name><devices>"
+            + "<emulator>/usr/bin/qemu-system-x86_64</emulator>"
+            + "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/>"
+            + "<source file='/a.qcow2'/><target dev='vda' bus='virtio'/></disk>"
+            + "<interface type='network'><mac address='52:54:00:00:00:01'/><source network='default'/>"
+            + "<model type='virtio'/></interface>"
+            + "<interface type='bridge'><mac address='52:54:00:00:00:02'/><source bridge='br0'/></interface>"
+            + "<console type='pty'><target type='serial' port='0'/></console>"
+            + "<graphics type='vnc' autoport='yes' listen='127.0.0.1'/>"
+            + "<video><model type='virtio' heads='1' primary='yes'/></video>"
+            + "</devices></domain>";
+
+        DomainDeviceDiff diff = DomainDeviceDiff.compute(live, desired);
+        assertTrue("diff.isEmpty(): " + diff, diff.isEmpty());
+        assertFalse("diff.requiresRedefine()", diff.requiresRedefine());
+
+        // the bridge of a bridge interface is configuration
+        diff = DomainDeviceDiff.compute(live, desired.replace("'br0'", "'br1'"));
+        assertEquals("diff.getChanges()", "[UPDATE interface:52:54:00:00:00:02]", diff.getChanges().toString());
+
+        // devices which cannot be hot-plugged
+        diff = DomainDeviceDiff.compute(live, desired.replace("type='virtio' heads", "type='qxl' heads"));
+        assertTrue("diff.isEmpty()", diff.isEmpty());
+        assertTrue("diff.requiresRedefine()", diff.requiresRedefine());
+        diff = DomainDeviceDiff.compute(live, desired.replace("</devices>", "<input type='tablet' bus='usb'/></devices>"));
+        assertTrue("diff.isEmpty()", diff.isEmpty());
+        assertTrue("diff.requiresRedefine()", diff.requiresRedefine());
+    }
+
+    public void testMigrationConvergencePredictor() throws Exception {
+        MigrationConvergencePredictor p = new MigrationConvergencePredictor(8);
+        long total = 1L << 30;
+        // first pass, ignored
+        p.addSample(0, total / 2, total / 2, total);
+        assertEquals("p.predict()", MigrationConvergencePredictor.Verdict.UNKNOWN, p.predict(0, 60000));
+
+        // 100 MB/s sent, 40 MB/s dirtied
+        for (int i = 1; i <= 8; i++) {
+            p.addSample(i * 1000000000L, total + i * 100000000L, 600000000L - i * 60000000L, total);
+        }
+        assertEquals("p.getTransferRate()", 1e8, p.getTransferRate(), 1);
+        assertEquals("p.getDirtyRate()", 4e7, p.getDirtyRate(), 1);
+        assertEquals("p.predictTimeToConverge()", 333, p.predictTimeToConverge(1000));
+        assertEquals("p.predict()", MigrationConvergencePredictor.Verdict.CONVERGING, p.predict(1000, 60000));
+
+        // the guest now dirties memory faster than it is sent
+        p.reset();
+        for (int i = 1; i <= 8; i++) {
+            p.addSample(i * 1000000000L, total + i * 100000000L, 100000000L + i * 10000000L, total);
+        }
+        assertEquals("p.predict()", MigrationConvergencePredictor.Verdict.DIVERGING, p.predict(1000, 60000));
+    }
+
+    public void testMigrateParameters() throws Exception {
+        MigrateParameters params = new MigrateParameters().setBandwidth(2048);
+        assertEquals("params.getImpliedFlags()", 0, params.getImpliedFlags());
+
+        params.setParallelConnections(4);
+        assertEquals("params.getImpliedFlags()", Domain.MigrateFlags.VIR_MIGRATE_PARALLEL, params.getImpliedFlags());
+
+        params.addCompression(MigrateParameters.COMPRESSION_ZSTD)
+            .addCompression(MigrateParameters.COMPRESSION_ZSTD)
+            .setZstdLevel(20);
+        assertEquals("params.getImpliedFlags()",
+                     Domain.MigrateFlags.VIR_MIGRATE_PARALLEL | Domain.MigrateFlags.VIR_MIGRATE_COMPRESSED,
+                     params.getImpliedFlags());
+        assertEquals("params.getCompression().size()", 1, params.getCompression().size());
+        assertEquals("params.toString()",
+                     "{parallel.connections=4, compression.zstd.level=20, bandwidth=2048, compression=[zstd]}",
+                     params.toString());
+
+        try {
+            params.setZstdLevel(21);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            params.setParallelConnections(0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            params.setDisksPort(65536);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        params.setDisksPort(0);
+        assertEquals("params.getImpliedFlags()",
+                     Domain.MigrateFlags.VIR_MIGRATE_PARALLEL | Domain.MigrateFlags.VIR_MIGRATE_COMPRESSED,
+                     params.getImpliedFlags());
+    }
+
+    public void testDomainBulkExecutorExpire() throws Exception {
+        Connect conn = new Connect((ConnectionPointer) null);
+        List<Domain> domains = new ArrayList<Domain>();
+        for (final String name: Arrays.asList("hang", "slow")) {
+            domains.add(new Domain(conn, null) {
+                    @Override
+                    public String getName() {
+                        return name;
+                    }
+                });
+        }
+        final CountDownLatch release = new CountDownLatch(1);
+        DomainBulkExecutor.Action action = new DomainBulkExecutor.Action() {
+                public void run(Domain domain) throws LibvirtException {
+                    if (!"hang".equals(domain.getName())) return;
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+
+        // the listener of "slow" runs past the deadline, the report
+        // still waits for it
+        final AtomicInteger reported = new AtomicInteger();
+        DomainBulkExecutor executor = new DomainBulkExecutor()
+            .setHostConcurrency(2)
+            .setTimeout(100, TimeUnit.MILLISECONDS)
+            .setProgressListener(new DomainBulkExecutor.ProgressListener() {
+                    public void onProgress(DomainBulkExecutor.Result r, int completed, int total) {
+                        if ("slow".equals(r.getName())) {
+                            try {
+                                Thread.sleep(300);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        reported.incrementAndGet();
+                    }
+                });
+        try {
+            DomainBulkExecutor.Report report = executor.execute(action, domains);
+            assertEquals("reported", 2, reported.get());
+            assertEquals("report.getResults().size()", 2, report.getResults().size());
+            assertTrue("report.getResults().get(0).isTimedOut()", report.getResults().get(0).isTimedOut());
+            assertTrue("report.getResults().get(1).isSuccess()", report.getResults().get(1).isSuccess());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testMemorySearch() throws Exception {
+        byte[] pattern = "abcab".getBytes("US-ASCII");
+        int[] shift = DomainMemoryInspector.horspoolTable(pattern);
+        ByteBuffer b = ByteBuffer.wrap("abcabcabxxabcababcab".getBytes("US-ASCII"));
+        assertEquals("search()", Arrays.asList(0x1000L, 0x1003L, 0x100aL, 0x100fL),
+                     DomainMemoryInspector.search(b, 0x1000, pattern, shift));
+
+        // a match ending at the limit is found, one crossing it is not
+        b.limit(18);
+        assertEquals("search()", Arrays.asList(0L, 3L, 10L), DomainMemoryInspector.search(b, 0, pattern, shift));
+
+        byte[] one = { (byte) 0xff };
+        ByteBuffer page = ByteBuffer.allocateDirect(DomainMemoryInspector.PAGE_SIZE);
+        assertTrue("search()", DomainMemoryInspector.search(page, 0, one, DomainMemoryInspector.horspoolTable(one)).isEmpty());
+        page.put(DomainMemoryInspector.PAGE_SIZE - 1, (byte) 0xff);
+        assertEquals("search()", Arrays.asList((long) DomainMemoryInspector.PAGE_SIZE - 1),
+                     DomainMemoryInspector.search(page, 0, one, DomainMemoryInspector.horspoolTable(one)));
+    }
+
+    public void testMemoryTranslate() throws Exception {
+        // PML4 at 0x1000, PDPT at 0x2000, PD at 0x3000, PT at 0x4000
+        FakeMemoryDomain dom = new FakeMemoryDomain(new byte[0x10000]);
+        ByteBuffer mem = dom.memory;
+        mem.putLong(0x1000, 0x2000 | 1);
+        mem.putLong(0x2000, 0x3000 | 1);
+        mem.putLong(0x2000 + 1 * 8, 0x80000000L | 0x81);
+        mem.putLong(0x3000, 0x4000 | 1);
+        mem.putLong(0x3000 + 1 * 8, 0x40000000L | 0x81);
+        mem.putLong(0x4000 + 5 * 8, 0x7000 | 1);
+        mem.putLong(0x4000 + 7 * 8, 0x9000 | 1);
+        mem.putLong(0x4000 + 8 * 8, 0x8000 | 1);
+        // the accessed and dirty bits are not part of the address
+        mem.putLong(0x4000 + 9 * 8, 0xa000 | 0x61);
+
+        // one page per line and two lines cached, so lines are evicted
+        DomainMemoryInspector inspector = new DomainMemoryInspector(dom, 1, 2);
+        long cr3 = 0x1000 | 0x18;
+        assertEquals("translate(4 KiB)", 0x7123L, inspector.translate(cr3, 0x5123));
+        assertEquals("translate(accessed)", 0xa456L, inspector.translate(cr3, 0x9456));
+        assertEquals("translate(2 MiB)", 0x40012345L, inspector.translate(cr3, 0x212345));
+        assertEquals("translate(1 GiB)", 0x80123456L, inspector.translate(cr3, 0x40123456L));
+        assertEquals("translate(PT not present)", -1L, inspector.translate(cr3, 0x6000));
+        assertEquals("translate(PD not present)", -1L, inspector.translate(cr3, 0x400000));
+        assertEquals("translate(PML4 not present)", -1L, inspector.translate(cr3, 1L << 39));
+
+        // a read crossing into a page mapped out of order
+        mem.put(0x9ffe, (byte) 'a').put(0x9fff, (byte) 'b').put(0x8000, (byte) 'c').put(0x8001, (byte) 'd');
+        inspector.invalidate();
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        inspector.readVirtual(cr3, 0x7ffe, dst);
+        assertEquals("readVirtual()", "abcd", new String(dst.array(), "US-ASCII"));
+        try {
+            inspector.readVirtual(cr3, 0x5ffe, ByteBuffer.allocate(4));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // with all four tables cached a second walk fetches nothing
+        inspector = new DomainMemoryInspector(dom, 1, 4);
+        dom.peeks.clear();
+        inspector.translate(cr3, 0x5123);
+        assertEquals("dom.peeks", Arrays.asList(0x1000L, 0x2000L, 0x3000L, 0x4000L), dom.peeks);
+        inspector.translate(cr3, 0x9456);
+        assertEquals("dom.peeks.size()", 4, dom.peeks.size());
+    }
+
+    public void testScreenshotDecode() throws Exception {
+        byte[] header = "P6\n# comment\n3 2\n255\n".getBytes("US-ASCII");
+        byte[] ppm = new byte[header.length + 18];
+        System.arraycopy(header, 0, ppm, 0, header.length);
+        for (int i = 0; i < 18; i++) {
+            ppm[header.length + i] = (byte) (i * 10);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.flip();
+        DomainScreenshotService.Frame f = DomainScreenshotService.decode(
+            Channels.newChannel(new ByteArrayInputStream(ppm)), buf, null, 1, 2);
+        assertEquals("f.getWidth()", 3, f.getWidth());
+        assertEquals("f.getHeight()", 2, f.getHeight());
+        assertEquals("f.getPixels()[1]", 30 << 16 | 40 << 8 | 50, f.getPixels()[1]);
+        assertEquals("f.getTilesX()", 2, f.getTilesX());
+        assertEquals("f.diff()", 2, f.diff(null));
+
+        // change the last pixel, only the right tile differs
+        ppm[ppm.length - 1] = 1;
+        buf.clear().flip();
+        DomainScreenshotService.Frame g = DomainScreenshotService.decode(
+            Channels.newChannel(new ByteArrayInputStream(ppm)), buf, null, 1, 2);
+        assertEquals("g.diff()", 1, g.diff(f));
+        assertTrue("g.getChangedTiles()", g.getChangedTiles().get(1));
+
+        buf.clear().flip();
+        DomainScreenshotService.Frame t = DomainScreenshotService.decode(
+            Channels.newChannel(new ByteArrayInputStream(ppm)), buf, null, 2, 16);
+        assertEquals("t.getWidth()", 2, t.getWidth());
+        assertEquals("t.getPixels()[1]", 60 << 16 | 70 << 8 | 80, t.getPixels()[1]);
+
+        // the header alone is enough to refuse a huge frame
+        buf.clear().flip();
+        byte[] huge = "P6 100000 100000 255\n".getBytes("US-ASCII");
+        try {
+            DomainScreenshotService.decode(Channels.newChannel(new ByteArrayInputStream(huge)), buf, null, 1, 2);
+            fail("decode() should reject 100000x100000");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testConsoleLogRing() throws Exception {
+        DomainConsoleCapture capture = new DomainConsoleCapture(8);
+        DomainConsoleCapture.Log log = capture.new Log("t", null);
+        assertEquals("log.getContents().length", 0, log.getContents().length);
+
+        log.append(ByteBuffer.wrap("abcde".getBytes("US-ASCII")));
+        assertEquals("log.getContents()", "abcde", new String(log.getContents(), "US-ASCII"));
+
+        // wraps around the end of the ring
+        log.append(ByteBuffer.wrap("fghij".getBytes("US-ASCII")));
+        assertEquals("log.getContents()", "cdefghij", new String(log.getContents(), "US-ASCII"));
+
+        // only the tail of a chunk larger than the ring is kept
+        log.append(ByteBuffer.wrap("0123456789xy".getBytes("US-ASCII")));
+        assertEquals("log.getContents()", "456789xy", new String(log.getContents(), "US-ASCII"));
+        assertEquals("log.getTotalBytes()", 22, log.getTotalBytes());
+
+        capture.close();
+        try {
+            capture.setLogDirectory(new File("."), 0, 0);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testConsoleCaptureEnded() throws Exception {
+        DomainConsoleCapture capture = new DomainConsoleCapture(16);
+        FakeConsoleStream stream = new FakeConsoleStream();
+        DomainConsoleCapture.Log log = capture.attach("uuid-1", "vm1", stream);
+        assertTrue("log.isAttached()", log.isAttached());
+        stream.feed("hello");
+        stream.feed(" world");
+        assertEquals("log.getContents()", "hello world", new String(log.getContents(), "US-ASCII"));
+
+        // the domain stops, the stream is freed off the event loop
+        stream.handler.completed(-1);
+        assertFalse("log.isAttached()", log.isAttached());
+        assertNull("log.getError()", log.getError());
+        assertTrue("stream.freed", stream.freed.await(10, TimeUnit.SECONDS));
+        assertNotSame("stream.freedBy", Thread.currentThread(), stream.freedBy);
+
+        // the log is kept until it is removed
+        assertEquals("capture.getLogs()", Collections.singletonList(log), capture.getLogs());
+        assertEquals("capture.removeEnded()", Collections.singletonList(log), capture.removeEnded());
+        assertTrue("capture.getLogs()", capture.getLogs().isEmpty());
+
+        // a failed read ends capturing with the error
+        FakeConsoleStream failing = new FakeConsoleStream();
+        log = capture.attach("uuid-1", "vm1", failing);
+        IOException error = new IOException("console gone");
+        failing.handler.failed(error);
+        assertSame("log.getError()", error, log.getError());
+        assertTrue("failing.freed", failing.freed.await(10, TimeUnit.SECONDS));
+
+        // attaching again does not free the ended stream twice
+        FakeConsoleStream again = new FakeConsoleStream();
+        DomainConsoleCapture.Log log2 = capture.attach("uuid-1", "vm1", again);
+        assertEquals("capture.getLogs()", Collections.singletonList(log2), capture.getLogs());
+        capture.close();
+        assertEquals("failing.frees", 1, failing.frees);
+        assertEquals("again.frees", 1, again.frees);
+        assertSame("again.freedBy", Thread.currentThread(), again.freedBy);
+        assertFalse("log2.isAttached()", log2.isAttached());
+        assertTrue("capture.removeEnded()", capture.removeEnded().isEmpty());
+        assertEquals("stream.frees", 1, stream.frees);
+    }
+
+    public void testConsoleCaptureRotation() throws Exception {
+        File dir = tempDir();
+        DomainConsoleCapture capture = new DomainConsoleCapture(16).setLogDirectory(dir, 10, 2);
+        FakeConsoleStream stream = new FakeConsoleStream();
+        DomainConsoleCapture.Log log = capture.attach("uuid-1", "vm1", stream);
+        stream.feed("aaaaaa");
+        stream.feed("bbbbbb");
+        stream.feed("cccccc");
+        stream.feed("dddd");
+        stream.feed("eeeeee");
+        capture.close();
+
+        assertEquals("vm1.log", "eeeeee", read(new File(dir, "vm1.log")));
+        assertEquals("vm1.log.1", "ccccccdddd", read(new File(dir, "vm1.log.1")));
+        assertEquals("vm1.log.2", "bbbbbb", read(new File(dir, "vm1.log.2")));
+        assertFalse("vm1.log.3", new File(dir, "vm1.log.3").exists());
+        assertEquals("log.getContents()", "ccccccddddeeeeee", new String(log.getContents(), "US-ASCII"));
+        assertNull("log.getError()", log.getError());
+
+        // a new capture appends to the current file
+        capture = new DomainConsoleCapture(16).setLogDirectory(dir, 10, 2);
+        stream = new FakeConsoleStream();
+        capture.attach("uuid-1", "vm1", stream);
+        stream.feed("ff");
+        capture.close();
+        assertEquals("vm1.log", "eeeeeeff", read(new File(dir, "vm1.log")));
+
+        for (File f: dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    public void testCloneSchedulerParsing() throws Exception {
+        assertEquals("parseBackend()", "netfs:nas1", StorageVolCloneScheduler.parseBackend(
+            "<pool type='netfs'><name>p</name><source><host name='nas1'/><dir path='/x'/></source></pool>"));
+        assertEquals("parseBackend()", "dir", StorageVolCloneScheduler.parseBackend(
+            "<pool type='dir'><name>p</name><target><path>/x</path></target></pool>"));
+        assertEquals("parseName()", "vm1.img", StorageVolCloneScheduler.parseName(
+            "<volume><name> vm1.img </name><capacity>1</capacity></volume>"));
+    }
+
+    public void testLinkedCloneXML() throws Exception {
+        String xml = LinkedCloneProvisioner.overlayXML("vm1.qcow2", 1024, "/var/lib/images/golden.img", "raw");
+        LinkedCloneProvisioner.VolumeDesc d = LinkedCloneProvisioner.parseVolume(xml);
+        assertEquals("d.format", "qcow2", d.format);
+        assertEquals("d.backingPath", "/var/lib/images/golden.img", d.backingPath);
+        assertEquals("d.backingFormat", "raw", d.backingFormat);
+
+        d = LinkedCloneProvisioner.parseVolume("<volume><name>a</name><target><path>/a</path></target></volume>");
+        assertNull("d.format", d.format);
+        assertNull("d.backingPath", d.backingPath);
+
+        assertEquals("diskTarget(virtio)", "vda", LinkedCloneProvisioner.diskTarget("virtio"));
+        assertEquals("diskTarget(ide)", "hda", LinkedCloneProvisioner.diskTarget("ide"));
+        assertEquals("diskTarget(sata)", "sda", LinkedCloneProvisioner.diskTarget("sata"));
+        assertEquals("diskTarget(xen)", "xvda", LinkedCloneProvisioner.diskTarget("xen"));
+        try {
+            new LinkedCloneProvisioner().setDiskBus("floppy");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testStorageVolWiperFormats() throws Exception {
+        StorageVolInfo.VirStorageVolType file = StorageVolInfo.VirStorageVolType.VIR_STORAGE_VOL_FILE;
+        StorageVolInfo.VirStorageVolType block = StorageVolInfo.VirStorageVolType.VIR_STORAGE_VOL_BLOCK;
+        assertTrue("raw file", StorageVolWiper.uploadsZeros(file, "raw"));
+        assertTrue("block device", StorageVolWiper.uploadsZeros(block, null));
+        assertFalse("qcow2 file", StorageVolWiper.uploadsZeros(file, "qcow2"));
+        assertFalse("file without format", StorageVolWiper.uploadsZeros(file, null));
+        assertFalse("unknown type", StorageVolWiper.uploadsZeros(null, null));
+    }
+
+    public void testStorageVolWiperBudget() throws Exception {
+        StorageVolWiper wiper = new StorageVolWiper(1);
+        assertEquals("reserve() without budget", 0, wiper.reserve(1024 * 1024));
+
+        wiper.setBandwidth(1024 * 1024);
+        long first = wiper.reserve(512 * 1024);
+        long second = wiper.reserve(512 * 1024);
+        long third = wiper.reserve(1024);
+        long half = TimeUnit.MILLISECONDS.toNanos(500);
+        // each reservation waits for the ones before it
+        assertTrue("first: " + first, first <= 0);
+        assertTrue("second: " + second, second > half - half / 5 && second <= half);
+        assertTrue("third: " + third, third > 2 * half - half / 5 && third <= 2 * half);
+
+        wiper.shutdown();
+        assertTrue("awaitTermination()", wiper.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    public void testStorageVolWiperStates() throws Exception {
+        StorageVolWiper wiper = new StorageVolWiper(1).setConcurrency(1);
+
+        // not uploaded to, so wiped inside libvirt
+        FakeVolume qcow2 = new FakeVolume("qcow2");
+        StorageVolWiper.Wipe a = wiper.submit(qcow2, StorageVol.WipeAlgorithm.ZERO);
+        StorageVolWiper.Wipe b = wiper.submit(new FakeVolume("raw"), StorageVol.WipeAlgorithm.ZERO);
+        FakeVolume broken = new FakeVolume("broken");
+        StorageVolWiper.Wipe c = wiper.submit(broken, StorageVol.WipeAlgorithm.NNSA);
+        assertEquals("getQueueLength()", 2, wiper.getQueueLength());
+        assertEquals("b.getState()", StorageVolWiper.State.QUEUED, b.getState());
+
+        assertTrue("b.cancel()", b.cancel());
+        assertEquals("b.getState()", StorageVolWiper.State.CANCELLED, b.getState());
+        assertTrue("b.isDone()", b.isDone());
+        assertFalse("b.cancel()", b.cancel());
+        assertEquals("getQueueLength()", 1, wiper.getQueueLength());
+
+        assertTrue("wipe entered", qcow2.entered.await(5, TimeUnit.SECONDS));
+        assertEquals("a.getState()", StorageVolWiper.State.RUNNING, a.getState());
+        assertFalse("a.cancel()", a.cancel());
+        assertEquals("a.getWritten()", -1, a.getWritten());
+
+        wiper.shutdown();
+        try {
+            wiper.submit(qcow2, StorageVol.WipeAlgorithm.ZERO);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        qcow2.release.countDown();
+        assertEquals("a.await()", StorageVolWiper.State.COMPLETED, a.await());
+        assertEquals("qcow2.wiped", StorageVol.WipeAlgorithm.ZERO, qcow2.wiped);
+        assertEquals("a.getWritten()", 1024, a.getWritten());
+
+        broken.release.countDown();
+        assertEquals("c.await()", StorageVolWiper.State.FAILED, c.await());
+        assertTrue("c.getError()", c.getError() instanceof IllegalStateException);
+        assertTrue("awaitTermination()", wiper.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    public void testStorageVolInventoryRefetch() throws Exception {
+        FakePool pool = new FakePool();
+        for (int i = 0; i < 10; i++) {
+            pool.capacities.put("v" + i, 1024L);
+        }
+        StorageVolInventory inventory = new StorageVolInventory(pool).setBatchSize(3);
+        try {
+            assertEquals("added", 10, inventory.refresh().getAdded().size());
+            assertEquals("infoCalls", 10, pool.infoCalls);
+            pool.capacities.put("v0", 2048L);
+            assertEquals("changed", 1, inventory.refresh().getChanged().size());
+            assertEquals("infoCalls", 20, pool.infoCalls);
+
+            // only new and invalidated volumes are fetched
+            inventory.setRefetchInfo(false);
+            pool.capacities.put("v1", 2048L);
+            pool.capacities.put("v10", 1024L);
+            StorageVolInventory.Delta delta = inventory.refresh();
+            assertEquals("added", 1, delta.getAdded().size());
+            assertTrue("changed", delta.getChanged().isEmpty());
+            assertEquals("infoCalls", 21, pool.infoCalls);
+
+            inventory.invalidate("v1");
+            delta = inventory.refresh();
+            assertEquals("changed", 1, delta.getChanged().size());
+            assertEquals("getCapacity()", 2048, delta.getChanged().get(0).getCapacity());
+            assertEquals("infoCalls", 22, pool.infoCalls);
+
+            pool.capacities.remove("v2");
+            delta = inventory.refresh();
+            assertEquals("removed", 1, delta.getRemoved().size());
+            assertEquals("size()", 10, inventory.size());
+            assertEquals("infoCalls", 22, pool.infoCalls);
+        } finally {
+            inventory.close();
+        }
+    }
+
+    public void testStorageVolIndexRefresh() throws Exception {
+        final CountDownLatch listing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final FakePool pool = new FakePool() {
+                @Override
+                public StorageVol[] listAllVolumes() {
+                    listing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return super.listAllVolumes();
+                }
+            };
+        pool.capacities.put("v0", 1024L);
+        Connect conn = new Connect((ConnectionPointer) null) {
+                @Override
+                public StoragePool storagePoolLookupByUUIDString(String uuid) {
+                    return pool;
+                }
+            };
+        final StorageVolIndex index = new StorageVolIndex(conn);
+        try {
+            index.invalidate("p1");
+            Thread refresher = new Thread() {
+                    @Override
+                    public void run() {
+                        index.size();
+                    }
+                };
+            refresher.start();
+            assertTrue("listing", listing.await(10, TimeUnit.SECONDS));
+
+            // lookups during the refresh use the index as before
+            assertNull("index.getByKey()", index.getByKey("v0"));
+            release.countDown();
+            refresher.join();
+            assertEquals("index.getByKey()", "/pool/v0", index.getByKey("v0").getPath());
+            assertEquals("infoCalls", 1, pool.infoCalls);
+
+            // known volumes are not fetched again
+            pool.capacities.put("v1", 1024L);
+            index.invalidate("p1");
+            assertEquals("index.size()", 2, index.size());
+            assertEquals("infoCalls", 2, pool.infoCalls);
+        } finally {
+            index.close();
+        }
+    }
+
+    public void testStreamNonBlocking() throws Exception {
+        ScriptedStream in = new ScriptedStream(true);
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        assertEquals("in.read()", 0, in.read(buf));
+        in.script.add("abc".getBytes("US-ASCII"));
+        in.script.add(0);
+        assertEquals("in.read()", 3, in.read(buf));
+        assertEquals("buf.position()", 3, buf.position());
+        assertEquals("in.read()", -1, in.read(buf));
+        assertTrue("in.finished", in.finished);
+
+        // a non-blocking write returns early
+        ScriptedStream out = new ScriptedStream(false);
+        out.script.add(2);
+        out.script.add(1);
+        buf = ByteBuffer.wrap("abcdef".getBytes("US-ASCII"));
+        assertEquals("out.write()", 3, out.write(buf));
+        assertEquals("buf.position()", 3, buf.position());
+        assertEquals("out.write()", 0, out.write(buf));
+        assertEquals("out.sent", "abc", out.sent.toString("US-ASCII"));
+    }
+
+    public void testStreamAsync() throws Exception {
+        final ScriptedStream in = new ScriptedStream(true);
+        final ByteBuffer buf = ByteBuffer.allocate(16);
+        final Results results = new Results();
+        final Thread[] other = new Thread[1];
+        Stream.CompletionHandler<Integer> handler = new Stream.CompletionHandler<Integer>() {
+                @Override
+                public void completed(Integer n) {
+                    results.completed(n);
+                    // another thread can start an operation meanwhile
+                    other[0] = new Thread() {
+                            @Override
+                            public void run() {
+                                in.readAsync(buf, results);
+                            }
+                        };
+                    other[0].start();
+                    try {
+                        other[0].join(10000);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc) {
+                    results.failed(exc);
+                }
+            };
+
+        // nothing available, the read waits for the event loop
+        Future<Integer> f = in.readAsync(buf, handler);
+        assertFalse("f.isDone()", f.isDone());
+        int events = Stream.EventType.READABLE | Stream.EventType.ERROR | Stream.EventType.HANGUP;
+        assertEquals("in.events", events, in.events);
+        in.fire();
+        assertFalse("f.isDone()", f.isDone());
+
+        in.script.add("abc".getBytes("US-ASCII"));
+        in.fire();
+        assertEquals("f.get()", Integer.valueOf(3), f.get());
+        assertFalse("other.isAlive()", other[0].isAlive());
+        // the second read is waiting
+        assertEquals("results", Arrays.<Object>asList(3), results.results);
+        assertEquals("in.events", events, in.events);
+
+        in.script.add(0);
+        in.fire();
+        assertEquals("results", Arrays.<Object>asList(3, -1), results.results);
+        assertTrue("in.finished", in.finished);
+        assertEquals("in.events", 0, in.events);
+
+        // pending operations fail when the stream is closed
+        f = in.readAsync(buf, results);
+        in.close();
+        assertTrue("in.removed", in.removed);
+        assertTrue("results", results.results.get(2) instanceof AsynchronousCloseException);
+        try {
+            f.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue("e.getCause()", e.getCause() instanceof AsynchronousCloseException);
+        }
+        in.readAsync(buf, results);
+        assertTrue("results", results.results.get(3) instanceof ClosedChannelException);
+
+        // writes complete once the whole buffer has been sent
+        ScriptedStream out = new ScriptedStream(false);
+        out.script.add(2);
+        f = out.writeAsync(ByteBuffer.wrap("abcdef".getBytes("US-ASCII")), null);
+        assertEquals("out.events", Stream.EventType.WRITABLE | Stream.EventType.ERROR | Stream.EventType.HANGUP,
+                     out.events);
+        out.script.add(4);
+        out.fire();
+        assertEquals("f.get()", Integer.valueOf(6), f.get());
+        assertEquals("out.sent", "abcdef", out.sent.toString("US-ASCII"));
+    }
+
+    public void testMigrationSteering() throws Exception {
+        Connect conn = new Connect((ConnectionPointer) null);
+        MigrationOrchestrator orchestrator = new MigrationOrchestrator(new MigrationOrchestrator.Policy()
+                .setPollInterval(1, TimeUnit.MILLISECONDS)
+                .setPredictionWindow(3)
+                .setStallSamples(1)
+                .setInitialDowntime(100)
+                .setMaxDowntime(2000)
+                .setDowntimeStep(100)
+                .setMaxBandwidth(256)
+                .setBandwidthStep(64)
+                .setAbortOnStall(true));
+        FakeMigratingDomain dom = new FakeMigratingDomain(conn);
+        MigrationOrchestrator.Migration m = orchestrator.migrateToURI(dom, "qemu+ssh://dst/system", null, 0);
+        assertTrue("m.await()", m.await(10, TimeUnit.SECONDS));
+        assertEquals("m.getState()", MigrationOrchestrator.State.ABORTED, m.getState());
+        assertEquals("m.getAbortReason()", "migration does not converge", m.getAbortReason());
+
+        // the bandwidth is raised up to its limit first, then the downtime
+        List<String> calls = new ArrayList<String>(dom.calls);
+        assertEquals("calls", Arrays.asList("downtime 100", "bandwidth 96", "bandwidth 160", "bandwidth 224",
+                                            "bandwidth 256"), calls.subList(0, 5));
+        long downtime = 100;
+        for (String c: calls.subList(5, calls.size())) {
+            assertTrue("calls", c.startsWith("downtime "));
+            long d = Long.parseLong(c.substring(9));
+            // by at least a step, but not beyond the limit
+            assertTrue("downtime step", d > downtime && (d == 2000 || d >= downtime + 100) && d <= 2000);
+            downtime = d;
+        }
+        assertEquals("downtime", 2000, downtime);
+        assertEquals("m.getProgress().getBandwidth()", 256, m.getProgress().getBandwidth());
+        orchestrator.shutdown();
+    }
+
+    public void testMigrationPostCopyAndQueue() throws Exception {
+        Connect conn = new Connect((ConnectionPointer) null);
+        MigrationOrchestrator orchestrator = new MigrationOrchestrator(new MigrationOrchestrator.Policy()
+                .setPollInterval(1, TimeUnit.MILLISECONDS)
+                .setPredictionWindow(3)
+                .setStallSamples(1)
+                .setMaxBandwidth(256)
+                .setPostCopy(true))
+            .setSourceConcurrency(1);
+        FakeMigratingDomain dom1 = new FakeMigratingDomain(conn);
+        FakeMigratingDomain dom2 = new FakeMigratingDomain(conn);
+        MigrationOrchestrator.Migration m1 = orchestrator.migrateToURI(dom1, "qemu+ssh://dst1/system", null, 0);
+        MigrationOrchestrator.Migration m2 = orchestrator.migrateToURI(dom2, "qemu+ssh://dst2/system", null, 0);
+        assertEquals("m2.getState()", MigrationOrchestrator.State.QUEUED, m2.getState());
+        assertEquals("orchestrator.getQueueLength()", 1, orchestrator.getQueueLength());
+
+        // a diverging migration is switched to post-copy right away
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!m1.isPostCopy() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("m1.isPostCopy()", m1.isPostCopy());
+        assertEquals("dom1.calls", Arrays.asList("postcopy"), dom1.calls);
+        assertTrue("VIR_MIGRATE_POSTCOPY", (dom1.migrateFlags & Domain.MigrateFlags.VIR_MIGRATE_POSTCOPY) != 0);
+
+        // the queued migration starts once the first one has completed
+        dom1.release.countDown();
+        assertTrue("m1.await()", m1.await(10, TimeUnit.SECONDS));
+        assertEquals("m1.getState()", MigrationOrchestrator.State.COMPLETED, m1.getState());
+        while (m2.getState() == MigrationOrchestrator.State.QUEUED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("m2.getState()", MigrationOrchestrator.State.RUNNING, m2.getState());
+        m2.abort();
+        assertTrue("m2.await()", m2.await(10, TimeUnit.SECONDS));
+        assertEquals("m2.getState()", MigrationOrchestrator.State.ABORTED, m2.getState());
+        assertTrue("dom2.aborted", dom2.aborted);
+        orchestrator.shutdown();
+        try {
+            orchestrator.migrateToURI(dom1, "qemu+ssh://dst1/system", null, 0);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testStorageVolTransferRanges() throws Exception {
+        byte[] data = pattern(300);
+        File file = File.createTempFile("libvirt-test", ".img");
+        try {
+            final List<String> progress = new ArrayList<String>();
+            StorageVolTransfer transfer = new StorageVolTransfer()
+                .setOffset(10)
+                .setLength(100)
+                .setProgressListener(new StorageVolTransfer.ProgressListener() {
+                        @Override
+                        public void onProgress(long transferred, long total) {
+                            progress.add(transferred + "/" + total);
+                        }
+                    });
+            VolumeStream stream = new VolumeStream(data);
+            assertEquals("transfer.download()", 100, transfer.download(memoryVolume(stream), file, false));
+            assertTrue("Arrays.equals()", Arrays.equals(Arrays.copyOfRange(data, 10, 110), readBytes(file)));
+            assertEquals("progress", Arrays.asList("100/100"), progress);
+
+            // resuming continues after the part already in the file
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(data, 10, 40);
+            out.close();
+            stream = new VolumeStream(data);
+            assertEquals("transfer.download()", 60, transfer.download(memoryVolume(stream), file, true));
+            assertTrue("Arrays.equals()", Arrays.equals(Arrays.copyOfRange(data, 10, 110), readBytes(file)));
+            assertEquals("transfer.download()", 0, transfer.download(memoryVolume(stream), file, true));
+
+            // the offset and length are restored after resuming
+            progress.clear();
+            stream = new VolumeStream(data);
+            assertEquals("transfer.download()", 100, transfer.download(memoryVolume(stream), file, false));
+            assertEquals("progress", Arrays.asList("100/100"), progress);
+
+            // up to the end of the volume
+            progress.clear();
+            transfer.setLength(0);
+            stream = new VolumeStream(data);
+            assertEquals("transfer.download()", 290, transfer.download(memoryVolume(stream), file, false));
+            assertTrue("Arrays.equals()", Arrays.equals(Arrays.copyOfRange(data, 10, 300), readBytes(file)));
+            assertEquals("progress", Arrays.asList("290/290"), progress);
+
+            // an upload reads the file from the offset and writes the
+            // volume from there
+            byte[] vol = new byte[300];
+            stream = new VolumeStream(vol);
+            transfer.setOffset(50).setLength(100).setProgressListener(null);
+            out = new FileOutputStream(file);
+            out.write(data);
+            out.close();
+            assertEquals("transfer.upload()", 100, transfer.upload(memoryVolume(stream), file));
+            assertTrue("stream.finished", stream.finished);
+            assertTrue("Arrays.equals()", Arrays.equals(Arrays.copyOfRange(data, 50, 150),
+                                                        Arrays.copyOfRange(vol, 50, 150)));
+            assertEquals("vol[150]", 0, vol[150]);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testStorageVolTransferThrottle() throws Exception {
+        File file = File.createTempFile("libvirt-test", ".img");
+        try {
+            VolumeStream stream = new VolumeStream(pattern(32 * 1024));
+            StorageVolTransfer transfer = new StorageVolTransfer().setBandwidth(64 * 1024);
+            long start = System.nanoTime();
+            assertEquals("transfer.download()", 32 * 1024, transfer.download(memoryVolume(stream), file, false));
+            // two chunks of a quarter second each
+            assertTrue("elapsed", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+            assertEquals("stream.maxChunk", 16 * 1024, stream.maxChunk);
+
+            // a transfer interrupted after a chunk is aborted
+            stream = new VolumeStream(pattern(32 * 1024));
+            transfer.setProgressListener(new StorageVolTransfer.ProgressListener() {
+                    @Override
+                    public void onProgress(long transferred, long total) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            try {
+                transfer.download(memoryVolume(stream), file, false);
+                fail("InterruptedIOException expected");
+            } catch (InterruptedIOException e) {
+                assertTrue("Thread.interrupted()", Thread.interrupted());
+            }
+            assertTrue("stream.aborted", stream.aborted);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testStreamSendSparse() throws Exception {
+        int block = Stream.HOLE_BLOCK_SIZE;
+        byte[] vol = new byte[8 * block];
+        VolumeStream stream = new VolumeStream(vol);
+        stream.open(0, 0, false);
+
+        // two zero blocks, a block with data at its start, a zero block
+        // and a zero tail shorter than a block
+        ByteBuffer buf = ByteBuffer.allocate(4 * block + 10);
+        buf.put(2 * block, (byte) 1);
+        assertEquals("stream.sendSparse()", block, stream.sendSparse(buf));
+        assertFalse("buf.hasRemaining()", buf.hasRemaining());
+        assertEquals("stream.ops", Arrays.asList("hole " + 2 * block, "data " + block), stream.ops);
+
+        // the pending hole is merged with leading zeros of the next buffer
+        buf = ByteBuffer.allocate(block + 13);
+        buf.put(block + 12, (byte) 2);
+        assertEquals("stream.sendSparse()", 13, stream.sendSparse(buf));
+        assertEquals("stream.ops", Arrays.asList("hole " + 2 * block, "data " + block,
+                                                 "hole " + (2 * block + 10), "data 13"), stream.ops);
+
+        // a non-zero last byte of a block, starting within the buffer
+        buf = ByteBuffer.allocate(block + 3);
+        buf.put(block + 2, (byte) 3);
+        buf.position(3);
+        assertEquals("stream.sendSparse()", block, stream.sendSparse(buf));
+
+        // a trailing hole is only sent when flushed
+        buf = ByteBuffer.allocate(100);
+        assertEquals("stream.sendSparse()", 0, stream.sendSparse(buf));
+        assertEquals("stream.ops.size()", 5, stream.ops.size());
+        stream.flushHole();
+        stream.flushHole();
+        assertEquals("stream.ops", Arrays.asList("data " + block, "hole 100"), stream.ops.subList(4, 6));
+        assertEquals("stream.pos", 6 * block + 123, stream.pos);
+        assertEquals("vol[2 * block]", 1, vol[2 * block]);
+        assertEquals("vol[5 * block + 22]", 2, vol[5 * block + 22]);
+        assertEquals("vol[6 * block + 22]", 3, vol[6 * block + 22]);
+    }
+
+    public void testStreamReceiveSparse() throws Exception {
+        // data, a hole, data and a trailing hole
+        byte[] vol = new byte[10000];
+        System.arraycopy(pattern(100), 0, vol, 0, 100);
+        System.arraycopy(pattern(50), 0, vol, 5000, 50);
+        VolumeStream stream = new VolumeStream(vol);
+        stream.open(0, 0, true);
+        File file = File.createTempFile("libvirt-test", ".img");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            assertEquals("stream.sparseTransferTo()", 10000, stream.sparseTransferTo(raf.getChannel()));
+            assertTrue("stream.finished", stream.finished);
+            // the file is extended to the end of the trailing hole
+            assertEquals("raf.length()", 10000, raf.length());
+        } finally {
+            raf.close();
+        }
+        assertTrue("Arrays.equals()", Arrays.equals(vol, readBytes(file)));
+        file.delete();
+    }
+
+    public void testCloneSchedulerSlots() throws Exception {
+        AtomicInteger nasRunning = new AtomicInteger();
+        AtomicInteger nasMax = new AtomicInteger();
+        AtomicInteger dirRunning = new AtomicInteger();
+        AtomicInteger dirMax = new AtomicInteger();
+        String nas = "<pool type='netfs'><source><host name='nas1'/></source></pool>";
+        ClonePool a = new ClonePool("a", nas, nasRunning, nasMax);
+        ClonePool b = new ClonePool("b", nas, nasRunning, nasMax);
+        ClonePool c = new ClonePool("c", "<pool type='dir'/>", dirRunning, dirMax);
+        CountDownLatch release = new CountDownLatch(1);
+        a.release = b.release = c.release = release;
+
+        StorageVolCloneScheduler scheduler = new StorageVolCloneScheduler()
+            .setPoolConcurrency(2)
+            .setBackendConcurrency(3);
+        List<StorageVolCloneScheduler.Clone> clones = new ArrayList<StorageVolCloneScheduler.Clone>();
+        for (int i = 0; i < 3; i++) {
+            clones.add(scheduler.submit(a, cloneXML("a" + i), null, 0));
+            clones.add(scheduler.submit(b, cloneXML("b" + i), null, 0));
+        }
+        clones.add(scheduler.submit(c, cloneXML("c0"), null, 0));
+        clones.add(scheduler.submit(c, cloneXML("c1"), null, 0));
+        assertEquals("getBackend()", "netfs:nas1", clones.get(0).getBackend());
+
+        // three clones on the NAS, at most two per pool, and two in the
+        // directory pool
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((nasRunning.get() < 3 || dirRunning.get() < 2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals("nasRunning", 3, nasRunning.get());
+        assertEquals("dirRunning", 2, dirRunning.get());
+        assertEquals("scheduler.getQueueLength()", 3, scheduler.getQueueLength());
+
+        release.countDown();
+        for (StorageVolCloneScheduler.Clone clone: clones) {
+            assertTrue("clone.await()", clone.await(10, TimeUnit.SECONDS));
+            assertEquals("clone.getState()", StorageVolCloneScheduler.State.COMPLETED, clone.getState());
+            assertEquals("clone.getAttempts()", 1, clone.getAttempts());
+            assertEquals("clone.getCapacity()", 1024, clone.getCapacity());
+        }
+        assertEquals("nasMax", 3, nasMax.get());
+        assertTrue("a.max", a.max.get() <= 2);
+        assertTrue("b.max", b.max.get() <= 2);
+        assertEquals("c.max", 2, c.max.get());
+        scheduler.shutdown();
+        try {
+            scheduler.submit(c, cloneXML("c2"), null, 0);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testCloneSchedulerRetries() throws Exception {
+        ClonePool pool = new ClonePool("p", "<pool type='dir'/>", new AtomicInteger(), new AtomicInteger());
+        StorageVolCloneScheduler scheduler = new StorageVolCloneScheduler()
+            .setRetries(2)
+            .setRetryDelay(20, TimeUnit.MILLISECONDS);
+
+        // failed attempts are cleaned up and retried after 20 and 40ms
+        pool.failures = 2;
+        StorageVolCloneScheduler.Clone clone = scheduler.submit(pool, cloneXML("v1"), null, 0);
+        assertTrue("clone.await()", clone.await(10, TimeUnit.SECONDS));
+        assertEquals("clone.getState()", StorageVolCloneScheduler.State.COMPLETED, clone.getState());
+        assertEquals("clone.getAttempts()", 3, clone.getAttempts());
+        assertNull("clone.getError()", clone.getError());
+        assertEquals("pool.deleted", 2, pool.deleted.get());
+        List<Long> t = new ArrayList<Long>(pool.attemptTimes);
+        assertTrue("first delay", t.get(1) - t.get(0) >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue("second delay", t.get(2) - t.get(1) >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        // giving up after the retries
+        pool.failures = 3;
+        clone = scheduler.submit(pool, cloneXML("v2"), null, 0);
+        assertEquals("clone.await()", StorageVolCloneScheduler.State.FAILED, clone.await());
+        assertEquals("clone.getAttempts()", 3, clone.getAttempts());
+        assertNotNull("clone.getError()", clone.getError());
+        assertFalse("pool.volumes", pool.volumes.contains("v2"));
+
+        // an existing volume is neither overwritten nor deleted
+        clone = scheduler.submit(pool, cloneXML("v1"), null, 0);
+        assertEquals("clone.await()", StorageVolCloneScheduler.State.FAILED, clone.await());
+        assertEquals("clone.getAttempts()", 1, clone.getAttempts());
+        assertTrue("pool.volumes", pool.volumes.contains("v1"));
+        scheduler.shutdown();
+    }
+
+    public void testCloneSchedulerCancel() throws Exception {
+        ClonePool pool = new ClonePool("p", "<pool type='dir'/>", new AtomicInteger(), new AtomicInteger());
+        CountDownLatch release = new CountDownLatch(1);
+        pool.release = release;
+        StorageVolCloneScheduler scheduler = new StorageVolCloneScheduler()
+            .setPoolConcurrency(1)
+            .setRetryDelay(1, TimeUnit.HOURS);
+        StorageVolCloneScheduler.Clone running = scheduler.submit(pool, cloneXML("v1"), null, 0);
+        StorageVolCloneScheduler.Clone queued = scheduler.submit(pool, cloneXML("v2"), null, 0);
+        assertEquals("queued.getState()", StorageVolCloneScheduler.State.QUEUED, queued.getState());
+        assertTrue("queued.cancel()", queued.cancel());
+        assertTrue("queued.isDone()", queued.isDone());
+        assertEquals("queued.getState()", StorageVolCloneScheduler.State.CANCELLED, queued.getState());
+        assertEquals("scheduler.getQueueLength()", 0, scheduler.getQueueLength());
+        assertFalse("running.cancel()", running.cancel());
+
+        // a failed clone waiting for its retry can be cancelled
+        pool.failures = 1;
+        scheduler.shutdown();
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (running.getState() != StorageVolCloneScheduler.State.RETRYING
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("running.getState()", StorageVolCloneScheduler.State.RETRYING, running.getState());
+        assertFalse("running.isDone()", running.isDone());
+        assertTrue("running.cancel()", running.cancel());
+        assertEquals("running.await()", StorageVolCloneScheduler.State.CANCELLED, running.await());
+        assertEquals("running.getAttempts()", 1, running.getAttempts());
+        assertEquals("pool.attemptTimes.size()", 1, pool.attemptTimes.size());
+    }
+
+    public void testStreamTransfers() throws Exception {
+        // more than two transfer buffers
+        byte[] data = pattern(2 * Stream.TRANSFER_BUFFER_SIZE + 1000);
+        File file = File.createTempFile("libvirt-test", ".img");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            VolumeStream in = new VolumeStream(data);
+            in.open(0, 0, true);
+            assertEquals("in.transferTo()", data.length, in.transferTo(ch));
+            assertTrue("in.finished", in.finished);
+            assertEquals("in.maxChunk", Stream.TRANSFER_BUFFER_SIZE, in.maxChunk);
+            assertTrue("Arrays.equals()", Arrays.equals(data, readBytes(file)));
+
+            ch.position(0);
+            byte[] vol = new byte[data.length];
+            VolumeStream out = new VolumeStream(vol);
+            out.open(0, 0, false);
+            assertEquals("out.transferFrom()", data.length, out.transferFrom(ch));
+            assertFalse("out.finished", out.finished);
+            assertEquals("out.ops", Arrays.asList("data " + Stream.TRANSFER_BUFFER_SIZE,
+                                                  "data " + Stream.TRANSFER_BUFFER_SIZE, "data 1000"), out.ops);
+            assertTrue("Arrays.equals()", Arrays.equals(data, vol));
+
+            // transfers take their buffers from the shared pool
+            Map<ByteBuffer, Boolean> buffers = new IdentityHashMap<ByteBuffer, Boolean>();
+            for (int i = 0; i < 20; i++) {
+                in = new VolumeStream(data);
+                in.open(0, 1000, true);
+                ch.position(0);
+                assertEquals("in.transferTo()", 1000, in.transferTo(ch));
+                buffers.putAll(in.buffers);
+            }
+            assertTrue("buffers.size()", buffers.size() <= 16);
+            for (ByteBuffer b: buffers.keySet()) {
+                assertTrue("b.isDirect()", b.isDirect());
+                assertEquals("b.capacity()", Stream.TRANSFER_BUFFER_SIZE, b.capacity());
+            }
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    public void testStreamBatchTransfers() throws Exception {
+        final byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        FakeStream upload = new FakeStream();
+        final ByteBuffer in = ByteBuffer.wrap(data);
+        upload.sendAll(new Stream.Source() {
+                public int read(ByteBuffer buf) {
+                    if (!in.hasRemaining()) return -1;
+                    int n = Math.min(buf.remaining(), in.remaining());
+                    buf.put(in.array(), in.position(), n);
+                    in.position(in.position() + n);
+                    return n;
+                }
+            });
+        assertTrue("sent", Arrays.equals(data, upload.sent.toByteArray()));
+        assertTrue("upload.finished", upload.finished);
+        assertFalse("upload.aborted", upload.aborted);
+
+        FakeStream failed = new FakeStream();
+        try {
+            failed.sendAll(new Stream.Source() {
+                    public int read(ByteBuffer buf) throws IOException {
+                        throw new IOException("source failed");
+                    }
+                });
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals("e.getMessage()", "source failed", e.getMessage());
+        }
+        assertFalse("failed.finished", failed.finished);
+        assertTrue("failed.aborted", failed.aborted);
+
+        FakeStream download = new FakeStream();
+        download.received = data;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        download.receiveAll(new Stream.Sink() {
+                public void write(ByteBuffer buf) {
+                    // consume at most 5 bytes per call
+                    byte[] b = new byte[Math.min(5, buf.remaining())];
+                    buf.get(b);
+                    out.write(b, 0, b.length);
+                }
+            });
+        assertTrue("received", Arrays.equals(data, out.toByteArray()));
+        assertTrue("download.finished", download.finished);
+    }
+
+    public void testDomainBlockChannel() throws Exception {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        FakeDiskDomain dom = new FakeDiskDomain(data);
+        DomainBlockChannel ch = new DomainBlockChannel(dom, "vda", 16, 4, 1, inline);
+        assertEquals("ch.size()", 100, ch.size());
+
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals("ch.read()", 8, ch.read(buf, 4));
+        assertEquals("buf.get(0)", 4, buf.get(0));
+        assertEquals("ch.position()", 0, ch.position());
+        assertEquals("dom.peeks", "[0]", dom.peeks.toString());
+        // served from the cache, and sequential, so the next block is
+        // read ahead
+        buf.clear();
+        assertEquals("ch.read()", 8, ch.read(buf, 8));
+        assertEquals("dom.peeks", "[0, 16]", dom.peeks.toString());
+
+        // sequential reads span blocks and read ahead
+        buf = ByteBuffer.allocate(40);
+        assertEquals("ch.read()", 40, ch.read(buf));
+        assertEquals("buf.get(39)", 39, buf.get(39));
+        assertEquals("ch.position()", 40, ch.position());
+        assertEquals("dom.peeks", "[0, 16, 32, 48]", dom.peeks.toString());
+
+        // the last block is short
+        buf.clear();
+        assertEquals("ch.read()", 4, ch.read(buf, 96));
+        assertEquals("buf.get(3)", 99, buf.get(3));
+        assertEquals("ch.read()", -1, ch.read(buf, 100));
+
+        // block 0 has been evicted by block 96
+        assertEquals("ch.read()", 8, ch.read(ByteBuffer.allocate(8), 0));
+        assertEquals("dom.peeks", "[0, 16, 32, 48, 96, 0]", dom.peeks.toString());
+
+        // re-read after invalidation, again with readahead
+        ch.invalidate();
+        assertEquals("ch.read()", 8, ch.read(ByteBuffer.allocate(8), 0));
+        assertEquals("dom.peeks", "[0, 16, 32, 48, 96, 0, 0, 16]", dom.peeks.toString());
+
+        ch.close();
+        try {
+            ch.read(buf, 0);
+            fail("ClosedChannelException expected");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
 }